@@ -24,6 +24,22 @@ public class AttachedL2NetworkAllocatorFlow extends AbstractHostAllocatorFlow {
 
     @Autowired
     private DatabaseFacade dbf;
+    @Autowired
+    private HostCapacityIndex capacityIndex;
+
+    /**
+     * hosts not having the requested cpu and memory would be filtered out by HostCapacityAllocatorFlow,
+     * skip them here so only hosts in the index are loaded from the database
+     */
+    private List<HostVO> allocateFromIndex(Set<String> clusterUuids) {
+        List<String> huuids = capacityIndex.findHostsByCapacity(clusterUuids, spec.getCpuCapacity(), spec.getMemoryCapacity());
+        if (huuids.isEmpty()) {
+            // the index may not know hosts just added, let the database decide
+            return null;
+        }
+
+        return loadHostsFromIndex(huuids);
+    }
 
     @Transactional(readOnly = true)
     private List<HostVO> allocate(Collection<String> l3NetworkUuids, Collection<String> hostUuids) {
@@ -64,6 +80,13 @@ public class AttachedL2NetworkAllocatorFlow extends AbstractHostAllocatorFlow {
             return new ArrayList<HostVO>();
         }
 
+        if (hostUuids.isEmpty() && HostAllocatorGlobalConfig.USE_CAPACITY_INDEX.value(Boolean.class)) {
+            List<HostVO> vos = allocateFromIndex(clusterUuids);
+            if (vos != null) {
+                return vos;
+            }
+        }
+
         if (hostUuids.isEmpty()) {
             sql = "select h from HostVO h where h.clusterUuid in (:cuuids)";
             TypedQuery<HostVO> hq = dbf.getEntityManager().createQuery(sql, HostVO.class);
@@ -48,6 +48,8 @@ public class HostAllocatorChain implements HostAllocatorTrigger, HostAllocatorSt
     private ErrorFacade errf;
     @Autowired
     private DatabaseFacade dbf;
+    @Autowired
+    private HostCapacityIndex capacityIndex;
 
     public HostAllocatorSpec getAllocationSpec() {
         return allocationSpec;
@@ -91,6 +93,7 @@ public class HostAllocatorChain implements HostAllocatorTrigger, HostAllocatorSt
         }
         vo.setAvailableMemory(availMemory);
         dbf.getEntityManager().merge(vo);
+        capacityIndex.updateCapacity(hostUuid, availCpu, availMemory);
         return true;
     }
 
@@ -7,11 +7,13 @@ import org.zstack.core.cloudbus.CloudBus;
 import org.zstack.core.cloudbus.MessageSafe;
 import org.zstack.core.componentloader.PluginRegistry;
 import org.zstack.core.db.DatabaseFacade;
+import org.zstack.core.errorcode.ErrorFacade;
 import org.zstack.header.AbstractService;
 import org.zstack.header.allocator.*;
 import org.zstack.header.cluster.ReportHostCapacityMessage;
 import org.zstack.header.core.ReturnValueCompletion;
 import org.zstack.header.errorcode.ErrorCode;
+import org.zstack.header.errorcode.OperationFailureException;
 import org.zstack.header.exception.CloudRuntimeException;
 import org.zstack.header.host.HostInventory;
 import org.zstack.header.message.APIMessage;
@@ -22,11 +24,13 @@ import org.zstack.utils.logging.CLogger;
 import javax.persistence.LockModeType;
 import javax.persistence.Tuple;
 import javax.persistence.TypedQuery;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class HostAllocatorManagerImpl extends AbstractService implements HostAllocatorManager {
 	private static final CLogger logger = Utils.getLogger(HostAllocatorManagerImpl.class);
@@ -41,6 +45,10 @@ public class HostAllocatorManagerImpl extends AbstractService implements HostAll
 	private PluginRegistry pluginRgty;
     @Autowired
     private HostCapacityReserveManager reserveMgr;
+    @Autowired
+    private HostCapacityIndex capacityIndex;
+    @Autowired
+    private ErrorFacade errf;
 
 	@Override
     @MessageSafe
@@ -55,6 +63,8 @@ public class HostAllocatorManagerImpl extends AbstractService implements HostAll
 	private void handleLocalMessage(Message msg) {
 		if (msg instanceof AllocateHostMsg) {
 			handle((AllocateHostMsg) msg);
+		} else if (msg instanceof BatchAllocateHostMsg) {
+			handle((BatchAllocateHostMsg) msg);
 		} else if (msg instanceof ReportHostCapacityMessage) {
 			handle((ReportHostCapacityMessage) msg);
 		} else if (msg instanceof ReturnHostCapacityMsg) {
@@ -64,6 +74,76 @@ public class HostAllocatorManagerImpl extends AbstractService implements HostAll
 		}
 	}
 
+    private void handle(final BatchAllocateHostMsg msg) {
+        final BatchAllocateHostReply reply = new BatchAllocateHostReply();
+        final List<AllocateHostMsg> amsgs = msg.getAllocateHostMsgs();
+        if (amsgs.isEmpty()) {
+            reply.setHosts(new ArrayList<HostInventory>());
+            bus.reply(msg, reply);
+            return;
+        }
+
+        // find candidates of each vm by a dry run of its own allocator chain, then place them all together
+        final List<List<HostInventory>> candidates = Collections.synchronizedList(new ArrayList<List<HostInventory>>(Collections.<List<HostInventory>>nCopies(amsgs.size(), null)));
+        final List<ErrorCode> errors = Collections.synchronizedList(new ArrayList<ErrorCode>());
+        final AtomicInteger count = new AtomicInteger(amsgs.size());
+        for (int i = 0; i < amsgs.size(); i++) {
+            final int index = i;
+            final AllocateHostMsg amsg = amsgs.get(i);
+            ReturnValueCompletion<List<HostInventory>> completion = new ReturnValueCompletion<List<HostInventory>>(msg) {
+                @Override
+                public void success(List<HostInventory> returnValue) {
+                    if (returnValue.isEmpty()) {
+                        errors.add(errf.instantiateErrorCode(HostAllocatorError.NO_AVAILABLE_HOST,
+                                String.format("no candidate host for vm[uuid:%s, name:%s]", amsg.getVmInstance().getUuid(), amsg.getVmInstance().getName())));
+                    } else {
+                        candidates.set(index, returnValue);
+                    }
+                    done();
+                }
+
+                @Override
+                public void fail(ErrorCode errorCode) {
+                    errors.add(errorCode);
+                    done();
+                }
+
+                private void done() {
+                    if (count.decrementAndGet() != 0) {
+                        return;
+                    }
+
+                    if (!errors.isEmpty()) {
+                        reply.setError(errors.get(0));
+                        bus.reply(msg, reply);
+                        return;
+                    }
+
+                    try {
+                        reply.setHosts(new HostBatchAllocator(amsgs, candidates).allocate());
+                    } catch (OperationFailureException e) {
+                        reply.setError(e.getErrorCode());
+                    } catch (Throwable t) {
+                        logger.warn(t.getMessage(), t);
+                        reply.setError(errf.throwableToInternalError(t));
+                    }
+                    bus.reply(msg, reply);
+                }
+            };
+
+            // a vm failing before its dry run starts must still be counted, or the batch never replies
+            try {
+                HostAllocatorSpec spec = HostAllocatorSpec.fromAllocationMsg(amsg);
+                HostAllocatorStrategyFactory factory = getHostAllocatorStrategyFactory(HostAllocatorStrategyType.valueOf(amsg.getAllocatorStrategy()));
+                factory.marshalSpec(spec, amsg);
+                factory.getHostAllocatorStrategy().dryRun(spec, completion);
+            } catch (Throwable t) {
+                logger.warn(t.getMessage(), t);
+                completion.fail(errf.throwableToInternalError(t));
+            }
+        }
+    }
+
 	private void handle(ReturnHostCapacityMsg msg) {
 	    returnCapacity(msg.getHost().getUuid(), msg.getCpuCapacity(), msg.getMemoryCapacity());
     }
@@ -90,6 +170,8 @@ public class HostAllocatorManagerImpl extends AbstractService implements HostAll
         } else {
             dbf.update(vo);
         }
+
+        capacityIndex.updateCapacity(vo.getUuid(), vo.getAvailableCpu(), vo.getAvailableMemory());
     }
 
 	private void handle(final AllocateHostMsg msg) {
@@ -259,6 +341,7 @@ public class HostAllocatorManagerImpl extends AbstractService implements HostAll
         vo.setAvailableMemory(availMemory);
 
 		dbf.getEntityManager().merge(vo);
+        capacityIndex.updateCapacity(hostUuid, availCpu, availMemory);
 		logger.debug(String.format("Successfully returned cpu[%s HZ], memory[%s bytes] to host[uuid:%s]", cpu, memory, hostUuid));
     }
 }
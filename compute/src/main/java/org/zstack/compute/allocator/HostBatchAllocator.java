@@ -0,0 +1,269 @@
+package org.zstack.compute.allocator;
+
+import org.springframework.beans.factory.annotation.Autowire;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Configurable;
+import org.springframework.transaction.annotation.Transactional;
+import org.zstack.compute.vm.VmSystemTags;
+import org.zstack.core.db.DatabaseFacade;
+import org.zstack.core.errorcode.ErrorFacade;
+import org.zstack.header.allocator.AllocateHostMsg;
+import org.zstack.header.allocator.HostAllocatorError;
+import org.zstack.header.allocator.HostCapacityVO;
+import org.zstack.header.allocator.ReservedHostCapacity;
+import org.zstack.header.errorcode.OperationFailureException;
+import org.zstack.header.host.HostInventory;
+import org.zstack.utils.Utils;
+import org.zstack.utils.logging.CLogger;
+
+import javax.persistence.LockModeType;
+import javax.persistence.Tuple;
+import javax.persistence.TypedQuery;
+import java.util.*;
+
+import static org.zstack.utils.CollectionDSL.e;
+import static org.zstack.utils.CollectionDSL.map;
+
+/**
+ * Places a batch of vms jointly: vms are sorted by memory then cpu in descending order (first-fit-decreasing),
+ * each goes to the candidate host that has the least capacity left after placing it (best-fit), and
+ * vms of the same anti-affinity group never share a host.
+ *
+ * The candidates of each vm come from a dry run of its allocator chain; the placement is computed on
+ * a snapshot of HostCapacityVO minus the reserved capacity, then reserved for the whole batch in one
+ * transaction. If a concurrent allocation has consumed the capacity in between, the placement is
+ * computed again on a new snapshot.
+ */
+@Configurable(preConstruction = true, autowire = Autowire.BY_TYPE)
+class HostBatchAllocator {
+    private static final CLogger logger = Utils.getLogger(HostBatchAllocator.class);
+
+    private static final int MAX_RESERVE_TIMES = 3;
+
+    @Autowired
+    private DatabaseFacade dbf;
+    @Autowired
+    private ErrorFacade errf;
+    @Autowired
+    private HostCapacityReserveManager reserveMgr;
+    @Autowired
+    private HostCapacityIndex capacityIndex;
+
+    private class Item {
+        int index;
+        AllocateHostMsg msg;
+        List<String> candidates = new ArrayList<String>();
+        String antiAffinityGroup;
+        String hostUuid;
+    }
+
+    private class Capacity {
+        String hostUuid;
+        long cpu;
+        long memory;
+    }
+
+    private List<Item> items = new ArrayList<Item>();
+    private Map<String, HostInventory> hosts = new HashMap<String, HostInventory>();
+    // hosts already running vms of each anti-affinity group
+    private Map<String, Set<String>> groupHosts = new HashMap<String, Set<String>>();
+
+    /**
+     * @param candidates candidate hosts of each msg, in the same order as msgs
+     */
+    HostBatchAllocator(List<AllocateHostMsg> msgs, List<List<HostInventory>> candidates) {
+        for (int i = 0; i < msgs.size(); i++) {
+            Item item = new Item();
+            item.index = i;
+            item.msg = msgs.get(i);
+            for (HostInventory h : candidates.get(i)) {
+                item.candidates.add(h.getUuid());
+                hosts.put(h.getUuid(), h);
+            }
+            items.add(item);
+        }
+    }
+
+    private void collectAntiAffinityGroups() {
+        List<String> vmUuids = new ArrayList<String>(items.size());
+        for (Item item : items) {
+            vmUuids.add(item.msg.getVmInstance().getUuid());
+        }
+
+        Map<String, List<String>> tags = VmSystemTags.ANTI_AFFINITY_GROUP.getTags(vmUuids);
+        if (tags.isEmpty()) {
+            return;
+        }
+
+        for (Item item : items) {
+            List<String> ts = tags.get(item.msg.getVmInstance().getUuid());
+            if (ts == null) {
+                continue;
+            }
+
+            item.antiAffinityGroup = VmSystemTags.ANTI_AFFINITY_GROUP.getTokenByTag(ts.get(0), VmSystemTags.ANTI_AFFINITY_GROUP_TOKEN);
+            groupHosts.put(item.antiAffinityGroup, new HashSet<String>());
+        }
+
+        List<String> groupTags = new ArrayList<String>(groupHosts.size());
+        for (String group : groupHosts.keySet()) {
+            groupTags.add(VmSystemTags.ANTI_AFFINITY_GROUP.instantiateTag(map(e(VmSystemTags.ANTI_AFFINITY_GROUP_TOKEN, group))));
+        }
+
+        for (Tuple t : findHostsOfGroups(groupTags, vmUuids)) {
+            String group = VmSystemTags.ANTI_AFFINITY_GROUP.getTokenByTag(t.get(0, String.class), VmSystemTags.ANTI_AFFINITY_GROUP_TOKEN);
+            groupHosts.get(group).add(t.get(1, String.class));
+        }
+    }
+
+    @Transactional(readOnly = true)
+    private List<Tuple> findHostsOfGroups(List<String> groupTags, List<String> vmUuidsToExclude) {
+        String sql = "select t.tag, vm.hostUuid from SystemTagVO t, VmInstanceVO vm where t.resourceUuid = vm.uuid" +
+                " and t.tag in (:tags) and vm.hostUuid is not null and vm.uuid not in (:vmUuids)";
+        TypedQuery<Tuple> q = dbf.getEntityManager().createQuery(sql, Tuple.class);
+        q.setParameter("tags", groupTags);
+        q.setParameter("vmUuids", vmUuidsToExclude);
+        return q.getResultList();
+    }
+
+    @Transactional(readOnly = true)
+    private Map<String, Capacity> loadCapacity() {
+        List<String> huuids = new ArrayList<String>(hosts.keySet());
+        String sql = "select hc.uuid, hc.availableCpu, hc.availableMemory from HostCapacityVO hc where hc.uuid in (:huuids)";
+        TypedQuery<Tuple> q = dbf.getEntityManager().createQuery(sql, Tuple.class);
+        q.setParameter("huuids", huuids);
+        List<Tuple> ts = q.getResultList();
+
+        Map<String, ReservedHostCapacity> reserves = reserveMgr.getReservedHostCapacityOfEachHost(huuids);
+        Map<String, Capacity> ret = new HashMap<String, Capacity>();
+        for (Tuple t : ts) {
+            Capacity c = new Capacity();
+            c.hostUuid = t.get(0, String.class);
+            c.cpu = t.get(1, Long.class);
+            c.memory = t.get(2, Long.class);
+            ReservedHostCapacity rc = reserves.get(c.hostUuid);
+            if (rc != null) {
+                c.cpu -= rc.getReservedCpuCapacity();
+                c.memory -= rc.getReservedMemoryCapacity();
+            }
+            ret.put(c.hostUuid, c);
+        }
+        return ret;
+    }
+
+    private void place(Map<String, Capacity> capacities) {
+        List<Item> sorted = new ArrayList<Item>(items);
+        Collections.sort(sorted, new Comparator<Item>() {
+            @Override
+            public int compare(Item o1, Item o2) {
+                if (o1.msg.getMemoryCapacity() != o2.msg.getMemoryCapacity()) {
+                    return o1.msg.getMemoryCapacity() > o2.msg.getMemoryCapacity() ? -1 : 1;
+                }
+                if (o1.msg.getCpuCapacity() != o2.msg.getCpuCapacity()) {
+                    return o1.msg.getCpuCapacity() > o2.msg.getCpuCapacity() ? -1 : 1;
+                }
+                return o1.index - o2.index;
+            }
+        });
+
+        Map<String, Set<String>> usedByGroup = new HashMap<String, Set<String>>();
+        for (Map.Entry<String, Set<String>> e : groupHosts.entrySet()) {
+            usedByGroup.put(e.getKey(), new HashSet<String>(e.getValue()));
+        }
+
+        for (Item item : sorted) {
+            long cpu = item.msg.getCpuCapacity();
+            long memory = item.msg.getMemoryCapacity();
+            Set<String> used = item.antiAffinityGroup == null ? null : usedByGroup.get(item.antiAffinityGroup);
+
+            Capacity best = null;
+            for (String huuid : item.candidates) {
+                Capacity c = capacities.get(huuid);
+                if (c == null || c.cpu < cpu || c.memory < memory) {
+                    continue;
+                }
+
+                if (used != null && used.contains(huuid)) {
+                    continue;
+                }
+
+                if (best == null || c.memory < best.memory || (c.memory == best.memory && c.cpu < best.cpu)) {
+                    best = c;
+                }
+            }
+
+            if (best == null) {
+                throw new OperationFailureException(errf.instantiateErrorCode(HostAllocatorError.NO_AVAILABLE_HOST,
+                        String.format("unable to place vm[uuid:%s, name:%s] together with other %s vms in the batch; none of its %s candidate hosts has cpu[%s HZ], memory[%s bytes] left%s",
+                                item.msg.getVmInstance().getUuid(), item.msg.getVmInstance().getName(), items.size() - 1, item.candidates.size(), cpu, memory,
+                                item.antiAffinityGroup == null ? "" : String.format(" without a vm of anti-affinity group[%s]", item.antiAffinityGroup))
+                ));
+            }
+
+            best.cpu -= cpu;
+            best.memory -= memory;
+            item.hostUuid = best.hostUuid;
+            if (used != null) {
+                used.add(best.hostUuid);
+            }
+        }
+    }
+
+    @Transactional
+    private boolean reserve() {
+        // lock hosts in the same order to avoid dead locks with other batches
+        Map<String, long[]> demands = new TreeMap<String, long[]>();
+        for (Item item : items) {
+            long[] d = demands.get(item.hostUuid);
+            if (d == null) {
+                d = new long[2];
+                demands.put(item.hostUuid, d);
+            }
+            d[0] += item.msg.getCpuCapacity();
+            d[1] += item.msg.getMemoryCapacity();
+        }
+
+        List<HostCapacityVO> vos = new ArrayList<HostCapacityVO>(demands.size());
+        for (Map.Entry<String, long[]> e : demands.entrySet()) {
+            HostCapacityVO vo = dbf.getEntityManager().find(HostCapacityVO.class, e.getKey(), LockModeType.PESSIMISTIC_WRITE);
+            if (vo == null || vo.getAvailableCpu() < e.getValue()[0] || vo.getAvailableMemory() < e.getValue()[1]) {
+                logger.debug(String.format("[Host Allocation]: host[uuid:%s] no longer has cpu[%s HZ], memory[%s bytes] for the batch",
+                        e.getKey(), e.getValue()[0], e.getValue()[1]));
+                return false;
+            }
+            vos.add(vo);
+        }
+
+        // nothing is changed until every host is verified, no rollback is needed when one fails
+        for (HostCapacityVO vo : vos) {
+            long[] d = demands.get(vo.getUuid());
+            vo.setAvailableCpu(vo.getAvailableCpu() - d[0]);
+            vo.setAvailableMemory(vo.getAvailableMemory() - d[1]);
+            dbf.getEntityManager().merge(vo);
+            capacityIndex.updateCapacity(vo.getUuid(), vo.getAvailableCpu(), vo.getAvailableMemory());
+        }
+        return true;
+    }
+
+    List<HostInventory> allocate() {
+        collectAntiAffinityGroups();
+
+        for (int i = 0; i < MAX_RESERVE_TIMES; i++) {
+            place(loadCapacity());
+            if (reserve()) {
+                List<HostInventory> ret = new ArrayList<HostInventory>(items.size());
+                Set<String> used = new HashSet<String>();
+                for (Item item : items) {
+                    ret.add(hosts.get(item.hostUuid));
+                    used.add(item.hostUuid);
+                }
+
+                logger.debug(String.format("[Host Allocation]: successfully placed %s vms on %s hosts", items.size(), used.size()));
+                return ret;
+            }
+        }
+
+        throw new OperationFailureException(errf.instantiateErrorCode(HostAllocatorError.NO_AVAILABLE_HOST,
+                String.format("unable to reserve capacity for the batch of %s vms after %s attempts, capacity of hosts is being changed concurrently", items.size(), MAX_RESERVE_TIMES)));
+    }
+}
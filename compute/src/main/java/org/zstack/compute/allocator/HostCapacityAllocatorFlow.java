@@ -21,9 +21,29 @@ public class HostCapacityAllocatorFlow extends AbstractHostAllocatorFlow {
     private DatabaseFacade dbf;
     @Autowired
     private HostCapacityReserveManager reserveMgr;
+    @Autowired
+    private HostCapacityIndex capacityIndex;
+
+	@Transactional(readOnly = true)
+	private List<HostVO> allocateFromIndex(long cpu, long memory) {
+        List<String> huuids = capacityIndex.findHostsByCapacity(null, cpu, memory);
+        if (huuids.isEmpty()) {
+            // the index may not know hosts just added, let the database decide
+            return null;
+        }
+
+        return loadHostsFromIndex(huuids);
+    }
 
 	@Transactional(readOnly = true)
 	private List<HostVO> allocate(long cpu, long memory) {
+        if (HostAllocatorGlobalConfig.USE_CAPACITY_INDEX.value(Boolean.class)) {
+            List<HostVO> vos = allocateFromIndex(cpu, memory);
+            if (vos != null) {
+                return vos;
+            }
+        }
+
 		String sql = "select h from HostVO h, HostCapacityVO hc where h.uuid = hc.uuid and hc.availableCpu > :cpu and hc.availableMemory > :memory";
 		TypedQuery<HostVO> query = dbf.getEntityManager().createQuery(sql, HostVO.class);
 		query.setParameter("cpu", cpu);
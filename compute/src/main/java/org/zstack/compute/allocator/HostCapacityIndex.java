@@ -0,0 +1,27 @@
+package org.zstack.compute.allocator;
+
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * An in-memory copy of HostCapacityVO grouped by cluster, used by allocator flows to pick
+ * candidates without scanning the database.
+ *
+ * The index is a hint: it may lag behind the database, the capacity is always verified when
+ * it's reserved.
+ */
+public interface HostCapacityIndex {
+    /**
+     * @param clusterUuids clusters to search, null for all clusters
+     * @return uuids of hosts whose available cpu and memory are not less than the requested ones,
+     * hosts having more available memory come first. Allocator flows paginate in this order, so
+     * with the index enabled pages start from the hosts having the most available memory instead
+     * of following the database order
+     */
+    List<String> findHostsByCapacity(Collection<String> clusterUuids, long cpu, long memory);
+
+    /**
+     * updates the index on this management node and notifies other management nodes
+     */
+    void updateCapacity(String hostUuid, long availableCpu, long availableMemory);
+}
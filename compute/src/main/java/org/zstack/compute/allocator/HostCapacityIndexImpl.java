@@ -0,0 +1,264 @@
+package org.zstack.compute.allocator;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.transaction.annotation.Transactional;
+import org.zstack.core.Platform;
+import org.zstack.core.cloudbus.EventCallback;
+import org.zstack.core.cloudbus.EventFacade;
+import org.zstack.core.db.DatabaseFacade;
+import org.zstack.core.db.SimpleQuery;
+import org.zstack.core.db.SimpleQuery.Op;
+import org.zstack.core.thread.PeriodicTask;
+import org.zstack.core.thread.ThreadFacade;
+import org.zstack.header.Component;
+import org.zstack.header.allocator.HostAllocatorCanonicalEvents;
+import org.zstack.header.allocator.HostAllocatorCanonicalEvents.HostCapacityChangedData;
+import org.zstack.header.host.HostVO;
+import org.zstack.header.host.HostVO_;
+import org.zstack.utils.Utils;
+import org.zstack.utils.logging.CLogger;
+
+import javax.persistence.Tuple;
+import javax.persistence.TypedQuery;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hosts of each cluster are kept in a set sorted by available memory, a search walks the set
+ * from the top and stops at the first host not having enough memory. As HostCapacityAllocatorFlow
+ * does, a host having exactly the requested capacity is a candidate.
+ *
+ * The index is loaded from the database on start and reloaded periodically; in between, it's
+ * updated by capacity changes made on this management node and by HOST_CAPACITY_CHANGED events
+ * fired by other management nodes.
+ */
+public class HostCapacityIndexImpl implements HostCapacityIndex, Component {
+    private static final CLogger logger = Utils.getLogger(HostCapacityIndexImpl.class);
+
+    @Autowired
+    private DatabaseFacade dbf;
+    @Autowired
+    private ThreadFacade thdf;
+    @Autowired
+    private EventFacade evtf;
+
+    private static final Comparator<HostEntry> MEMORY_DESC = new Comparator<HostEntry>() {
+        @Override
+        public int compare(HostEntry o1, HostEntry o2) {
+            if (o1.availableMemory != o2.availableMemory) {
+                return o1.availableMemory > o2.availableMemory ? -1 : 1;
+            }
+            return o1.uuid.compareTo(o2.uuid);
+        }
+    };
+
+    private static class HostEntry {
+        final String uuid;
+        final String clusterUuid;
+        final long availableCpu;
+        final long availableMemory;
+
+        HostEntry(String uuid, String clusterUuid, long availableCpu, long availableMemory) {
+            this.uuid = uuid;
+            this.clusterUuid = clusterUuid;
+            this.availableCpu = availableCpu;
+            this.availableMemory = availableMemory;
+        }
+    }
+
+    private static class ClusterIndex {
+        private final TreeSet<HostEntry> entries = new TreeSet<HostEntry>(MEMORY_DESC);
+
+        synchronized void add(HostEntry e) {
+            entries.add(e);
+        }
+
+        synchronized void remove(HostEntry e) {
+            entries.remove(e);
+        }
+
+        synchronized void find(long cpu, long memory, List<HostEntry> ret) {
+            for (HostEntry e : entries) {
+                if (e.availableMemory < memory) {
+                    break;
+                }
+
+                if (e.availableCpu >= cpu) {
+                    ret.add(e);
+                }
+            }
+        }
+    }
+
+    // both maps are replaced as a whole on reload; writers hold the lock of this object
+    private volatile Map<String, HostEntry> hosts = new ConcurrentHashMap<String, HostEntry>();
+    private volatile Map<String, ClusterIndex> clusters = new ConcurrentHashMap<String, ClusterIndex>();
+    private Future<Void> reloadTask;
+
+    @Override
+    public List<String> findHostsByCapacity(Collection<String> clusterUuids, long cpu, long memory) {
+        Map<String, ClusterIndex> cs = clusters;
+        Collection<ClusterIndex> toSearch;
+        if (clusterUuids == null) {
+            toSearch = cs.values();
+        } else {
+            toSearch = new ArrayList<ClusterIndex>(clusterUuids.size());
+            for (String cuuid : clusterUuids) {
+                ClusterIndex c = cs.get(cuuid);
+                if (c != null) {
+                    toSearch.add(c);
+                }
+            }
+        }
+
+        List<HostEntry> found = new ArrayList<HostEntry>();
+        for (ClusterIndex c : toSearch) {
+            c.find(cpu, memory, found);
+        }
+
+        if (toSearch.size() > 1) {
+            Collections.sort(found, MEMORY_DESC);
+        }
+
+        List<String> ret = new ArrayList<String>(found.size());
+        for (HostEntry e : found) {
+            ret.add(e.uuid);
+        }
+        return ret;
+    }
+
+    @Override
+    public void updateCapacity(String hostUuid, long availableCpu, long availableMemory) {
+        update(hostUuid, availableCpu, availableMemory);
+
+        HostCapacityChangedData data = new HostCapacityChangedData();
+        data.setHostUuid(hostUuid);
+        data.setAvailableCpu(availableCpu);
+        data.setAvailableMemory(availableMemory);
+        data.setManagementNodeUuid(Platform.getManagementServerId());
+        evtf.fire(HostAllocatorCanonicalEvents.HOST_CAPACITY_CHANGED_PATH, data);
+    }
+
+    private void update(String hostUuid, long availableCpu, long availableMemory) {
+        HostEntry old = hosts.get(hostUuid);
+        String clusterUuid;
+        if (old != null) {
+            clusterUuid = old.clusterUuid;
+        } else {
+            SimpleQuery<HostVO> q = dbf.createQuery(HostVO.class);
+            q.select(HostVO_.clusterUuid);
+            q.add(HostVO_.uuid, Op.EQ, hostUuid);
+            clusterUuid = q.findValue();
+            if (clusterUuid == null) {
+                // the host has been deleted
+                return;
+            }
+        }
+
+        put(new HostEntry(hostUuid, clusterUuid, availableCpu, availableMemory));
+    }
+
+    private synchronized void put(HostEntry e) {
+        HostEntry old = hosts.put(e.uuid, e);
+        if (old != null) {
+            ClusterIndex oc = clusters.get(old.clusterUuid);
+            if (oc != null) {
+                oc.remove(old);
+            }
+        }
+
+        ClusterIndex c = clusters.get(e.clusterUuid);
+        if (c == null) {
+            c = new ClusterIndex();
+            clusters.put(e.clusterUuid, c);
+        }
+        c.add(e);
+    }
+
+    @Transactional(readOnly = true)
+    private List<Tuple> loadCapacity() {
+        String sql = "select hc.uuid, h.clusterUuid, hc.availableCpu, hc.availableMemory from HostCapacityVO hc, HostVO h where hc.uuid = h.uuid";
+        TypedQuery<Tuple> q = dbf.getEntityManager().createQuery(sql, Tuple.class);
+        return q.getResultList();
+    }
+
+    private void reload() {
+        List<Tuple> ts = loadCapacity();
+        Map<String, HostEntry> hs = new ConcurrentHashMap<String, HostEntry>();
+        Map<String, ClusterIndex> cs = new ConcurrentHashMap<String, ClusterIndex>();
+        for (Tuple t : ts) {
+            HostEntry e = new HostEntry(t.get(0, String.class), t.get(1, String.class), t.get(2, Long.class), t.get(3, Long.class));
+            hs.put(e.uuid, e);
+            ClusterIndex c = cs.get(e.clusterUuid);
+            if (c == null) {
+                c = new ClusterIndex();
+                cs.put(e.clusterUuid, c);
+            }
+            c.add(e);
+        }
+
+        synchronized (this) {
+            hosts = hs;
+            clusters = cs;
+        }
+
+        logger.debug(String.format("loaded capacity of %s hosts in %s clusters into the host capacity index", hs.size(), cs.size()));
+    }
+
+    @Override
+    public boolean start() {
+        evtf.on(HostAllocatorCanonicalEvents.HOST_CAPACITY_CHANGED_PATH, new EventCallback() {
+            @Override
+            public void run(Map tokens, Object data) {
+                HostCapacityChangedData d = (HostCapacityChangedData) data;
+                if (Platform.getManagementServerId().equals(d.getManagementNodeUuid())) {
+                    // already updated by ourselves
+                    return;
+                }
+
+                update(d.getHostUuid(), d.getAvailableCpu(), d.getAvailableMemory());
+            }
+        });
+
+        reload();
+
+        final int interval = HostAllocatorGlobalConfig.CAPACITY_INDEX_RELOAD_INTERVAL.value(Integer.class);
+        reloadTask = thdf.submitPeriodicTask(new PeriodicTask() {
+            @Override
+            public TimeUnit getTimeUnit() {
+                return TimeUnit.SECONDS;
+            }
+
+            @Override
+            public long getInterval() {
+                return interval;
+            }
+
+            @Override
+            public String getName() {
+                return "HostCapacityIndexReloadThread";
+            }
+
+            @Override
+            public void run() {
+                try {
+                    reload();
+                } catch (Throwable t) {
+                    logger.warn("unable to reload the host capacity index", t);
+                }
+            }
+        });
+
+        return true;
+    }
+
+    @Override
+    public boolean stop() {
+        if (reloadTask != null) {
+            reloadTask.cancel(true);
+        }
+        return true;
+    }
+}
@@ -4,6 +4,7 @@ import org.zstack.header.allocator.ReservedHostCapacity;
 import org.zstack.header.host.HostVO;
 
 import java.util.List;
+import java.util.Map;
 
 /**
  */
@@ -15,4 +16,6 @@ public interface HostCapacityReserveManager {
     ReservedHostCapacity getReservedHostCapacityByClusters(List<String> clusterUuids);
 
     ReservedHostCapacity getReservedHostCapacityByHosts(List<String> hostUuids);
+
+    Map<String, ReservedHostCapacity> getReservedHostCapacityOfEachHost(List<String> hostUuids);
 }
@@ -360,4 +360,12 @@ public class HostCapacityReserveManagerImpl implements HostCapacityReserveManage
         finder.hostUuids = hostUuids;
         return finder.find().values().iterator().next();
     }
+
+    @Override
+    public Map<String, ReservedHostCapacity> getReservedHostCapacityOfEachHost(List<String> hostUuids) {
+        ReservedCapacityFinder finder = new ReservedCapacityFinder();
+        // the finder removes hosts from the list as it goes
+        finder.hostUuids = new ArrayList<String>(hostUuids);
+        return finder.find();
+    }
 }
@@ -148,6 +148,8 @@ public class HostManagerImpl extends AbstractService implements HostManager, Man
     private void handleLocalMessage(Message msg) {
         if (msg instanceof HostMessage) {
             passThrough((HostMessage) msg);
+        } else if (msg instanceof HostHeartbeatMsg) {
+            tracker.reportHeartbeat(((HostHeartbeatMsg) msg).getHostUuid());
         } else {
             bus.dealWithUnknownMessage(msg);
         }
@@ -21,18 +21,38 @@ import org.zstack.utils.Utils;
 import org.zstack.utils.logging.CLogger;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 
 /**
+ * Hosts are spread over time slots, one slot per second of the ping interval, by the hash of their uuids;
+ * the tracker wakes up every second and only pings hosts in the current slot, so a round of pings is
+ * spread over the whole interval instead of being sent all at once.
+ *
+ * A host that has pushed a heartbeat within the last interval is not pinged. A host answering pings
+ * skips one more round after each successful ping, up to host.ping.maxSkipRounds; any failure resets it.
  */
 public class HostTrackImpl implements HostTracker, ManagementNodeChangeListener, Component {
     private final static CLogger logger = Utils.getLogger(HostTrackImpl.class);
 
-    private final List<String> hostUuids = Collections.synchronizedList(new ArrayList<String>());
-    private Set<String> hostInTracking = Collections.synchronizedSet(new HashSet<String>());
+    private static class TrackedHost {
+        final String uuid;
+        volatile HostStatusEvent lastStatus;
+        volatile long lastHeartbeat;
+        volatile int goodRounds;
+        volatile int roundsToSkip;
+
+        TrackedHost(String uuid) {
+            this.uuid = uuid;
+        }
+    }
+
+    private final Map<String, TrackedHost> hosts = new ConcurrentHashMap<String, TrackedHost>();
+    private final Set<String> hostInTracking = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    // guarded by this
+    private List<Set<String>> slots = new ArrayList<Set<String>>();
     private Future<Void> trackerThread = null;
-    private final Map<String, HostStatusEvent> hostConnectionStateEventMap = Collections.synchronizedMap(new HashMap<String, HostStatusEvent>());
 
     @Autowired
     private DatabaseFacade dbf;
@@ -44,6 +64,8 @@ public class HostTrackImpl implements HostTracker, ManagementNodeChangeListener,
     private ThreadFacade thdf;
 
     private class Tracker implements PeriodicTask {
+        private long tick;
+
         @Override
         public TimeUnit getTimeUnit() {
             return TimeUnit.SECONDS;
@@ -51,7 +73,7 @@ public class HostTrackImpl implements HostTracker, ManagementNodeChangeListener,
 
         @Override
         public long getInterval() {
-            return HostGlobalConfig.PING_HOST_INTERVAL.value(Integer.class);
+            return 1;
         }
 
         @Override
@@ -60,7 +82,15 @@ public class HostTrackImpl implements HostTracker, ManagementNodeChangeListener,
         }
 
         private void handleReply(final String hostUuid, MessageReply reply) {
+            TrackedHost h = hosts.get(hostUuid);
+            if (h == null) {
+                logger.debug(String.format("[Host Tracker]: host[uuid:%s] is no longer tracked, ignore the ping result", hostUuid));
+                return;
+            }
+
             if (!reply.isSuccess()) {
+                h.goodRounds = 0;
+                h.roundsToSkip = 0;
                 logger.warn(String.format("[Host Tracker]: unable track host[uuid:%s], %s", hostUuid, reply.getError()));
                 return;
             }
@@ -72,12 +102,20 @@ public class HostTrackImpl implements HostTracker, ManagementNodeChangeListener,
                 logger.trace(String.format("[Host Tracker]: discover host[uuid:%s] connection state[%s], %s", hostUuid, cevt, moreInfo));
             }
 
-            HostStatusEvent oevt = hostConnectionStateEventMap.get(hostUuid);
+            if (preply.isConnected()) {
+                h.goodRounds ++;
+                h.roundsToSkip = Math.min(h.goodRounds - 1, HostGlobalConfig.PING_MAX_SKIP_ROUNDS.value(Integer.class));
+            } else {
+                h.goodRounds = 0;
+                h.roundsToSkip = 0;
+            }
+
+            HostStatusEvent oevt = h.lastStatus;
             if (oevt == cevt) {
                 return;
             }
 
-            hostConnectionStateEventMap.put(hostUuid, cevt);
+            h.lastStatus = cevt;
             ChangeHostConnectionStateMsg cmsg = new ChangeHostConnectionStateMsg();
             cmsg.setHostUuid(hostUuid);
             cmsg.setConnectionStateEvent(cevt.toString());
@@ -98,23 +136,46 @@ public class HostTrackImpl implements HostTracker, ManagementNodeChangeListener,
             });
         }
 
+        private boolean needPing(TrackedHost h, long now, long interval) {
+            if (h.lastStatus == HostStatusEvent.connected && now - h.lastHeartbeat < interval) {
+                // the host has told us it's alive
+                return false;
+            }
+
+            if (h.roundsToSkip > 0) {
+                h.roundsToSkip --;
+                return false;
+            }
+
+            return true;
+        }
+
         @Override
         public void run() {
             try {
-                List<PingHostMsg> msgs = null;
-                synchronized (hostUuids) {
-                    msgs = new ArrayList<PingHostMsg>();
-                    for (String huuid : hostUuids) {
-                        if (hostInTracking.contains(huuid)) {
-                            continue;
-                        }
-
-                        PingHostMsg msg = new PingHostMsg();
-                        msg.setHostUuid(huuid);
-                        bus.makeTargetServiceIdByResourceUuid(msg, HostConstant.SERVICE_ID, huuid);
-                        msgs.add(msg);
-                        hostInTracking.add(huuid);
+                Set<String> slot = getSlot(tick ++);
+                if (slot == null) {
+                    return;
+                }
+
+                long now = System.currentTimeMillis();
+                long interval = TimeUnit.SECONDS.toMillis(HostGlobalConfig.PING_HOST_INTERVAL.value(Integer.class));
+                List<PingHostMsg> msgs = new ArrayList<PingHostMsg>();
+                for (String huuid : slot) {
+                    TrackedHost h = hosts.get(huuid);
+                    if (h == null || !needPing(h, now, interval)) {
+                        continue;
+                    }
+
+                    if (!hostInTracking.add(huuid)) {
+                        // the last ping is still going on
+                        continue;
                     }
+
+                    PingHostMsg msg = new PingHostMsg();
+                    msg.setHostUuid(huuid);
+                    bus.makeTargetServiceIdByResourceUuid(msg, HostConstant.SERVICE_ID, huuid);
+                    msgs.add(msg);
                 }
 
                 if (msgs.isEmpty()) {
@@ -135,68 +196,110 @@ public class HostTrackImpl implements HostTracker, ManagementNodeChangeListener,
         }
     }
 
-    public void trackHost(String hostUuid) {
-        synchronized (hostUuids) {
-            if (!hostUuids.contains(hostUuid)) {
-                hostUuids.add(hostUuid);
-                logger.debug(String.format("start tracking host[uuid:%s]", hostUuid));
-            }
+    private synchronized Set<String> getSlot(long tick) {
+        if (slots.isEmpty()) {
+            return null;
+        }
+
+        return slots.get((int) (tick % slots.size()));
+    }
+
+    private Set<String> slotOf(String hostUuid) {
+        if (slots.isEmpty()) {
+            // hosts are tracked before the tracker starts
+            buildSlots();
         }
+        return slots.get((hostUuid.hashCode() & Integer.MAX_VALUE) % slots.size());
+    }
+
+    private synchronized void buildSlots() {
+        int num = Math.max(1, HostGlobalConfig.PING_HOST_INTERVAL.value(Integer.class));
+        slots = new ArrayList<Set<String>>(num);
+        for (int i = 0; i < num; i++) {
+            slots.add(Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>()));
+        }
+
+        for (String huuid : hosts.keySet()) {
+            slotOf(huuid).add(huuid);
+        }
+    }
+
+    private synchronized void addHost(String hostUuid) {
+        if (hosts.containsKey(hostUuid)) {
+            return;
+        }
+
+        hosts.put(hostUuid, new TrackedHost(hostUuid));
+        slotOf(hostUuid).add(hostUuid);
+        logger.debug(String.format("start tracking host[uuid:%s]", hostUuid));
+    }
+
+    private synchronized void removeHost(String hostUuid) {
+        hosts.remove(hostUuid);
+        slotOf(hostUuid).remove(hostUuid);
+        logger.debug(String.format("stop tracking host[uuid:%s]", hostUuid));
+    }
+
+    public void trackHost(String hostUuid) {
+        addHost(hostUuid);
     }
 
     @Override
     public void untrackHost(String hostUuid) {
-        synchronized (hostUuids) {
-            hostUuids.remove(hostUuid);
-            hostConnectionStateEventMap.remove(hostUuid);
-            logger.debug(String.format("stop tracking host[uuid:%s]", hostUuid));
-        }
+        removeHost(hostUuid);
     }
 
     @Override
     public void trackHost(Collection<String> huuids) {
-        synchronized (hostUuids) {
-            for (String huuid : huuids) {
-                if (!hostUuids.contains(huuid)) {
-                    hostUuids.add(huuid);
-                    logger.debug(String.format("start tracking host[uuid:%s]", huuid));
-                }
-            }
+        for (String huuid : huuids) {
+            addHost(huuid);
         }
     }
 
     @Override
     public void untrackHost(Collection<String> huuids) {
-        synchronized (hostUuids) {
-            for (String huuid : huuids) {
-                hostUuids.remove(huuid);
-                hostConnectionStateEventMap.remove(huuid);
-                logger.debug(String.format("stop tracking host[uuid:%s]", huuid));
-            }
+        for (String huuid : huuids) {
+            removeHost(huuid);
+        }
+    }
+
+    @Override
+    public void reportHeartbeat(String hostUuid) {
+        TrackedHost h = hosts.get(hostUuid);
+        if (h != null) {
+            h.lastHeartbeat = System.currentTimeMillis();
         }
     }
 
     private void reScanHost() {
-        synchronized (hostUuids) {
-            hostUuids.clear();
-
-            long count = dbf.count(HostVO.class);
-            int times = (int)count / 10000 + (count%10000 == 0 ? 0 : 1);
-            int offset = 0;
-            for (int i=0; i<times; i++) {
-                SimpleQuery<HostVO> q = dbf.createQuery(HostVO.class);
-                q.select(HostVO_.uuid);
-                q.setStart(offset);
-                q.setLimit(10000);
-                List<String> huuids = q.listValue();
-                for (String h : huuids) {
-                    if (destMaker.isManagedByUs(h)) {
-                        hostUuids.add(h);
-                    }
+        Set<String> managed = new HashSet<String>();
+        long count = dbf.count(HostVO.class);
+        int times = (int)count / 10000 + (count%10000 == 0 ? 0 : 1);
+        int offset = 0;
+        for (int i=0; i<times; i++) {
+            SimpleQuery<HostVO> q = dbf.createQuery(HostVO.class);
+            q.select(HostVO_.uuid);
+            q.setStart(offset);
+            q.setLimit(10000);
+            List<String> huuids = q.listValue();
+            for (String h : huuids) {
+                if (destMaker.isManagedByUs(h)) {
+                    managed.add(h);
                 }
+            }
 
-                offset += 10000;
+            offset += 10000;
+        }
+
+        synchronized (this) {
+            // keep the state of hosts still managed by us
+            hosts.keySet().retainAll(managed);
+            for (String huuid : managed) {
+                if (!hosts.containsKey(huuid)) {
+                    hosts.put(huuid, new TrackedHost(huuid));
+                }
             }
+            buildSlots();
         }
     }
 
@@ -229,14 +332,15 @@ public class HostTrackImpl implements HostTracker, ManagementNodeChangeListener,
     }
 
     private void setupTracker() {
+        buildSlots();
         startTracker();
 
         HostGlobalConfig.PING_HOST_INTERVAL.installUpdateExtension(new GlobalConfigUpdateExtensionPoint() {
             @Override
             public void updateGlobalConfig(GlobalConfig oldConfig, GlobalConfig newConfig) {
-                logger.debug(String.format("%s change from %s to %s, restart tracker thread",
+                logger.debug(String.format("%s change from %s to %s, rebuild time slots of the tracker",
                         oldConfig.getCanonicalName(), oldConfig.value(), newConfig.value()));
-                startTracker();
+                buildSlots();
             }
         });
     }
@@ -12,4 +12,6 @@ public interface HostTracker {
     void trackHost(Collection<String> hostUuids);
 
     void untrackHost(Collection<String> hostUuids);
+
+    void reportHeartbeat(String hostUuid);
 }
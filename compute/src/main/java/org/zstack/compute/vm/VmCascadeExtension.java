@@ -57,6 +57,8 @@ public class VmCascadeExtension extends AbstractAsyncCascadeExtension {
     protected VmInstanceExtensionPointEmitter extEmitter;
     @Autowired
     private CloudBus bus;
+    @Autowired
+    private VmInstanceManager vmMgr;
 
     private static final String NAME = VmInstanceVO.class.getSimpleName();
 
@@ -248,6 +250,8 @@ public class VmCascadeExtension extends AbstractAsyncCascadeExtension {
                         q.executeUpdate();
                     }
                 }.run();
+
+                vmMgr.evictAllCachedVmInstances();
             }
 
             completion.success();
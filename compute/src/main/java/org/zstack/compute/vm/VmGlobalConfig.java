@@ -12,4 +12,6 @@ public class VmGlobalConfig {
     public static GlobalConfig DELETE_DATA_VOLUME_ON_VM_DESTROY = new GlobalConfig(CATEGORY, "dataVolume.deleteOnVmDestroy");
     @GlobalConfigValidation
     public static GlobalConfig UPDATE_INSTANCE_OFFERING_TO_NULL_WHEN_DELETING = new GlobalConfig(CATEGORY, "instanceOffering.setNullWhenDeleting");
+    @GlobalConfigValidation(numberGreaterThan = -1)
+    public static GlobalConfig VM_INSTANCE_CACHE_SIZE = new GlobalConfig(CATEGORY, "cache.size");
 }
@@ -127,6 +127,11 @@ public class VmInstanceBase extends AbstractVmInstance {
         this.syncThreadName = "Vm-" + vo.getUuid();
     }
 
+    // the vm manager may have a cached copy of the vm, it must be dropped after the vm is changed in database
+    protected void evictCachedVO() {
+        vmMgr.evictCachedVmInstance(self.getUuid());
+    }
+
     protected VmInstanceVO refreshVO() {
         VmInstanceVO vo = self;
         self = dbf.findByUuid(self.getUuid(), VmInstanceVO.class);
@@ -176,6 +181,7 @@ public class VmInstanceBase extends AbstractVmInstance {
 
         self.setState(state);
         self = dbf.updateAndRefresh(self);
+        evictCachedVO();
         logger.debug(String.format("vm[uuid:%s] changed state from %s to %s", self.getUuid(), bs, self.getState()));
         notfiyEmitter.notifyVmStateChange(VmInstanceInventory.valueOf(self), bs, state);
         return self;
@@ -303,6 +309,7 @@ public class VmInstanceBase extends AbstractVmInstance {
 
                     self.setHostUuid(h.getValue());
                     dbf.update(self);
+                    evictCachedVO();
                     reply.setChangeHostUuidDone(true);
                 }
             }
@@ -317,6 +324,7 @@ public class VmInstanceBase extends AbstractVmInstance {
                         (h.getExpected() != null && h.getExpected().equals(self.getHostUuid()))) {
                     self.setHostUuid(h.getValue());
                     dbf.update(self);
+                    evictCachedVO();
                     reply.setChangeHostUuidDone(true);
                 }
             }
@@ -941,6 +949,7 @@ public class VmInstanceBase extends AbstractVmInstance {
                 public void handle(final ErrorCode errCode, Map data) {
                     extEmitter.failedToStartNewCreatedVm(VmInstanceInventory.valueOf(self), errCode);
                     dbf.remove(self);
+                    evictCachedVO();
                     StartNewCreatedVmInstanceReply reply = new StartNewCreatedVmInstanceReply();
                     reply.setError(errf.instantiateErrorCode(SysErrors.OPERATION_ERROR, errCode));
                     bus.reply(msg, reply);
@@ -1188,6 +1197,7 @@ public class VmInstanceBase extends AbstractVmInstance {
                 } else {
                     self.setState(originState);
                     self = dbf.updateAndRefresh(self);
+                    evictCachedVO();
                 }
                 extEmitter.failedToMigrateVm(VmInstanceInventory.valueOf(self), spec.getDestHost().getUuid(), errCode);
                 completion.fail(errCode);
@@ -1284,6 +1294,7 @@ public class VmInstanceBase extends AbstractVmInstance {
                 } else {
                     self.setState(originState);
                     self = dbf.updateAndRefresh(self);
+                    evictCachedVO();
                 }
                 extEmitter.failedToStartVm(VmInstanceInventory.valueOf(self), errCode);
                 completion.fail(errCode);
@@ -1480,6 +1491,7 @@ public class VmInstanceBase extends AbstractVmInstance {
 
         if (!nicUuidToDel.isEmpty()) {
             dbf.removeByPrimaryKeys(nicUuidToDel, VmNicVO.class);
+            evictCachedVO();
             self = dbf.findByUuid(inv.getUuid(), VmInstanceVO.class);
             inv = VmInstanceInventory.valueOf(self);
         }
@@ -1570,6 +1582,7 @@ public class VmInstanceBase extends AbstractVmInstance {
                 } else {
                     self.setState(originState);
                     self = dbf.updateAndRefresh(self);
+                    evictCachedVO();
                 }
                 extEmitter.failedToRebootVm(VmInstanceInventory.valueOf(self), errCode);
                 completion.fail(errCode);
@@ -1686,6 +1699,7 @@ public class VmInstanceBase extends AbstractVmInstance {
                 } else {
                     self.setState(originState);
                     self = dbf.updateAndRefresh(self);
+                    evictCachedVO();
                 }
                 VmInstanceInventory inv = VmInstanceInventory.valueOf(self);
                 extEmitter.failedToStopVm(inv, errCode);
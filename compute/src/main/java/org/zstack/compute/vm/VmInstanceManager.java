@@ -22,4 +22,8 @@ public interface VmInstanceManager {
     FlowChain getAttachUninstantiatedVolumeWorkFlowChain(VmInstanceInventory inv);
 
     VmInstanceFactory getVmInstanceFactory(VmInstanceType vmType);
+
+    void evictCachedVmInstance(String vmUuid);
+
+    void evictAllCachedVmInstances();
 }
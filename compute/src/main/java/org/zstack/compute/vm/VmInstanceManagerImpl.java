@@ -7,7 +7,10 @@ import org.zstack.core.Platform;
 import org.zstack.core.cloudbus.CloudBus;
 import org.zstack.core.cloudbus.CloudBusCallBack;
 import org.zstack.core.cloudbus.MessageSafe;
+import org.zstack.core.cloudbus.ResourceDestinationMaker;
 import org.zstack.core.componentloader.PluginRegistry;
+import org.zstack.core.config.GlobalConfig;
+import org.zstack.core.config.GlobalConfigUpdateExtensionPoint;
 import org.zstack.core.db.DatabaseFacade;
 import org.zstack.core.db.DbEntityLister;
 import org.zstack.core.db.SimpleQuery;
@@ -23,6 +26,7 @@ import org.zstack.header.exception.CloudRuntimeException;
 import org.zstack.header.host.HostStatus;
 import org.zstack.header.host.HostStatusChangeNotifyPoint;
 import org.zstack.header.host.HostInventory;
+import org.zstack.header.managementnode.ManagementNodeChangeListener;
 import org.zstack.header.message.APICreateMessage;
 import org.zstack.header.message.APIMessage;
 import org.zstack.header.message.Message;
@@ -32,7 +36,8 @@ import org.zstack.header.tag.SystemTagCreateMessageValidator;
 import org.zstack.header.tag.SystemTagVO;
 import org.zstack.header.tag.SystemTagValidator;
 import org.zstack.header.vm.*;
-import org.zstack.header.vm.ChangeVmMetaDataMsg.AtomicVmState;
+import org.zstack.header.volume.VolumeVO;
+import org.zstack.header.volume.VolumeVO_;
 import org.zstack.identity.AccountManager;
 import org.zstack.search.SearchQuery;
 import org.zstack.tag.TagManager;
@@ -41,11 +46,13 @@ import org.zstack.utils.Utils;
 import org.zstack.utils.gson.JSONObjectUtil;
 import org.zstack.utils.logging.CLogger;
 
+import javax.persistence.LockModeType;
+import javax.persistence.Query;
 import javax.persistence.Tuple;
 import javax.persistence.TypedQuery;
 import java.util.*;
 
-public class VmInstanceManagerImpl extends AbstractService implements VmInstanceManager, HostStatusChangeNotifyPoint {
+public class VmInstanceManagerImpl extends AbstractService implements VmInstanceManager, HostStatusChangeNotifyPoint, ManagementNodeChangeListener {
     private static final CLogger logger = Utils.getLogger(VmInstanceManagerImpl.class);
     private Map<String, VmInstanceFactory> vmInstanceFactories = Collections.synchronizedMap(new HashMap<String, VmInstanceFactory>());
     private List<String> createVmWorkFlowElements;
@@ -68,6 +75,23 @@ public class VmInstanceManagerImpl extends AbstractService implements VmInstance
         allowedMessageAfterSoftDeletion.add(VmInstanceDeletionMsg.class);
     }
 
+    /*
+     * snapshots of user vms owned by this management node, in LRU order. Every message still gets
+     * its own VmInstanceBase built from a copy of the snapshot. A snapshot is evicted whenever the vm
+     * is changed in database; cacheEpoch is bumped on every eviction so a snapshot loaded before an
+     * eviction is never put into the cache.
+     *
+     * Only columns of the vm itself are cached. Nics and volumes are changed by L3 network and volume
+     * services that never evict the cache, so they are always loaded from database, see fromSnapshot()
+     */
+    private final Map<String, VmInstanceVO> vmCache = new LinkedHashMap<String, VmInstanceVO>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, VmInstanceVO> eldest) {
+            return size() > VmGlobalConfig.VM_INSTANCE_CACHE_SIZE.value(Integer.class);
+        }
+    };
+    private long cacheEpoch;
+
     @Autowired
     private CloudBus bus;
     @Autowired
@@ -82,6 +106,10 @@ public class VmInstanceManagerImpl extends AbstractService implements VmInstance
     private TagManager tagMgr;
     @Autowired
     private ErrorFacade errf;
+    @Autowired
+    private ResourceDestinationMaker destMaker;
+    @Autowired
+    private VmInstanceNotifyPointEmitter notifyEmitter;
 
     @Override
     @MessageSafe
@@ -93,11 +121,73 @@ public class VmInstanceManagerImpl extends AbstractService implements VmInstance
         }
     }
 
+    private boolean isVmRemovedBy(VmInstanceMessage msg) {
+        return msg instanceof DestroyVmInstanceMsg || msg instanceof APIDestroyVmInstanceMsg
+                || allowedMessageAfterSoftDeletion.contains(msg.getClass());
+    }
+
+    private VmInstanceVO toSnapshot(VmInstanceVO vo) {
+        VmInstanceVO snapshot = new VmInstanceVO(vo);
+        snapshot.setVmNics(new HashSet<VmNicVO>());
+        snapshot.setAllVolumes(new HashSet<VolumeVO>());
+        return snapshot;
+    }
+
+    private VmInstanceVO fromSnapshot(VmInstanceVO snapshot) {
+        VmInstanceVO vo = new VmInstanceVO(snapshot);
+        SimpleQuery<VmNicVO> nq = dbf.createQuery(VmNicVO.class);
+        nq.add(VmNicVO_.vmInstanceUuid, Op.EQ, snapshot.getUuid());
+        vo.setVmNics(new HashSet<VmNicVO>(nq.list()));
+        SimpleQuery<VolumeVO> vq = dbf.createQuery(VolumeVO.class);
+        vq.add(VolumeVO_.vmInstanceUuid, Op.EQ, snapshot.getUuid());
+        vo.setAllVolumes(new HashSet<VolumeVO>(vq.list()));
+        return vo;
+    }
+
+    @Override
+    public void evictCachedVmInstance(String vmUuid) {
+        synchronized (vmCache) {
+            vmCache.remove(vmUuid);
+            cacheEpoch ++;
+        }
+    }
+
+    @Override
+    public void evictAllCachedVmInstances() {
+        synchronized (vmCache) {
+            vmCache.clear();
+            cacheEpoch ++;
+        }
+    }
+
     void passThrough(VmInstanceMessage msg) {
-        VmInstanceVO vo = dbf.findByUuid(msg.getVmInstanceUuid(), VmInstanceVO.class);
+        String vmUuid = msg.getVmInstanceUuid();
+        // messages removing the vm always go to a vm freshly loaded from database
+        boolean removing = isVmRemovedBy(msg);
+        VmInstanceVO cached = null;
+        long epoch;
+        synchronized (vmCache) {
+            if (removing) {
+                vmCache.remove(vmUuid);
+                cacheEpoch ++;
+            } else {
+                cached = vmCache.get(vmUuid);
+            }
+            epoch = cacheEpoch;
+        }
+
+        if (cached != null) {
+            VmInstanceFactory factory = getVmInstanceFactory(VmInstanceType.valueOf(cached.getType()));
+            factory.getVmInstance(fromSnapshot(cached)).handleMessage((Message) msg);
+            return;
+        }
+
+        VmInstanceVO vo = dbf.findByUuid(vmUuid, VmInstanceVO.class);
+        boolean fromEO = false;
         if (vo == null && allowedMessageAfterSoftDeletion.contains(msg.getClass())) {
-            VmInstanceEO eo = dbf.findByUuid(msg.getVmInstanceUuid(), VmInstanceEO.class);
+            VmInstanceEO eo = dbf.findByUuid(vmUuid, VmInstanceEO.class);
             vo = ObjectUtils.newAndCopy(eo, VmInstanceVO.class);
+            fromEO = true;
         }
 
         if (vo == null) {
@@ -106,19 +196,104 @@ public class VmInstanceManagerImpl extends AbstractService implements VmInstance
             return;
         }
         
+        if (!removing && !fromEO && VmInstanceConstant.USER_VM_TYPE.equals(vo.getType())
+                && VmGlobalConfig.VM_INSTANCE_CACHE_SIZE.value(Integer.class) > 0 && destMaker.isManagedByUs(vmUuid)) {
+            synchronized (vmCache) {
+                if (epoch == cacheEpoch) {
+                    vmCache.put(vmUuid, toSnapshot(vo));
+                }
+            }
+        }
+
         VmInstanceFactory factory = getVmInstanceFactory(VmInstanceType.valueOf(vo.getType()));
         VmInstance vm = factory.getVmInstance(vo);
         vm.handleMessage((Message)msg);
     }
     
     private void handleLocalMessage(Message msg) {
-        if (msg instanceof VmInstanceMessage) {
+        if (msg instanceof BatchChangeVmStateMsg) {
+            handle((BatchChangeVmStateMsg) msg);
+        } else if (msg instanceof VmInstanceMessage) {
             passThrough((VmInstanceMessage)msg);
         } else {
             bus.dealWithUnknownMessage(msg);
         }
     }
 
+    @Transactional
+    private Map<String, VmInstanceState> changeVmStateIfExpected(Map<VmInstanceState, List<String>> vmUuidsByExpectedState, VmInstanceState state) {
+        Map<String, VmInstanceState> changed = new HashMap<String, VmInstanceState>();
+        for (Map.Entry<VmInstanceState, List<String>> e : vmUuidsByExpectedState.entrySet()) {
+            String sql = "select vm.uuid from VmInstanceVO vm where vm.uuid in (:uuids) and vm.state = :expected";
+            TypedQuery<String> q = dbf.getEntityManager().createQuery(sql, String.class);
+            q.setParameter("uuids", e.getValue());
+            q.setParameter("expected", e.getKey());
+            q.setLockMode(LockModeType.PESSIMISTIC_WRITE);
+            List<String> uuids = q.getResultList();
+            if (uuids.isEmpty()) {
+                continue;
+            }
+
+            sql = "update VmInstanceVO vm set vm.state = :state where vm.uuid in (:uuids)";
+            Query uq = dbf.getEntityManager().createQuery(sql);
+            uq.setParameter("state", state);
+            uq.setParameter("uuids", uuids);
+            uq.executeUpdate();
+
+            for (String uuid : uuids) {
+                changed.put(uuid, e.getKey());
+            }
+        }
+        return changed;
+    }
+
+    private void handle(BatchChangeVmStateMsg msg) {
+        VmInstanceState state = msg.getState();
+        Map<VmInstanceState, List<String>> vmUuidsByExpectedState = new HashMap<VmInstanceState, List<String>>();
+        for (Map.Entry<String, String> e : msg.getExpectedStates().entrySet()) {
+            VmInstanceState expected = VmInstanceState.valueOf(e.getValue());
+            if (expected == state) {
+                continue;
+            }
+
+            try {
+                // same state machine check as VmInstanceBase.changeVmStateInDb()
+                expected.nextState(state.getDrivenEvent());
+            } catch (CloudRuntimeException ce) {
+                logger.warn(String.format("cannot change vm[uuid:%s] from state %s to %s, %s", e.getKey(), expected, state, ce.getMessage()));
+                continue;
+            }
+
+            List<String> uuids = vmUuidsByExpectedState.get(expected);
+            if (uuids == null) {
+                uuids = new ArrayList<String>();
+                vmUuidsByExpectedState.put(expected, uuids);
+            }
+            uuids.add(e.getKey());
+        }
+
+        BatchChangeVmStateReply reply = new BatchChangeVmStateReply();
+        if (vmUuidsByExpectedState.isEmpty()) {
+            bus.reply(msg, reply);
+            return;
+        }
+
+        Map<String, VmInstanceState> changed = changeVmStateIfExpected(vmUuidsByExpectedState, state);
+        if (!changed.isEmpty()) {
+            // cached vms still have the old state
+            for (String uuid : changed.keySet()) {
+                evictCachedVmInstance(uuid);
+            }
+
+            List<VmInstanceVO> vos = dbf.listByPrimaryKeys(changed.keySet(), VmInstanceVO.class);
+            notifyEmitter.notifyVmStateChange(VmInstanceInventory.valueOf(vos), changed, state);
+            logger.debug(String.format("changed state of %s vms on host[uuid:%s] to %s", changed.size(), msg.getHostUuid(), state));
+        }
+
+        reply.getChangedVmUuids().addAll(changed.keySet());
+        bus.reply(msg, reply);
+    }
+
     private void handleApiMessage(APIMessage msg) {
         if (msg instanceof APICreateVmInstanceMsg) {
             handle((APICreateVmInstanceMsg) msg);
@@ -269,12 +444,22 @@ public class VmInstanceManagerImpl extends AbstractService implements VmInstance
             createVmFlowChainBuilder();
             populateExtensions();
             installSystemTagValidator();
+            installConfigUpdateExtension();
             return true;
         } catch (Exception e) {
             throw new CloudConfigureFailException(VmInstanceManagerImpl.class, e.getMessage(), e);
         }
     }
 
+    private void installConfigUpdateExtension() {
+        VmGlobalConfig.VM_INSTANCE_CACHE_SIZE.installUpdateExtension(new GlobalConfigUpdateExtensionPoint() {
+            @Override
+            public void updateGlobalConfig(GlobalConfig oldConfig, GlobalConfig newConfig) {
+                evictAllCachedVmInstances();
+            }
+        });
+    }
+
     private void installSystemTagValidator() {
         class HostNameValidator implements SystemTagCreateMessageValidator, SystemTagValidator {
             private void validateHostname(String tag, String hostname) {
@@ -367,18 +552,48 @@ public class VmInstanceManagerImpl extends AbstractService implements VmInstance
         query.select(VmInstanceVO_.uuid, VmInstanceVO_.state);
         query.add(VmInstanceVO_.hostUuid, Op.EQ, hostUuid);
         List<Tuple> tss = query.listTuple();
+
+        // one message to each management node managing vms of the host
+        Map<String, BatchChangeVmStateMsg> msgs = new HashMap<String, BatchChangeVmStateMsg>();
         for (Tuple ts : tss) {
-            ChangeVmMetaDataMsg msg = new ChangeVmMetaDataMsg();
-            msg.setVmInstanceUuid(ts.get(0, String.class));
-            AtomicVmState s = new AtomicVmState();
-            s.setExpected(ts.get(1, VmInstanceState.class));
-            s.setValue(VmInstanceState.Unknown);
-            msg.setState(s);
-            bus.makeTargetServiceIdByResourceUuid(msg, VmInstanceConstant.SERVICE_ID, ts.get(0, String.class));
-            bus.send(msg);
+            String vmUuid = ts.get(0, String.class);
+            String nodeUuid = destMaker.makeDestination(vmUuid);
+            BatchChangeVmStateMsg msg = msgs.get(nodeUuid);
+            if (msg == null) {
+                msg = new BatchChangeVmStateMsg();
+                msg.setHostUuid(hostUuid);
+                msg.setState(VmInstanceState.Unknown);
+                msgs.put(nodeUuid, msg);
+            }
+            msg.addVm(vmUuid, ts.get(1, VmInstanceState.class));
+        }
+
+        for (Map.Entry<String, BatchChangeVmStateMsg> e : msgs.entrySet()) {
+            bus.makeServiceIdByManagementNodeId(e.getValue(), VmInstanceConstant.SERVICE_ID, e.getKey());
+            bus.send(e.getValue());
         }
     }
     
+    @Override
+    public void nodeJoin(String nodeId) {
+        evictAllCachedVmInstances();
+    }
+
+    @Override
+    public void nodeLeft(String nodeId) {
+        evictAllCachedVmInstances();
+    }
+
+    @Override
+    public void iAmDead(String nodeId) {
+        evictAllCachedVmInstances();
+    }
+
+    @Override
+    public void iJoin(String nodeId) {
+        evictAllCachedVmInstances();
+    }
+
     @Override
     public void notifyHostConnectionStateChange(HostInventory host, HostStatus previousState, HostStatus currentState) {
         if (currentState == HostStatus.Disconnected) {
@@ -40,6 +40,21 @@ public class VmInstanceNotifyPointEmitter implements Component {
     
     @AsyncThread
     public void notifyVmStateChange(final VmInstanceInventory vm, final VmInstanceState pre, final VmInstanceState curr) {
+        doNotifyVmStateChange(vm, pre, curr);
+    }
+
+    /**
+     * notifies state changes of many vms in one thread
+     * @param pres vm uuid -> previous state
+     */
+    @AsyncThread
+    public void notifyVmStateChange(final List<VmInstanceInventory> vms, final Map<String, VmInstanceState> pres, final VmInstanceState curr) {
+        for (VmInstanceInventory vm : vms) {
+            doNotifyVmStateChange(vm, pres.get(vm.getUuid()), curr);
+        }
+    }
+
+    private void doNotifyVmStateChange(final VmInstanceInventory vm, final VmInstanceState pre, final VmInstanceState curr) {
         // when state changing from Created to Starting, there is no hyperviosrType yet as vm has not decided which host to go
         if (vm.getHypervisorType() == null) {
             return;
@@ -10,4 +10,7 @@ import org.zstack.tag.PatternedSystemTag;
 public class VmSystemTags {
     public static String HOSTNAME_TOKEN = "hostname";
     public static PatternedSystemTag HOSTNAME = new PatternedSystemTag(String.format("hostname::{%s}", HOSTNAME_TOKEN), VmInstanceVO.class);
+
+    public static String ANTI_AFFINITY_GROUP_TOKEN = "antiAffinityGroup";
+    public static PatternedSystemTag ANTI_AFFINITY_GROUP = new PatternedSystemTag(String.format("antiAffinityGroup::{%s}", ANTI_AFFINITY_GROUP_TOKEN), VmInstanceVO.class);
 }
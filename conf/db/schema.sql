@@ -952,6 +952,12 @@ CREATE TABLE  `zstack`.`JobQueueEntryVO` (
 ) ENGINE=InnoDB DEFAULT CHARSET=utf8;
 
 
+CREATE TABLE  `zstack`.`SequenceBlockVO` (
+    `name` varchar(255) NOT NULL UNIQUE,
+    `nextValue` bigint unsigned NOT NULL,
+    PRIMARY KEY  (`name`)
+) ENGINE=InnoDB DEFAULT CHARSET=utf8;
+
 CREATE TABLE  `zstack`.`ManagementNodeContextVO` (
     `id` bigint unsigned NOT NULL UNIQUE,
     `inventory` blob DEFAULT NULL,
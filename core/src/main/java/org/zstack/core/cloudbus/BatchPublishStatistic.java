@@ -0,0 +1,57 @@
+package org.zstack.core.cloudbus;
+
+import java.beans.ConstructorProperties;
+
+/**
+ */
+public class BatchPublishStatistic {
+    private String queueName;
+    private long batchCount;
+    private long messageCount;
+    private long averageBatchSize;
+    private long maxBatchSize;
+    private long averageLatency;
+    private long maxLatency;
+
+    @ConstructorProperties({"queueName", "batchCount", "messageCount", "averageBatchSize", "maxBatchSize", "averageLatency", "maxLatency"})
+    public BatchPublishStatistic(String queueName, long batchCount, long messageCount, long averageBatchSize, long maxBatchSize, long averageLatency, long maxLatency) {
+        this.queueName = queueName;
+        this.batchCount = batchCount;
+        this.messageCount = messageCount;
+        this.averageBatchSize = averageBatchSize;
+        this.maxBatchSize = maxBatchSize;
+        this.averageLatency = averageLatency;
+        this.maxLatency = maxLatency;
+    }
+
+    public String getQueueName() {
+        return queueName;
+    }
+
+    public long getBatchCount() {
+        return batchCount;
+    }
+
+    public long getMessageCount() {
+        return messageCount;
+    }
+
+    public long getAverageBatchSize() {
+        return averageBatchSize;
+    }
+
+    public long getMaxBatchSize() {
+        return maxBatchSize;
+    }
+
+    /**
+     * milliseconds a message waits in the batch before being published
+     */
+    public long getAverageLatency() {
+        return averageLatency;
+    }
+
+    public long getMaxLatency() {
+        return maxLatency;
+    }
+}
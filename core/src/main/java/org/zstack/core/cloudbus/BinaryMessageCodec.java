@@ -0,0 +1,777 @@
+package org.zstack.core.cloudbus;
+
+import org.zstack.header.exception.CloudRuntimeException;
+import org.zstack.header.message.GsonTransient;
+import org.zstack.header.message.Message;
+
+import java.lang.reflect.Array;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.sql.Timestamp;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A compact binary codec for bus messages.
+ *
+ * Every class has a precomputed field layout, fields are written in layout order without names,
+ * and classes are referenced by a registry id (or, for unregistered classes, by their name once per message).
+ * Values are self-described so polymorphic fields are restored directly, no json schema is needed.
+ *
+ * Both sides must run the same code: a layout fingerprint is sent the first time an object of a class
+ * is written in a message and a mismatch fails the decoding instead of silently corrupting the message.
+ */
+public class BinaryMessageCodec implements MessageCodec {
+    public static final String NAME = "binary";
+
+    private static final byte MAGIC = (byte) 0x5A;
+    private static final byte VERSION = 2;
+
+    private static final byte T_NULL = 0;
+    private static final byte T_TRUE = 1;
+    private static final byte T_FALSE = 2;
+    private static final byte T_INT = 3;
+    private static final byte T_LONG = 4;
+    private static final byte T_DOUBLE = 5;
+    private static final byte T_FLOAT = 6;
+    private static final byte T_STRING = 7;
+    private static final byte T_SHORT = 8;
+    private static final byte T_BYTE = 9;
+    private static final byte T_CHAR = 10;
+    private static final byte T_ENUM = 11;
+    private static final byte T_DATE = 12;
+    private static final byte T_BYTES = 13;
+    private static final byte T_COLLECTION = 14;
+    private static final byte T_MAP = 15;
+    private static final byte T_ARRAY = 16;
+    private static final byte T_OBJECT = 17;
+    private static final byte T_BIG_DECIMAL = 18;
+    private static final byte T_BIG_INTEGER = 19;
+
+    private static final int F_OBJECT = 0;
+    private static final int F_BOOLEAN = 1;
+    private static final int F_BYTE = 2;
+    private static final int F_SHORT = 3;
+    private static final int F_CHAR = 4;
+    private static final int F_INT = 5;
+    private static final int F_LONG = 6;
+    private static final int F_FLOAT = 7;
+    private static final int F_DOUBLE = 8;
+
+    private final Map<Class, ClassLayout> layouts = new ConcurrentHashMap<Class, ClassLayout>();
+    private final Map<Class, Integer> classIds = new ConcurrentHashMap<Class, Integer>();
+    private final Map<Integer, Class> idClasses = new ConcurrentHashMap<Integer, Class>();
+    private final Set<Integer> collidedIds = Collections.newSetFromMap(new ConcurrentHashMap<Integer, Boolean>());
+
+    // component types of primitive arrays, Class.forName() doesn't resolve them
+    private static final Map<String, Class> primitiveClasses = new HashMap<String, Class>();
+    static {
+        for (Class clz : new Class[] {boolean.class, byte.class, short.class, char.class, int.class, long.class, float.class, double.class}) {
+            primitiveClasses.put(clz.getName(), clz);
+        }
+    }
+
+    private static class FieldSlot {
+        Field field;
+        int kind;
+    }
+
+    private static class ClassLayout {
+        Class clazz;
+        Constructor constructor;
+        FieldSlot[] slots;
+        int fingerprint;
+        String unsupportedReason;
+    }
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    /**
+     * registers classes so they are referenced by a 4 bytes id instead of their names.
+     * The id is derived from the class name, all management nodes register the same classes
+     * therefore assign the same ids; colliding names are left unregistered on every node.
+     */
+    public synchronized void registerClasses(Collection<Class> clzs) {
+        for (Class clz : clzs) {
+            int id = classNameHash(clz.getName());
+            if (id == 0 || collidedIds.contains(id)) {
+                continue;
+            }
+
+            Class old = idClasses.get(id);
+            if (old == null) {
+                idClasses.put(id, clz);
+                classIds.put(clz, id);
+            } else if (old != clz) {
+                idClasses.remove(id);
+                classIds.remove(old);
+                collidedIds.add(id);
+            }
+        }
+    }
+
+    private static int classNameHash(String name) {
+        // FNV-1a, stable across JVMs unlike identity hash
+        int h = 0x811c9dc5;
+        for (int i = 0; i < name.length(); i++) {
+            h ^= name.charAt(i);
+            h *= 0x01000193;
+        }
+        return h;
+    }
+
+    private static boolean isJdkClass(Class clz) {
+        String name = clz.getName();
+        return name.startsWith("java.") || name.startsWith("javax.") || name.startsWith("sun.") || name.startsWith("com.sun.");
+    }
+
+    private static int fieldKind(Class type) {
+        if (type == boolean.class) {
+            return F_BOOLEAN;
+        } else if (type == byte.class) {
+            return F_BYTE;
+        } else if (type == short.class) {
+            return F_SHORT;
+        } else if (type == char.class) {
+            return F_CHAR;
+        } else if (type == int.class) {
+            return F_INT;
+        } else if (type == long.class) {
+            return F_LONG;
+        } else if (type == float.class) {
+            return F_FLOAT;
+        } else if (type == double.class) {
+            return F_DOUBLE;
+        } else {
+            return F_OBJECT;
+        }
+    }
+
+    private ClassLayout getLayout(Class clz) {
+        ClassLayout layout = layouts.get(clz);
+        if (layout != null) {
+            return layout;
+        }
+
+        layout = buildLayout(clz);
+        layouts.put(clz, layout);
+        return layout;
+    }
+
+    private ClassLayout buildLayout(Class clz) {
+        ClassLayout layout = new ClassLayout();
+        layout.clazz = clz;
+
+        if (isJdkClass(clz) || clz.getName().startsWith("com.google.")) {
+            layout.unsupportedReason = String.format("class[%s] is not a bean the binary codec can lay out", clz.getName());
+            return layout;
+        }
+        if (clz.isInterface() || Modifier.isAbstract(clz.getModifiers())) {
+            layout.unsupportedReason = String.format("class[%s] is abstract", clz.getName());
+            return layout;
+        }
+        if ((clz.isMemberClass() && !Modifier.isStatic(clz.getModifiers())) || clz.isAnonymousClass() || clz.isLocalClass()) {
+            layout.unsupportedReason = String.format("class[%s] is a non-static inner class", clz.getName());
+            return layout;
+        }
+
+        try {
+            layout.constructor = clz.getDeclaredConstructor();
+            layout.constructor.setAccessible(true);
+        } catch (NoSuchMethodException e) {
+            layout.unsupportedReason = String.format("class[%s] has no default constructor", clz.getName());
+            return layout;
+        }
+
+        LinkedList<Class> hierarchy = new LinkedList<Class>();
+        for (Class c = clz; c != null && c != Object.class; c = c.getSuperclass()) {
+            hierarchy.addFirst(c);
+        }
+
+        List<FieldSlot> slots = new ArrayList<FieldSlot>();
+        int fingerprint = classNameHash(clz.getName());
+        for (Class c : hierarchy) {
+            Field[] fs = c.getDeclaredFields();
+            // getDeclaredFields() has no guaranteed order, sort it to make the layout identical on every node
+            Arrays.sort(fs, new Comparator<Field>() {
+                @Override
+                public int compare(Field o1, Field o2) {
+                    return o1.getName().compareTo(o2.getName());
+                }
+            });
+
+            for (Field f : fs) {
+                int mod = f.getModifiers();
+                if (Modifier.isStatic(mod) || Modifier.isTransient(mod) || f.isAnnotationPresent(GsonTransient.class)) {
+                    continue;
+                }
+
+                f.setAccessible(true);
+                FieldSlot slot = new FieldSlot();
+                slot.field = f;
+                slot.kind = fieldKind(f.getType());
+                slots.add(slot);
+                fingerprint = 31 * fingerprint + classNameHash(f.getName());
+                fingerprint = 31 * fingerprint + slot.kind;
+            }
+        }
+
+        layout.slots = slots.toArray(new FieldSlot[slots.size()]);
+        layout.fingerprint = fingerprint;
+        return layout;
+    }
+
+    @Override
+    public byte[] encode(Message msg) {
+        Output out = new Output(512);
+        out.writeByte(MAGIC);
+        out.writeByte(VERSION);
+        try {
+            writeValue(out, msg);
+        } catch (IllegalAccessException e) {
+            throw new CloudRuntimeException(e);
+        }
+        return out.toByteArray();
+    }
+
+    @Override
+    public Message decode(byte[] data) {
+        Input in = new Input(data);
+        if (in.readByte() != MAGIC) {
+            throw new CloudRuntimeException("the data is not encoded by the binary message codec");
+        }
+        byte ver = in.readByte();
+        if (ver != VERSION) {
+            throw new CloudRuntimeException(String.format("unsupported binary message codec version[%s]", ver));
+        }
+
+        try {
+            Object ret = readValue(in);
+            if (!(ret instanceof Message)) {
+                throw new CloudRuntimeException(String.format("the decoded object[%s] is not a message", ret == null ? null : ret.getClass().getName()));
+            }
+            return (Message) ret;
+        } catch (Exception e) {
+            if (e instanceof CloudRuntimeException) {
+                throw (CloudRuntimeException) e;
+            }
+            throw new CloudRuntimeException(e);
+        }
+    }
+
+    private void writeClassRef(Output out, Class clz, boolean withLayout) {
+        Integer idx = out.classTable.get(clz);
+        if (idx != null) {
+            out.writeVarInt(idx);
+        } else {
+            out.writeVarInt(0);
+            Integer id = classIds.get(clz);
+            if (id != null) {
+                out.writeInt(id);
+            } else {
+                out.writeInt(0);
+                out.writeString(clz.getName());
+            }
+            out.classTable.put(clz, out.classTable.size() + 1);
+        }
+
+        // a class may be seen as an array component or enum before its first object, the
+        // fingerprint goes with the first reference needing the layout
+        if (withLayout && out.fingerprinted.add(clz)) {
+            out.writeInt(getLayout(clz).fingerprint);
+        }
+    }
+
+    private Class readClassRef(Input in, boolean withLayout) throws ClassNotFoundException {
+        int idx = in.readVarInt();
+        Class clz;
+        if (idx != 0) {
+            clz = in.classTable.get(idx - 1);
+        } else {
+            int id = in.readInt();
+            if (id != 0) {
+                clz = idClasses.get(id);
+                if (clz == null) {
+                    throw new CloudRuntimeException(String.format("unknown class id[%s] in binary message, are all management nodes running the same version?", id));
+                }
+            } else {
+                String name = in.readString();
+                clz = primitiveClasses.get(name);
+                if (clz == null) {
+                    clz = Class.forName(name);
+                }
+            }
+            in.classTable.add(clz);
+        }
+
+        if (withLayout && in.fingerprinted.add(clz)) {
+            int fingerprint = in.readInt();
+            ClassLayout layout = getLayout(clz);
+            if (layout.unsupportedReason != null) {
+                throw new CloudRuntimeException(layout.unsupportedReason);
+            }
+            if (layout.fingerprint != fingerprint) {
+                throw new CloudRuntimeException(String.format("the field layout of class[%s] differs from the sender's, are all management nodes running the same version?", clz.getName()));
+            }
+        }
+
+        return clz;
+    }
+
+    private static Class concreteCollectionClass(Collection c) {
+        Class clz = c.getClass();
+        if (clz == ArrayList.class || clz == LinkedList.class || clz == HashSet.class || clz == LinkedHashSet.class || clz == TreeSet.class) {
+            return clz;
+        }
+        return c instanceof Set ? LinkedHashSet.class : ArrayList.class;
+    }
+
+    private static Class concreteMapClass(Map m) {
+        Class clz = m.getClass();
+        if (clz == HashMap.class || clz == LinkedHashMap.class || clz == TreeMap.class || clz == ConcurrentHashMap.class) {
+            return clz;
+        }
+        return LinkedHashMap.class;
+    }
+
+    private void writeValue(Output out, Object val) throws IllegalAccessException {
+        if (val == null) {
+            out.writeByte(T_NULL);
+            return;
+        }
+
+        Class clz = val.getClass();
+        if (clz == String.class) {
+            out.writeByte(T_STRING);
+            out.writeString((String) val);
+        } else if (clz == Boolean.class) {
+            out.writeByte((Boolean) val ? T_TRUE : T_FALSE);
+        } else if (clz == Integer.class) {
+            out.writeByte(T_INT);
+            out.writeVarInt(zigzag((Integer) val));
+        } else if (clz == Long.class) {
+            out.writeByte(T_LONG);
+            out.writeVarLong(zigzag((Long) val));
+        } else if (clz == Double.class) {
+            out.writeByte(T_DOUBLE);
+            out.writeLong(Double.doubleToRawLongBits((Double) val));
+        } else if (clz == Float.class) {
+            out.writeByte(T_FLOAT);
+            out.writeInt(Float.floatToRawIntBits((Float) val));
+        } else if (clz == Short.class) {
+            out.writeByte(T_SHORT);
+            out.writeVarInt(zigzag((Short) val));
+        } else if (clz == Byte.class) {
+            out.writeByte(T_BYTE);
+            out.writeByte((Byte) val);
+        } else if (clz == Character.class) {
+            out.writeByte(T_CHAR);
+            out.writeVarInt((Character) val);
+        } else if (val instanceof Enum) {
+            out.writeByte(T_ENUM);
+            writeClassRef(out, ((Enum) val).getDeclaringClass(), false);
+            out.writeString(((Enum) val).name());
+        } else if (val instanceof Date) {
+            out.writeByte(T_DATE);
+            writeClassRef(out, clz, false);
+            out.writeVarLong(zigzag(((Date) val).getTime()));
+            if (val instanceof Timestamp) {
+                out.writeVarInt(((Timestamp) val).getNanos());
+            }
+        } else if (clz == byte[].class) {
+            byte[] bytes = (byte[]) val;
+            out.writeByte(T_BYTES);
+            out.writeVarInt(bytes.length);
+            out.writeBytes(bytes);
+        } else if (val instanceof Collection) {
+            Collection c = (Collection) val;
+            out.writeByte(T_COLLECTION);
+            writeClassRef(out, concreteCollectionClass(c), false);
+            out.writeVarInt(c.size());
+            for (Object o : c) {
+                writeValue(out, o);
+            }
+        } else if (val instanceof Map) {
+            Map<Object, Object> m = (Map<Object, Object>) val;
+            out.writeByte(T_MAP);
+            writeClassRef(out, concreteMapClass(m), false);
+            out.writeVarInt(m.size());
+            for (Map.Entry<Object, Object> e : m.entrySet()) {
+                writeValue(out, e.getKey());
+                writeValue(out, e.getValue());
+            }
+        } else if (clz.isArray()) {
+            int len = Array.getLength(val);
+            out.writeByte(T_ARRAY);
+            writeClassRef(out, clz.getComponentType(), false);
+            out.writeVarInt(len);
+            for (int i = 0; i < len; i++) {
+                writeValue(out, Array.get(val, i));
+            }
+        } else if (clz == BigDecimal.class) {
+            out.writeByte(T_BIG_DECIMAL);
+            out.writeString(val.toString());
+        } else if (clz == BigInteger.class) {
+            out.writeByte(T_BIG_INTEGER);
+            out.writeString(val.toString());
+        } else {
+            ClassLayout layout = getLayout(clz);
+            if (layout.unsupportedReason != null) {
+                throw new MessageCodecUnsupportedException(layout.unsupportedReason);
+            }
+
+            out.writeByte(T_OBJECT);
+            writeClassRef(out, clz, true);
+            writeFields(out, layout, val);
+        }
+    }
+
+    private void writeFields(Output out, ClassLayout layout, Object obj) throws IllegalAccessException {
+        for (FieldSlot slot : layout.slots) {
+            Field f = slot.field;
+            switch (slot.kind) {
+                case F_BOOLEAN:
+                    out.writeByte(f.getBoolean(obj) ? 1 : 0);
+                    break;
+                case F_BYTE:
+                    out.writeByte(f.getByte(obj));
+                    break;
+                case F_SHORT:
+                    out.writeVarInt(zigzag(f.getShort(obj)));
+                    break;
+                case F_CHAR:
+                    out.writeVarInt(f.getChar(obj));
+                    break;
+                case F_INT:
+                    out.writeVarInt(zigzag(f.getInt(obj)));
+                    break;
+                case F_LONG:
+                    out.writeVarLong(zigzag(f.getLong(obj)));
+                    break;
+                case F_FLOAT:
+                    out.writeInt(Float.floatToRawIntBits(f.getFloat(obj)));
+                    break;
+                case F_DOUBLE:
+                    out.writeLong(Double.doubleToRawLongBits(f.getDouble(obj)));
+                    break;
+                default:
+                    writeValue(out, f.get(obj));
+            }
+        }
+    }
+
+    private Object readValue(Input in) throws Exception {
+        byte tag = in.readByte();
+        switch (tag) {
+            case T_NULL:
+                return null;
+            case T_TRUE:
+                return Boolean.TRUE;
+            case T_FALSE:
+                return Boolean.FALSE;
+            case T_INT:
+                return unzigzag(in.readVarInt());
+            case T_LONG:
+                return unzigzag(in.readVarLong());
+            case T_DOUBLE:
+                return Double.longBitsToDouble(in.readLong());
+            case T_FLOAT:
+                return Float.intBitsToFloat(in.readInt());
+            case T_SHORT:
+                return (short) unzigzag(in.readVarInt());
+            case T_BYTE:
+                return in.readByte();
+            case T_CHAR:
+                return (char) in.readVarInt();
+            case T_STRING:
+                return in.readString();
+            case T_ENUM: {
+                Class clz = readClassRef(in, false);
+                return Enum.valueOf(clz, in.readString());
+            }
+            case T_DATE: {
+                Class clz = readClassRef(in, false);
+                long time = unzigzag(in.readVarLong());
+                if (clz == Timestamp.class) {
+                    Timestamp ts = new Timestamp(time);
+                    ts.setNanos(in.readVarInt());
+                    return ts;
+                } else if (clz == java.sql.Date.class) {
+                    return new java.sql.Date(time);
+                } else {
+                    return new Date(time);
+                }
+            }
+            case T_BYTES: {
+                int len = in.readVarInt();
+                return in.readBytes(len);
+            }
+            case T_COLLECTION: {
+                Class clz = readClassRef(in, false);
+                int size = in.readVarInt();
+                Collection c = clz == ArrayList.class ? new ArrayList(size) : (Collection) clz.newInstance();
+                for (int i = 0; i < size; i++) {
+                    c.add(readValue(in));
+                }
+                return c;
+            }
+            case T_MAP: {
+                Class clz = readClassRef(in, false);
+                int size = in.readVarInt();
+                Map m = (Map) clz.newInstance();
+                for (int i = 0; i < size; i++) {
+                    Object k = readValue(in);
+                    m.put(k, readValue(in));
+                }
+                return m;
+            }
+            case T_ARRAY: {
+                Class ctype = readClassRef(in, false);
+                int len = in.readVarInt();
+                Object arr = Array.newInstance(ctype, len);
+                for (int i = 0; i < len; i++) {
+                    Array.set(arr, i, readValue(in));
+                }
+                return arr;
+            }
+            case T_BIG_DECIMAL:
+                return new BigDecimal(in.readString());
+            case T_BIG_INTEGER:
+                return new BigInteger(in.readString());
+            case T_OBJECT: {
+                Class clz = readClassRef(in, true);
+                ClassLayout layout = getLayout(clz);
+                Object obj = layout.constructor.newInstance();
+                readFields(in, layout, obj);
+                return obj;
+            }
+            default:
+                throw new CloudRuntimeException(String.format("corrupted binary message, unknown tag[%s]", tag));
+        }
+    }
+
+    private void readFields(Input in, ClassLayout layout, Object obj) throws Exception {
+        for (FieldSlot slot : layout.slots) {
+            Field f = slot.field;
+            switch (slot.kind) {
+                case F_BOOLEAN:
+                    f.setBoolean(obj, in.readByte() != 0);
+                    break;
+                case F_BYTE:
+                    f.setByte(obj, in.readByte());
+                    break;
+                case F_SHORT:
+                    f.setShort(obj, (short) unzigzag(in.readVarInt()));
+                    break;
+                case F_CHAR:
+                    f.setChar(obj, (char) in.readVarInt());
+                    break;
+                case F_INT:
+                    f.setInt(obj, unzigzag(in.readVarInt()));
+                    break;
+                case F_LONG:
+                    f.setLong(obj, unzigzag(in.readVarLong()));
+                    break;
+                case F_FLOAT:
+                    f.setFloat(obj, Float.intBitsToFloat(in.readInt()));
+                    break;
+                case F_DOUBLE:
+                    f.setDouble(obj, Double.longBitsToDouble(in.readLong()));
+                    break;
+                default:
+                    f.set(obj, readValue(in));
+            }
+        }
+    }
+
+    private static int zigzag(int v) {
+        return (v << 1) ^ (v >> 31);
+    }
+
+    private static long zigzag(long v) {
+        return (v << 1) ^ (v >> 63);
+    }
+
+    private static int unzigzag(int v) {
+        return (v >>> 1) ^ -(v & 1);
+    }
+
+    private static long unzigzag(long v) {
+        return (v >>> 1) ^ -(v & 1);
+    }
+
+    private static class Output {
+        byte[] buf;
+        int pos;
+        Map<Class, Integer> classTable = new HashMap<Class, Integer>();
+        Set<Class> fingerprinted = new HashSet<Class>();
+
+        Output(int size) {
+            buf = new byte[size];
+        }
+
+        void ensure(int n) {
+            if (pos + n > buf.length) {
+                buf = Arrays.copyOf(buf, Math.max(buf.length << 1, pos + n));
+            }
+        }
+
+        void writeByte(int b) {
+            ensure(1);
+            buf[pos++] = (byte) b;
+        }
+
+        void writeBytes(byte[] bytes) {
+            ensure(bytes.length);
+            System.arraycopy(bytes, 0, buf, pos, bytes.length);
+            pos += bytes.length;
+        }
+
+        void writeInt(int v) {
+            ensure(4);
+            buf[pos++] = (byte) (v >>> 24);
+            buf[pos++] = (byte) (v >>> 16);
+            buf[pos++] = (byte) (v >>> 8);
+            buf[pos++] = (byte) v;
+        }
+
+        void writeLong(long v) {
+            writeInt((int) (v >>> 32));
+            writeInt((int) v);
+        }
+
+        void writeVarInt(int v) {
+            ensure(5);
+            while ((v & ~0x7F) != 0) {
+                buf[pos++] = (byte) ((v & 0x7F) | 0x80);
+                v >>>= 7;
+            }
+            buf[pos++] = (byte) v;
+        }
+
+        void writeVarLong(long v) {
+            ensure(10);
+            while ((v & ~0x7FL) != 0) {
+                buf[pos++] = (byte) ((v & 0x7F) | 0x80);
+                v >>>= 7;
+            }
+            buf[pos++] = (byte) v;
+        }
+
+        void writeString(String s) {
+            int len = s.length();
+            int utflen = 0;
+            for (int i = 0; i < len; i++) {
+                char c = s.charAt(i);
+                utflen += c < 0x80 ? 1 : (c < 0x800 ? 2 : 3);
+            }
+
+            writeVarInt(utflen);
+            ensure(utflen);
+            for (int i = 0; i < len; i++) {
+                char c = s.charAt(i);
+                if (c < 0x80) {
+                    buf[pos++] = (byte) c;
+                } else if (c < 0x800) {
+                    buf[pos++] = (byte) (0xC0 | (c >> 6));
+                    buf[pos++] = (byte) (0x80 | (c & 0x3F));
+                } else {
+                    buf[pos++] = (byte) (0xE0 | (c >> 12));
+                    buf[pos++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                    buf[pos++] = (byte) (0x80 | (c & 0x3F));
+                }
+            }
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(buf, pos);
+        }
+    }
+
+    private static class Input {
+        final byte[] buf;
+        int pos;
+        List<Class> classTable = new ArrayList<Class>();
+        Set<Class> fingerprinted = new HashSet<Class>();
+
+        Input(byte[] buf) {
+            this.buf = buf;
+        }
+
+        byte readByte() {
+            if (pos >= buf.length) {
+                throw new CloudRuntimeException("corrupted binary message, unexpected end of data");
+            }
+            return buf[pos++];
+        }
+
+        byte[] readBytes(int len) {
+            if (pos + len > buf.length) {
+                throw new CloudRuntimeException("corrupted binary message, unexpected end of data");
+            }
+            byte[] ret = Arrays.copyOfRange(buf, pos, pos + len);
+            pos += len;
+            return ret;
+        }
+
+        int readInt() {
+            return ((readByte() & 0xFF) << 24) | ((readByte() & 0xFF) << 16) | ((readByte() & 0xFF) << 8) | (readByte() & 0xFF);
+        }
+
+        long readLong() {
+            return ((long) readInt() << 32) | (readInt() & 0xFFFFFFFFL);
+        }
+
+        int readVarInt() {
+            int ret = 0;
+            for (int shift = 0; shift < 35; shift += 7) {
+                byte b = readByte();
+                ret |= (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return ret;
+                }
+            }
+            throw new CloudRuntimeException("corrupted binary message, malformed var int");
+        }
+
+        long readVarLong() {
+            long ret = 0;
+            for (int shift = 0; shift < 70; shift += 7) {
+                byte b = readByte();
+                ret |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return ret;
+                }
+            }
+            throw new CloudRuntimeException("corrupted binary message, malformed var long");
+        }
+
+        String readString() {
+            int utflen = readVarInt();
+            if (pos + utflen > buf.length) {
+                throw new CloudRuntimeException("corrupted binary message, unexpected end of data");
+            }
+
+            char[] chars = new char[utflen];
+            int count = 0;
+            int end = pos + utflen;
+            while (pos < end) {
+                int c = buf[pos++] & 0xFF;
+                if (c < 0x80) {
+                    chars[count++] = (char) c;
+                } else if ((c & 0xE0) == 0xC0) {
+                    chars[count++] = (char) (((c & 0x1F) << 6) | (buf[pos++] & 0x3F));
+                } else {
+                    chars[count++] = (char) (((c & 0x0F) << 12) | ((buf[pos++] & 0x3F) << 6) | (buf[pos++] & 0x3F));
+                }
+            }
+            return new String(chars, 0, count);
+        }
+    }
+}
@@ -31,4 +31,16 @@ public class CloudBusGlobalProperty {
     public static int CHANNEL_POOL_SIZE;
     @GlobalProperty(name="CloudBus.messageTTL", defaultValue = "300")
     public static int MESSAGE_TTL;
+    @GlobalProperty(name="CloudBus.defaultMessageCodec", defaultValue = "json")
+    public static String DEFAULT_MESSAGE_CODEC;
+    @GlobalProperty(name="CloudBus.batchPublish", defaultValue = "false")
+    public static boolean BATCH_PUBLISH;
+    @GlobalProperty(name="CloudBus.batchPublishWindow", defaultValue = "5")
+    public static int BATCH_PUBLISH_WINDOW;
+    @GlobalProperty(name="CloudBus.batchPublishMaxSize", defaultValue = "100")
+    public static int BATCH_PUBLISH_MAX_SIZE;
+    @GlobalProperty(name="CloudBus.envelopeTimeoutTick", defaultValue = "100")
+    public static int ENVELOPE_TIMEOUT_TICK;
+    @GlobalProperty(name="CloudBus.resourceHashAlgorithm", defaultValue = "consistentHash")
+    public static String RESOURCE_HASH_ALGORITHM;
 }
@@ -3,7 +3,6 @@ package org.zstack.core.cloudbus;
 import com.google.gson.*;
 import com.rabbitmq.client.*;
 import org.apache.commons.lang.StringUtils;
-import org.mvel2.MVEL;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.zstack.core.Platform;
 import org.zstack.core.componentloader.PluginRegistry;
@@ -24,6 +23,7 @@ import org.zstack.header.managementnode.ManagementNodeChangeListener;
 import org.zstack.header.message.*;
 import org.zstack.header.search.APISearchMessage;
 import org.zstack.header.search.APISearchReply;
+import org.zstack.header.search.Inventory;
 import org.zstack.utils.*;
 import org.zstack.utils.function.Function;
 import org.zstack.utils.gson.GsonTypeCoder;
@@ -69,15 +69,19 @@ public class CloudBusImpl2 implements CloudBus, CloudBusIN, ManagementNodeChange
     private List<String> serverIps;
     private List<Service> services = new ArrayList<Service>();
 
-    private Map<String, Envelope> envelopes = new ConcurrentHashMap<String, Envelope>();
+    // pre-sized and striped, tens of thousands of requests can be waiting for replies at the same time
+    private Map<String, Envelope> envelopes = new ConcurrentHashMap<String, Envelope>(ENVELOPE_TABLE_INITIAL_CAPACITY, 0.75f, ENVELOPE_TABLE_CONCURRENCY_LEVEL);
+    private HashedWheelTimer timeoutWheel;
     private Map<String, EndPoint> endpoints = new ConcurrentHashMap<String, EndPoint>();
     private AtomicBoolean stopped = new AtomicBoolean(false);
     private boolean trackerClose = false;
     private Map<String, MessageStatistic> statistics = new HashMap<String, MessageStatistic>();
 
-    private Map<Class, Map<String, Serializable>> mvelExpressions = Collections.synchronizedMap(new HashMap<Class, Map<String,Serializable>>());
+    private ConcurrentHashMap<Class, ConcurrentHashMap<String, SchemaPathAccessor>> schemaAccessors = new ConcurrentHashMap<Class, ConcurrentHashMap<String, SchemaPathAccessor>>();
+    private ConcurrentHashMap<String, Class> schemaClasses = new ConcurrentHashMap<String, Class>();
     private Map<Class, List<ReplyMessagePreSendingExtensionPoint>> replyMessageMarshaller = new ConcurrentHashMap<Class, List<ReplyMessagePreSendingExtensionPoint>>();
     private Map<Class, Long> messageTimeout = new ConcurrentHashMap<Class, Long>();
+    private BinaryMessageCodec binaryCodec = new BinaryMessageCodec();
 
     private final String NO_NEED_REPLY_MSG = "noReply";
     private final String CORRELATION_ID = "correlationId";
@@ -88,7 +92,18 @@ public class CloudBusImpl2 implements CloudBus, CloudBusIN, ManagementNodeChange
     private final long DEFAULT_MESSAGE_TIMEOUT = TimeUnit.MINUTES.toMillis(30);
     private final String DEAD_LETTER = "dead-message";
 
+    private static final int ENVELOPE_TABLE_INITIAL_CAPACITY = 8192;
+    private static final int ENVELOPE_TABLE_CONCURRENCY_LEVEL = 64;
+    private static final int TIMEOUT_WHEEL_SIZE = 4096;
+
     private final String AMQP_PROPERTY_HEADER__COMPRESSED = "compressed";
+    private final String AMQP_PROPERTY_HEADER__CODEC = "codec";
+    // carried with codec encoded messages so an error can be replied if the body cannot be decoded
+    private final String AMQP_PROPERTY_HEADER__MESSAGE_ID = "messageId";
+    private final String AMQP_PROPERTY_HEADER__MESSAGE_TYPE = "messageType";
+    private final String AMQP_PROPERTY_HEADER__REPLY_TO = "replyTo";
+    private final String CODEC_PROPERTY_PREFIX = "CloudBus.messageCodec.";
+    private final String JSON_CODEC = "json";
 
     private String SERVICE_ID = makeLocalServiceId("cloudbus");
 
@@ -143,6 +158,12 @@ public class CloudBusImpl2 implements CloudBus, CloudBusIN, ManagementNodeChange
                     chan.addReturnListener(new ReturnListener() {
                         @Override
                         public void handleReturn(int i, String s, String s2, String s3, AMQP.BasicProperties basicProperties, byte[] bytes) throws IOException {
+                            for (MessageBatchEnvelope.Entry entry : MessageBatchEnvelope.entries(bytes, basicProperties)) {
+                                handleReturnedMessage(entry.getBody(), entry.getProperties());
+                            }
+                        }
+
+                        private void handleReturnedMessage(byte[] bytes, AMQP.BasicProperties basicProperties) {
                             try {
                                 Message msg = wire.toMessage(bytes, basicProperties);
                                 if (msg instanceof NeedReplyMessage) {
@@ -246,7 +267,13 @@ public class CloudBusImpl2 implements CloudBus, CloudBusIN, ManagementNodeChange
         }
 
         @Override
-        public void handleDelivery(String s, final com.rabbitmq.client.Envelope envelope, final AMQP.BasicProperties basicProperties, final byte[] bytes) throws IOException {
+        public void handleDelivery(String s, final com.rabbitmq.client.Envelope envelope, AMQP.BasicProperties basicProperties, byte[] bytes) throws IOException {
+            for (MessageBatchEnvelope.Entry entry : MessageBatchEnvelope.entries(bytes, basicProperties)) {
+                handleLetter(envelope, entry.getBody(), entry.getProperties());
+            }
+        }
+
+        private void handleLetter(final com.rabbitmq.client.Envelope envelope, final byte[] bytes, final AMQP.BasicProperties basicProperties) {
             throwableSafe(new Runnable() {
                 @Override
                 public void run() {
@@ -322,12 +349,14 @@ public class CloudBusImpl2 implements CloudBus, CloudBusIN, ManagementNodeChange
 
         @Override
         public void handleDelivery(String s, com.rabbitmq.client.Envelope envelope, AMQP.BasicProperties basicProperties, byte[] bytes) throws IOException {
-            try {
-                Message msg = wire.toMessage(bytes, basicProperties);
+            for (MessageBatchEnvelope.Entry entry : MessageBatchEnvelope.entries(bytes, basicProperties)) {
+                try {
+                    Message msg = wire.toMessage(entry.getBody(), entry.getProperties());
 
-                handle(msg);
-            } catch (Throwable t) {
-                logger.warn("unhandled throwable", t);
+                    handle(msg);
+                } catch (Throwable t) {
+                    logger.warn("unhandled throwable", t);
+                }
             }
         }
     };
@@ -395,13 +424,112 @@ public class CloudBusImpl2 implements CloudBus, CloudBusIN, ManagementNodeChange
             msg.putHeaderEntry("schema", MessageJsonSchemaBuilder.buildSchema(msg));
         }
 
+        private final MessageCodec jsonCodec = new MessageCodec() {
+            @Override
+            public String getName() {
+                return JSON_CODEC;
+            }
+
+            @Override
+            public byte[] encode(Message msg) {
+                buildSchema(msg);
+                return gson.toJson(msg, Message.class).getBytes();
+            }
+
+            @Override
+            public Message decode(byte[] data) {
+                Message msg = gson.fromJson(new String(data), Message.class);
+                try {
+                    restoreFromSchema(msg, data);
+                } catch (ClassNotFoundException e) {
+                    throw new CloudRuntimeException(e);
+                }
+                return msg;
+            }
+        };
+
+        private final Map<String, MessageCodec> codecs = new ConcurrentHashMap<String, MessageCodec>();
+        private final Map<Class, MessageCodec> messageCodecs = new ConcurrentHashMap<Class, MessageCodec>();
+
+        {
+            addCodec(jsonCodec);
+            addCodec(binaryCodec);
+        }
+
+        void addCodec(MessageCodec codec) {
+            MessageCodec old = codecs.get(codec.getName());
+            if (old != null && old != codec) {
+                throw new CloudRuntimeException(String.format("duplicate message codec[%s], %s and %s", codec.getName(),
+                        old.getClass().getName(), codec.getClass().getName()));
+            }
+            codecs.put(codec.getName(), codec);
+        }
+
+        MessageCodec getCodec(String name) {
+            MessageCodec codec = codecs.get(name);
+            if (codec == null) {
+                throw new CloudRuntimeException(String.format("cannot find message codec[%s], available codecs are %s", name, codecs.keySet()));
+            }
+            return codec;
+        }
+
+        void setCodec(Class msgClz, MessageCodec codec) {
+            messageCodecs.put(msgClz, codec);
+        }
+
+        private MessageCodec selectCodec(Message msg) {
+            if (msg instanceof APIEvent || msg instanceof APIMessage) {
+                // API messages/events may be consumed by components outside the management node, always JSON
+                return jsonCodec;
+            }
+
+            MessageCodec codec = messageCodecs.get(msg.getClass());
+            if (codec == null) {
+                codec = getCodec(CloudBusGlobalProperty.DEFAULT_MESSAGE_CODEC);
+                messageCodecs.put(msg.getClass(), codec);
+            }
+            return codec;
+        }
+
+        private byte[] encode(Message msg) {
+            // a forwarded message carries headers of the wire it came from
+            msg.getAMQPHeaders().remove(AMQP_PROPERTY_HEADER__CODEC);
+            msg.getAMQPHeaders().remove(AMQP_PROPERTY_HEADER__MESSAGE_ID);
+            msg.getAMQPHeaders().remove(AMQP_PROPERTY_HEADER__MESSAGE_TYPE);
+            msg.getAMQPHeaders().remove(AMQP_PROPERTY_HEADER__REPLY_TO);
+
+            MessageCodec codec = selectCodec(msg);
+            if (codec != jsonCodec) {
+                try {
+                    // polymorphic fields are carried by the codec itself, drop the schema of a forwarded message
+                    msg.getHeaders().remove("schema");
+                    byte[] data = codec.encode(msg);
+                    msg.getAMQPHeaders().put(AMQP_PROPERTY_HEADER__CODEC, codec.getName());
+                    Object replyTo = msg.getHeaderEntry(REPLY_TO);
+                    if (msg instanceof NeedReplyMessage && replyTo != null && !Boolean.valueOf((String) msg.getHeaderEntry(NO_NEED_REPLY_MSG))) {
+                        msg.getAMQPHeaders().put(AMQP_PROPERTY_HEADER__MESSAGE_ID, msg.getId());
+                        msg.getAMQPHeaders().put(AMQP_PROPERTY_HEADER__MESSAGE_TYPE, msg.getClass().getName());
+                        msg.getAMQPHeaders().put(AMQP_PROPERTY_HEADER__REPLY_TO, replyTo);
+                    }
+                    return data;
+                } catch (MessageCodecUnsupportedException e) {
+                    logger.warn(String.format("message codec[%s] cannot encode message[%s], use JSON for it from now on. %s",
+                            codec.getName(), msg.getClass().getName(), e.getMessage()));
+                    messageCodecs.put(msg.getClass(), jsonCodec);
+                }
+            }
+
+            return jsonCodec.encode(msg);
+        }
+
         private byte[] compressMessageIfNeeded(Message msg) throws IOException {
+            byte[] data = encode(msg);
             if (!CloudBusGlobalProperty.COMPRESS_NON_API_MESSAGE || msg instanceof APIEvent || msg instanceof APIMessage) {
-                return gson.toJson(msg, Message.class).getBytes();
+                return data;
             }
 
             msg.getAMQPHeaders().put(AMQP_PROPERTY_HEADER__COMPRESSED, "true");
-            return Compresser.deflate(gson.toJson(msg, Message.class).getBytes());
+            return Compresser.deflate(data);
         }
 
         public void send(Message msg, boolean makeQueueName) {
@@ -414,14 +542,17 @@ public class CloudBusImpl2 implements CloudBus, CloudBusIN, ManagementNodeChange
                 serviceId = makeMessageQueueName(serviceId);
             }
 
-            buildSchema(msg);
-
             if (logger.isTraceEnabled() && logMessage(msg)) {
                 logger.trace(String.format("[msg send]: %s", wire.dumpMessage(msg)));
             }
 
             try {
                 byte[] data = compressMessageIfNeeded(msg);
+                if (CloudBusGlobalProperty.BATCH_PUBLISH && !(msg instanceof APIMessage)) {
+                    batcher.send(serviceId, msg, data, msg.getAMQPProperties());
+                    return;
+                }
+
                 Channel chan = channelPool.acquire();
                 try {
                     chan.basicPublish(outboundQueue.getBusExchange().toString(), serviceId,
@@ -444,8 +575,6 @@ public class CloudBusImpl2 implements CloudBus, CloudBusIN, ManagementNodeChange
             watch.start();
             */
 
-            buildSchema(evt);
-
             if (logger.isTraceEnabled() && logMessage(evt)) {
                 logger.trace(String.format("[event publish]: %s", wire.dumpMessage(evt)));
             }
@@ -468,20 +597,31 @@ public class CloudBusImpl2 implements CloudBus, CloudBusIN, ManagementNodeChange
             }
         }
 
-        private Serializable getMVELExpression(Message msg, String express, String prefix) {
-            Map<String, Serializable> exps = mvelExpressions.get(msg.getClass());
-            if (exps == null) {
-                exps = new HashMap<String, Serializable>();
-                mvelExpressions.put(msg.getClass(), exps);
+        private SchemaPathAccessor getSchemaAccessor(Message msg, String path) {
+            ConcurrentHashMap<String, SchemaPathAccessor> accessors = schemaAccessors.get(msg.getClass());
+            if (accessors == null) {
+                accessors = new ConcurrentHashMap<String, SchemaPathAccessor>();
+                ConcurrentHashMap<String, SchemaPathAccessor> old = schemaAccessors.putIfAbsent(msg.getClass(), accessors);
+                if (old != null) {
+                    accessors = old;
+                }
+            }
+
+            SchemaPathAccessor accessor = accessors.get(path);
+            if (accessor == null) {
+                accessor = new SchemaPathAccessor(path);
+                accessors.put(path, accessor);
             }
+            return accessor;
+        }
 
-            String key = String.format("%s:%s", express, prefix);
-            Serializable exp = exps.get(key);
-            if (exp == null) {
-                exp = MVEL.compileExpression(express);
-                exps.put(key, exp);
+        private Class getSchemaClass(String className) throws ClassNotFoundException {
+            Class clz = schemaClasses.get(className);
+            if (clz == null) {
+                clz = Class.forName(className);
+                schemaClasses.put(className, clz);
             }
-            return exp;
+            return clz;
         }
 
         private void restoreFromSchema(Message msg, byte[] binary) throws ClassNotFoundException {
@@ -490,31 +630,26 @@ public class CloudBusImpl2 implements CloudBus, CloudBusIN, ManagementNodeChange
                 return;
             }
 
-            Map raw = JSONObjectUtil.toObject(new String(binary), LinkedHashMap.class);
-            raw = (Map) raw.values().iterator().next();
+            Map raw = null;
             for (Map.Entry<String, List<String>> e : schema.entrySet()) {
                 String rawClassName = e.getKey();
                 List<String> paths = e.getValue();
                 for (String path : paths) {
-                    Serializable exp = getMVELExpression(msg, path, "msg:get");
-                    Object obj = MVEL.executeExpression(exp, msg);
-                    if (obj.getClass().getName().equals(rawClassName)) {
+                    SchemaPathAccessor accessor = getSchemaAccessor(msg, path);
+                    Object obj = accessor.get(msg);
+                    if (obj != null && obj.getClass().getName().equals(rawClassName)) {
                         continue;
                     }
 
-                    exp = getMVELExpression(msg, path, "raw:get");
-                    Object rawData = MVEL.executeExpression(exp, raw);
-                    Class rawClass = Class.forName(rawClassName);
-                    Object newValue = JSONObjectUtil.rehashObject(rawData, rawClass);
-                    String setExpress = String.format("CONTEXT_OBJECT.%s = newValue", path);
-                    exp = getMVELExpression(msg, setExpress, "msg:set");
-                    Map vars = map(e("newValue", newValue));
-                    // Note MVEL context is
-                    // not meant for write but rather for read. Use a Map context to
-                    // force MVEL to assign newValue on msg, not to create a new variable
-                    // in vars map
-                    Map context = map(e("CONTEXT_OBJECT", msg));
-                    MVEL.executeExpression(exp, context, vars);
+                    if (raw == null) {
+                        // only parse the raw JSON when some field really needs restoring
+                        raw = JSONObjectUtil.toObject(new String(binary), LinkedHashMap.class);
+                        raw = (Map) raw.values().iterator().next();
+                    }
+
+                    Object rawData = accessor.get(raw);
+                    Object newValue = JSONObjectUtil.rehashObject(rawData, getSchemaClass(rawClassName));
+                    accessor.set(msg, newValue);
                 }
             }
         }
@@ -550,6 +685,29 @@ public class CloudBusImpl2 implements CloudBus, CloudBusIN, ManagementNodeChange
             }
         }
 
+        private void tryBestToReplyError(Map<String, Object> amqpHeaders, String errMsg) {
+            // the body cannot be decoded, reply from what the sender put in AMQP headers
+            Object id = amqpHeaders.get(AMQP_PROPERTY_HEADER__MESSAGE_ID);
+            Object type = amqpHeaders.get(AMQP_PROPERTY_HEADER__MESSAGE_TYPE);
+            Object replyTo = amqpHeaders.get(AMQP_PROPERTY_HEADER__REPLY_TO);
+            if (id == null || type == null || replyTo == null) {
+                logger.warn(String.format("drop a message that cannot be decoded by codec[%s], it needs no reply", amqpHeaders.get(AMQP_PROPERTY_HEADER__CODEC)));
+                return;
+            }
+
+            try {
+                Class msgClass = Class.forName(type.toString());
+                Message msgInstance = (Message) msgClass.newInstance();
+                msgInstance.setId(id.toString());
+                msgInstance.putHeaderEntry(REPLY_TO, replyTo.toString());
+                replyErrorByMessageType(msgInstance, errf.stringToInvalidArgumentError(
+                        String.format("message cannot be decoded by codec[%s], %s", amqpHeaders.get(AMQP_PROPERTY_HEADER__CODEC), errMsg)
+                ));
+            } catch (Exception e) {
+                logger.warn(String.format("unable to reply error to message[%s, id:%s] that cannot be decoded", type, id), e);
+            }
+        }
+
         public Message toMessage(byte[] binary, AMQP.BasicProperties basicProperties) {
             /*
             StopWatch watch = new StopWatch();
@@ -563,15 +721,14 @@ public class CloudBusImpl2 implements CloudBus, CloudBusIN, ManagementNodeChange
                     data = binary;
                 }
 
-                Message msg = gson.fromJson(new String(data), Message.class);
-                msg.setAMQPProperties(basicProperties);
-
-                try {
-                    restoreFromSchema(msg, data);
-                } catch (ClassNotFoundException e) {
-                    throw new CloudRuntimeException(e);
+                MessageCodec codec = jsonCodec;
+                if (basicProperties.getHeaders() != null && basicProperties.getHeaders().containsKey(AMQP_PROPERTY_HEADER__CODEC)) {
+                    codec = getCodec(basicProperties.getHeaders().get(AMQP_PROPERTY_HEADER__CODEC).toString());
                 }
 
+                Message msg = codec.decode(data);
+                msg.setAMQPProperties(basicProperties);
+
             /*
             watch.stop();
             logger.debug(String.mediaType("receive %s cost %sms", msg.getClass().getName(), watch.getTime()));
@@ -579,7 +736,11 @@ public class CloudBusImpl2 implements CloudBus, CloudBusIN, ManagementNodeChange
                 return msg;
             } catch (RuntimeException je) {
                 logger.warn(je.getMessage(), je);
-                tryBestToReplyError(binary, je.getMessage());
+                if (basicProperties.getHeaders() == null || !basicProperties.getHeaders().containsKey(AMQP_PROPERTY_HEADER__CODEC)) {
+                    tryBestToReplyError(binary, je.getMessage());
+                } else {
+                    tryBestToReplyError(basicProperties.getHeaders(), je.getMessage());
+                }
                 throw je;
             } catch (IOException e) {
                 throw new CloudRuntimeException(e);
@@ -708,7 +869,7 @@ public class CloudBusImpl2 implements CloudBus, CloudBusIN, ManagementNodeChange
 
     private EventMaid maid = new EventMaid();
 
-    private abstract class Envelope {
+    private abstract class Envelope implements Runnable {
         long startTime;
 
         {
@@ -732,6 +893,12 @@ public class CloudBusImpl2 implements CloudBus, CloudBusIN, ManagementNodeChange
         abstract void timeout();
 
         abstract List<Message> getRequests();
+
+        // called by the timeout wheel
+        @Override
+        public void run() {
+            timeout();
+        }
     }
 
     private interface EndPoint {
@@ -745,6 +912,173 @@ public class CloudBusImpl2 implements CloudBus, CloudBusIN, ManagementNodeChange
 
     private final Wire wire = new Wire();
 
+    private class MessageBatcher {
+        private class Batch {
+            final String queueName;
+            List<MessageBatchEnvelope.Entry> entries = new ArrayList<MessageBatchEnvelope.Entry>();
+            List<Message> messages = new ArrayList<Message>();
+            long firstEnqueueTime;
+
+            long batchCount;
+            long messageCount;
+            long maxBatchSize;
+            long totalLatency;
+            long maxLatency;
+
+            Batch(String queueName) {
+                this.queueName = queueName;
+            }
+
+            // must be called with the batch locked, returns messages failing to publish
+            List<Message> flush() {
+                if (entries.isEmpty()) {
+                    return null;
+                }
+
+                List<MessageBatchEnvelope.Entry> lst = entries;
+                entries = new ArrayList<MessageBatchEnvelope.Entry>();
+                List<Message> msgs = messages;
+                messages = new ArrayList<Message>();
+
+                long latency = System.currentTimeMillis() - firstEnqueueTime;
+                batchCount ++;
+                messageCount += lst.size();
+                maxBatchSize = Math.max(maxBatchSize, lst.size());
+                totalLatency += latency;
+                maxLatency = Math.max(maxLatency, latency);
+
+                byte[] data;
+                AMQP.BasicProperties props;
+                if (lst.size() == 1) {
+                    data = lst.get(0).getBody();
+                    props = lst.get(0).getProperties();
+                } else {
+                    data = MessageBatchEnvelope.pack(lst);
+                    props = MessageBatchEnvelope.batchProperties(lst);
+                }
+
+                Channel chan = channelPool.acquire();
+                try {
+                    chan.basicPublish(outboundQueue.getBusExchange().toString(), queueName, true, props, data);
+                } catch (IOException e) {
+                    logger.warn(String.format("unable to publish a batch of %s messages to queue[%s]", msgs.size(), queueName), e);
+                    return msgs;
+                } finally {
+                    channelPool.returnChannel(chan);
+                }
+
+                return null;
+            }
+
+            BatchPublishStatistic toStatistic() {
+                return new BatchPublishStatistic(
+                        queueName,
+                        batchCount,
+                        messageCount,
+                        batchCount == 0 ? 0 : messageCount / batchCount,
+                        maxBatchSize,
+                        batchCount == 0 ? 0 : totalLatency / batchCount,
+                        maxLatency
+                );
+            }
+        }
+
+        private final ConcurrentHashMap<String, Batch> batches = new ConcurrentHashMap<String, Batch>();
+
+        private Batch getBatch(String queueName) {
+            Batch b = batches.get(queueName);
+            if (b == null) {
+                b = new Batch(queueName);
+                Batch old = batches.putIfAbsent(queueName, b);
+                if (old != null) {
+                    b = old;
+                }
+            }
+            return b;
+        }
+
+        // the unbatched path throws to the sender; here the sender has gone, so messages waiting
+        // for replies are replied an error instead of timing out, other messages are lost
+        private void replyPublishFailure(String queueName, List<Message> msgs) {
+            if (msgs == null) {
+                return;
+            }
+
+            for (Message msg : msgs) {
+                Envelope e = msg instanceof NeedReplyMessage ? envelopes.get(msg.getId()) : null;
+                if (e == null) {
+                    logger.warn(String.format("message[%s, id:%s] to queue[%s] is lost because it failed to publish",
+                            msg.getClass().getName(), msg.getId(), queueName));
+                    continue;
+                }
+
+                MessageReply r = new MessageReply();
+                r.putHeaderEntry(CORRELATION_ID, msg.getId());
+                AMQP.BasicProperties.Builder builder = new AMQP.BasicProperties.Builder();
+                r.setAMQPProperties(builder.deliveryMode(1).build());
+                r.setError(errf.stringToOperationError(String.format("unable to publish message[%s] to queue[%s]",
+                        msg.getClass().getName(), queueName)));
+                e.ack(r);
+            }
+        }
+
+        void send(String queueName, Message msg, byte[] data, AMQP.BasicProperties props) {
+            final Batch b = getBatch(queueName);
+            boolean scheduleFlush = false;
+            List<Message> failed = null;
+            synchronized (b) {
+                if (b.entries.isEmpty()) {
+                    b.firstEnqueueTime = System.currentTimeMillis();
+                    scheduleFlush = true;
+                }
+
+                b.entries.add(new MessageBatchEnvelope.Entry(data, props));
+                b.messages.add(msg);
+                if (b.entries.size() >= CloudBusGlobalProperty.BATCH_PUBLISH_MAX_SIZE) {
+                    failed = b.flush();
+                    scheduleFlush = false;
+                }
+            }
+
+            replyPublishFailure(queueName, failed);
+
+            if (scheduleFlush) {
+                thdf.submitTimeoutTask(new Runnable() {
+                    @Override
+                    public void run() {
+                        List<Message> failed;
+                        synchronized (b) {
+                            failed = b.flush();
+                        }
+                        replyPublishFailure(b.queueName, failed);
+                    }
+                }, TimeUnit.MILLISECONDS, CloudBusGlobalProperty.BATCH_PUBLISH_WINDOW);
+            }
+        }
+
+        void flushAll() {
+            for (Batch b : batches.values()) {
+                List<Message> failed;
+                synchronized (b) {
+                    failed = b.flush();
+                }
+                replyPublishFailure(b.queueName, failed);
+            }
+        }
+
+        Map<String, BatchPublishStatistic> getStatistics() {
+            Map<String, BatchPublishStatistic> ret = new HashMap<String, BatchPublishStatistic>();
+            for (Batch b : batches.values()) {
+                synchronized (b) {
+                    ret.put(b.queueName, b.toStatistic());
+                }
+            }
+            return ret;
+        }
+    }
+
+    private final MessageBatcher batcher = new MessageBatcher();
+
 
     private interface MessageTrackerEnvelope {
         String getMessageId();
@@ -891,6 +1225,20 @@ public class CloudBusImpl2 implements CloudBus, CloudBusIN, ManagementNodeChange
 
         @Override
         public void handleDelivery(String s, com.rabbitmq.client.Envelope envelope, AMQP.BasicProperties basicProperties, byte[] bytes) throws IOException {
+            try {
+                if (MessageBatchEnvelope.isBatch(basicProperties)) {
+                    for (MessageBatchEnvelope.Entry entry : MessageBatchEnvelope.unpack(bytes)) {
+                        trackMessage(entry.getProperties());
+                    }
+                } else {
+                    trackMessage(basicProperties);
+                }
+            } catch (Throwable t) {
+                logger.warn("unhandled throwable", t);
+            }
+        }
+
+        private void trackMessage(AMQP.BasicProperties basicProperties) {
             try {
                 Map<String, Object> headers = basicProperties.getHeaders();
                 if (headers == null || !headers.containsKey(MESSAGE_META_DATA)) {
@@ -1039,10 +1387,38 @@ public class CloudBusImpl2 implements CloudBus, CloudBusIN, ManagementNodeChange
 
     private MessageTracker tracker;
 
+    private void registerBinaryCodecClasses() {
+        List<Class> clzs = new ArrayList<Class>();
+        clzs.addAll(BeanUtils.scanClassByType("org.zstack", Message.class));
+        clzs.addAll(BeanUtils.scanClass("org.zstack", Inventory.class));
+        clzs.addAll(BeanUtils.scanClass("org.zstack", NeedJsonSchema.class));
+        clzs.add(ErrorCode.class);
+        binaryCodec.registerClasses(clzs);
+    }
+
     void init() {
         trackerClose = CloudBusGlobalProperty.CLOSE_TRACKER;
         serverIps = CloudBusGlobalProperty.SERVER_IPS;
         tracker = new MessageTracker();
+        registerBinaryCodecClasses();
+        timeoutWheel = new HashedWheelTimer("cloudbus-envelope-timeout", CloudBusGlobalProperty.ENVELOPE_TIMEOUT_TICK,
+                TimeUnit.MILLISECONDS, TIMEOUT_WHEEL_SIZE, new Executor() {
+            @Override
+            public void execute(final Runnable command) {
+                thdf.submit(new Task<Void>() {
+                    @Override
+                    public String getName() {
+                        return "cloudbus-envelope-timeout";
+                    }
+
+                    @Override
+                    public Void call() throws Exception {
+                        command.run();
+                        return null;
+                    }
+                });
+            }
+        });
 
         ConnectionFactory connFactory = new ConnectionFactory();
         List<Address> addresses = CollectionUtils.transformToList(serverIps, new Function<Address, String>() {
@@ -1199,13 +1575,7 @@ public class CloudBusImpl2 implements CloudBus, CloudBusIN, ManagementNodeChange
         Envelope e = new Envelope() {
             AtomicBoolean called = new AtomicBoolean(false);
 
-            final Envelope self = this;
-            TimeoutTaskReceipt timeoutTaskReceipt = thdf.submitTimeoutTask(new Runnable() {
-                @Override
-                public void run() {
-                    self.timeout();
-                }
-            }, TimeUnit.MILLISECONDS, msg.getTimeout());
+            TimeoutTaskReceipt timeoutTaskReceipt = timeoutWheel.schedule(this, TimeUnit.MILLISECONDS, msg.getTimeout());
 
             @Override
             public void ack(MessageReply reply) {
@@ -1271,13 +1641,7 @@ public class CloudBusImpl2 implements CloudBus, CloudBusIN, ManagementNodeChange
 
             Map<String, MessageReply> replies = new HashMap(msgs.size());
 
-            final Envelope self = this;
-            TimeoutTaskReceipt timeoutTaskReceipt = thdf.submitTimeoutTask(new Runnable() {
-                @Override
-                public void run() {
-                    self.timeout();
-                }
-            }, TimeUnit.MILLISECONDS, timeout);
+            TimeoutTaskReceipt timeoutTaskReceipt = timeoutWheel.schedule(this, TimeUnit.MILLISECONDS, timeout);
 
             private void cleanup(boolean cancelTimeout) {
                 for (Message msg : msgs) {
@@ -1790,6 +2154,12 @@ public class CloudBusImpl2 implements CloudBus, CloudBusIN, ManagementNodeChange
                 handler = new AbstractConsumer() {
                     @Override
                     public void handleDelivery(String s, com.rabbitmq.client.Envelope envelope, AMQP.BasicProperties basicProperties, byte[] bytes) throws IOException {
+                        for (MessageBatchEnvelope.Entry entry : MessageBatchEnvelope.entries(bytes, basicProperties)) {
+                            handleMessage(entry.getBody(), entry.getProperties());
+                        }
+                    }
+
+                    private void handleMessage(byte[] bytes, AMQP.BasicProperties basicProperties) {
                         try {
                             final Message msg = wire.toMessage(bytes, basicProperties);
 
@@ -2064,6 +2434,9 @@ public class CloudBusImpl2 implements CloudBus, CloudBusIN, ManagementNodeChange
 
     private void populateExtension() {
         services = pluginRgty.getExtensionList(Service.class);
+        for (MessageCodec codec : pluginRgty.getExtensionList(MessageCodec.class)) {
+            wire.addCodec(codec);
+        }
         for (ReplyMessagePreSendingExtensionPoint extp : pluginRgty.getExtensionList(ReplyMessagePreSendingExtensionPoint.class)) {
             List<Class> clazzs = extp.getReplyMessageClassForPreSendingExtensionPoint();
             if (clazzs == null || clazzs.isEmpty()) {
@@ -2115,11 +2488,37 @@ public class CloudBusImpl2 implements CloudBus, CloudBusIN, ManagementNodeChange
         }
     }
 
+    private void collectMessageCodec() {
+        Map<String, String> props = Platform.getGlobalPropertiesStartWith(CODEC_PROPERTY_PREFIX);
+        for (Map.Entry<String, String> e : props.entrySet()) {
+            String codecName = StringDSL.stripStart(e.getKey(), CODEC_PROPERTY_PREFIX);
+            MessageCodec codec = wire.getCodec(codecName);
+            String[] msgNames = StringUtils.split(e.getValue(), ",");
+            for (String msgName : msgNames) {
+                try {
+                    Class msgClz = Class.forName(msgName.trim());
+                    if (!Message.class.isAssignableFrom(msgClz)) {
+                        throw new CloudRuntimeException(String.format("message name[%s] defined in property[%s] in zstack.properties is invalid. It's not sub-class of Message", msgName, e.getKey()));
+                    }
+                    if (APIMessage.class.isAssignableFrom(msgClz) || APIEvent.class.isAssignableFrom(msgClz)) {
+                        // API messages and events are always in JSON
+                        continue;
+                    }
+
+                    wire.setCodec(msgClz, codec);
+                } catch (ClassNotFoundException e1) {
+                    throw new CloudRuntimeException(String.format("message name[%s] defined in property[%s] in zstack.properties is invalid. Cannot find its java class", msgName, e.getKey()), e1);
+                }
+            }
+        }
+    }
+
     @Override
     public boolean start() {
         populateExtension();
         prepareStatistics();
         collectMessageTimeOut();
+        collectMessageCodec();
 
         for (Service serv : services) {
             assert serv.getId() != null : String.format("service id can not be null[%s]", serv.getClass().getName());
@@ -2164,8 +2563,14 @@ public class CloudBusImpl2 implements CloudBus, CloudBusIN, ManagementNodeChange
         }
 
         tracker.destruct();
+        timeoutWheel.stop();
 
         throwableSafe(new Runnable() {
+            @Override
+            public void run() {
+                batcher.flushAll();
+            }
+        }).throwableSafe(new Runnable() {
             @Override
             public void run() {
                 try {
@@ -2225,6 +2630,31 @@ public class CloudBusImpl2 implements CloudBus, CloudBusIN, ManagementNodeChange
         return ret;
     }
 
+    @Override
+    public int getInFlightRequestCount() {
+        return envelopes.size();
+    }
+
+    @Override
+    public long getTimeoutWheelPendingCount() {
+        return timeoutWheel.getPendingCount();
+    }
+
+    @Override
+    public long getTimeoutWheelLag() {
+        return timeoutWheel.getLag();
+    }
+
+    @Override
+    public long getTimeoutWheelMaxLag() {
+        return timeoutWheel.getMaxLag();
+    }
+
+    @Override
+    public Map<String, BatchPublishStatistic> getBatchPublishStatistics() {
+        return batcher.getStatistics();
+    }
+
     @Override
     public WaitingMessageSummaryStatistic getWaitingReplyMessageSummaryStatistic() {
         List<WaitingReplyMessageStatistic> ret = getWaitingReplyMessageStatistic();
@@ -11,4 +11,14 @@ public interface CloudBusMXBean {
     List<WaitingReplyMessageStatistic> getWaitingReplyMessageStatistic();
 
     WaitingMessageSummaryStatistic getWaitingReplyMessageSummaryStatistic();
+
+    Map<String, BatchPublishStatistic> getBatchPublishStatistics();
+
+    int getInFlightRequestCount();
+
+    long getTimeoutWheelPendingCount();
+
+    long getTimeoutWheelLag();
+
+    long getTimeoutWheelMaxLag();
 }
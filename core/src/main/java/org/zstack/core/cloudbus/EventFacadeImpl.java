@@ -1,6 +1,7 @@
 package org.zstack.core.cloudbus;
 
 import org.springframework.beans.factory.annotation.Autowired;
+import org.zstack.core.jmx.JmxFacade;
 import org.zstack.core.thread.AsyncThread;
 import org.zstack.header.Component;
 import org.zstack.header.exception.CloudRuntimeException;
@@ -12,6 +13,8 @@ import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
 
 /**
  * Created with IntelliJ IDEA.
@@ -19,24 +22,53 @@ import java.util.concurrent.atomic.AtomicBoolean;
  * Time: 11:39 PM
  * To change this template use File | Settings | File Templates.
  */
-public class EventFacadeImpl implements EventFacade, CloudBusEventListener, Component {
+public class EventFacadeImpl implements EventFacade, CloudBusEventListener, Component, EventFacadeMXBean {
     @Autowired
     private CloudBus bus;
+    @Autowired
+    private JmxFacade jmxf;
 
     private ConcurrentMap<Object, CallbackWrapper> callbacks = new ConcurrentHashMap<Object, CallbackWrapper>();
-    private final List<Object> toRemove = new ArrayList<Object>();
-    private final List<CallbackWrapper> toAdd = new ArrayList<CallbackWrapper>();
+    // callbacks indexed by the literal segments their path starts with
+    private final PathNode root = new PathNode();
     private EventSubscriberReceipt unsubscriber;
 
+    /**
+     * A node of the subscription trie. A callback hangs on the node of the longest literal prefix
+     * of its path; an event walks down the trie along its own path segments and only tests the
+     * patterns of callbacks on the nodes it passes by. Nodes are never removed, their number is
+     * bounded by the distinct path prefixes ever subscribed.
+     */
+    private static class PathNode {
+        final ConcurrentMap<String, PathNode> children = new ConcurrentHashMap<String, PathNode>();
+        final ConcurrentMap<Object, CallbackWrapper> callbacks = new ConcurrentHashMap<Object, CallbackWrapper>();
+
+        PathNode getOrCreateChild(String segment) {
+            PathNode child = children.get(segment);
+            if (child == null) {
+                child = new PathNode();
+                PathNode old = children.putIfAbsent(segment, child);
+                if (old != null) {
+                    child = old;
+                }
+            }
+            return child;
+        }
+    }
+
     private class CallbackWrapper {
         String path;
         String glob;
+        Pattern pattern;
         Object callback;
         AtomicBoolean hasRun;
+        PathNode node;
+        AtomicLong dispatchCount = new AtomicLong();
 
         CallbackWrapper(String path, String glob, Object callback) {
             this.path = path;
             this.glob = glob;
+            this.pattern = Pattern.compile(glob);
             this.callback = callback;
             if (callback instanceof AutoOffEventCallback) {
                 hasRun = new AtomicBoolean(false);
@@ -121,34 +153,60 @@ public class EventFacadeImpl implements EventFacade, CloudBusEventListener, Comp
     }
 
 
+    private static String[] splitPath(String path) {
+        return path.split("/", -1);
+    }
+
+    // a segment without any wildcard or regex character matches only itself
+    private static boolean isLiteralSegment(String segment) {
+        for (int i = 0; i < segment.length(); i++) {
+            if ("*?{}\\.[]()+^$|".indexOf(segment.charAt(i)) != -1) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void subscribe(String path, Object cb) {
+        String glob = createRegexFromGlob(path.replaceAll("\\{.*\\}", ".*"));
+        CallbackWrapper wrapper = new CallbackWrapper(path, glob, cb);
+
+        PathNode node = root;
+        for (String segment : splitPath(path)) {
+            if (!isLiteralSegment(segment)) {
+                break;
+            }
+            node = node.getOrCreateChild(segment);
+        }
+        wrapper.node = node;
+
+        node.callbacks.put(wrapper.getIdentity(), wrapper);
+        CallbackWrapper old = callbacks.put(wrapper.getIdentity(), wrapper);
+        if (old != null && old.node != node) {
+            old.node.callbacks.remove(old.getIdentity(), old);
+        }
+    }
+
     @Override
     public void on(String path, AutoOffEventCallback cb) {
-        synchronized (toAdd) {
-            String glob = createRegexFromGlob(path.replaceAll("\\{.*\\}", ".*"));
-            toAdd.add(new CallbackWrapper(path, glob, cb));
-        }
+        subscribe(path, cb);
     }
 
     @Override
     public void on(String path, final EventCallback cb) {
-        synchronized (toAdd) {
-            String glob = createRegexFromGlob(path.replaceAll("\\{.*\\}", ".*"));
-            toAdd.add(new CallbackWrapper(path, glob, cb));
-        }
+        subscribe(path, cb);
     }
 
     @Override
     public void on(String path, Runnable runnable) {
-        synchronized (toAdd) {
-            String glob = createRegexFromGlob(path.replaceAll("\\{.*\\}", ".*"));
-            toAdd.add(new CallbackWrapper(path, glob, runnable));
-        }
+        subscribe(path, runnable);
     }
 
     @Override
     public void off(Object cb) {
-        synchronized (toRemove) {
-            toRemove.add(cb);
+        CallbackWrapper wrapper = callbacks.remove(cb);
+        if (wrapper != null) {
+            wrapper.node.callbacks.remove(cb, wrapper);
         }
     }
 
@@ -173,39 +231,49 @@ public class EventFacadeImpl implements EventFacade, CloudBusEventListener, Comp
             return false;
         }
 
-        synchronized (toAdd) {
-            if (!toAdd.isEmpty()) {
-                for (CallbackWrapper wrapper : toAdd) {
-                    callbacks.put(wrapper.getIdentity(), wrapper);
-                }
-
-                toAdd.clear();
+        CanonicalEvent cevt = (CanonicalEvent)evt;
+        String path = cevt.getPath();
+        PathNode node = root;
+        dispatch(node, cevt);
+        for (String segment : splitPath(path)) {
+            node = node.children.get(segment);
+            if (node == null) {
+                break;
             }
+            dispatch(node, cevt);
         }
 
-        synchronized (toRemove) {
-            if (!toRemove.isEmpty()) {
-                for (Object cb : toRemove) {
-                    callbacks.remove(cb);
-                }
+        return false;
+    }
 
-                toRemove.clear();
+    private void dispatch(PathNode node, CanonicalEvent cevt) {
+        for (CallbackWrapper wrapper : node.callbacks.values()) {
+            if (wrapper.pattern.matcher(cevt.getPath()).matches()) {
+                wrapper.dispatchCount.incrementAndGet();
+                wrapper.call(cevt);
             }
         }
+    }
 
-        CanonicalEvent cevt = (CanonicalEvent)evt;
+    @Override
+    public Map<String, Long> getDispatchStatistics() {
+        Map<String, Long> ret = new HashMap<String, Long>();
         for (CallbackWrapper wrapper : callbacks.values()) {
-            if (cevt.getPath().matches(wrapper.getGlob())) {
-                wrapper.call(cevt);
-            }
+            Long count = ret.get(wrapper.path);
+            ret.put(wrapper.path, (count == null ? 0 : count) + wrapper.dispatchCount.get());
         }
+        return ret;
+    }
 
-        return false;
+    @Override
+    public int getCallbackCount() {
+        return callbacks.size();
     }
 
     @Override
     public boolean start() {
         unsubscriber =  bus.subscribeEvent(this, new CanonicalEvent());
+        jmxf.registerBean("EventFacade", this);
         return true;
     }
 
@@ -0,0 +1,14 @@
+package org.zstack.core.cloudbus;
+
+import java.util.Map;
+
+/**
+ */
+public interface EventFacadeMXBean {
+    /**
+     * number of events dispatched to callbacks, by subscribed path
+     */
+    Map<String, Long> getDispatchStatistics();
+
+    int getCallbackCount();
+}
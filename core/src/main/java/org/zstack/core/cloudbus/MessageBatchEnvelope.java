@@ -0,0 +1,165 @@
+package org.zstack.core.cloudbus;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.LongStringHelper;
+import org.zstack.header.exception.CloudRuntimeException;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Packs several encoded messages heading to the same queue into one AMQP frame.
+ *
+ * A batch frame carries the header "batch" and a body of
+ * [count]([header count]([key][value])*[expiration][body length][body])*;
+ * the AMQP properties of every message are restored on unpacking, so consumers
+ * handle the entries exactly as if they had been published one by one.
+ */
+public class MessageBatchEnvelope {
+    public static final String AMQP_PROPERTY_HEADER__BATCH = "batch";
+
+    public static class Entry {
+        private final byte[] body;
+        private final AMQP.BasicProperties properties;
+
+        public Entry(byte[] body, AMQP.BasicProperties properties) {
+            this.body = body;
+            this.properties = properties;
+        }
+
+        public byte[] getBody() {
+            return body;
+        }
+
+        public AMQP.BasicProperties getProperties() {
+            return properties;
+        }
+    }
+
+    public static boolean isBatch(AMQP.BasicProperties properties) {
+        return properties.getHeaders() != null && properties.getHeaders().containsKey(AMQP_PROPERTY_HEADER__BATCH);
+    }
+
+    public static AMQP.BasicProperties batchProperties(List<Entry> entries) {
+        Long expiration = null;
+        for (Entry e : entries) {
+            if (e.getProperties().getExpiration() == null) {
+                expiration = null;
+                break;
+            }
+
+            long exp = Long.valueOf(e.getProperties().getExpiration());
+            expiration = expiration == null ? exp : Math.min(expiration, exp);
+        }
+
+        Map<String, Object> headers = new HashMap<String, Object>();
+        headers.put(AMQP_PROPERTY_HEADER__BATCH, String.valueOf(entries.size()));
+        AMQP.BasicProperties.Builder builder = new AMQP.BasicProperties.Builder().deliveryMode(1).headers(headers);
+        if (expiration != null) {
+            builder.expiration(String.valueOf(expiration));
+        }
+        return builder.build();
+    }
+
+    public static byte[] pack(List<Entry> entries) {
+        int size = 0;
+        for (Entry e : entries) {
+            size += e.getBody().length + 64;
+        }
+
+        try {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream(size);
+            DataOutputStream out = new DataOutputStream(bos);
+            out.writeInt(entries.size());
+            for (Entry e : entries) {
+                Map<String, Object> headers = e.getProperties().getHeaders();
+                out.writeInt(headers == null ? 0 : headers.size());
+                if (headers != null) {
+                    for (Map.Entry<String, Object> h : headers.entrySet()) {
+                        writeString(out, h.getKey());
+                        writeString(out, h.getValue() == null ? null : h.getValue().toString());
+                    }
+                }
+                writeString(out, e.getProperties().getExpiration());
+                out.writeInt(e.getBody().length);
+                out.write(e.getBody());
+            }
+            out.flush();
+            return bos.toByteArray();
+        } catch (IOException e) {
+            throw new CloudRuntimeException(e);
+        }
+    }
+
+    public static List<Entry> unpack(byte[] data) {
+        try {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+            int count = in.readInt();
+            List<Entry> ret = new ArrayList<Entry>(count);
+            for (int i = 0; i < count; i++) {
+                int hcount = in.readInt();
+                Map<String, Object> headers = null;
+                if (hcount > 0) {
+                    headers = new HashMap<String, Object>(hcount);
+                    for (int j = 0; j < hcount; j++) {
+                        String key = readString(in);
+                        String value = readString(in);
+                        // keep the same value type as headers delivered by RabbitMQ
+                        headers.put(key, value == null ? null : LongStringHelper.asLongString(value));
+                    }
+                }
+
+                String expiration = readString(in);
+                byte[] body = new byte[in.readInt()];
+                in.readFully(body);
+
+                AMQP.BasicProperties.Builder builder = new AMQP.BasicProperties.Builder().deliveryMode(1).headers(headers);
+                if (expiration != null) {
+                    builder.expiration(expiration);
+                }
+                ret.add(new Entry(body, builder.build()));
+            }
+            return ret;
+        } catch (IOException e) {
+            throw new CloudRuntimeException(e);
+        }
+    }
+
+    /**
+     * returns the entries of a batch frame, or the frame itself if it's not a batch
+     */
+    public static List<Entry> entries(byte[] data, AMQP.BasicProperties properties) {
+        if (isBatch(properties)) {
+            return unpack(data);
+        }
+
+        List<Entry> ret = new ArrayList<Entry>(1);
+        ret.add(new Entry(data, properties));
+        return ret;
+    }
+
+    private static void writeString(DataOutputStream out, String str) throws IOException {
+        if (str == null) {
+            out.writeInt(-1);
+            return;
+        }
+
+        byte[] bytes = str.getBytes("UTF-8");
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int len = in.readInt();
+        if (len == -1) {
+            return null;
+        }
+
+        byte[] bytes = new byte[len];
+        in.readFully(bytes);
+        return new String(bytes, "UTF-8");
+    }
+}
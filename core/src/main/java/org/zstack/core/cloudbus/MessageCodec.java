@@ -0,0 +1,22 @@
+package org.zstack.core.cloudbus;
+
+import org.zstack.header.message.Message;
+
+/**
+ * Encodes messages to the bytes put on the wire and decodes them back.
+ *
+ * The codec used for a message is recorded in the AMQP header "codec" so a receiver
+ * can always decode it regardless of its own configuration; messages without the header
+ * are JSON encoded.
+ */
+public interface MessageCodec {
+    String getName();
+
+    /**
+     * @throws MessageCodecUnsupportedException if the message contains a type the codec
+     * cannot handle; CloudBus will fall back to the JSON codec for this message class
+     */
+    byte[] encode(Message msg);
+
+    Message decode(byte[] data);
+}
@@ -0,0 +1,11 @@
+package org.zstack.core.cloudbus;
+
+import org.zstack.header.exception.CloudRuntimeException;
+
+/**
+ */
+public class MessageCodecUnsupportedException extends CloudRuntimeException {
+    public MessageCodecUnsupportedException(String message) {
+        super(message);
+    }
+}
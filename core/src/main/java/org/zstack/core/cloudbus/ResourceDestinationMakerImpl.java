@@ -10,6 +10,8 @@ import org.zstack.header.managementnode.ManagementNodeVO;
 import org.zstack.header.managementnode.ManagementNodeVO_;
 import org.zstack.utils.hash.ApacheHash;
 import org.zstack.utils.hash.ConsistentHash;
+import org.zstack.utils.hash.NodeHash;
+import org.zstack.utils.hash.RendezvousHash;
 
 import java.util.ArrayList;
 import java.util.List;
@@ -21,7 +23,18 @@ import java.util.List;
  * To change this template use File | Settings | File Templates.
  */
 public class ResourceDestinationMakerImpl implements ManagementNodeChangeListener, ResourceDestinationMaker {
-    private ConsistentHash<String> nodeHash = new ConsistentHash<String>(new ApacheHash(), 500, new ArrayList<String>()) ;
+    private NodeHash<String> nodeHash;
+
+    public ResourceDestinationMakerImpl() {
+        if ("rendezvous".equals(CloudBusGlobalProperty.RESOURCE_HASH_ALGORITHM)) {
+            nodeHash = new RendezvousHash<String>(new ApacheHash(), new ArrayList<String>());
+        } else if ("consistentHash".equals(CloudBusGlobalProperty.RESOURCE_HASH_ALGORITHM)) {
+            nodeHash = new ConsistentHash<String>(new ApacheHash(), 500, new ArrayList<String>());
+        } else {
+            throw new CloudRuntimeException(String.format("unknown CloudBus.resourceHashAlgorithm[%s], valid values are consistentHash, rendezvous",
+                    CloudBusGlobalProperty.RESOURCE_HASH_ALGORITHM));
+        }
+    }
 
     @Autowired
     private DatabaseFacade dbf;
@@ -0,0 +1,201 @@
+package org.zstack.core.cloudbus;
+
+import org.zstack.header.exception.CloudRuntimeException;
+import org.zstack.utils.FieldUtils;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Reads and writes the value at a path produced by MessageJsonSchemaBuilder, e.g.
+ * inventory.vmNics[0] or systemTags["key"].name, on a message or on its raw JSON map.
+ *
+ * The path is parsed once; fields are resolved against the runtime class of each object on the
+ * path and cached, so an access costs a few reflective field reads plus one write.
+ */
+class SchemaPathAccessor {
+    private static final Map<Class, Map<String, Field>> fieldCache = new ConcurrentHashMap<Class, Map<String, Field>>();
+    private static final Field NO_FIELD;
+
+    static {
+        try {
+            NO_FIELD = SchemaPathAccessor.class.getDeclaredField("NO_FIELD");
+        } catch (NoSuchFieldException e) {
+            throw new CloudRuntimeException(e);
+        }
+    }
+
+    private static abstract class Step {
+        abstract Object get(Object obj);
+
+        abstract void set(Object obj, Object value);
+    }
+
+    private static class FieldStep extends Step {
+        final String name;
+
+        FieldStep(String name) {
+            this.name = name;
+        }
+
+        @Override
+        Object get(Object obj) {
+            if (obj instanceof Map) {
+                return ((Map) obj).get(name);
+            }
+
+            try {
+                return getField(obj.getClass(), name).get(obj);
+            } catch (IllegalAccessException e) {
+                throw new CloudRuntimeException(e);
+            }
+        }
+
+        @Override
+        void set(Object obj, Object value) {
+            if (obj instanceof Map) {
+                ((Map) obj).put(name, value);
+                return;
+            }
+
+            try {
+                getField(obj.getClass(), name).set(obj, value);
+            } catch (IllegalAccessException e) {
+                throw new CloudRuntimeException(e);
+            }
+        }
+    }
+
+    private static class IndexStep extends Step {
+        final int index;
+
+        IndexStep(int index) {
+            this.index = index;
+        }
+
+        @Override
+        Object get(Object obj) {
+            return ((List) obj).get(index);
+        }
+
+        @Override
+        void set(Object obj, Object value) {
+            ((List) obj).set(index, value);
+        }
+    }
+
+    private static class KeyStep extends Step {
+        final String key;
+
+        KeyStep(String key) {
+            this.key = key;
+        }
+
+        @Override
+        Object get(Object obj) {
+            return ((Map) obj).get(key);
+        }
+
+        @Override
+        void set(Object obj, Object value) {
+            ((Map) obj).put(key, value);
+        }
+    }
+
+    private final String path;
+    private final Step[] steps;
+
+    SchemaPathAccessor(String path) {
+        this.path = path;
+        steps = parse(path);
+    }
+
+    private static Field getField(Class clz, String name) {
+        Map<String, Field> fields = fieldCache.get(clz);
+        if (fields == null) {
+            fields = new ConcurrentHashMap<String, Field>();
+            fieldCache.put(clz, fields);
+        }
+
+        Field f = fields.get(name);
+        if (f == null) {
+            f = FieldUtils.getField(name, clz);
+            if (f == null) {
+                f = NO_FIELD;
+            } else {
+                f.setAccessible(true);
+            }
+            fields.put(name, f);
+        }
+
+        if (f == NO_FIELD) {
+            throw new CloudRuntimeException(String.format("cannot find field[%s] on class[%s]", name, clz.getName()));
+        }
+        return f;
+    }
+
+    private Step[] parse(String path) {
+        List<Step> ret = new ArrayList<Step>();
+        int i = 0;
+        int len = path.length();
+        while (i < len) {
+            char c = path.charAt(i);
+            if (c == '.') {
+                i ++;
+            } else if (c == '[') {
+                int end = path.indexOf(']', i);
+                if (end == -1) {
+                    throw new CloudRuntimeException(String.format("invalid schema path[%s]", path));
+                }
+
+                String inner = path.substring(i + 1, end);
+                if (inner.startsWith("\"")) {
+                    // map keys are quoted and may contain ']'
+                    end = path.indexOf("\"]", i + 2);
+                    if (end == -1) {
+                        throw new CloudRuntimeException(String.format("invalid schema path[%s]", path));
+                    }
+                    ret.add(new KeyStep(path.substring(i + 2, end)));
+                    i = end + 2;
+                } else {
+                    ret.add(new IndexStep(Integer.valueOf(inner.trim())));
+                    i = end + 1;
+                }
+            } else {
+                int end = i;
+                while (end < len && path.charAt(end) != '.' && path.charAt(end) != '[') {
+                    end ++;
+                }
+                ret.add(new FieldStep(path.substring(i, end)));
+                i = end;
+            }
+        }
+
+        if (ret.isEmpty()) {
+            throw new CloudRuntimeException(String.format("invalid schema path[%s]", path));
+        }
+        return ret.toArray(new Step[ret.size()]);
+    }
+
+    private Object getParent(Object root) {
+        Object obj = root;
+        for (int i = 0; i < steps.length - 1; i++) {
+            obj = steps[i].get(obj);
+            if (obj == null) {
+                throw new CloudRuntimeException(String.format("null value on schema path[%s] of %s", path, root.getClass().getName()));
+            }
+        }
+        return obj;
+    }
+
+    Object get(Object root) {
+        return steps[steps.length - 1].get(getParent(root));
+    }
+
+    void set(Object root, Object value) {
+        steps[steps.length - 1].set(getParent(root), value);
+    }
+}
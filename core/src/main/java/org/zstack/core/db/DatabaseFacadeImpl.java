@@ -10,6 +10,7 @@ import org.springframework.transaction.support.TransactionSynchronizationManager
 import org.zstack.core.Platform;
 import org.zstack.core.componentloader.PluginRegistry;
 import org.zstack.core.db.TransactionalCallback.Operation;
+import org.zstack.core.jmx.JmxFacade;
 import org.zstack.header.Component;
 import org.zstack.header.exception.CloudRuntimeException;
 import org.zstack.header.message.APIListMessage;
@@ -26,8 +27,9 @@ import javax.sql.DataSource;
 import java.lang.reflect.Field;
 import java.sql.Timestamp;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
-public class DatabaseFacadeImpl implements DatabaseFacade, Component {
+public class DatabaseFacadeImpl implements DatabaseFacade, Component, DatabaseFacadeMXBean {
     private static final CLogger logger = CLoggerImpl.getLogger(DatabaseFacadeImpl.class);
 
     @PersistenceUnit(unitName="zstack.jpa")
@@ -37,6 +39,8 @@ public class DatabaseFacadeImpl implements DatabaseFacade, Component {
 
     @Autowired
     private PluginRegistry pluginRgty;
+    @Autowired
+    private JmxFacade jmxf;
 
     private DataSource dataSource = null;
     private DataSource extraDataSource = null;
@@ -48,6 +52,16 @@ public class DatabaseFacadeImpl implements DatabaseFacade, Component {
     private Map<Class, List<HardDeleteEntityExtensionPoint>> hardDeleteExtensions = new HashMap<Class, List<HardDeleteEntityExtensionPoint>>();
     private List<HardDeleteEntityExtensionPoint> hardDeleteForAllExtensions = new ArrayList<HardDeleteEntityExtensionPoint>();
     private Map<Class, EntityInfo> entityInfoMap = new HashMap<Class, EntityInfo>();
+    private Map<String, SequenceBlock> sequenceBlocks = new ConcurrentHashMap<String, SequenceBlock>();
+
+    /**
+     * a range of sequence numbers reserved by this management node; [next, end) are
+     * still free to be handed out without touching the database
+     */
+    private static class SequenceBlock {
+        long next;
+        long end;
+    }
 
     private class EntityInfo {
         Field voPrimaryKeyField;
@@ -559,20 +573,73 @@ public class DatabaseFacadeImpl implements DatabaseFacade, Component {
 
     @Override
     public long generateSequenceNumber(Class<?> seqTable) {
-        try {
-            Field id = seqTable.getDeclaredField("id");
-            if (id == null) {
+        String name = seqTable.getSimpleName();
+        SequenceBlock block = sequenceBlocks.get(name);
+        if (block == null) {
+            if (FieldUtils.getField("id", seqTable) == null) {
                 throw new CloudRuntimeException(String.format("sequence VO[%s] must have 'id' field", seqTable.getName()));
             }
-            Object vo = seqTable.newInstance();
-            vo = persistAndRefresh(vo);
-            id.setAccessible(true);
-            return (Long) id.get(vo);
-        } catch (Exception e) {
-            throw new CloudRuntimeException(e);
+
+            synchronized (sequenceBlocks) {
+                block = sequenceBlocks.get(name);
+                if (block == null) {
+                    block = new SequenceBlock();
+                    sequenceBlocks.put(name, block);
+                }
+            }
+        }
+
+        synchronized (block) {
+            if (block.next >= block.end) {
+                int size = DbGlobalProperty.SEQUENCE_NUMBER_BLOCK_SIZE;
+                DebugUtils.Assert(size > 0, String.format("sequenceNumberBlockSize must be greater than 0, but got %s", size));
+                // the row is created on first use, and again if it's gone with the database being redeployed
+                Long next = reserveSequenceBlock(name, size);
+                if (next == null) {
+                    initSequenceBlock(name);
+                    next = reserveSequenceBlock(name, size);
+                    if (next == null) {
+                        throw new CloudRuntimeException(String.format("unable to reserve sequence numbers of %s, no row in SequenceBlockVO after initializing it", name));
+                    }
+                }
+                block.next = next;
+                block.end = block.next + size;
+            }
+
+            return block.next ++;
         }
     }
 
+    @Transactional(propagation = Propagation.REQUIRES_NEW)
+    private void initSequenceBlock(String name) {
+        // the sequence starts after ids already generated from the sequence table itself, a
+        // concurrent initialization by another management node is ignored by the unique name
+        String sql = String.format("insert ignore into SequenceBlockVO (name, nextValue) select :name, ifnull(max(id), 0) + 1 from %s", name);
+        Query q = getEntityManager().createNativeQuery(sql);
+        q.setParameter("name", name);
+        q.executeUpdate();
+    }
+
+    /**
+     * @return the start of the reserved block, or null if the sequence has no row in SequenceBlockVO
+     */
+    @Transactional(propagation = Propagation.REQUIRES_NEW)
+    private Long reserveSequenceBlock(String name, int size) {
+        // the update locks the row until commit, so the value read back is the end of our block
+        String sql = "update SequenceBlockVO s set s.nextValue = s.nextValue + :size where s.name = :name";
+        Query q = getEntityManager().createQuery(sql);
+        q.setParameter("size", (long) size);
+        q.setParameter("name", name);
+        if (q.executeUpdate() == 0) {
+            return null;
+        }
+
+        sql = "select s.nextValue from SequenceBlockVO s where s.name = :name";
+        TypedQuery<Long> tq = getEntityManager().createQuery(sql, Long.class);
+        tq.setParameter("name", name);
+        return tq.getSingleResult() - size;
+    }
+
     @Override
     public <T> List<T> listByApiMessage(APIListMessage msg, Class<T> clazz) {
         return listByPrimaryKeys(msg.getUuids(), msg.getOffset(), msg.getLength(), clazz);
@@ -643,9 +710,15 @@ public class DatabaseFacadeImpl implements DatabaseFacade, Component {
     @Override
     public boolean start() {
         populateExtensions();
+        jmxf.registerBean("DatabaseFacade", this);
         return true;
     }
 
+    @Override
+    public Map<String, GLockStatistic> getGLockStatistics() {
+        return GLock.getStatistics();
+    }
+
     private void buildEntityInfo() {
         String[] pkgs = StringUtils.split(DbGlobalProperty.ENTITY_PACKAGES, ",");
         List<Class> clzs = BeanUtils.scanClass(Arrays.asList(pkgs), Entity.class);
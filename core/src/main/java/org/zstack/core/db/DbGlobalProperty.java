@@ -9,4 +9,6 @@ import org.zstack.core.GlobalPropertyDefinition;
 public class DbGlobalProperty {
     @GlobalProperty(name="entityPackages", defaultValue = "org.zstack")
     public static String ENTITY_PACKAGES;
+    @GlobalProperty(name="sequenceNumberBlockSize", defaultValue = "100")
+    public static int SEQUENCE_NUMBER_BLOCK_SIZE;
 }
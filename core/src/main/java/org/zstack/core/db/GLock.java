@@ -7,7 +7,6 @@ import org.zstack.header.exception.CloudRuntimeException;
 import org.zstack.utils.DebugUtils;
 import org.zstack.utils.Utils;
 import org.zstack.utils.logging.CLogger;
-import org.zstack.utils.threadlocal.ThreadLocalHelper;
 
 import javax.sql.DataSource;
 import java.sql.Connection;
@@ -18,21 +17,35 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.ReentrantLock;
 
 /**
+ * A cluster wide lock: threads of this process are serialized by an in-memory lock, then the holder takes
+ * the MySQL named lock on a connection of its own. MySQL binds a named lock to the session and get_lock()
+ * blocks its session while waiting, so the connection cannot be shared by other named locks; the in-memory
+ * lock makes sure a process uses at most one connection per lock name.
+ *
+ * In-memory locks are reference counted and removed once nobody holds or waits for them.
  */
 @Configurable(preConstruction = true, autowire = Autowire.BY_TYPE)
 public class GLock {
     private static final CLogger logger = Utils.getLogger(GLock.class);
 
-    private static final Map<String, ReentrantLock> memLocks = new HashMap<String, ReentrantLock>();
+    private static final ConcurrentMap<String, MemLock> memLocks = new ConcurrentHashMap<String, MemLock>();
+    private static final ConcurrentMap<String, LockStat> stats = new ConcurrentHashMap<String, LockStat>();
 
     private DataSource dataSource;
     private Connection conn;
     private final String name;
     private final long timeout;
     private boolean success = false;
+    private MemLock mlock;
+    private long lockedTime;
     private static final ThreadLocal<List<String>> isLocked = new ThreadLocal<List<String>>() {
         @Override
         protected List<String> initialValue()
@@ -44,6 +57,71 @@ public class GLock {
     @Autowired
     private DatabaseFacade dbf;
 
+    private static class MemLock {
+        final ReentrantLock lock = new ReentrantLock();
+        // GLocks holding or waiting for the lock; -1 once the lock is removed from memLocks
+        final AtomicInteger refs = new AtomicInteger();
+
+        boolean retain() {
+            while (true) {
+                int r = refs.get();
+                if (r < 0) {
+                    return false;
+                }
+                if (refs.compareAndSet(r, r + 1)) {
+                    return true;
+                }
+            }
+        }
+
+        void release(String name) {
+            if (refs.decrementAndGet() == 0 && refs.compareAndSet(0, -1)) {
+                memLocks.remove(name, this);
+            }
+        }
+    }
+
+    private static class LockStat {
+        final AtomicLong acquired = new AtomicLong();
+        final AtomicLong contended = new AtomicLong();
+        final AtomicLong timeout = new AtomicLong();
+        final AtomicLong totalWaitTime = new AtomicLong();
+        final AtomicLong totalHoldTime = new AtomicLong();
+        volatile long maxWaitTime;
+        volatile long maxHoldTime;
+    }
+
+    private static LockStat getStat(String name) {
+        LockStat stat = stats.get(name);
+        if (stat == null) {
+            stat = new LockStat();
+            LockStat old = stats.putIfAbsent(name, stat);
+            if (old != null) {
+                stat = old;
+            }
+        }
+        return stat;
+    }
+
+    public static Map<String, GLockStatistic> getStatistics() {
+        Map<String, GLockStatistic> ret = new HashMap<String, GLockStatistic>();
+        for (Map.Entry<String, LockStat> e : stats.entrySet()) {
+            LockStat s = e.getValue();
+            long acquired = s.acquired.get();
+            ret.put(e.getKey(), new GLockStatistic(e.getKey(), acquired, s.contended.get(), s.timeout.get(),
+                    acquired == 0 ? 0 : s.totalWaitTime.get() / acquired, s.maxWaitTime,
+                    acquired == 0 ? 0 : s.totalHoldTime.get() / acquired, s.maxHoldTime));
+        }
+        return ret;
+    }
+
+    /**
+     * number of in-memory locks held or waited for by threads of this process
+     */
+    public static int getInMemoryLockNum() {
+        return memLocks.size();
+    }
+
     public GLock(String name, long timeout) {
         this.name = name;
         this.timeout = timeout;
@@ -65,42 +143,85 @@ public class GLock {
         locks.remove(name);
     }
 
-    public void lock() {
-        checkInThread();
-
-        ReentrantLock mlock = null;
-        synchronized (memLocks) {
-            mlock = memLocks.get(name);
-            if (mlock == null) {
-                mlock = new ReentrantLock();
-                memLocks.put(name, mlock);
+    private MemLock retainMemLock() {
+        while (true) {
+            MemLock l = memLocks.get(name);
+            if (l == null) {
+                l = new MemLock();
+                MemLock old = memLocks.putIfAbsent(name, l);
+                if (old != null) {
+                    l = old;
+                }
             }
 
-            if (memLocks.size() > 100) {
-                logger.warn(String.format("there are more than 100 GLocks[num:%s] are created, something must be wrong in our program", memLocks.size()));
+            if (l.retain()) {
+                if (memLocks.size() > 100) {
+                    logger.warn(String.format("there are more than 100 GLocks[num:%s] are in use, something must be wrong in our program", memLocks.size()));
+                }
+                return l;
             }
+            // removed by its last user after we got it, create a new one
         }
+    }
+
+    public void lock() {
+        doLock(true);
+    }
+
+    /**
+     * unlike lock(), waits at most the timeout for both the in-memory lock and the DB lock, and returns false
+     * instead of throwing an exception if the lock is not acquired
+     */
+    public boolean tryLock() {
+        return doLock(false);
+    }
+
+    private boolean doLock(boolean block) {
+        checkInThread();
+
+        mlock = retainMemLock();
+        LockStat stat = getStat(name);
+        long start = System.nanoTime();
+        boolean memLocked = false;
 
         try {
             if (logger.isTraceEnabled()) {
                 logger.trace(String.format("[GLock]: thread[%s] is acquiring lock[%s]", Thread.currentThread().getName(), name));
             }
 
-            mlock.lock();
+            memLocked = mlock.lock.tryLock();
+            if (!memLocked) {
+                stat.contended.incrementAndGet();
+                if (block) {
+                    mlock.lock.lock();
+                    memLocked = true;
+                } else {
+                    memLocked = mlock.lock.tryLock(timeout, TimeUnit.SECONDS);
+                    if (!memLocked) {
+                        stat.timeout.incrementAndGet();
+                        throw new LockTimeoutException();
+                    }
+                }
+            }
             if (logger.isTraceEnabled()) {
                 logger.trace(String.format("[GLock Memory Lock]: thread[%s] got memory lock[%s]", Thread.currentThread().getName(), name));
             }
 
+            long dbTimeout = block ? timeout : Math.max(0, timeout - TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - start));
             PreparedStatement pstmt = null;
             try {
                 conn = dataSource.getConnection();
                 conn.setAutoCommit(true);
-                pstmt = conn.prepareStatement(String.format("select get_lock('%s', %s)", name, timeout));
+                pstmt = conn.prepareStatement(String.format("select get_lock('%s', %s)", name, dbTimeout));
                 ResultSet rs = pstmt.executeQuery();
                 if (rs == null) {
                     String err = "Unable to get DB lock: " + name + ", internal database error happened";
                     throw new CloudRuntimeException(err);
                 } else if (rs.first() && rs.getInt(1) == 0) {
+                    stat.timeout.incrementAndGet();
+                    if (!block) {
+                        throw new LockTimeoutException();
+                    }
                     throw new CloudRuntimeException(String.format("lock[%s] failed, timeout after %s seconds", name, timeout));
                 }
 
@@ -118,7 +239,16 @@ public class GLock {
                     }
                 }
             }
+
+            lockedTime = System.nanoTime();
+            long waitTime = TimeUnit.NANOSECONDS.toMillis(lockedTime - start);
+            stat.acquired.incrementAndGet();
+            stat.totalWaitTime.addAndGet(waitTime);
+            if (waitTime > stat.maxWaitTime) {
+                stat.maxWaitTime = waitTime;
+            }
             success = true;
+            return true;
         } catch (Throwable t) {
             if (conn != null) {
                 try {
@@ -126,14 +256,24 @@ public class GLock {
                 } catch (SQLException e) {
                     logger.warn(e.getMessage(), e);
                 }
+                conn = null;
             }
 
-            mlock.unlock();
+            if (memLocked) {
+                mlock.lock.unlock();
+            }
+            mlock.release(name);
+            mlock = null;
 
             success = false;
             checkOutThread();
 
-            if (!(t instanceof CloudRuntimeException)) {
+            if (t instanceof LockTimeoutException) {
+                return false;
+            } else if (t instanceof InterruptedException) {
+                Thread.currentThread().interrupt();
+                throw new CloudRuntimeException(String.format("interrupted when acquiring lock[%s]", name), t);
+            } else if (!(t instanceof CloudRuntimeException)) {
                 throw new CloudRuntimeException(t);
             } else {
                 throw (CloudRuntimeException)t;
@@ -141,6 +281,9 @@ public class GLock {
         }
     }
 
+    private static class LockTimeoutException extends Exception {
+    }
+
     public void unlock() {
         if (!success) {
             if (logger.isTraceEnabled()) {
@@ -151,12 +294,7 @@ public class GLock {
             return;
         }
 
-        ReentrantLock lock = null;
-        synchronized (memLocks) {
-            lock = memLocks.get(name);
-        }
-
-
+        MemLock lock = mlock;
         try {
             DebugUtils.Assert(lock!=null, String.format("cannot find LockWrapper for GLock[%s], is unlock mistakenly called twice???", name));
 
@@ -196,8 +334,19 @@ public class GLock {
                 }
             }
         } finally {
+            success = false;
+            mlock = null;
+
+            LockStat stat = getStat(name);
+            long holdTime = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - lockedTime);
+            stat.totalHoldTime.addAndGet(holdTime);
+            if (holdTime > stat.maxHoldTime) {
+                stat.maxHoldTime = holdTime;
+            }
+
             if (lock != null) {
-                lock.unlock();
+                lock.lock.unlock();
+                lock.release(name);
             }
 
             checkOutThread();
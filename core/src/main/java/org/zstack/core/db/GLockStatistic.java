@@ -0,0 +1,69 @@
+package org.zstack.core.db;
+
+import java.beans.ConstructorProperties;
+
+/**
+ */
+public class GLockStatistic {
+    private String name;
+    private long acquiredCount;
+    private long contendedCount;
+    private long timeoutCount;
+    private long averageWaitTime;
+    private long maxWaitTime;
+    private long averageHoldTime;
+    private long maxHoldTime;
+
+    @ConstructorProperties({"name", "acquiredCount", "contendedCount", "timeoutCount", "averageWaitTime", "maxWaitTime", "averageHoldTime", "maxHoldTime"})
+    public GLockStatistic(String name, long acquiredCount, long contendedCount, long timeoutCount, long averageWaitTime, long maxWaitTime, long averageHoldTime, long maxHoldTime) {
+        this.name = name;
+        this.acquiredCount = acquiredCount;
+        this.contendedCount = contendedCount;
+        this.timeoutCount = timeoutCount;
+        this.averageWaitTime = averageWaitTime;
+        this.maxWaitTime = maxWaitTime;
+        this.averageHoldTime = averageHoldTime;
+        this.maxHoldTime = maxHoldTime;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public long getAcquiredCount() {
+        return acquiredCount;
+    }
+
+    /**
+     * times the lock was held by another thread of this management node when requested
+     */
+    public long getContendedCount() {
+        return contendedCount;
+    }
+
+    public long getTimeoutCount() {
+        return timeoutCount;
+    }
+
+    /**
+     * milliseconds taken to acquire both the in-memory lock and the DB lock
+     */
+    public long getAverageWaitTime() {
+        return averageWaitTime;
+    }
+
+    public long getMaxWaitTime() {
+        return maxWaitTime;
+    }
+
+    /**
+     * milliseconds the lock is held
+     */
+    public long getAverageHoldTime() {
+        return averageHoldTime;
+    }
+
+    public long getMaxHoldTime() {
+        return maxHoldTime;
+    }
+}
@@ -0,0 +1,36 @@
+package org.zstack.core.db;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.Id;
+import javax.persistence.Table;
+
+/**
+ * the next unreserved value of a sequence, see DatabaseFacade.generateSequenceNumber()
+ */
+@Entity
+@Table
+public class SequenceBlockVO {
+    @Id
+    @Column
+    private String name;
+
+    @Column
+    private long nextValue;
+
+    public String getName() {
+        return name;
+    }
+
+    public void setName(String name) {
+        this.name = name;
+    }
+
+    public long getNextValue() {
+        return nextValue;
+    }
+
+    public void setNextValue(long nextValue) {
+        this.nextValue = nextValue;
+    }
+}
@@ -1,12 +1,18 @@
 package org.zstack.core.job;
 
 import org.zstack.header.exception.CloudRuntimeException;
+import org.zstack.utils.serializable.SerializableHelper;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.io.Serializable;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.Field;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 
 final class JobContextObject implements Serializable {
     private final String className;
@@ -41,6 +47,39 @@ final class JobContextObject implements Serializable {
         }
     }
     
+    /**
+     * contexts larger than JobGlobalProperty.COMPRESS_CONTEXT_THRESHOLD are gzipped; they are told
+     * apart from plain ones, including those saved by older versions, by the gzip magic number
+     */
+    static byte[] encode(JobContextObject ctx) throws IOException {
+        byte[] bits = SerializableHelper.writeObject(ctx);
+        if (bits.length <= JobGlobalProperty.COMPRESS_CONTEXT_THRESHOLD) {
+            return bits;
+        }
+
+        ByteArrayOutputStream bstream = new ByteArrayOutputStream(bits.length / 2);
+        GZIPOutputStream out = new GZIPOutputStream(bstream);
+        out.write(bits);
+        out.close();
+        return bstream.toByteArray();
+    }
+
+    static JobContextObject decode(byte[] bits) throws IOException, ClassNotFoundException {
+        if (bits.length < 2 || (bits[0] & 0xff) != (GZIPInputStream.GZIP_MAGIC & 0xff) || (bits[1] & 0xff) != (GZIPInputStream.GZIP_MAGIC >> 8)) {
+            return SerializableHelper.readObject(bits);
+        }
+
+        GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(bits));
+        ByteArrayOutputStream bstream = new ByteArrayOutputStream(bits.length * 4);
+        byte[] buf = new byte[4096];
+        int len;
+        while ((len = in.read(buf)) != -1) {
+            bstream.write(buf, 0, len);
+        }
+        in.close();
+        return SerializableHelper.readObject(bstream.toByteArray());
+    }
+
     Job load() {
         try {
             Class<?> currClass = Class.forName(className);
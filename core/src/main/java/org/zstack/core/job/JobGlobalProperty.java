@@ -17,4 +17,11 @@ public class JobGlobalProperty {
     public static String QUARTZ_DB_PASSWORD;
     @GlobalProperty(name = "QuartzJdbcJobFacade.maxDbConnection", defaultValue = "10")
     public static int QUARTZ_DB_MAX_CONNECTIONS;
+    /**
+     * must be the same on all management nodes
+     */
+    @GlobalProperty(name = "JobQueueFacade.lockStripeNum", defaultValue = "16")
+    public static int JOB_QUEUE_LOCK_STRIPE_NUM;
+    @GlobalProperty(name = "JobQueueFacade.compressContextThreshold", defaultValue = "512")
+    public static int COMPRESS_CONTEXT_THRESHOLD;
 }
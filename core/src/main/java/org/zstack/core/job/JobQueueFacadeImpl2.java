@@ -9,6 +9,7 @@ import org.zstack.core.cloudbus.CloudBusEventListener;
 import org.zstack.core.cloudbus.EventSubscriberReceipt;
 import org.zstack.core.db.*;
 import org.zstack.core.errorcode.ErrorFacade;
+import org.zstack.core.jmx.JmxFacade;
 import org.zstack.header.errorcode.SysErrors;
 import org.zstack.core.thread.AsyncThread;
 import org.zstack.header.Component;
@@ -25,17 +26,20 @@ import org.zstack.utils.DebugUtils;
 import org.zstack.utils.JsonWrapper;
 import org.zstack.utils.Utils;
 import org.zstack.utils.logging.CLogger;
-import org.zstack.utils.serializable.SerializableHelper;
 
 import javax.persistence.Tuple;
 import javax.persistence.TypedQuery;
 import java.io.IOException;
 import java.sql.Timestamp;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  */
-public class JobQueueFacadeImpl2 implements JobQueueFacade, CloudBusEventListener, Component, ManagementNodeChangeListener {
+public class JobQueueFacadeImpl2 implements JobQueueFacade, CloudBusEventListener, Component, ManagementNodeChangeListener, JobQueueFacadeMXBean {
     private static final CLogger logger = Utils.getLogger(JobQueueFacadeImpl2.class);
     private static final String LOCK_NAME = "JobQueueFacade.lock";
     private static final String ORPHAN_JOB_LOCK_NAME = "JobQueueFacade.orphanJobLock";
@@ -49,10 +53,77 @@ public class JobQueueFacadeImpl2 implements JobQueueFacade, CloudBusEventListene
     private CloudBus bus;
     @Autowired
     private ErrorFacade errf;
+    @Autowired
+    private JmxFacade jmxf;
 
     private volatile boolean stopped = false;
     private EventSubscriberReceipt unsubscriber;
 
+    // statistics of jobs executed by this management node, by job name
+    private ConcurrentMap<String, JobStat> stats = new ConcurrentHashMap<String, JobStat>();
+
+    private static class JobStat {
+        final AtomicLong completed = new AtomicLong();
+        final AtomicLong failed = new AtomicLong();
+        final AtomicLong totalClaimTime = new AtomicLong();
+        final AtomicLong totalExecutionTime = new AtomicLong();
+        volatile long maxClaimTime;
+        volatile long maxExecutionTime;
+
+        void record(boolean success, long claimTime, long executionTime) {
+            if (success) {
+                completed.incrementAndGet();
+            } else {
+                failed.incrementAndGet();
+            }
+
+            totalClaimTime.addAndGet(claimTime);
+            totalExecutionTime.addAndGet(executionTime);
+            // racy but a statistic doesn't need to be accurate
+            if (claimTime > maxClaimTime) {
+                maxClaimTime = claimTime;
+            }
+            if (executionTime > maxExecutionTime) {
+                maxExecutionTime = executionTime;
+            }
+        }
+    }
+
+    private void recordJob(String jobName, boolean success, long claimTime, long executionTime) {
+        JobStat stat = stats.get(jobName);
+        if (stat == null) {
+            stat = new JobStat();
+            JobStat old = stats.putIfAbsent(jobName, stat);
+            if (old != null) {
+                stat = old;
+            }
+        }
+        stat.record(success, claimTime, executionTime);
+    }
+
+    @Override
+    public Map<String, JobQueueStatistic> getJobQueueStatistics() {
+        Map<String, JobQueueStatistic> ret = new HashMap<String, JobQueueStatistic>();
+        for (Map.Entry<String, JobStat> e : stats.entrySet()) {
+            JobStat s = e.getValue();
+            long total = s.completed.get() + s.failed.get();
+            ret.put(e.getKey(), new JobQueueStatistic(e.getKey(), s.completed.get(), s.failed.get(),
+                    total == 0 ? 0 : s.totalClaimTime.get() / total, s.maxClaimTime,
+                    total == 0 ? 0 : s.totalExecutionTime.get() / total, s.maxExecutionTime));
+        }
+        return ret;
+    }
+
+    /**
+     * The lock serializes adding a job to a queue against the queue's worker finding it empty and
+     * deleting it, which only matters for the same queue. Queues are striped over a fixed number of
+     * locks by name instead of sharing one lock, so jobs of unrelated queues don't wait for each
+     * other across the cluster, and the number of GLocks stays bounded.
+     */
+    private String getLockName(String queueName) {
+        return String.format("%s.%s", LOCK_NAME, (queueName.hashCode() & Integer.MAX_VALUE) % JobGlobalProperty.JOB_QUEUE_LOCK_STRIPE_NUM);
+    }
+
     @Override
     public boolean handleEvent(Event e) {
         if (!(e instanceof JobEvent)) {
@@ -79,6 +150,7 @@ public class JobQueueFacadeImpl2 implements JobQueueFacade, CloudBusEventListene
     public boolean start() {
         unsubscriber = bus.subscribeEvent(this, new JobEvent());
         stopped = false;
+        jmxf.registerBean("JobQueueFacade", this);
         return true;
     }
 
@@ -263,7 +335,7 @@ public class JobQueueFacadeImpl2 implements JobQueueFacade, CloudBusEventListene
             }
 
             private Bucket takeJob(final JobQueueVO qvo) {
-                GLock lock = new GLock(LOCK_NAME, LOCK_TIMEOUT);
+                GLock lock = new GLock(getLockName(qvo.getName()), LOCK_TIMEOUT);
                 lock.lock();
                 try {
                     JobQueueEntryVO jobe = findJob(qvo);
@@ -277,7 +349,7 @@ public class JobQueueFacadeImpl2 implements JobQueueFacade, CloudBusEventListene
 
                     while (true) {
                         try {
-                            JobContextObject ctx = SerializableHelper.readObject(jobe.getContext());
+                            JobContextObject ctx = JobContextObject.decode(jobe.getContext());
                             Job theJob = ctx.load();
                             jobe.setState(JobState.Processing);
                             jobe = dbf.updateAndRefresh(jobe);
@@ -302,6 +374,7 @@ public class JobQueueFacadeImpl2 implements JobQueueFacade, CloudBusEventListene
                     return;
                 }
 
+                long claimStart = System.nanoTime();
                 Bucket ret = takeJob(qvo);
                 if (ret == null) {
                     return;
@@ -309,11 +382,14 @@ public class JobQueueFacadeImpl2 implements JobQueueFacade, CloudBusEventListene
 
                 final JobQueueEntryVO e = ret.get(0);
                 final Job job = ret.get(1);
+                final long startTime = System.nanoTime();
+                final long claimTime = TimeUnit.NANOSECONDS.toMillis(startTime - claimStart);
 
                 logger.debug(String.format("[Job Start] start executing job[id:%s, name:%s]", e.getId(), e.getName()));
                 job.run(new ReturnValueCompletion<Object>() {
                     @Override
                     public void success(Object returnValue) {
+                        recordJob(e.getName(), true, claimTime, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime));
                         try {
                             jobDone(e, returnValue);
                             logger.debug(String.format("[Job Success] job[id:%s, name:%s] succeed", e.getId(), e.getName()));
@@ -327,6 +403,7 @@ public class JobQueueFacadeImpl2 implements JobQueueFacade, CloudBusEventListene
 
                     @Override
                     public void fail(ErrorCode errorCode) {
+                        recordJob(e.getName(), false, claimTime, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime));
                         try {
                             jobFail(e, errorCode);
                             logger.debug(String.format("[Job Failure] job[id:%s, name:%s] failed", e.getId(), e.getName()));
@@ -349,7 +426,7 @@ public class JobQueueFacadeImpl2 implements JobQueueFacade, CloudBusEventListene
                 }
 
                 try {
-                    GLock lock = new GLock(LOCK_NAME, LOCK_TIMEOUT);
+                    GLock lock = new GLock(getLockName(queueName), LOCK_TIMEOUT);
                     JobQueueVO qvo = null;
                     lock.lock();
                     try {
@@ -387,7 +464,7 @@ public class JobQueueFacadeImpl2 implements JobQueueFacade, CloudBusEventListene
         try {
             JobQueueEntryVO e = new JobQueueEntryVO();
             JobContextObject ctx = new JobContextObject(job);
-            byte[] bits = SerializableHelper.writeObject(ctx);
+            byte[] bits = JobContextObject.encode(ctx);
             e.setContext(bits);
             e.setRestartable(job.getClass().isAnnotationPresent(RestartableJob.class));
             e.setName(job.getClass().getName());
@@ -0,0 +1,9 @@
+package org.zstack.core.job;
+
+import java.util.Map;
+
+/**
+ */
+public interface JobQueueFacadeMXBean {
+    Map<String, JobQueueStatistic> getJobQueueStatistics();
+}
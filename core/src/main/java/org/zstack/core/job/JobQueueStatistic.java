@@ -0,0 +1,60 @@
+package org.zstack.core.job;
+
+import java.beans.ConstructorProperties;
+
+/**
+ */
+public class JobQueueStatistic {
+    private String jobName;
+    private long completedJobNum;
+    private long failedJobNum;
+    private long averageClaimTime;
+    private long maxClaimTime;
+    private long averageExecutionTime;
+    private long maxExecutionTime;
+
+    @ConstructorProperties({"jobName", "completedJobNum", "failedJobNum", "averageClaimTime", "maxClaimTime", "averageExecutionTime", "maxExecutionTime"})
+    public JobQueueStatistic(String jobName, long completedJobNum, long failedJobNum, long averageClaimTime, long maxClaimTime, long averageExecutionTime, long maxExecutionTime) {
+        this.jobName = jobName;
+        this.completedJobNum = completedJobNum;
+        this.failedJobNum = failedJobNum;
+        this.averageClaimTime = averageClaimTime;
+        this.maxClaimTime = maxClaimTime;
+        this.averageExecutionTime = averageExecutionTime;
+        this.maxExecutionTime = maxExecutionTime;
+    }
+
+    public String getJobName() {
+        return jobName;
+    }
+
+    public long getCompletedJobNum() {
+        return completedJobNum;
+    }
+
+    public long getFailedJobNum() {
+        return failedJobNum;
+    }
+
+    /**
+     * milliseconds taken to lock the queue and claim its next job
+     */
+    public long getAverageClaimTime() {
+        return averageClaimTime;
+    }
+
+    public long getMaxClaimTime() {
+        return maxClaimTime;
+    }
+
+    /**
+     * milliseconds a job runs
+     */
+    public long getAverageExecutionTime() {
+        return averageExecutionTime;
+    }
+
+    public long getMaxExecutionTime() {
+        return maxExecutionTime;
+    }
+}
@@ -1,8 +1,19 @@
 package org.zstack.core.rest;
 
+import org.apache.http.HttpResponse;
 import org.apache.http.HttpStatus;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.params.ClientPNames;
+import org.apache.http.conn.ConnectTimeoutException;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.PoolingClientConnectionManager;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.util.EntityUtils;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.http.*;
+import org.springframework.web.client.ResourceAccessException;
 import org.springframework.web.client.RestClientException;
 import org.springframework.web.client.RestTemplate;
 import org.springframework.web.util.UriComponentsBuilder;
@@ -10,7 +21,6 @@ import org.zstack.core.CoreGlobalProperty;
 import org.zstack.core.Platform;
 import org.zstack.core.errorcode.ErrorFacade;
 import org.zstack.core.thread.ThreadFacadeImpl.TimeoutTaskReceipt;
-import org.zstack.header.errorcode.SysErrors;
 import org.zstack.core.thread.AsyncThread;
 import org.zstack.core.thread.CancelablePeriodicTask;
 import org.zstack.core.thread.ThreadFacade;
@@ -27,11 +37,14 @@ import org.zstack.utils.logging.CLogger;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.net.SocketTimeoutException;
 import java.util.Collections;
 import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 
@@ -50,8 +63,18 @@ public class RESTFacadeImpl implements RESTFacade {
     private String path;
     private String callbackUrl;
     private RestTemplate template;
-
-    private Map<String, HttpCallStatistic> statistics = new ConcurrentHashMap<String, HttpCallStatistic>();
+    private int maxTotalConnections = 200;
+    private int maxConnectionsPerHost = 20;
+    // in milliseconds; a post waiting longer for a pooled connection, for connecting or for the response fails
+    private long connectionRequestTimeout = 30000;
+    private int connectTimeout = 15000;
+    private int socketTimeout = 300000;
+    // posts are sent through pooled keep-alive connections, agents get a fixed number of connections
+    // instead of a new TCP connection per command
+    private PoolingClientConnectionManager connectionManager;
+    private DefaultHttpClient httpClient;
+
+    private ConcurrentMap<String, HttpCallStatistic> statistics = new ConcurrentHashMap<String, HttpCallStatistic>();
 
     private interface AsyncHttpWrapper {
         void fail(ErrorCode err);
@@ -83,6 +106,61 @@ public class RESTFacadeImpl implements RESTFacade {
         callbackUrl = ub.build().toUriString();
         logger.debug(String.format("RESTFacade built callback url: %s", callbackUrl));
         template = new RestTemplate();
+
+        connectionManager = new PoolingClientConnectionManager();
+        connectionManager.setMaxTotal(maxTotalConnections);
+        connectionManager.setDefaultMaxPerRoute(maxConnectionsPerHost);
+        httpClient = new DefaultHttpClient(connectionManager);
+        HttpParams params = httpClient.getParams();
+        params.setLongParameter(ClientPNames.CONN_MANAGER_TIMEOUT, connectionRequestTimeout);
+        HttpConnectionParams.setConnectionTimeout(params, connectTimeout);
+        HttpConnectionParams.setSoTimeout(params, socketTimeout);
+    }
+
+    void destroy() {
+        if (connectionManager != null) {
+            connectionManager.shutdown();
+        }
+    }
+
+    private static class PostResponse {
+        int statusCode;
+        String body;
+    }
+
+    private PostResponse post(String url, String body, Map<String, String> headers) throws IOException {
+        return post(url, body, headers, socketTimeout);
+    }
+
+    private PostResponse post(String url, String body, Map<String, String> headers, int soTimeout) throws IOException {
+        HttpPost post = new HttpPost(url);
+        HttpConnectionParams.setSoTimeout(post.getParams(), soTimeout);
+        post.setHeader("Content-Type", MediaType.APPLICATION_JSON_VALUE);
+        if (headers != null) {
+            for (Map.Entry<String, String> e : headers.entrySet()) {
+                post.setHeader(e.getKey(), e.getValue());
+            }
+        }
+        post.setEntity(new StringEntity(body, "UTF-8"));
+
+        if (logger.isTraceEnabled()) {
+            logger.trace(String.format("json post[%s], %s", url, body));
+        }
+
+        try {
+            HttpResponse rsp = httpClient.execute(post);
+            PostResponse ret = new PostResponse();
+            ret.statusCode = rsp.getStatusLine().getStatusCode();
+            // consuming the entity releases the connection back to the pool
+            ret.body = rsp.getEntity() == null ? null : EntityUtils.toString(rsp.getEntity(), "UTF-8");
+            return ret;
+        } catch (IOException e) {
+            post.abort();
+            throw e;
+        } catch (RuntimeException e) {
+            post.abort();
+            throw e;
+        }
     }
 
     void notifyCallback(HttpServletRequest req, HttpServletResponse rsp) {
@@ -121,6 +199,26 @@ public class RESTFacadeImpl implements RESTFacade {
         this.path = path;
     }
 
+    public void setMaxTotalConnections(int maxTotalConnections) {
+        this.maxTotalConnections = maxTotalConnections;
+    }
+
+    public void setMaxConnectionsPerHost(int maxConnectionsPerHost) {
+        this.maxConnectionsPerHost = maxConnectionsPerHost;
+    }
+
+    public void setConnectionRequestTimeout(long connectionRequestTimeout) {
+        this.connectionRequestTimeout = connectionRequestTimeout;
+    }
+
+    public void setConnectTimeout(int connectTimeout) {
+        this.connectTimeout = connectTimeout;
+    }
+
+    public void setSocketTimeout(int socketTimeout) {
+        this.socketTimeout = socketTimeout;
+    }
+
     @Override
     public void asyncJsonPost(String url, Object body, AsyncRESTCallback callback, TimeUnit unit, long timeout) {
         String bodyStr = JSONObjectUtil.toJsonString(body);
@@ -132,11 +230,10 @@ public class RESTFacadeImpl implements RESTFacade {
         long stime = 0;
         if (CoreGlobalProperty.PROFILER_HTTP_CALL) {
             stime = System.currentTimeMillis();
-            HttpCallStatistic stat = statistics.get(url);
-            if (stat == null) {
-                stat = new HttpCallStatistic();
+            if (!statistics.containsKey(url)) {
+                HttpCallStatistic stat = new HttpCallStatistic();
                 stat.setUrl(url);
-                statistics.put(url, stat);
+                statistics.putIfAbsent(url, stat);
             }
         }
 
@@ -144,11 +241,13 @@ public class RESTFacadeImpl implements RESTFacade {
         final long finalStime = stime;
         AsyncHttpWrapper wrapper = new AsyncHttpWrapper() {
             AtomicBoolean called = new AtomicBoolean(false);
+            volatile boolean timerFired = false;
 
             final AsyncHttpWrapper self = this;
             TimeoutTaskReceipt timeoutTaskReceipt = thdf.submitTimeoutTask(new Runnable() {
                 @Override
                 public void run() {
+                    timerFired = true;
                     self.fail(errf.stringToTimeoutError(
                             String.format("[Async Http Timeout] url: %s, timeout after %s[%s], command: %s",
                                     url, timeout, unit.toString(), body)
@@ -166,7 +265,7 @@ public class RESTFacadeImpl implements RESTFacade {
                 }
 
                 wrappers.remove(taskUuid);
-                if (!SysErrors.TIMEOUT.toString().equals(err.getCode())) {
+                if (!timerFired) {
                     cancelTimeout();
                 }
 
@@ -210,21 +309,26 @@ public class RESTFacadeImpl implements RESTFacade {
 
         try {
             wrappers.put(taskUuid, wrapper);
-            HttpHeaders requestHeaders = new HttpHeaders();
-            requestHeaders.setContentType(MediaType.APPLICATION_JSON);
-            requestHeaders.setContentLength(body.length());
-            requestHeaders.set(RESTConstant.TASK_UUID, taskUuid);
-            requestHeaders.set(RESTConstant.CALLBACK_URL, callbackUrl);
-            HttpEntity<String> req = new HttpEntity<String>(body, requestHeaders);
-            if (logger.isTraceEnabled()) {
-                logger.trace(String.format("json post[%s], %s", url, req.toString()));
-            }
-            ResponseEntity<String> rsp = template.exchange(url, HttpMethod.POST, req, String.class);
-            if (rsp.getStatusCode() != org.springframework.http.HttpStatus.OK) {
-                String err = String.format("http status: %s, response body:%s", rsp.getStatusCode().toString(), rsp.getBody());
+            Map<String, String> headers = new HashMap<String, String>(2);
+            headers.put(RESTConstant.TASK_UUID, taskUuid);
+            headers.put(RESTConstant.CALLBACK_URL, callbackUrl);
+            // the agent answers the post at once and the result comes through the callback url,
+            // waiting for the answer longer than the whole command is pointless
+            int soTimeout = (int) Math.min(socketTimeout, unit.toMillis(timeout));
+            PostResponse rsp = post(url, body, headers, soTimeout);
+            if (rsp.statusCode != HttpStatus.SC_OK) {
+                String err = String.format("http status: %s, response body:%s", rsp.statusCode, rsp.body);
                 logger.warn(err);
                 wrapper.fail(errf.stringToOperationError(err));
             }
+        } catch (ConnectTimeoutException e) {
+            // also thrown when no pooled connection is available in time
+            logger.warn(String.format("Unable to post to %s", url), e);
+            wrapper.fail(errf.stringToTimeoutError(String.format("[Http Connect Timeout] url: %s, %s", url, e.getMessage())));
+        } catch (SocketTimeoutException e) {
+            logger.warn(String.format("Unable to post to %s", url), e);
+            wrapper.fail(errf.stringToTimeoutError(String.format("[Http Response Timeout] url: %s, no response in %sms", url,
+                    Math.min(socketTimeout, unit.toMillis(timeout)))));
         } catch (Throwable e) {
             logger.warn(String.format("Unable to post to %s", url), e);
             wrapper.fail(errf.throwableToInternalError(e));
@@ -279,19 +383,20 @@ public class RESTFacadeImpl implements RESTFacade {
 
     @Override
     public <T> T syncJsonPost(String url, String body, Class<T> returnClass) {
-        HttpHeaders requestHeaders = new HttpHeaders();
-        requestHeaders.setContentType(MediaType.APPLICATION_JSON);
-        requestHeaders.setContentLength(body.length());
-        HttpEntity<String> req = new HttpEntity<String>(body, requestHeaders);
-        logger.trace(String.format("json post[%s], %s", url, req.toString()));
-        ResponseEntity<String> rsp = template.exchange(url, HttpMethod.POST, req, String.class);
-        if (rsp.getStatusCode() != org.springframework.http.HttpStatus.OK) {
-            String err = String.format("http status: %s, response body:%s", rsp.getStatusCode().toString(), rsp.getBody());
+        PostResponse rsp;
+        try {
+            rsp = post(url, body, null);
+        } catch (IOException e) {
+            throw new ResourceAccessException(String.format("I/O error on POST request for %s: %s", url, e.getMessage()), e);
+        }
+
+        if (rsp.statusCode != HttpStatus.SC_OK) {
+            String err = String.format("http status: %s, response body:%s", rsp.statusCode, rsp.body);
             throw new RestClientException(err);
         }
         
-        if (rsp.getBody() != null && returnClass != Void.class) {
-            return JSONObjectUtil.toObject(rsp.getBody(), returnClass);
+        if (rsp.body != null && returnClass != Void.class) {
+            return JSONObjectUtil.toObject(rsp.body, returnClass);
         } else {
             return null;
         }
@@ -0,0 +1,35 @@
+package org.zstack.core.thread;
+
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An executor that never queues a task: every task gets an idle thread or a new one,
+ * idle threads exit after keepAliveTime. Tasks blocking on http calls, locks or the
+ * database therefore never starve each other.
+ *
+ * Thread hooks are those registered on the scheduler pool, so both executors behave
+ * the same to hook owners.
+ */
+public class CachedThreadPoolExecutorExt extends ThreadPoolExecutor {
+    private final ScheduledThreadPoolExecutorExt hookOwner;
+
+    public CachedThreadPoolExecutorExt(long keepAliveTime, TimeUnit unit, ScheduledThreadPoolExecutorExt hookOwner,
+                                       ThreadFactory threadFactory, RejectedExecutionHandler handler) {
+        super(0, Integer.MAX_VALUE, keepAliveTime, unit, new SynchronousQueue<Runnable>(), threadFactory, handler);
+        this.hookOwner = hookOwner;
+    }
+
+    @Override
+    protected void beforeExecute(Thread t, Runnable r) {
+        hookOwner.beforeExecute(t, r);
+    }
+
+    @Override
+    protected void afterExecute(Runnable r, Throwable t) {
+        hookOwner.afterExecute(r, t);
+    }
+}
@@ -10,9 +10,10 @@ import org.zstack.utils.logging.CLogger;
 import org.zstack.utils.logging.CLoggerImpl;
 
 import java.util.HashMap;
-import java.util.LinkedList;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -24,10 +25,14 @@ class DispatchQueueImpl implements DispatchQueue {
 	@Autowired
 	ThreadFacade _threadFacade;
 
-	private final HashMap<String, SyncTaskQueueWrapper> syncTasks = new HashMap<String, SyncTaskQueueWrapper>();
-	private final HashMap<String, ChainTaskQueueWrapper> chainTasks = new HashMap<String, ChainTaskQueueWrapper>();
+	private final ConcurrentHashMap<String, SyncTaskQueueWrapper> syncTasks = new ConcurrentHashMap<String, SyncTaskQueueWrapper>(QUEUE_MAP_INITIAL_CAPACITY, 0.75f, QUEUE_MAP_CONCURRENCY_LEVEL);
+	private final ConcurrentHashMap<String, ChainTaskQueueWrapper> chainTasks = new ConcurrentHashMap<String, ChainTaskQueueWrapper>(QUEUE_MAP_INITIAL_CAPACITY, 0.75f, QUEUE_MAP_CONCURRENCY_LEVEL);
 	private static final CLogger _logger = CLoggerImpl.getLogger(DispatchQueueImpl.class);
 
+    private static final int QUEUE_MAP_INITIAL_CAPACITY = 1024;
+    private static final int QUEUE_MAP_CONCURRENCY_LEVEL = 64;
+    private static final int RETIRED = -1;
+
 
 	public void init() {
 	}
@@ -79,28 +84,88 @@ class DispatchQueueImpl implements DispatchQueue {
         }
     }
 
-    private class SyncTaskQueueWrapper {
-        ConcurrentLinkedQueue queue = new ConcurrentLinkedQueue();
-        AtomicInteger counter = new AtomicInteger(0);
-        int maxThreadNum = -1;
-        String syncSignature;
+    /**
+     * tasks of the same sync signature, run by at most maxThreadNum workers.
+     *
+     * No lock is involved: a submitter offers its task then tries to start a worker, a worker
+     * finding the queue empty gives up its slot then re-checks the queue; one of them always sees
+     * the other. A queue without workers retires itself (counter becomes RETIRED) and is removed
+     * from the map; a submitter racing with the retirement takes its task back and submits it again
+     * to a new queue.
+     */
+    private abstract class SignatureQueue<F> {
+        final ConcurrentLinkedQueue<F> queue = new ConcurrentLinkedQueue<F>();
+        final AtomicInteger counter = new AtomicInteger(0);
+        final int maxThreadNum;
+        final String syncSignature;
+
+        SignatureQueue(String syncSignature, int maxThreadNum) {
+            this.syncSignature = syncSignature;
+            this.maxThreadNum = maxThreadNum;
+        }
+
+        abstract void startWorker();
 
-        void addTask(SyncTaskFuture task) {
+        /**
+         * @return false if the queue has retired, the task must be submitted to a new queue
+         */
+        boolean addTask(F task) {
             queue.offer(task);
-            if (maxThreadNum == -1) {
-                maxThreadNum = task.getSyncLevel();
+            if (tryAcquireWorker()) {
+                startWorker();
+                return true;
             }
-            if (syncSignature == null) {
-                syncSignature = task.getSyncSignature();
+
+            if (counter.get() != RETIRED) {
+                return true;
             }
+
+            // if the task is not in the queue any more, a worker has taken it before the queue retired
+            return !queue.remove(task);
         }
 
-        void startThreadIfNeeded() {
-            if (counter.get() >= maxThreadNum) {
-                return;
+        boolean tryAcquireWorker() {
+            while (true) {
+                int num = counter.get();
+                if (num == RETIRED || num >= maxThreadNum) {
+                    return false;
+                }
+
+                if (counter.compareAndSet(num, num + 1)) {
+                    return true;
+                }
+            }
+        }
+
+        /**
+         * called by a worker that found the queue empty
+         * @return true if the worker must go on working
+         */
+        boolean releaseWorker(ConcurrentMap<String, ? extends SignatureQueue> queues) {
+            counter.decrementAndGet();
+            if (!queue.isEmpty()) {
+                return tryAcquireWorker();
+            }
+
+            if (counter.compareAndSet(0, RETIRED)) {
+                queues.remove(syncSignature, this);
             }
 
-            counter.incrementAndGet();
+            return false;
+        }
+
+        int getRunningThreadNum() {
+            return Math.max(counter.get(), 0);
+        }
+    }
+
+    private class SyncTaskQueueWrapper extends SignatureQueue<SyncTaskFuture> {
+        SyncTaskQueueWrapper(String syncSignature, int maxThreadNum) {
+            super(syncSignature, maxThreadNum);
+        }
+
+        @Override
+        void startWorker() {
             _threadFacade.submit(new Task<Void>() {
                 @Override
                 public String getName() {
@@ -108,23 +173,12 @@ class DispatchQueueImpl implements DispatchQueue {
                 }
 
                 void run() {
-                    SyncTaskFuture stask;
-                    while (true) {
-                        while ((stask = (SyncTaskFuture) queue.poll()) != null) {
+                    do {
+                        SyncTaskFuture stask;
+                        while ((stask = queue.poll()) != null) {
                             stask.run();
                         }
-
-                        synchronized (syncTasks) {
-                            if (queue.isEmpty()) {
-                                if (counter.decrementAndGet() == 0) {
-                                    syncTasks.remove(syncSignature);
-                                }
-
-                                break;
-                            }
-                        }
-                    }
-
+                    } while (releaseWorker(syncTasks));
                 }
 
                 @Override
@@ -139,19 +193,24 @@ class DispatchQueueImpl implements DispatchQueue {
 	private <T> Future<T> doSyncSubmit(final SyncTask<T> syncTask) {
 		assert syncTask.getSyncSignature() != null : "How can you submit a sync task without sync signature ???";
 
-        SyncTaskFuture f;
-        synchronized (syncTasks) {
-            SyncTaskQueueWrapper wrapper = syncTasks.get(syncTask.getSyncSignature());
+        String signature = syncTask.getSyncSignature();
+        SyncTaskFuture f = new SyncTaskFuture(syncTask);
+        while (true) {
+            SyncTaskQueueWrapper wrapper = syncTasks.get(signature);
             if (wrapper == null) {
-                wrapper = new SyncTaskQueueWrapper();
-                syncTasks.put(syncTask.getSyncSignature(), wrapper);
+                wrapper = new SyncTaskQueueWrapper(signature, syncTask.getSyncLevel());
+                SyncTaskQueueWrapper old = syncTasks.putIfAbsent(signature, wrapper);
+                if (old != null) {
+                    wrapper = old;
+                }
+            }
+
+            if (wrapper.addTask(f)) {
+                return f;
             }
-            f = new SyncTaskFuture(syncTask);
-            wrapper.addTask(f);
-            wrapper.startThreadIfNeeded();
-        }
 
-		return f;
+            syncTasks.remove(signature, wrapper);
+        }
 	}
 
 	@Override
@@ -225,28 +284,13 @@ class DispatchQueueImpl implements DispatchQueue {
         }
     }
 
-    private class ChainTaskQueueWrapper {
-        LinkedList queue = new LinkedList();
-        AtomicInteger counter = new AtomicInteger(0);
-        int maxThreadNum = -1;
-        String syncSignature;
-
-        void addTask(ChainFuture task) {
-            queue.offer(task);
-            if (maxThreadNum == -1) {
-                maxThreadNum = task.getSyncLevel();
-            }
-            if (syncSignature == null) {
-                syncSignature = task.getSyncSignature();
-            }
+    private class ChainTaskQueueWrapper extends SignatureQueue<ChainFuture> {
+        ChainTaskQueueWrapper(String syncSignature, int maxThreadNum) {
+            super(syncSignature, maxThreadNum);
         }
 
-        void startThreadIfNeeded() {
-            if (counter.get() >= maxThreadNum) {
-                return;
-            }
-
-            counter.incrementAndGet();
+        @Override
+        void startWorker() {
             _threadFacade.submit(new Task<Void>() {
                 @Override
                 public String getName() {
@@ -257,13 +301,8 @@ class DispatchQueueImpl implements DispatchQueue {
                 @AsyncThread
                 private void runQueue() {
                     ChainFuture cf;
-                    synchronized (chainTasks) {
-                        cf = (ChainFuture) queue.poll();
-                        if (cf == null) {
-                            if (counter.decrementAndGet() == 0) {
-                                chainTasks.remove(syncSignature);
-                            }
-
+                    while ((cf = queue.poll()) == null) {
+                        if (!releaseWorker(chainTasks)) {
                             return;
                         }
                     }
@@ -290,18 +329,23 @@ class DispatchQueueImpl implements DispatchQueue {
         assert task.getSyncSignature() != null : "How can you submit a chain task without sync signature ???";
         DebugUtils.Assert(task.getSyncLevel() >= 1, String.format("getSyncLevel() must return more than 1"));
 
-        synchronized (chainTasks) {
-            final String signature = task.getSyncSignature();
+        final String signature = task.getSyncSignature();
+        ChainFuture cf = new ChainFuture(task);
+        while (true) {
             ChainTaskQueueWrapper wrapper = chainTasks.get(signature);
             if (wrapper == null) {
-                wrapper = new ChainTaskQueueWrapper();
-                chainTasks.put(signature, wrapper);
+                wrapper = new ChainTaskQueueWrapper(signature, task.getSyncLevel());
+                ChainTaskQueueWrapper old = chainTasks.putIfAbsent(signature, wrapper);
+                if (old != null) {
+                    wrapper = old;
+                }
+            }
+
+            if (wrapper.addTask(cf)) {
+                return cf;
             }
 
-            ChainFuture cf = new ChainFuture(task);
-            wrapper.addTask(cf);
-            wrapper.startThreadIfNeeded();
-            return cf;
+            chainTasks.remove(signature, wrapper);
         }
     }
 	
@@ -318,7 +362,7 @@ class DispatchQueueImpl implements DispatchQueue {
             SyncTaskStatistic statistic = new SyncTaskStatistic(
                     wrapper.syncSignature,
                     wrapper.maxThreadNum,
-                    wrapper.counter.intValue(),
+                    wrapper.getRunningThreadNum(),
                     wrapper.queue.size()
             );
             ret.put(statistic.getSyncSignature(), statistic);
@@ -336,7 +380,7 @@ class DispatchQueueImpl implements DispatchQueue {
             ChainTaskStatistic statistic = new ChainTaskStatistic(
                     wrapper.syncSignature,
                     wrapper.maxThreadNum,
-                    wrapper.counter.intValue(),
+                    wrapper.getRunningThreadNum(),
                     wrapper.queue.size()
             );
             ret.put(statistic.getSyncSignature(), statistic);
@@ -0,0 +1,304 @@
+package org.zstack.core.thread;
+
+import org.zstack.core.thread.ThreadFacadeImpl.TimeoutTaskReceipt;
+import org.zstack.utils.DebugUtils;
+import org.zstack.utils.Utils;
+import org.zstack.utils.logging.CLogger;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A hashed timing wheel for massive numbers of timeouts that are mostly cancelled before they expire,
+ * e.g. the timeout of a message waiting for its reply.
+ *
+ * Scheduling and cancellation are O(1) and lock free: both only put the timeout into a queue, the worker
+ * thread moves new timeouts into wheel buckets and unlinks cancelled ones on every tick, so cancelled
+ * timeouts never pile up. Expired tasks are handed to the executor, the worker thread never runs them.
+ *
+ * The precision is one tick.
+ */
+public class HashedWheelTimer {
+    private static final CLogger logger = Utils.getLogger(HashedWheelTimer.class);
+
+    private static final int MAX_TRANSFER_PER_TICK = 100000;
+
+    private final String name;
+    private final long tickDuration;
+    private final Bucket[] wheel;
+    private final int mask;
+    private final Executor executor;
+    private final long startTime;
+    private final Thread worker;
+
+    private final Queue<WheelTimeout> newTimeouts = new ConcurrentLinkedQueue<WheelTimeout>();
+    private final Queue<WheelTimeout> cancelledTimeouts = new ConcurrentLinkedQueue<WheelTimeout>();
+    private final AtomicLong pendingCount = new AtomicLong();
+    private final AtomicLong expiredCount = new AtomicLong();
+    private volatile long lag;
+    private volatile long maxLag;
+    private volatile boolean stopped;
+    private long tick;
+
+    private static final int ST_INIT = 0;
+    private static final int ST_CANCELLED = 1;
+    private static final int ST_EXPIRED = 2;
+
+    private static final AtomicIntegerFieldUpdater<WheelTimeout> STATE_UPDATER =
+            AtomicIntegerFieldUpdater.newUpdater(WheelTimeout.class, "state");
+
+    public final class WheelTimeout implements TimeoutTaskReceipt {
+        private final Runnable task;
+        private final long deadline;
+        // not private, AtomicIntegerFieldUpdater cannot access a private field of another class
+        volatile int state = ST_INIT;
+
+        // accessed by the worker thread only
+        private long remainingRounds;
+        private WheelTimeout next;
+        private WheelTimeout prev;
+        private Bucket bucket;
+
+        private WheelTimeout(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        @Override
+        public boolean cancel() {
+            if (!STATE_UPDATER.compareAndSet(this, ST_INIT, ST_CANCELLED)) {
+                return false;
+            }
+
+            pendingCount.decrementAndGet();
+            cancelledTimeouts.add(this);
+            return true;
+        }
+
+        public boolean isCancelled() {
+            return state == ST_CANCELLED;
+        }
+
+        public boolean isExpired() {
+            return state == ST_EXPIRED;
+        }
+
+        private void expire() {
+            if (!STATE_UPDATER.compareAndSet(this, ST_INIT, ST_EXPIRED)) {
+                return;
+            }
+
+            pendingCount.decrementAndGet();
+            expiredCount.incrementAndGet();
+            try {
+                executor.execute(task);
+            } catch (Throwable t) {
+                logger.warn(String.format("unable to run the expired task[%s] of timer[%s]", task.getClass().getName(), name), t);
+            }
+        }
+    }
+
+    private static final class Bucket {
+        private WheelTimeout head;
+        private WheelTimeout tail;
+
+        void add(WheelTimeout timeout) {
+            timeout.bucket = this;
+            if (head == null) {
+                head = tail = timeout;
+            } else {
+                tail.next = timeout;
+                timeout.prev = tail;
+                tail = timeout;
+            }
+        }
+
+        WheelTimeout remove(WheelTimeout timeout) {
+            WheelTimeout next = timeout.next;
+            if (timeout.prev != null) {
+                timeout.prev.next = next;
+            }
+            if (timeout.next != null) {
+                timeout.next.prev = timeout.prev;
+            }
+
+            if (timeout == head) {
+                if (timeout == tail) {
+                    head = tail = null;
+                } else {
+                    head = next;
+                }
+            } else if (timeout == tail) {
+                tail = timeout.prev;
+            }
+
+            timeout.prev = null;
+            timeout.next = null;
+            timeout.bucket = null;
+            return next;
+        }
+
+        void expireTimeouts(long deadline) {
+            WheelTimeout timeout = head;
+            while (timeout != null) {
+                if (timeout.isCancelled()) {
+                    timeout = remove(timeout);
+                } else if (timeout.remainingRounds <= 0) {
+                    WheelTimeout next = remove(timeout);
+                    if (timeout.deadline <= deadline) {
+                        timeout.expire();
+                    } else {
+                        // cannot happen, a timeout is always put into the right bucket
+                        logger.warn(String.format("timeout.deadline[%s] > deadline[%s]", timeout.deadline, deadline));
+                    }
+                    timeout = next;
+                } else {
+                    timeout.remainingRounds --;
+                    timeout = timeout.next;
+                }
+            }
+        }
+    }
+
+    /**
+     * @param tickDuration the precision of the timer
+     * @param wheelSize number of buckets, rounded up to a power of two
+     * @param executor runs expired tasks
+     */
+    public HashedWheelTimer(String name, long tickDuration, TimeUnit unit, int wheelSize, Executor executor) {
+        DebugUtils.Assert(tickDuration > 0, "tickDuration must be greater than 0");
+        DebugUtils.Assert(wheelSize > 0 && wheelSize <= (1 << 30), "wheelSize must be in (0, 2^30]");
+
+        int size = 1;
+        while (size < wheelSize) {
+            size <<= 1;
+        }
+
+        this.name = name;
+        this.tickDuration = unit.toNanos(tickDuration);
+        this.executor = executor;
+        wheel = new Bucket[size];
+        for (int i = 0; i < size; i++) {
+            wheel[i] = new Bucket();
+        }
+        mask = size - 1;
+
+        startTime = System.nanoTime();
+        worker = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                work();
+            }
+        }, name);
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    public WheelTimeout schedule(Runnable task, TimeUnit unit, long delay) {
+        DebugUtils.Assert(!stopped, String.format("timer[%s] has been stopped", name));
+        WheelTimeout timeout = new WheelTimeout(task, System.nanoTime() + unit.toNanos(Math.max(delay, 0)) - startTime);
+        pendingCount.incrementAndGet();
+        newTimeouts.add(timeout);
+        return timeout;
+    }
+
+    public void stop() {
+        stopped = true;
+        worker.interrupt();
+    }
+
+    /**
+     * number of timeouts neither expired nor cancelled
+     */
+    public long getPendingCount() {
+        return pendingCount.get();
+    }
+
+    public long getExpiredCount() {
+        return expiredCount.get();
+    }
+
+    /**
+     * milliseconds the last tick was processed behind its schedule
+     */
+    public long getLag() {
+        return lag;
+    }
+
+    public long getMaxLag() {
+        return maxLag;
+    }
+
+    private void work() {
+        while (!stopped) {
+            long deadline = waitForNextTick();
+            if (deadline < 0) {
+                continue;
+            }
+
+            try {
+                processCancelledTimeouts();
+                transferNewTimeouts();
+                wheel[(int) (tick & mask)].expireTimeouts(deadline);
+            } catch (Throwable t) {
+                logger.warn(String.format("unhandled throwable in timer[%s]", name), t);
+            }
+            tick ++;
+        }
+    }
+
+    private long waitForNextTick() {
+        long deadline = tickDuration * (tick + 1);
+        while (true) {
+            long current = System.nanoTime() - startTime;
+            long sleepTime = deadline - current;
+            if (sleepTime <= 0) {
+                long l = TimeUnit.NANOSECONDS.toMillis(-sleepTime);
+                lag = l;
+                if (l > maxLag) {
+                    maxLag = l;
+                }
+                return current;
+            }
+
+            try {
+                TimeUnit.NANOSECONDS.sleep(sleepTime);
+            } catch (InterruptedException e) {
+                if (stopped) {
+                    return -1;
+                }
+            }
+        }
+    }
+
+    private void processCancelledTimeouts() {
+        WheelTimeout timeout;
+        while ((timeout = cancelledTimeouts.poll()) != null) {
+            if (timeout.bucket != null) {
+                timeout.bucket.remove(timeout);
+            }
+        }
+    }
+
+    private void transferNewTimeouts() {
+        for (int i = 0; i < MAX_TRANSFER_PER_TICK; i++) {
+            WheelTimeout timeout = newTimeouts.poll();
+            if (timeout == null) {
+                break;
+            }
+
+            if (timeout.isCancelled()) {
+                continue;
+            }
+
+            long calculated = timeout.deadline / tickDuration;
+            timeout.remainingRounds = (calculated - tick) / wheel.length;
+            long ticks = Math.max(calculated, tick);
+            wheel[(int) (ticks & mask)].add(timeout);
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package org.zstack.core.thread;
+
+import java.beans.ConstructorProperties;
+
+/**
+ */
+public class TaskExecutorStatistic {
+    private String executionMode;
+    private int threadNum;
+    private int largestThreadNum;
+    private int runningTaskNum;
+    private long completedTaskNum;
+    private long pendingTaskNum;
+
+    @ConstructorProperties({"executionMode", "threadNum", "largestThreadNum", "runningTaskNum", "completedTaskNum", "pendingTaskNum"})
+    public TaskExecutorStatistic(String executionMode, int threadNum, int largestThreadNum, int runningTaskNum, long completedTaskNum, long pendingTaskNum) {
+        this.executionMode = executionMode;
+        this.threadNum = threadNum;
+        this.largestThreadNum = largestThreadNum;
+        this.runningTaskNum = runningTaskNum;
+        this.completedTaskNum = completedTaskNum;
+        this.pendingTaskNum = pendingTaskNum;
+    }
+
+    public String getExecutionMode() {
+        return executionMode;
+    }
+
+    /**
+     * threads carrying tasks, idle ones included
+     */
+    public int getThreadNum() {
+        return threadNum;
+    }
+
+    public int getLargestThreadNum() {
+        return largestThreadNum;
+    }
+
+    public int getRunningTaskNum() {
+        return runningTaskNum;
+    }
+
+    public long getCompletedTaskNum() {
+        return completedTaskNum;
+    }
+
+    /**
+     * tasks submitted but not started yet, always 0 in the unbounded mode
+     */
+    public long getPendingTaskNum() {
+        return pendingTaskNum;
+    }
+}
@@ -14,65 +14,26 @@ import java.util.concurrent.atomic.AtomicInteger;
 public class ThreadFacadeImpl implements ThreadFacade, ThreadFactory, RejectedExecutionHandler, ThreadFacadeMXBean {
 	private static final CLogger _logger = CLoggerImpl.getLogger(ThreadFacadeImpl.class);
 
+    public static final String EXECUTION_MODE_POOL = "pool";
+    public static final String EXECUTION_MODE_UNBOUNDED = "unbounded";
+
 	private int totalThreadNum;
 
 	private Map<PeriodicTask, ScheduledFuture<?>> _periodicTasks = new ConcurrentHashMap<PeriodicTask, ScheduledFuture<?>>();
 	private Map<CancelablePeriodicTask, ScheduledFuture<?>> cancelablePeriodicTasks = new ConcurrentHashMap<CancelablePeriodicTask, ScheduledFuture<?>>();
 	private static AtomicInteger seqNum = new AtomicInteger(0);
 	private ScheduledThreadPoolExecutorExt _pool;
+    // runs tasks from submit(), it's _pool itself unless in the unbounded mode
+    private ThreadPoolExecutor taskExecutor;
+    private String executionMode;
 	private DispatchQueue dpq;
-    private TimerPool timerPool = new TimerPool(5);
+    private HashedWheelTimer timeoutWheel;
+
+    private static final int TIMEOUT_WHEEL_SIZE = 4096;
 
     @Autowired
     private JmxFacade jmxf;
 
-    private class TimerWrapper extends Timer {
-        private int cancelledTimerTaskCount = 0;
-        private static final int PURGE_CANCELLED_TIMER_TASK_THRESHOLD = 2000;
-
-        void notifyCancel() {
-            if (cancelledTimerTaskCount ++ >= PURGE_CANCELLED_TIMER_TASK_THRESHOLD) {
-                cancelledTimerTaskCount = 0;
-                this.purge();
-            }
-        }
-    }
-
-    private class TimerPool {
-        int poolSize;
-        List<TimerWrapper> pool;
-
-        // never use a long type counter for self increment. two issues
-        // 1) Java will silently overflow a number; even long will be overflow some day
-        // 2) big number causes extremely bad performance for mod operation
-        // instead, reset the counter when it exceeds COUNTER_RESET_THRESHOLD to maintain
-        // decent performance for mod operation.
-        int counter = 0;
-        static final int COUNTER_RESET_THRESHOLD = 1000000;
-
-        private TimerPool(int poolSize) {
-            this.poolSize = poolSize;
-            pool = new ArrayList<TimerWrapper>(poolSize);
-            for (int i=0; i<poolSize; i++) {
-                pool.add(new TimerWrapper());
-            }
-        }
-
-        TimerWrapper getTimer() {
-            int index = ++ counter % poolSize;
-            if (counter > COUNTER_RESET_THRESHOLD) {
-                counter = 0;
-            }
-            return pool.get(index);
-        }
-
-        void stop() {
-            for (TimerWrapper wrapper : pool) {
-                wrapper.cancel();
-            }
-        }
-    }
-
     @Override
     public Map<String, SyncTaskStatistic> getSyncTaskStatistics() {
         return dpq.getSyncTaskStatistics();
@@ -98,6 +59,39 @@ public class ThreadFacadeImpl implements ThreadFacade, ThreadFactory, RejectedEx
         );
     }
 
+    @Override
+    public long getTimeoutTaskPendingCount() {
+        return timeoutWheel.getPendingCount();
+    }
+
+    @Override
+    public long getTimeoutTaskExpiredCount() {
+        return timeoutWheel.getExpiredCount();
+    }
+
+    @Override
+    public long getTimeoutTaskLag() {
+        return timeoutWheel.getLag();
+    }
+
+    @Override
+    public long getTimeoutTaskMaxLag() {
+        return timeoutWheel.getMaxLag();
+    }
+
+    @Override
+    public TaskExecutorStatistic getTaskExecutorStatistic() {
+        long completedTask = taskExecutor.getCompletedTaskCount();
+        return new TaskExecutorStatistic(
+                executionMode,
+                taskExecutor.getPoolSize(),
+                taskExecutor.getLargestPoolSize(),
+                taskExecutor.getActiveCount(),
+                completedTask,
+                taskExecutor.getQueue().size()
+        );
+    }
+
     public static class Worker<T> implements Callable<T> {
 		private final Task<T> _task;
 
@@ -128,18 +122,63 @@ public class ThreadFacadeImpl implements ThreadFacade, ThreadFactory, RejectedEx
         }
 		_pool = new ScheduledThreadPoolExecutorExt(totalThreadNum, this, this);
         _logger.debug(String.format("create ThreadFacade with max thread number:%s", totalThreadNum));
+
+        executionMode = ThreadGlobalProperty.EXECUTION_MODE;
+        if (EXECUTION_MODE_UNBOUNDED.equals(executionMode)) {
+            taskExecutor = new CachedThreadPoolExecutorExt(ThreadGlobalProperty.UNBOUNDED_THREAD_KEEP_ALIVE, TimeUnit.SECONDS, _pool, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    return new Thread(r, "zs-task-thread-" + String.valueOf(seqNum.getAndIncrement()));
+                }
+            }, this);
+            _logger.debug("ThreadFacade runs tasks in the unbounded execution mode, periodic and timeout tasks stay on the thread pool");
+        } else {
+            if (!EXECUTION_MODE_POOL.equals(executionMode)) {
+                _logger.warn(String.format("unknown ThreadFacade.executionMode[%s], use %s", executionMode, EXECUTION_MODE_POOL));
+                executionMode = EXECUTION_MODE_POOL;
+            }
+            taskExecutor = _pool;
+        }
+
 		dpq = new DispatchQueueImpl();
 
+        timeoutWheel = new HashedWheelTimer("zs-timeout-task-wheel", ThreadGlobalProperty.TIMEOUT_TASK_TICK,
+                TimeUnit.MILLISECONDS, TIMEOUT_WHEEL_SIZE, new Executor() {
+            @Override
+            public void execute(final Runnable command) {
+                submit(new Task<Void>() {
+                    @Override
+                    public String getName() {
+                        return "timeout-task";
+                    }
+
+                    @Override
+                    public Void call() throws Exception {
+                        try {
+                            command.run();
+                        } catch (Throwable t) {
+                            _logger.warn(String.format("Unhandled exception happened when running %s", command.getClass().getName()), t);
+                        }
+                        return null;
+                    }
+                });
+            }
+        });
+
         jmxf.registerBean("ThreadFacade", this);
 	}
 
 	public void destroy() {
+        timeoutWheel.stop();
 		_pool.shutdownNow();
+        if (taskExecutor != _pool) {
+            taskExecutor.shutdownNow();
+        }
 	}
 
 	@Override
 	public <T> Future<T> submit(Task<T> task) {
-		return _pool.submit(new Worker<T>(task));
+		return taskExecutor.submit(new Worker<T>(task));
 	}
 
 	@Override
@@ -224,32 +263,7 @@ public class ThreadFacadeImpl implements ThreadFacade, ThreadFactory, RejectedEx
 
 	@Override
 	public TimeoutTaskReceipt submitTimeoutTask(final Runnable task, TimeUnit unit, long delay) {
-        final TimerWrapper timer = timerPool.getTimer();
-
-        class TimerTaskWorker extends TimerTask implements TimeoutTaskReceipt {
-            @Override
-            @AsyncThread
-            public void run() {
-                try {
-                    task.run();
-                } catch (Throwable t) {
-                    _logger.warn(String.format("Unhandled exception happened when running %s", task.getClass().getName()), t);
-                } finally {
-                    this.cancel();
-                }
-            }
-
-            @Override
-            public boolean cancel() {
-                boolean ret = super.cancel();
-                timer.notifyCancel();
-                return ret;
-            }
-        }
-
-        TimerTaskWorker worker = new TimerTaskWorker();
-		timer.schedule(worker, unit.toMillis(delay));
-		return worker;
+        return timeoutWheel.schedule(task, unit, delay);
 	}
 
 	@Override
@@ -260,7 +274,10 @@ public class ThreadFacadeImpl implements ThreadFacade, ThreadFactory, RejectedEx
 	@Override
 	public boolean stop() {
 		_pool.shutdown();
-        timerPool.stop();
+        if (taskExecutor != _pool) {
+            taskExecutor.shutdown();
+        }
+        timeoutWheel.stop();
 		return true;
 	}
 
@@ -10,4 +10,14 @@ public interface ThreadFacadeMXBean {
     Map<String, ChainTaskStatistic> getChainTaskStatistics();
 
     ThreadPoolStatistic getThreadPoolStatistic();
+
+    TaskExecutorStatistic getTaskExecutorStatistic();
+
+    long getTimeoutTaskPendingCount();
+
+    long getTimeoutTaskExpiredCount();
+
+    long getTimeoutTaskLag();
+
+    long getTimeoutTaskMaxLag();
 }
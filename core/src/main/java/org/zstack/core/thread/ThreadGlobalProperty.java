@@ -9,4 +9,16 @@ import org.zstack.core.GlobalPropertyDefinition;
 public class ThreadGlobalProperty {
     @GlobalProperty(name="ThreadFacade.maxThreadNum", defaultValue = "100")
     public static int MAX_THREAD_NUM;
+    /**
+     * pool: all tasks share the bounded pool of maxThreadNum threads
+     * unbounded: submit/syncSubmit/chainSubmit tasks run on a cached pool that creates
+     * threads on demand, periodic and timeout tasks stay on the bounded pool
+     */
+    @GlobalProperty(name="ThreadFacade.executionMode", defaultValue = "pool")
+    public static String EXECUTION_MODE;
+    @GlobalProperty(name="ThreadFacade.unboundedThreadKeepAlive", defaultValue = "60")
+    public static long UNBOUNDED_THREAD_KEEP_ALIVE;
+    // milliseconds, the precision of timeout tasks
+    @GlobalProperty(name="ThreadFacade.timeoutTaskTick", defaultValue = "10")
+    public static long TIMEOUT_TASK_TICK;
 }
@@ -7,8 +7,13 @@ import org.zstack.header.errorcode.OperationFailureException;
 import org.zstack.header.exception.CloudRuntimeException;
 import org.zstack.header.host.HostVO;
 
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import javax.persistence.TypedQuery;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  */
@@ -19,6 +24,9 @@ public abstract class AbstractHostAllocatorFlow {
     private HostAllocatorTrigger trigger;
     protected HostAllocationPaginationInfo paginationInfo;
 
+    @PersistenceContext(unitName="zstack.jpa")
+    private EntityManager entityManager;
+
     public abstract void allocate();
 
     public List<HostVO> getCandidates() {
@@ -91,6 +99,46 @@ public abstract class AbstractHostAllocatorFlow {
         return huuids;
     }
 
+    /**
+     * "in" queries return hosts in the database order, put them back in the order of huuids
+     */
+    protected List<HostVO> sortByIndexOrder(List<String> huuids, List<HostVO> vos) {
+        Map<String, HostVO> m = new HashMap<String, HostVO>(vos.size());
+        for (HostVO vo : vos) {
+            m.put(vo.getUuid(), vo);
+        }
+
+        List<HostVO> ret = new ArrayList<HostVO>(vos.size());
+        for (String huuid : huuids) {
+            HostVO vo = m.get(huuid);
+            if (vo != null) {
+                ret.add(vo);
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * load hosts found by the capacity index, in the order of huuids. In pagination, only the hosts
+     * of the current page are loaded. Called in the transaction of the caller
+     */
+    protected List<HostVO> loadHostsFromIndex(List<String> huuids) {
+        if (usePagination()) {
+            int from = Math.min(paginationInfo.getOffset(), huuids.size());
+            int to = Math.min(from + paginationInfo.getLimit(), huuids.size());
+            huuids = huuids.subList(from, to);
+        }
+
+        if (huuids.isEmpty()) {
+            return new ArrayList<HostVO>();
+        }
+
+        String sql = "select h from HostVO h where h.uuid in (:huuids)";
+        TypedQuery<HostVO> q = entityManager.createQuery(sql, HostVO.class);
+        q.setParameter("huuids", huuids);
+        return sortByIndexOrder(huuids, q.getResultList());
+    }
+
     protected boolean amITheFirstFlow() {
         return candidates == null;
     }
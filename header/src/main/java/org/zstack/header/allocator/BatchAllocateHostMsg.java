@@ -0,0 +1,28 @@
+package org.zstack.header.allocator;
+
+import org.zstack.header.message.NeedReplyMessage;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * allocates hosts for a group of vms at once; either every vm gets a host or none does
+ */
+public class BatchAllocateHostMsg extends NeedReplyMessage {
+    private List<AllocateHostMsg> allocateHostMsgs;
+
+    public List<AllocateHostMsg> getAllocateHostMsgs() {
+        if (allocateHostMsgs == null) {
+            allocateHostMsgs = new ArrayList<AllocateHostMsg>();
+        }
+        return allocateHostMsgs;
+    }
+
+    public void setAllocateHostMsgs(List<AllocateHostMsg> allocateHostMsgs) {
+        this.allocateHostMsgs = allocateHostMsgs;
+    }
+
+    public void addAllocateHostMsg(AllocateHostMsg msg) {
+        getAllocateHostMsgs().add(msg);
+    }
+}
@@ -0,0 +1,49 @@
+package org.zstack.header.allocator;
+
+import org.zstack.header.message.NeedJsonSchema;
+
+/**
+ */
+public interface HostAllocatorCanonicalEvents {
+    public static final String HOST_CAPACITY_CHANGED_PATH = "/hostAllocator/capacity/changed";
+
+    @NeedJsonSchema
+    public static class HostCapacityChangedData {
+        private String hostUuid;
+        private long availableCpu;
+        private long availableMemory;
+        private String managementNodeUuid;
+
+        public String getHostUuid() {
+            return hostUuid;
+        }
+
+        public void setHostUuid(String hostUuid) {
+            this.hostUuid = hostUuid;
+        }
+
+        public long getAvailableCpu() {
+            return availableCpu;
+        }
+
+        public void setAvailableCpu(long availableCpu) {
+            this.availableCpu = availableCpu;
+        }
+
+        public long getAvailableMemory() {
+            return availableMemory;
+        }
+
+        public void setAvailableMemory(long availableMemory) {
+            this.availableMemory = availableMemory;
+        }
+
+        public String getManagementNodeUuid() {
+            return managementNodeUuid;
+        }
+
+        public void setManagementNodeUuid(String managementNodeUuid) {
+            this.managementNodeUuid = managementNodeUuid;
+        }
+    }
+}
@@ -0,0 +1,19 @@
+package org.zstack.header.host;
+
+import org.zstack.header.message.Message;
+
+/**
+ * sent when a host pushes a heartbeat to the management server; a host that keeps sending
+ * heartbeats isn't pinged by the host tracker
+ */
+public class HostHeartbeatMsg extends Message {
+    private String hostUuid;
+
+    public String getHostUuid() {
+        return hostUuid;
+    }
+
+    public void setHostUuid(String hostUuid) {
+        this.hostUuid = hostUuid;
+    }
+}
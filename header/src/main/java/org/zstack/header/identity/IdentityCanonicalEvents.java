@@ -0,0 +1,39 @@
+package org.zstack.header.identity;
+
+import org.zstack.header.message.NeedJsonSchema;
+
+/**
+ */
+public interface IdentityCanonicalEvents {
+    public static final String SESSION_INVALIDATED_PATH = "/identity/session/invalidated";
+    public static final String USER_CHANGED_PATH = "/identity/user/changed";
+
+    @NeedJsonSchema
+    public static class SessionInvalidatedData {
+        private String sessionUuid;
+
+        public String getSessionUuid() {
+            return sessionUuid;
+        }
+
+        public void setSessionUuid(String sessionUuid) {
+            this.sessionUuid = sessionUuid;
+        }
+    }
+
+    @NeedJsonSchema
+    public static class UserChangedData {
+        /**
+         * null means users may have changed, e.g. policies of a group changed
+         */
+        private String userUuid;
+
+        public String getUserUuid() {
+            return userUuid;
+        }
+
+        public void setUserUuid(String userUuid) {
+            this.userUuid = userUuid;
+        }
+    }
+}
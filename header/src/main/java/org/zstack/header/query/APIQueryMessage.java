@@ -18,6 +18,12 @@ public abstract class APIQueryMessage extends APISyncCallMessage {
     @APIParam(required = false, validValues = {"asc", "desc"})
     private String sortDirection = "asc";
     private List<String> fields;
+    /**
+     * page by seeking after the last row of the previous page instead of skipping
+     * 'start' rows; the reply carries a continuationToken as long as there may be more rows
+     */
+    private boolean keysetPaging;
+    private String continuationToken;
 
     public List<QueryCondition> getConditions() {
         if (conditions == null) {
@@ -102,6 +108,22 @@ public abstract class APIQueryMessage extends APISyncCallMessage {
         return fields != null && !fields.isEmpty();
     }
 
+    public boolean isKeysetPaging() {
+        return keysetPaging || continuationToken != null;
+    }
+
+    public void setKeysetPaging(boolean keysetPaging) {
+        this.keysetPaging = keysetPaging;
+    }
+
+    public String getContinuationToken() {
+        return continuationToken;
+    }
+
+    public void setContinuationToken(String continuationToken) {
+        this.continuationToken = continuationToken;
+    }
+
     public boolean isCount() {
         return count;
     }
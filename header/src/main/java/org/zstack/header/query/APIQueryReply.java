@@ -10,6 +10,7 @@ import org.zstack.header.message.APIReply;
  */
 public class APIQueryReply extends APIReply {
     private Long total;
+    private String continuationToken;
 
     public Long getTotal() {
         return total;
@@ -18,4 +19,12 @@ public class APIQueryReply extends APIReply {
     public void setTotal(long total) {
         this.total = total;
     }
+
+    public String getContinuationToken() {
+        return continuationToken;
+    }
+
+    public void setContinuationToken(String continuationToken) {
+        this.continuationToken = continuationToken;
+    }
 }
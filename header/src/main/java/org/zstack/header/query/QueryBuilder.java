@@ -6,6 +6,14 @@ import java.util.Map;
 public interface QueryBuilder {
     <T> List<T> query(APIQueryMessage msg, Class<T> inventoryClass);
 
+    <T> QueryPage<T> queryPage(APIQueryMessage msg, Class<T> inventoryClass);
+
+    /**
+     * runs the query with keyset pagination and hands every page of batchSize inventories
+     * to the consumer; only one page is in memory at a time
+     */
+    <T> void stream(APIQueryMessage msg, Class<T> inventoryClass, int batchSize, QueryStreamConsumer<T> consumer);
+
     long count(APIQueryMessage msg, Class inventoryClass);
 
     Map<String, List<String>> populateQueryableFields();
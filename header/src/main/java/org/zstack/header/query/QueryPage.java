@@ -0,0 +1,26 @@
+package org.zstack.header.query;
+
+import java.util.List;
+
+/**
+ */
+public class QueryPage<T> {
+    private List<T> inventories;
+    private String continuationToken;
+
+    public QueryPage(List<T> inventories, String continuationToken) {
+        this.inventories = inventories;
+        this.continuationToken = continuationToken;
+    }
+
+    public List<T> getInventories() {
+        return inventories;
+    }
+
+    /**
+     * null if this is the last page or the query is not keyset paged
+     */
+    public String getContinuationToken() {
+        return continuationToken;
+    }
+}
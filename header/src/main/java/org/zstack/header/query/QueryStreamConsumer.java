@@ -0,0 +1,12 @@
+package org.zstack.header.query;
+
+import java.util.List;
+
+/**
+ */
+public interface QueryStreamConsumer<T> {
+    /**
+     * @return false to stop the query
+     */
+    boolean consume(List<T> inventories);
+}
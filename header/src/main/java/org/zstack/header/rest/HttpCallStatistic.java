@@ -1,14 +1,23 @@
 package org.zstack.header.rest;
 
+import java.util.Arrays;
 import java.util.concurrent.TimeUnit;
 
 /**
  */
 public class HttpCallStatistic {
+    /**
+     * upper bounds in milliseconds of latency histogram buckets, the last bucket counts calls
+     * taking longer than the last bound
+     */
+    public static final long[] LATENCY_BUCKETS = {100, 1000, 10000, 60000, 300000};
+
     private String url;
     private long totalTime;
     private long count;
     private long averageTime;
+    private long maxTime;
+    private long[] latencyHistogram = new long[LATENCY_BUCKETS.length + 1];
 
     public String getUrl() {
         return url;
@@ -42,18 +51,46 @@ public class HttpCallStatistic {
         this.averageTime = averageTime;
     }
 
-    public void addStatistic(long time) {
+    public long getMaxTime() {
+        return maxTime;
+    }
+
+    public void setMaxTime(long maxTime) {
+        this.maxTime = maxTime;
+    }
+
+    public synchronized long[] getLatencyHistogram() {
+        return Arrays.copyOf(latencyHistogram, latencyHistogram.length);
+    }
+
+    public void setLatencyHistogram(long[] latencyHistogram) {
+        this.latencyHistogram = latencyHistogram;
+    }
+
+    public synchronized void addStatistic(long time) {
         totalTime += time;
         count ++;
         averageTime = totalTime / count;
+        if (time > maxTime) {
+            maxTime = time;
+        }
+
+        int i = 0;
+        while (i < LATENCY_BUCKETS.length && time >= LATENCY_BUCKETS[i]) {
+            i ++;
+        }
+        latencyHistogram[i] ++;
     }
 
     @Override
-    public String toString() {
-        return String.format("URL[%s]: total time: %s secs, total count: %s, average time: %s secs",
+    public synchronized String toString() {
+        return String.format("URL[%s]: total time: %s secs, total count: %s, average time: %s secs, max time: %s secs, latency histogram%s: %s",
                 url,
                 TimeUnit.MILLISECONDS.toSeconds(totalTime),
                 count,
-                TimeUnit.MILLISECONDS.toSeconds(averageTime));
+                TimeUnit.MILLISECONDS.toSeconds(averageTime),
+                TimeUnit.MILLISECONDS.toSeconds(maxTime),
+                Arrays.toString(LATENCY_BUCKETS),
+                Arrays.toString(latencyHistogram));
     }
 }
@@ -0,0 +1,57 @@
+package org.zstack.header.vm;
+
+import org.zstack.header.message.NeedReplyMessage;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * changes state of a group of vms at once, e.g. all vms of a disconnected host. Like
+ * ChangeVmMetaDataMsg.AtomicVmState, a vm is changed only if it's still in its expected state.
+ *
+ * All vms must be managed by the management node the message is sent to.
+ */
+public class BatchChangeVmStateMsg extends NeedReplyMessage {
+    private String hostUuid;
+    private String state;
+    /**
+     * vm uuid -> expected state
+     */
+    private Map<String, String> expectedStates;
+
+    public String getHostUuid() {
+        return hostUuid;
+    }
+
+    public void setHostUuid(String hostUuid) {
+        this.hostUuid = hostUuid;
+    }
+
+    public VmInstanceState getState() {
+        if (state != null) {
+            return VmInstanceState.valueOf(state);
+        }
+        return null;
+    }
+
+    public void setState(VmInstanceState state) {
+        if (state != null) {
+            this.state = state.toString();
+        }
+    }
+
+    public Map<String, String> getExpectedStates() {
+        if (expectedStates == null) {
+            expectedStates = new HashMap<String, String>();
+        }
+        return expectedStates;
+    }
+
+    public void setExpectedStates(Map<String, String> expectedStates) {
+        this.expectedStates = expectedStates;
+    }
+
+    public void addVm(String vmUuid, VmInstanceState expected) {
+        getExpectedStates().put(vmUuid, expected.toString());
+    }
+}
@@ -0,0 +1,24 @@
+package org.zstack.header.vm;
+
+import org.zstack.header.message.MessageReply;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class BatchChangeVmStateReply extends MessageReply {
+    /**
+     * vms that were in their expected state and have been changed
+     */
+    private List<String> changedVmUuids;
+
+    public List<String> getChangedVmUuids() {
+        if (changedVmUuids == null) {
+            changedVmUuids = new ArrayList<String>();
+        }
+        return changedVmUuids;
+    }
+
+    public void setChangedVmUuids(List<String> changedVmUuids) {
+        this.changedVmUuids = changedVmUuids;
+    }
+}
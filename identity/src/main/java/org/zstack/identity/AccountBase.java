@@ -6,10 +6,12 @@ import org.springframework.beans.factory.annotation.Configurable;
 import org.springframework.transaction.annotation.Transactional;
 import org.zstack.core.Platform;
 import org.zstack.core.cloudbus.CloudBus;
+import org.zstack.core.cloudbus.EventFacade;
 import org.zstack.core.db.DatabaseFacade;
 import org.zstack.core.db.SimpleQuery;
 import org.zstack.core.db.SimpleQuery.Op;
 import org.zstack.header.identity.*;
+import org.zstack.header.identity.IdentityCanonicalEvents.UserChangedData;
 import org.zstack.header.message.APIMessage;
 import org.zstack.header.message.Message;
 import org.zstack.search.SearchQuery;
@@ -19,6 +21,8 @@ public class AccountBase extends AbstractAccount {
     private CloudBus bus;
     @Autowired
     private DatabaseFacade dbf;
+    @Autowired
+    private EventFacade evtf;
 
     private AccountVO vo;
 
@@ -40,6 +44,12 @@ public class AccountBase extends AbstractAccount {
         }
     }
 
+    private void fireUserChangedEvent(String userUuid) {
+        UserChangedData data = new UserChangedData();
+        data.setUserUuid(userUuid);
+        evtf.fire(IdentityCanonicalEvents.USER_CHANGED_PATH, data);
+    }
+
     @Transactional
     private AccountVO resetAccountPassword(AccountVO avo, UserVO uvo, String password) {
         avo.setPassword(password);
@@ -57,6 +67,7 @@ public class AccountBase extends AbstractAccount {
         UserVO uvo = uq.find();
 
         vo = resetAccountPassword(vo, uvo, msg.getPassword());
+        fireUserChangedEvent(uvo.getUuid());
         APIResetAccountPasswordEvent evt = new APIResetAccountPasswordEvent(msg.getId());
         evt.setInventory(AccountInventory.valueOf(vo));
         bus.publish(evt);
@@ -124,6 +135,7 @@ public class AccountBase extends AbstractAccount {
         ugvo.setGroupUuid(msg.getGroupUuid());
         ugvo.setUserUuid(msg.getUserUuid());
         dbf.persist(ugvo);
+        fireUserChangedEvent(msg.getUserUuid());
         APIAttachUserToUserGroupEvent evt = new APIAttachUserToUserGroupEvent(msg.getId());
         bus.publish(evt);
     }
@@ -133,6 +145,8 @@ public class AccountBase extends AbstractAccount {
         grvo.setGroupUuid(msg.getGroupUuid());
         grvo.setPolicyUuid(msg.getPolicyUuid());
         dbf.persist(grvo);
+        // every user in the group is affected
+        fireUserChangedEvent(null);
         APIAttachPolicyToUserGroupEvent evt = new APIAttachPolicyToUserGroupEvent(msg.getId());
         bus.publish(evt);
     }
@@ -159,6 +173,7 @@ public class AccountBase extends AbstractAccount {
         upvo.setPolicyUuid(msg.getPolicyUuid());
         upvo.setUserUuid(msg.getUserUuid());
         dbf.persist(upvo);
+        fireUserChangedEvent(msg.getUserUuid());
         
         APIAttachPolicyToUserEvent evt = new APIAttachPolicyToUserEvent(msg.getId());
         bus.publish(evt);
@@ -11,6 +11,8 @@ import org.springframework.security.core.Authentication;
 import org.springframework.security.core.AuthenticationException;
 import org.springframework.transaction.annotation.Transactional;
 import org.zstack.core.Platform;
+import org.zstack.core.cloudbus.EventCallback;
+import org.zstack.core.cloudbus.EventFacade;
 import org.zstack.core.db.DatabaseFacade;
 import org.zstack.core.db.SimpleQuery;
 import org.zstack.core.db.SimpleQuery.Op;
@@ -20,6 +22,8 @@ import org.zstack.core.thread.ThreadFacade;
 import org.zstack.header.Component;
 import org.zstack.header.errorcode.ErrorCode;
 import org.zstack.header.identity.*;
+import org.zstack.header.identity.IdentityCanonicalEvents.SessionInvalidatedData;
+import org.zstack.header.identity.IdentityCanonicalEvents.UserChangedData;
 import org.zstack.header.message.APIMessage;
 import org.zstack.utils.Utils;
 import org.zstack.utils.logging.CLogger;
@@ -28,8 +32,11 @@ import javax.persistence.Query;
 import javax.persistence.TypedQuery;
 import java.sql.Timestamp;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class CredentialCheckerImpl implements CredentialChecker, AuthenticationProvider, Component {
     private static final CLogger logger = Utils.getLogger(CredentialChecker.class);
@@ -44,9 +51,32 @@ public class CredentialCheckerImpl implements CredentialChecker, AuthenticationP
     private ThreadFacade thdf;
     @Autowired
     private ErrorFacade errf;
+    @Autowired
+    private EventFacade evtf;
 
     private Future<Void> expiredSessionCollector;
-    private Map<String, SessionInventory> sessions = Collections.synchronizedMap(new HashMap<String, SessionInventory>());
+    private ConcurrentMap<String, SessionInventory> sessions = new ConcurrentHashMap<String, SessionInventory>();
+
+    /**
+     * users are cached until the session loading them expires; management nodes changing a user,
+     * or logging out a session, tell the others through canonical events
+     */
+    private ConcurrentMap<String, CachedUser> users = new ConcurrentHashMap<String, CachedUser>();
+    // bumped on every invalidation so a user loaded before it is not put into the cache
+    private AtomicLong userCacheVersion = new AtomicLong();
+
+    // milliseconds the database clock is ahead of ours, session expired dates are in database time
+    private volatile long dbClockOffset;
+
+    private static class CachedUser {
+        final UserVO user;
+        final long expiredTime;
+
+        CachedUser(UserVO user, long expiredTime) {
+            this.user = user;
+            this.expiredTime = expiredTime;
+        }
+    }
 
     @Override
     public void authenticateAndAuthorize(APIMessage msg, AuthorizationInfo ainfo) throws CredentialDeniedException {
@@ -104,7 +134,7 @@ public class CredentialCheckerImpl implements CredentialChecker, AuthenticationP
             sessions.put(session.getUuid(), session);
         }
         
-        Timestamp curr = getCurrentSqlDate();
+        Timestamp curr = new Timestamp(System.currentTimeMillis() + dbClockOffset);
         if (curr.after(session.getExpiredDate())) {
             logger.debug(String.format("session expired[%s < %s] for account[uuid:%s]", curr, session.getExpiredDate(), session.getAccountUuid()));
             logOutSession(session.getUuid());
@@ -112,8 +142,41 @@ public class CredentialCheckerImpl implements CredentialChecker, AuthenticationP
         }
 
         msg.setSession(session);
+        token.setDetails(getUser(session, curr.getTime()));
+    }
+
+    private UserVO getUser(SessionInventory session, long now) {
+        CachedUser cu = users.get(session.getUserUuid());
+        if (cu != null && now < cu.expiredTime) {
+            return cu.user;
+        }
+
+        long version = userCacheVersion.get();
         UserVO user = dbf.findByUuid(session.getUserUuid(), UserVO.class);
-        token.setDetails(user);
+        if (user != null) {
+            users.put(user.getUuid(), new CachedUser(user, session.getExpiredDate().getTime()));
+            if (version != userCacheVersion.get()) {
+                // invalidated while loading, the user may be stale
+                users.remove(user.getUuid());
+            }
+        }
+        return user;
+    }
+
+    private void invalidateUser(String userUuid) {
+        userCacheVersion.incrementAndGet();
+        if (userUuid == null) {
+            users.clear();
+        } else {
+            users.remove(userUuid);
+        }
+    }
+
+    private void refreshDbClockOffset() {
+        long before = System.currentTimeMillis();
+        long dbTime = getCurrentSqlDate().getTime();
+        long after = System.currentTimeMillis();
+        dbClockOffset = dbTime - (before + after) / 2;
     }
 
     private void authenticateByUsernamePassword(UsernamePasswordAuthenticationToken token) {
@@ -214,10 +277,33 @@ public class CredentialCheckerImpl implements CredentialChecker, AuthenticationP
     public void logOutSession(String sessionUuid) {
         sessions.remove(sessionUuid);
         dbf.removeByPrimaryKey(sessionUuid, SessionVO.class);
+
+        SessionInvalidatedData data = new SessionInvalidatedData();
+        data.setSessionUuid(sessionUuid);
+        evtf.fire(IdentityCanonicalEvents.SESSION_INVALIDATED_PATH, data);
+    }
+
+    private void installCacheInvalidator() {
+        evtf.on(IdentityCanonicalEvents.SESSION_INVALIDATED_PATH, new EventCallback() {
+            @Override
+            public void run(Map tokens, Object data) {
+                sessions.remove(((SessionInvalidatedData) data).getSessionUuid());
+            }
+        });
+
+        evtf.on(IdentityCanonicalEvents.USER_CHANGED_PATH, new EventCallback() {
+            @Override
+            public void run(Map tokens, Object data) {
+                invalidateUser(((UserChangedData) data).getUserUuid());
+            }
+        });
     }
 
     @Override
     public boolean start() {
+        refreshDbClockOffset();
+        installCacheInvalidator();
+
         final int interval = IdentityGlobalConfig.SESSION_CELANUP_INTERVAL.value(Integer.class);
         expiredSessionCollector = thdf.submitPeriodicTask(new PeriodicTask() {
             
@@ -241,6 +327,14 @@ public class CredentialCheckerImpl implements CredentialChecker, AuthenticationP
                 for (String uuid : uuids) {
                     sessions.remove(uuid);
                 }
+
+                refreshDbClockOffset();
+                long now = System.currentTimeMillis() + dbClockOffset;
+                for (Iterator<CachedUser> it = users.values().iterator(); it.hasNext(); ) {
+                    if (it.next().expiredTime <= now) {
+                        it.remove();
+                    }
+                }
             }
 
             @Override
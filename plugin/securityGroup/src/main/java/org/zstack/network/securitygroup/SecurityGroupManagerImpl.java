@@ -79,6 +79,11 @@ public class SecurityGroupManagerImpl extends AbstractService implements Securit
         private List<String> hostUuids;
         private List<VmInstanceState> vmStates;
 
+        // rules and internal ip ranges of security groups, compiled once per calculation so nics sharing
+        // a security group don't query them again
+        private Map<String, List<SecurityGroupRuleVO>> rulesBySecurityGroup;
+        private Map<String, List<String>> internalIpRanges;
+
         List<HostRuleTO> calculate() {
             if (vmNicUuids != null) {
                 return calculateByVmNic();
@@ -167,32 +172,75 @@ public class SecurityGroupManagerImpl extends AbstractService implements Securit
             return calculateByVmNic();
         }
 
-        private List<RuleTO> calculateRuleTOBySecurityGroup(List<String> sgUuids, String l3Uuid) {
-            List<RuleTO> ret = new ArrayList<RuleTO>();
+        private String makeInternalIpRangeKey(String sgUuid, String l3Uuid) {
+            return String.format("%s-%s", sgUuid, l3Uuid);
+        }
 
-            for (String sgUuid : sgUuids) {
-                String sql = "select r from SecurityGroupRuleVO r where r.securityGroupUuid = :sgUuid";
-                TypedQuery<SecurityGroupRuleVO> q = dbf.getEntityManager().createQuery(sql, SecurityGroupRuleVO.class);
-                q.setParameter("sgUuid", sgUuid);
-                List<SecurityGroupRuleVO> rules = q.getResultList();
-                if (rules.isEmpty()) {
-                    continue;
+        @Transactional(readOnly = true)
+        private void compile(Collection<String> sgUuids) {
+            rulesBySecurityGroup = new HashMap<String, List<SecurityGroupRuleVO>>();
+            internalIpRanges = new HashMap<String, List<String>>();
+            if (sgUuids.isEmpty()) {
+                return;
+            }
+
+            String sql = "select r from SecurityGroupRuleVO r where r.securityGroupUuid in (:sgUuids)";
+            TypedQuery<SecurityGroupRuleVO> q = dbf.getEntityManager().createQuery(sql, SecurityGroupRuleVO.class);
+            q.setParameter("sgUuids", sgUuids);
+            for (SecurityGroupRuleVO r : q.getResultList()) {
+                List<SecurityGroupRuleVO> rules = rulesBySecurityGroup.get(r.getSecurityGroupUuid());
+                if (rules == null) {
+                    rules = new ArrayList<SecurityGroupRuleVO>();
+                    rulesBySecurityGroup.put(r.getSecurityGroupUuid(), rules);
+                }
+                rules.add(r);
+            }
+
+            if (rulesBySecurityGroup.isEmpty()) {
+                return;
+            }
+
+            sql = "select ref.securityGroupUuid, nic.l3NetworkUuid, nic.ip from VmNicVO nic, VmNicSecurityGroupRefVO ref where ref.vmNicUuid = nic.uuid and ref.securityGroupUuid in (:sgUuids)";
+            TypedQuery<Tuple> iq = dbf.getEntityManager().createQuery(sql, Tuple.class);
+            iq.setParameter("sgUuids", new ArrayList<String>(rulesBySecurityGroup.keySet()));
+            Map<String, List<String>> internalIps = new HashMap<String, List<String>>();
+            for (Tuple t : iq.getResultList()) {
+                String key = makeInternalIpRangeKey(t.get(0, String.class), t.get(1, String.class));
+                List<String> ips = internalIps.get(key);
+                if (ips == null) {
+                    ips = new ArrayList<String>();
+                    internalIps.put(key, ips);
                 }
+                ips.add(t.get(2, String.class));
+            }
 
-                sql = "select nic.ip from VmNicVO nic, VmNicSecurityGroupRefVO ref where ref.vmNicUuid = nic.uuid and ref.securityGroupUuid = :sgUuid and nic.l3NetworkUuid = :l3Uuid";
-                TypedQuery<String> internalIpQuery = dbf.getEntityManager().createQuery(sql, String.class);
-                internalIpQuery.setParameter("sgUuid", sgUuid);
-                internalIpQuery.setParameter("l3Uuid", l3Uuid);
-                List<String> internalIps = internalIpQuery.getResultList();
-                List<Pair<String, String>> ipRanges = NetworkUtils.findConsecutiveIpRange(internalIps);
-                List<String> internalIpRanges = new ArrayList<String>(ipRanges.size());
+            for (Map.Entry<String, List<String>> e : internalIps.entrySet()) {
+                List<Pair<String, String>> ipRanges = NetworkUtils.findConsecutiveIpRange(e.getValue());
+                List<String> ranges = new ArrayList<String>(ipRanges.size());
                 for (Pair<String, String> p : ipRanges) {
                     if (p.first().equals(p.second())) {
-                        internalIpRanges.add(p.first());
+                        ranges.add(p.first());
                     } else {
-                        internalIpRanges.add(String.format("%s-%s", p.first(), p.second()));
+                        ranges.add(String.format("%s-%s", p.first(), p.second()));
                     }
                 }
+                internalIpRanges.put(e.getKey(), ranges);
+            }
+        }
+
+        private List<RuleTO> calculateRuleTOBySecurityGroup(List<String> sgUuids, String l3Uuid) {
+            List<RuleTO> ret = new ArrayList<RuleTO>();
+
+            for (String sgUuid : sgUuids) {
+                List<SecurityGroupRuleVO> rules = rulesBySecurityGroup.get(sgUuid);
+                if (rules == null) {
+                    continue;
+                }
+
+                List<String> internalIpRanges = this.internalIpRanges.get(makeInternalIpRangeKey(sgUuid, l3Uuid));
+                if (internalIpRanges == null) {
+                    internalIpRanges = new ArrayList<String>();
+                }
 
                 for (SecurityGroupRuleVO r : rules) {
                     RuleTO rto = new RuleTO();
@@ -267,25 +315,43 @@ public class SecurityGroupManagerImpl extends AbstractService implements Securit
             Map<String, HostRuleTO> hostRuleMap = new HashMap<String, HostRuleTO>();
             List<HostRuleTO> htos = new ArrayList<HostRuleTO>();
 
-            for (String nicUuid : vmNicUuids) {
-                List<Tuple> tuples;
-                if (vmStates != null && !vmStates.isEmpty()) {
-                    String sql = "select ref.securityGroupUuid, vm.hostUuid, vm.hypervisorType, nic.internalName, nic.l3NetworkUuid, nic.mac, nic.ip from VmNicSecurityGroupRefVO ref, VmInstanceVO vm, VmNicVO nic where ref.vmNicUuid = nic.uuid and nic.vmInstanceUuid = vm.uuid and ref.vmNicUuid = :nicUuid and vm.state in (:vmStates)";
-                    TypedQuery<Tuple> q = dbf.getEntityManager().createQuery(sql, Tuple.class);
-                    q.setParameter("nicUuid", nicUuid);
-                    q.setParameter("vmStates", vmStates);
-                    tuples = q.getResultList();
-                } else {
-                    String sql = "select ref.securityGroupUuid, vm.hostUuid, vm.hypervisorType, nic.internalName, nic.l3NetworkUuid, nic.mac, nic.ip from VmNicSecurityGroupRefVO ref, VmInstanceVO vm, VmNicVO nic where ref.vmNicUuid = nic.uuid and nic.vmInstanceUuid = vm.uuid and ref.vmNicUuid = :nicUuid";
-                    TypedQuery<Tuple> q = dbf.getEntityManager().createQuery(sql, Tuple.class);
-                    q.setParameter("nicUuid", nicUuid);
-                    tuples = q.getResultList();
-                }
+            if (vmNicUuids.isEmpty()) {
+                return htos;
+            }
 
-                if (tuples.isEmpty()) {
-                    // vm is not in vmStates or not in security group
-                    continue;
+            List<Tuple> allTuples;
+            if (vmStates != null && !vmStates.isEmpty()) {
+                String sql = "select ref.vmNicUuid, ref.securityGroupUuid, vm.hostUuid, vm.hypervisorType, nic.internalName, nic.l3NetworkUuid, nic.mac, nic.ip from VmNicSecurityGroupRefVO ref, VmInstanceVO vm, VmNicVO nic where ref.vmNicUuid = nic.uuid and nic.vmInstanceUuid = vm.uuid and ref.vmNicUuid in (:nicUuids) and vm.state in (:vmStates)";
+                TypedQuery<Tuple> q = dbf.getEntityManager().createQuery(sql, Tuple.class);
+                q.setParameter("nicUuids", vmNicUuids);
+                q.setParameter("vmStates", vmStates);
+                allTuples = q.getResultList();
+            } else {
+                String sql = "select ref.vmNicUuid, ref.securityGroupUuid, vm.hostUuid, vm.hypervisorType, nic.internalName, nic.l3NetworkUuid, nic.mac, nic.ip from VmNicSecurityGroupRefVO ref, VmInstanceVO vm, VmNicVO nic where ref.vmNicUuid = nic.uuid and nic.vmInstanceUuid = vm.uuid and ref.vmNicUuid in (:nicUuids)";
+                TypedQuery<Tuple> q = dbf.getEntityManager().createQuery(sql, Tuple.class);
+                q.setParameter("nicUuids", vmNicUuids);
+                allTuples = q.getResultList();
+            }
+
+            // nics not in vmStates or not in security group have no tuple
+            Map<String, List<Tuple>> tuplesByNic = new LinkedHashMap<String, List<Tuple>>();
+            Set<String> allSgUuids = new HashSet<String>();
+            for (Tuple t : allTuples) {
+                String nicUuid = t.get(0, String.class);
+                List<Tuple> tuples = tuplesByNic.get(nicUuid);
+                if (tuples == null) {
+                    tuples = new ArrayList<Tuple>();
+                    tuplesByNic.put(nicUuid, tuples);
                 }
+                tuples.add(t);
+                allSgUuids.add(t.get(1, String.class));
+            }
+
+            compile(allSgUuids);
+
+            for (Map.Entry<String, List<Tuple>> e : tuplesByNic.entrySet()) {
+                String nicUuid = e.getKey();
+                List<Tuple> tuples = e.getValue();
 
                 List<String> sgUuids = new ArrayList<String>();
                 String hostUuid = null;
@@ -295,13 +361,13 @@ public class SecurityGroupManagerImpl extends AbstractService implements Securit
                 String mac = null;
                 String ip = null;
                 for (Tuple t : tuples) {
-                    sgUuids.add(t.get(0, String.class));
-                    hostUuid = t.get(1, String.class);
-                    hypervisorType = t.get(2, String.class);
-                    nicName = t.get(3, String.class);
-                    l3Uuid = t.get(4, String.class);
-                    mac = t.get(5, String.class);
-                    ip = t.get(6, String.class);
+                    sgUuids.add(t.get(1, String.class));
+                    hostUuid = t.get(2, String.class);
+                    hypervisorType = t.get(3, String.class);
+                    nicName = t.get(4, String.class);
+                    l3Uuid = t.get(5, String.class);
+                    mac = t.get(6, String.class);
+                    ip = t.get(7, String.class);
                 }
 
                 List<RuleTO> rtos = calculateRuleTOBySecurityGroup(sgUuids, l3Uuid);
@@ -725,27 +791,104 @@ public class SecurityGroupManagerImpl extends AbstractService implements Securit
         bus.publish(evt);
     }
 
+    /**
+     * rules to apply on a host, rules of the same nic in the window are merged and the latest one wins
+     */
+    private class HostRuleBatch {
+        final String hostUuid;
+        final String hypervisorType;
+        boolean refreshHost;
+        int requestNum;
+        final Map<String, SecurityGroupRuleTO> rules = new LinkedHashMap<String, SecurityGroupRuleTO>();
+
+        HostRuleBatch(String hostUuid, String hypervisorType) {
+            this.hostUuid = hostUuid;
+            this.hypervisorType = hypervisorType;
+        }
+
+        void flush() {
+            synchronized (pendingHostRules) {
+                pendingHostRules.remove(hostUuid);
+            }
+
+            HostRuleTO hto = new HostRuleTO();
+            hto.setHostUuid(hostUuid);
+            hto.setHypervisorType(hypervisorType);
+            hto.setRefreshHost(refreshHost);
+            hto.setRules(new ArrayList<SecurityGroupRuleTO>(rules.values()));
+            logger.debug(String.format("apply rules of %s vm nics on host[uuid:%s] for %s requests", rules.size(), hostUuid, requestNum));
+            try {
+                doApplyRules(hto);
+            } catch (Throwable t) {
+                // flush runs in a timer task, nobody else sees the exception; let the failure host task refresh the host
+                logger.warn(String.format("failed to apply security group rules on host[uuid:%s]", hostUuid), t);
+                try {
+                    createFailureHostTask(hostUuid);
+                } catch (Throwable t1) {
+                    logger.warn(String.format("failed to create failure host task for host[uuid:%s]", hostUuid), t1);
+                }
+            }
+        }
+    }
+
+    private final Map<String, HostRuleBatch> pendingHostRules = new HashMap<String, HostRuleBatch>();
+
     private void applyRules(Collection<HostRuleTO> htos) {
-        for (final HostRuleTO h : htos) {
-            SecurityGroupHypervisorBackend bkend = hypervisorBackends.get(h.getHypervisorType());
-            bkend.applyRules(h, new Completion() {
-                private void copeWithFailureHost() {
-                    createFailureHostTask(h.getHostUuid());
+        long window = SecurityGroupGlobalConfig.RULE_COALESCE_WINDOW.value(Long.class);
+        if (window <= 0) {
+            for (HostRuleTO h : htos) {
+                doApplyRules(h);
+            }
+            return;
+        }
+
+        List<HostRuleBatch> created = new ArrayList<HostRuleBatch>();
+        synchronized (pendingHostRules) {
+            for (HostRuleTO h : htos) {
+                HostRuleBatch batch = pendingHostRules.get(h.getHostUuid());
+                if (batch == null) {
+                    batch = new HostRuleBatch(h.getHostUuid(), h.getHypervisorType());
+                    pendingHostRules.put(h.getHostUuid(), batch);
+                    created.add(batch);
                 }
-                
-                @Override
-                public void success() {
-                    logger.debug(String.format("successfully applied security rules on host[uuid:%s]", h.getHostUuid()));
+
+                batch.refreshHost = batch.refreshHost || h.isRefreshHost();
+                batch.requestNum ++;
+                for (SecurityGroupRuleTO rto : h.getRules()) {
+                    batch.rules.put(rto.getVmNicUuid(), rto);
                 }
+            }
+        }
 
+        for (final HostRuleBatch batch : created) {
+            thdf.submitTimeoutTask(new Runnable() {
                 @Override
-                public void fail(ErrorCode errorCode) {
-                    logger.debug(String.format("failed to apply security rules on host[uuid:%s], because %s, will try it later", h.getHostUuid(), errorCode));
-                    copeWithFailureHost();
+                public void run() {
+                    batch.flush();
                 }
-            });
+            }, TimeUnit.MILLISECONDS, window);
         }
     }
+
+    private void doApplyRules(final HostRuleTO h) {
+        SecurityGroupHypervisorBackend bkend = hypervisorBackends.get(h.getHypervisorType());
+        bkend.applyRules(h, new Completion() {
+            private void copeWithFailureHost() {
+                createFailureHostTask(h.getHostUuid());
+            }
+
+            @Override
+            public void success() {
+                logger.debug(String.format("successfully applied security rules on host[uuid:%s]", h.getHostUuid()));
+            }
+
+            @Override
+            public void fail(ErrorCode errorCode) {
+                logger.debug(String.format("failed to apply security rules on host[uuid:%s], because %s, will try it later", h.getHostUuid(), errorCode));
+                copeWithFailureHost();
+            }
+        });
+    }
     
     private void handle(APIAddSecurityGroupRuleMsg msg) {
         APIAddSecurityGroupRuleEvent evt = new APIAddSecurityGroupRuleEvent(msg.getId());
@@ -0,0 +1,183 @@
+package org.zstack.network.service.virtualrouter;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.zstack.core.cloudbus.CloudBus;
+import org.zstack.core.cloudbus.CloudBusCallBack;
+import org.zstack.core.errorcode.ErrorFacade;
+import org.zstack.core.thread.ThreadFacade;
+import org.zstack.header.core.Completion;
+import org.zstack.header.errorcode.ErrorCode;
+import org.zstack.header.message.MessageReply;
+import org.zstack.header.vm.VmInstanceConstant;
+import org.zstack.network.service.virtualrouter.VirtualRouterCommands.AgentResponse;
+import org.zstack.utils.Utils;
+import org.zstack.utils.gson.JSONObjectUtil;
+import org.zstack.utils.logging.CLogger;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Merges entries sent to the same path of a virtual router within a short window into one command,
+ * e.g. DHCP entries of vms starting on the same L3 network at the same time.
+ *
+ * Entries equal in JSON are sent once. The result of the command is returned to the completion of
+ * every request in it.
+ */
+public class VirtualRouterCommandCoalescer {
+    private static final CLogger logger = Utils.getLogger(VirtualRouterCommandCoalescer.class);
+
+    @Autowired
+    private CloudBus bus;
+    @Autowired
+    private ThreadFacade thdf;
+    @Autowired
+    private ErrorFacade errf;
+
+    public interface CommandBuilder<T> {
+        Object buildCommand(List<T> entries);
+
+        Class<? extends AgentResponse> getResponseClass();
+
+        /**
+         * false if the command takes only one entry, then only entries equal in JSON are merged
+         */
+        boolean isMultipleEntriesSupported();
+    }
+
+    private class Batch {
+        final String key;
+        final VirtualRouterVmInventory vr;
+        final String path;
+        final CommandBuilder builder;
+        final Map<String, Object> entries = new LinkedHashMap<String, Object>();
+        final List<Completion> completions = new ArrayList<Completion>();
+
+        Batch(String key, VirtualRouterVmInventory vr, String path, CommandBuilder builder) {
+            this.key = key;
+            this.vr = vr;
+            this.path = path;
+            this.builder = builder;
+        }
+
+        void flush() {
+            synchronized (batches) {
+                if (batches.get(key) == this) {
+                    batches.remove(key);
+                }
+            }
+
+            try {
+                doFlush();
+            } catch (Throwable t) {
+                // flush() runs on a timer thread, nobody else would ever call the completions
+                logger.warn(String.format("unable to send %s to virtual router[uuid:%s]", path, vr.getUuid()), t);
+                fail(errf.throwableToInternalError(t));
+            }
+        }
+
+        private void doFlush() {
+            final List<Object> es = new ArrayList<Object>(entries.values());
+            VirtualRouterAsyncHttpCallMsg msg = new VirtualRouterAsyncHttpCallMsg();
+            msg.setVmInstanceUuid(vr.getUuid());
+            msg.setPath(path);
+            msg.setCommand(builder.buildCommand(es));
+            msg.setCheckStatus(true);
+            bus.makeTargetServiceIdByResourceUuid(msg, VmInstanceConstant.SERVICE_ID, vr.getUuid());
+            bus.send(msg, new CloudBusCallBack() {
+                @Override
+                public void run(MessageReply reply) {
+                    if (!reply.isSuccess()) {
+                        fail(reply.getError());
+                        return;
+                    }
+
+                    AgentResponse rsp;
+                    try {
+                        VirtualRouterAsyncHttpCallReply re = reply.castReply();
+                        rsp = re.toResponse(builder.getResponseClass());
+                    } catch (Throwable t) {
+                        logger.warn(String.format("unable to read the response of %s from virtual router[uuid:%s]", path, vr.getUuid()), t);
+                        fail(errf.throwableToInternalError(t));
+                        return;
+                    }
+
+                    if (!rsp.isSuccess()) {
+                        String err = String.format("virtual router[uuid:%s, ip:%s] failed to execute %s with entries%s, %s",
+                                vr.getUuid(), vr.getManagementNic().getIp(), path, JSONObjectUtil.toJsonString(es), rsp.getError());
+                        logger.warn(err);
+                        fail(errf.stringToOperationError(err));
+                        return;
+                    }
+
+                    logger.debug(String.format("virtual router[uuid:%s, ip:%s] executed %s with %s entries for %s requests",
+                            vr.getUuid(), vr.getManagementNic().getIp(), path, es.size(), completions.size()));
+                    for (Completion c : completions) {
+                        try {
+                            c.success();
+                        } catch (Throwable t) {
+                            logger.warn(String.format("unhandled exception in completion of %s on virtual router[uuid:%s]", path, vr.getUuid()), t);
+                        }
+                    }
+                }
+            });
+        }
+
+        void fail(ErrorCode err) {
+            for (Completion c : completions) {
+                try {
+                    c.fail(err);
+                } catch (Throwable t) {
+                    logger.warn(String.format("unhandled exception in completion of %s on virtual router[uuid:%s]", path, vr.getUuid()), t);
+                }
+            }
+        }
+    }
+
+    private final Map<String, Batch> batches = new HashMap<String, Batch>();
+
+    /**
+     * @param entries entries of one request, the completion is called when all of them are executed
+     */
+    public <T> void send(VirtualRouterVmInventory vr, String path, List<T> entries, CommandBuilder<T> builder, Completion completion) {
+        Map<String, T> entryMap = new LinkedHashMap<String, T>();
+        for (T e : entries) {
+            entryMap.put(JSONObjectUtil.toJsonString(e), e);
+        }
+
+        long window = VirtualRouterGlobalConfig.COMMAND_COALESCE_WINDOW.value(Long.class);
+        String key = builder.isMultipleEntriesSupported() ? String.format("%s-%s", vr.getUuid(), path) :
+                String.format("%s-%s-%s", vr.getUuid(), path, entryMap.keySet());
+
+        final Batch batch;
+        boolean created = false;
+        synchronized (batches) {
+            Batch b = batches.get(key);
+            if (b == null || window <= 0) {
+                b = new Batch(key, vr, path, builder);
+                if (window > 0) {
+                    batches.put(key, b);
+                }
+                created = true;
+            }
+            b.entries.putAll(entryMap);
+            b.completions.add(completion);
+            batch = b;
+        }
+
+        if (!created) {
+            return;
+        }
+
+        if (window <= 0) {
+            batch.flush();
+        } else {
+            thdf.submitTimeoutTask(new Runnable() {
+                @Override
+                public void run() {
+                    batch.flush();
+                }
+            }, TimeUnit.MILLISECONDS, window);
+        }
+    }
+}
@@ -16,4 +16,6 @@ public class VirtualRouterGlobalConfig {
     public static GlobalConfig COMMANDS_PARALELLISM_DEGREE = new GlobalConfig(CATEGORY, "command.parallelismDegree");
     @GlobalConfigValidation
     public static GlobalConfig RESTART_DNSMASQ_COUNT = new GlobalConfig(CATEGORY, "dnsmasq.restartAfterNumberOfSIGUSER1");
+    @GlobalConfigValidation(numberGreaterThan = -1)
+    public static GlobalConfig COMMAND_COALESCE_WINDOW = new GlobalConfig(CATEGORY, "command.coalesceWindow");
 }
@@ -36,6 +36,28 @@ public class VirtualRouterDhcpBackend implements NetworkServiceDhcpBackend {
     private ErrorFacade errf;
     @Autowired
     private CloudBus bus;
+    @Autowired
+    private VirtualRouterCommandCoalescer coalescer;
+
+    private static final VirtualRouterCommandCoalescer.CommandBuilder<VirtualRouterCommands.DhcpInfo> addDhcpCommandBuilder =
+            new VirtualRouterCommandCoalescer.CommandBuilder<VirtualRouterCommands.DhcpInfo>() {
+        @Override
+        public Object buildCommand(List<VirtualRouterCommands.DhcpInfo> entries) {
+            VirtualRouterCommands.AddDhcpEntryCmd cmd = new VirtualRouterCommands.AddDhcpEntryCmd();
+            cmd.setDhcpEntries(entries);
+            return cmd;
+        }
+
+        @Override
+        public Class<? extends VirtualRouterCommands.AgentResponse> getResponseClass() {
+            return AddDhcpEntryRsp.class;
+        }
+
+        @Override
+        public boolean isMultipleEntriesSupported() {
+            return true;
+        }
+    };
 
     @Override
     public NetworkServiceProviderType getProviderType() {
@@ -72,34 +94,17 @@ public class VirtualRouterDhcpBackend implements NetworkServiceDhcpBackend {
                     e.setDns(CollectionDSL.list(vrNic.getIp()));
                 }
 
-                VirtualRouterCommands.AddDhcpEntryCmd cmd = new VirtualRouterCommands.AddDhcpEntryCmd();
-                cmd.setDhcpEntries(Arrays.asList(e));
-                VirtualRouterAsyncHttpCallMsg cmsg = new VirtualRouterAsyncHttpCallMsg();
-                cmsg.setCommand(cmd);
-                cmsg.setPath(VirtualRouterConstant.VR_ADD_DHCP_PATH);
-                cmsg.setVmInstanceUuid(vr.getUuid());
-                cmsg.setCheckStatus(true);
-                bus.makeTargetServiceIdByResourceUuid(cmsg, VmInstanceConstant.SERVICE_ID, vr.getUuid());
-                bus.send(cmsg, new CloudBusCallBack(completion) {
+                coalescer.send(vr, VirtualRouterConstant.VR_ADD_DHCP_PATH, Arrays.asList(e), addDhcpCommandBuilder, new Completion(completion) {
+                    @Override
+                    public void success() {
+                        logger.debug(String.format("successfully add dhcp entry[%s] to virtual router vm[uuid:%s, ip:%s]", struct, vr.getUuid(), vr.getManagementNic()
+                                .getIp()));
+                        applyDhcpEntry(it, spec, completion);
+                    }
+
                     @Override
-                    public void run(MessageReply reply) {
-                        if (!reply.isSuccess()) {
-                            completion.fail(reply.getError());
-                            return;
-                        }
-
-                        VirtualRouterAsyncHttpCallReply re = reply.castReply();
-                        AddDhcpEntryRsp rsp =  re.toResponse(AddDhcpEntryRsp.class);
-                        if (rsp.isSuccess()) {
-                            logger.debug(String.format("successfully add dhcp entry[%s] to virtual router vm[uuid:%s, ip:%s]", struct, vr.getUuid(), vr.getManagementNic()
-                                    .getIp()));
-                            applyDhcpEntry(it, spec, completion);
-                        } else {
-                            String err = String.format("unable to add dhcp entries to virtual router vm[uuid:%s ip:%s], because %s, dhcp entry[%s]",
-                                    vr.getUuid(), vr.getManagementNic().getIp(), rsp.getError(), struct);
-                            logger.warn(err);
-                            completion.fail(errf.stringToOperationError(err));
-                        }
+                    public void fail(ErrorCode errorCode) {
+                        completion.fail(errorCode);
                     }
                 });
             }
@@ -37,6 +37,28 @@ public class VirtualRouterDnsBackend implements NetworkServiceDnsBackend {
     private CloudBus bus;
     @Autowired
     private ErrorFacade errf;
+    @Autowired
+    private VirtualRouterCommandCoalescer coalescer;
+
+    private static final VirtualRouterCommandCoalescer.CommandBuilder<VirtualRouterCommands.DnsInfo> setDnsCommandBuilder =
+            new VirtualRouterCommandCoalescer.CommandBuilder<VirtualRouterCommands.DnsInfo>() {
+        @Override
+        public Object buildCommand(List<VirtualRouterCommands.DnsInfo> entries) {
+            VirtualRouterCommands.SetDnsCmd cmd = new VirtualRouterCommands.SetDnsCmd();
+            cmd.setDns(entries);
+            return cmd;
+        }
+
+        @Override
+        public Class<? extends VirtualRouterCommands.AgentResponse> getResponseClass() {
+            return SetDnsRsp.class;
+        }
+
+        @Override
+        public boolean isMultipleEntriesSupported() {
+            return true;
+        }
+    };
 
     @Override
     public NetworkServiceProviderType getProviderType() {
@@ -62,35 +84,19 @@ public class VirtualRouterDnsBackend implements NetworkServiceDnsBackend {
                     dns.add(dinfo);
                 }
 
-                VirtualRouterCommands.SetDnsCmd cmd = new VirtualRouterCommands.SetDnsCmd();
-                cmd.setDns(dns);
+                coalescer.send(vr, VirtualRouterConstant.VR_SET_DNS_PATH, dns, setDnsCommandBuilder, new Completion(completion) {
+                    @Override
+                    public void success() {
+                        logger.debug(String.format("successfully add dns entry[%s] to virtual router vm[uuid:%s, ip:%s]", struct, vr.getUuid(), vr.getManagementNic()
+                                .getIp()));
+                        applyDns(it, spec, completion);
+                    }
 
-                VirtualRouterAsyncHttpCallMsg msg = new VirtualRouterAsyncHttpCallMsg();
-                msg.setVmInstanceUuid(vr.getUuid());
-                msg.setPath(VirtualRouterConstant.VR_SET_DNS_PATH);
-                msg.setCommand(cmd);
-                msg.setCheckStatus(true);
-                bus.makeTargetServiceIdByResourceUuid(msg, VmInstanceConstant.SERVICE_ID, vr.getUuid());
-                bus.send(msg, new CloudBusCallBack(completion) {
                     @Override
-                    public void run(MessageReply reply) {
-                        if (!reply.isSuccess()) {
-                            completion.fail(reply.getError());
-                            return;
-                        }
-
-                        VirtualRouterAsyncHttpCallReply re = reply.castReply();
-                        SetDnsRsp ret = re.toResponse(SetDnsRsp.class);
-                        if (ret.isSuccess()) {
-                            logger.debug(String.format("successfully add dns entry[%s] to virtual router vm[uuid:%s, ip:%s]", struct, vr.getUuid(), vr.getManagementNic()
-                                    .getIp()));
-                            applyDns(it, spec, completion);
-                        } else {
-                            String err = String.format("virtual router[uuid:%s, ip:%s] failed to configure dns%s for L3Network[uuid:%s, name:%s], %s",
-                                    vr.getUuid(), vr.getManagementNic().getIp(), struct, l3.getUuid(), l3.getName(), ret.getError());
-                            logger.warn(err);
-                            completion.fail(errf.stringToOperationError(err));
-                        }
+                    public void fail(ErrorCode errorCode) {
+                        logger.warn(String.format("virtual router[uuid:%s, ip:%s] failed to configure dns%s for L3Network[uuid:%s, name:%s], %s",
+                                vr.getUuid(), vr.getManagementNic().getIp(), struct, l3.getUuid(), l3.getName(), errorCode));
+                        completion.fail(errorCode);
                     }
                 });
             }
@@ -18,7 +18,6 @@ import org.zstack.header.network.l3.L3NetworkInventory;
 import org.zstack.header.network.service.NetworkServiceProviderType;
 import org.zstack.header.network.service.NetworkServiceSnatBackend;
 import org.zstack.header.network.service.SnatStruct;
-import org.zstack.header.vm.VmInstanceConstant;
 import org.zstack.header.vm.VmInstanceSpec;
 import org.zstack.header.vm.VmNicInventory;
 import org.zstack.network.service.virtualrouter.*;
@@ -52,6 +51,29 @@ public class VirtualRouterSnatBackend implements NetworkServiceSnatBackend {
     private CloudBus bus;
     @Autowired
     private DatabaseFacade dbf;
+    @Autowired
+    private VirtualRouterCommandCoalescer coalescer;
+
+    // SetSNATCmd takes one snat, only the same snat requested by many vms is merged
+    private static final VirtualRouterCommandCoalescer.CommandBuilder<VirtualRouterCommands.SNATInfo> setSnatCommandBuilder =
+            new VirtualRouterCommandCoalescer.CommandBuilder<VirtualRouterCommands.SNATInfo>() {
+        @Override
+        public Object buildCommand(List<VirtualRouterCommands.SNATInfo> entries) {
+            VirtualRouterCommands.SetSNATCmd cmd = new VirtualRouterCommands.SetSNATCmd();
+            cmd.setSnat(entries.get(0));
+            return cmd;
+        }
+
+        @Override
+        public Class<? extends VirtualRouterCommands.AgentResponse> getResponseClass() {
+            return SetSNATRsp.class;
+        }
+
+        @Override
+        public boolean isMultipleEntriesSupported() {
+            return false;
+        }
+    };
 
     @Override
     public NetworkServiceProviderType getProviderType() {
@@ -102,35 +124,18 @@ public class VirtualRouterSnatBackend implements NetworkServiceSnatBackend {
                 info.setPublicIp(vr.getPublicNic().getIp());
                 info.setSnatNetmask(struct.getGuestNetmask());
 
-                VirtualRouterCommands.SetSNATCmd cmd = new VirtualRouterCommands.SetSNATCmd();
-                cmd.setSnat(info);
-
-                VirtualRouterAsyncHttpCallMsg msg = new VirtualRouterAsyncHttpCallMsg();
-                msg.setVmInstanceUuid(vr.getUuid());
-                msg.setPath(VirtualRouterConstant.VR_SET_SNAT_PATH);
-                msg.setCommand(cmd);
-                msg.setCheckStatus(true);
-                bus.makeTargetServiceIdByResourceUuid(msg, VmInstanceConstant.SERVICE_ID, vr.getUuid());
-                bus.send(msg, new CloudBusCallBack(completion) {
+                coalescer.send(vr, VirtualRouterConstant.VR_SET_SNAT_PATH, Arrays.asList(info), setSnatCommandBuilder, new Completion(completion) {
                     @Override
-                    public void run(MessageReply reply) {
-                        if (!reply.isSuccess()) {
-                            completion.fail(reply.getError());
-                            return;
-                        }
+                    public void success() {
+                        applySnat(it, spec, completion);
+                    }
 
-                        VirtualRouterAsyncHttpCallReply re = reply.castReply();
-                        SetSNATRsp ret = re.toResponse(SetSNATRsp.class);
-                        if (!ret.isSuccess()) {
-                            String err = String.format(
-                                    "virtual router[uuid:%s, ip:%s] failed to apply snat[%s] for vm[uuid:%s, name:%s] on L3Network[uuid:%s, name:%s], because %s",
-                                    vr.getUuid(), vr.getManagementNic().getIp(), JSONObjectUtil.toJsonString(info), spec.getVmInventory().getUuid(), spec.getVmInventory().getName(),
-                                    struct.getL3Network().getUuid(), struct.getL3Network().getName(), ret.getError());
-                            logger.warn(err);
-                            completion.fail(errf.stringToOperationError(err));
-                        } else {
-                            applySnat(it, spec, completion);
-                        }
+                    @Override
+                    public void fail(ErrorCode errorCode) {
+                        logger.warn(String.format("virtual router[uuid:%s, ip:%s] failed to apply snat[%s] for vm[uuid:%s, name:%s] on L3Network[uuid:%s, name:%s], because %s",
+                                vr.getUuid(), vr.getManagementNic().getIp(), JSONObjectUtil.toJsonString(info), spec.getVmInventory().getUuid(), spec.getVmInventory().getName(),
+                                struct.getL3Network().getUuid(), struct.getL3Network().getName(), errorCode));
+                        completion.fail(errorCode);
                     }
                 });
             }
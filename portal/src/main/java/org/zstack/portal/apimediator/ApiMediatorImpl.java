@@ -5,8 +5,8 @@ import org.zstack.core.Platform;
 import org.zstack.core.cloudbus.CloudBus;
 import org.zstack.core.cloudbus.CloudBusCallBack;
 import org.zstack.core.errorcode.ErrorFacade;
+import org.zstack.core.jmx.JmxFacade;
 import org.zstack.header.errorcode.SysErrors;
-import org.zstack.core.thread.SyncTask;
 import org.zstack.core.thread.ThreadFacade;
 import org.zstack.header.AbstractService;
 import org.zstack.header.apimediator.*;
@@ -18,6 +18,7 @@ import org.zstack.header.managementnode.IsManagementNodeReadyMsg;
 import org.zstack.header.managementnode.IsManagementNodeReadyReply;
 import org.zstack.header.managementnode.ManagementNodeConstant;
 import org.zstack.header.message.*;
+import org.zstack.header.query.APIQueryMessage;
 import org.zstack.utils.StringDSL;
 import org.zstack.utils.Utils;
 import org.zstack.utils.gson.JSONObjectUtil;
@@ -29,7 +30,7 @@ import static org.zstack.utils.CollectionDSL.e;
 import static org.zstack.utils.CollectionDSL.list;
 import static org.zstack.utils.CollectionDSL.map;
 
-public class ApiMediatorImpl extends AbstractService implements ApiMediator, GlobalApiMessageInterceptor {
+public class ApiMediatorImpl extends AbstractService implements ApiMediator, GlobalApiMessageInterceptor, ApiMediatorMXBean {
     private static final CLogger logger = Utils.getLogger(ApiMediator.class);
 
     @Autowired
@@ -40,11 +41,21 @@ public class ApiMediatorImpl extends AbstractService implements ApiMediator, Glo
     private ThreadFacade thdf;
     @Autowired
     private ErrorFacade errf;
+    @Autowired
+    private JmxFacade jmxf;
 
     private ApiMessageProcessor processor;
 
     private List<String> serviceConfigFolders;
     private int apiWorkerNum = 5;
+    private int queryApiWorkerNum = 5;
+    private int adminApiWorkerNum = 2;
+
+    // APIs are classified into lanes having their own workers, so a burst of queries
+    // cannot starve operations, and neither can starve login or readiness checks
+    private ApiWorkerLane adminLane;
+    private ApiWorkerLane queryLane;
+    private ApiWorkerLane operationLane;
 
     private void dispatchMessage(APIMessage msg) {
         ApiMessageDescriptor desc = processor.getApiMessageDescriptor(msg);
@@ -94,26 +105,28 @@ public class ApiMediatorImpl extends AbstractService implements ApiMediator, Glo
     }
 
 
-    @Override
-    public void handleMessage(final Message msg) {
-        thdf.syncSubmit(new SyncTask<Object>() {
-            @Override
-            public String getSyncSignature() {
-                return "api.worker";
-            }
-
-            @Override
-            public int getSyncLevel() {
-                return apiWorkerNum;
-            }
+    private ApiWorkerLane getLane(Message msg) {
+        if (msg.getClass() == APIIsReadyToGoMsg.class || msg.getClass().isAnnotationPresent(SuppressCredentialCheck.class)) {
+            return adminLane;
+        } else if (msg instanceof APIQueryMessage || msg instanceof APIListMessage || msg instanceof APISyncCallMessage) {
+            return queryLane;
+        } else {
+            return operationLane;
+        }
+    }
 
-            @Override
-            public String getName() {
-                return "api.worker";
-            }
+    private String getSessionKey(Message msg) {
+        if (msg instanceof APIMessage && ((APIMessage) msg).getSession() != null) {
+            return ((APIMessage) msg).getSession().getUuid();
+        }
+        return "";
+    }
 
+    @Override
+    public void handleMessage(final Message msg) {
+        getLane(msg).submit(getSessionKey(msg), new Runnable() {
             @Override
-            public Object call() throws Exception {
+            public void run() {
                 if (msg.getClass() == APIIsReadyToGoMsg.class) {
                     handle((APIIsReadyToGoMsg) msg);
                 } else {
@@ -124,8 +137,6 @@ public class ApiMediatorImpl extends AbstractService implements ApiMediator, Glo
                         bus.replyErrorByMessageType(msg, errf.throwableToInternalError(t));
                     }
                 }
-
-                return null;
             }
         });
     }
@@ -171,7 +182,11 @@ public class ApiMediatorImpl extends AbstractService implements ApiMediator, Glo
         Map<String, Object> config = new HashMap<String, Object>();
         config.put("serviceConfigFolders", serviceConfigFolders);
         processor = new ApiMessageProcessorImpl(config);
+        adminLane = new ApiWorkerLane("admin", adminApiWorkerNum, thdf);
+        queryLane = new ApiWorkerLane("query", queryApiWorkerNum, thdf);
+        operationLane = new ApiWorkerLane("operation", apiWorkerNum, thdf);
         bus.registerService(this);
+        jmxf.registerBean("ApiMediator", this);
         return true;
     }
 
@@ -189,6 +204,24 @@ public class ApiMediatorImpl extends AbstractService implements ApiMediator, Glo
         this.apiWorkerNum = apiWorkerNum;
     }
 
+    public void setQueryApiWorkerNum(int queryApiWorkerNum) {
+        this.queryApiWorkerNum = queryApiWorkerNum;
+    }
+
+    public void setAdminApiWorkerNum(int adminApiWorkerNum) {
+        this.adminApiWorkerNum = adminApiWorkerNum;
+    }
+
+    @Override
+    public Map<String, ApiWorkerLaneStatistic> getApiWorkerLaneStatistics() {
+        Map<String, ApiWorkerLaneStatistic> ret = new HashMap<String, ApiWorkerLaneStatistic>();
+        for (ApiWorkerLane lane : list(adminLane, queryLane, operationLane)) {
+            ApiWorkerLaneStatistic stat = lane.getStatistic();
+            ret.put(stat.getLaneName(), stat);
+        }
+        return ret;
+    }
+
     @Override
     public List<Class> getMessageClassToIntercept() {
         List<Class> lst = new ArrayList<Class>();
@@ -0,0 +1,159 @@
+package org.zstack.portal.apimediator;
+
+import org.zstack.core.thread.Task;
+import org.zstack.core.thread.ThreadFacade;
+import org.zstack.utils.Utils;
+import org.zstack.utils.logging.CLogger;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Runs API messages of one class (e.g. queries) with bounded concurrency.
+ *
+ * Messages waiting for a worker are queued per session and the sessions take turns, so a client
+ * flooding the lane only delays its own messages. Once a worker is done with a message it picks
+ * the next one itself instead of submitting a new task.
+ */
+public class ApiWorkerLane {
+    private static final CLogger logger = Utils.getLogger(ApiWorkerLane.class);
+
+    // upper bounds of the wait time histogram buckets in milliseconds, the last bucket is unbounded
+    private static final long[] WAIT_TIME_BUCKETS = {1, 10, 100, 1000, 10000};
+
+    private final String name;
+    private final int concurrency;
+    private final ThreadFacade thdf;
+
+    // guarded by this
+    private final Map<String, LinkedList<PendingMessage>> queues = new HashMap<String, LinkedList<PendingMessage>>();
+    // sessions having queued messages, in the order they get a worker
+    private final LinkedList<String> turns = new LinkedList<String>();
+    private int runningNum;
+    private int queueDepth;
+    private int maxQueueDepth;
+    private long completedNum;
+
+    private final AtomicLongArray waitTimes = new AtomicLongArray(WAIT_TIME_BUCKETS.length + 1);
+    private volatile long maxWaitTime;
+
+    private static class PendingMessage {
+        final Runnable runnable;
+        final long enqueueTime = System.nanoTime();
+
+        PendingMessage(Runnable runnable) {
+            this.runnable = runnable;
+        }
+    }
+
+    public ApiWorkerLane(String name, int concurrency, ThreadFacade thdf) {
+        this.name = name;
+        this.concurrency = Math.max(concurrency, 1);
+        this.thdf = thdf;
+    }
+
+    public void submit(String sessionKey, Runnable runnable) {
+        final PendingMessage pm = new PendingMessage(runnable);
+        synchronized (this) {
+            if (runningNum >= concurrency) {
+                LinkedList<PendingMessage> queue = queues.get(sessionKey);
+                if (queue == null) {
+                    queue = new LinkedList<PendingMessage>();
+                    queues.put(sessionKey, queue);
+                    turns.add(sessionKey);
+                }
+                queue.add(pm);
+                queueDepth ++;
+                maxQueueDepth = Math.max(maxQueueDepth, queueDepth);
+                return;
+            }
+
+            runningNum ++;
+        }
+
+        try {
+            thdf.submit(new Task<Void>() {
+                @Override
+                public String getName() {
+                    return "api.worker." + name;
+                }
+
+                @Override
+                public Void call() throws Exception {
+                    PendingMessage next = pm;
+                    while (next != null) {
+                        run(next);
+                        next = done();
+                    }
+                    return null;
+                }
+            });
+        } catch (RuntimeException e) {
+            // no worker is running for the slot taken above, give it back or the lane shrinks for good
+            synchronized (this) {
+                runningNum --;
+            }
+            throw e;
+        }
+    }
+
+    private void run(PendingMessage pm) {
+        recordWaitTime(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - pm.enqueueTime));
+        try {
+            pm.runnable.run();
+        } catch (Throwable t) {
+            logger.warn(String.format("unhandled exception in api worker lane[%s]", name), t);
+        }
+    }
+
+    // returns the next message to run, or releases the worker if there is none
+    private synchronized PendingMessage done() {
+        completedNum ++;
+
+        String sessionKey = turns.poll();
+        if (sessionKey == null) {
+            runningNum --;
+            return null;
+        }
+
+        LinkedList<PendingMessage> queue = queues.get(sessionKey);
+        PendingMessage pm = queue.poll();
+        if (queue.isEmpty()) {
+            queues.remove(sessionKey);
+        } else {
+            turns.add(sessionKey);
+        }
+        queueDepth --;
+        return pm;
+    }
+
+    private void recordWaitTime(long ms) {
+        int i = 0;
+        while (i < WAIT_TIME_BUCKETS.length && ms >= WAIT_TIME_BUCKETS[i]) {
+            i ++;
+        }
+        waitTimes.incrementAndGet(i);
+
+        if (ms > maxWaitTime) {
+            maxWaitTime = ms;
+        }
+    }
+
+    private static String bucketName(int i) {
+        if (i == WAIT_TIME_BUCKETS.length) {
+            return String.format(">=%sms", WAIT_TIME_BUCKETS[i - 1]);
+        }
+        return String.format("<%sms", WAIT_TIME_BUCKETS[i]);
+    }
+
+    public synchronized ApiWorkerLaneStatistic getStatistic() {
+        Map<String, Long> histogram = new LinkedHashMap<String, Long>();
+        for (int i = 0; i < waitTimes.length(); i++) {
+            histogram.put(bucketName(i), waitTimes.get(i));
+        }
+
+        return new ApiWorkerLaneStatistic(name, concurrency, runningNum, queueDepth, maxQueueDepth,
+                queues.size(), completedNum, maxWaitTime, histogram);
+    }
+}
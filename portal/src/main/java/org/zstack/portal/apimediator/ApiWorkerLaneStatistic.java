@@ -0,0 +1,75 @@
+package org.zstack.portal.apimediator;
+
+import java.beans.ConstructorProperties;
+import java.util.Map;
+
+/**
+ */
+public class ApiWorkerLaneStatistic {
+    private String laneName;
+    private int concurrency;
+    private int runningTaskNum;
+    private int queueDepth;
+    private int maxQueueDepth;
+    private int waitingSessionNum;
+    private long completedTaskNum;
+    private long maxWaitTime;
+    private Map<String, Long> waitTimeHistogram;
+
+    @ConstructorProperties({"laneName", "concurrency", "runningTaskNum", "queueDepth", "maxQueueDepth", "waitingSessionNum",
+            "completedTaskNum", "maxWaitTime", "waitTimeHistogram"})
+    public ApiWorkerLaneStatistic(String laneName, int concurrency, int runningTaskNum, int queueDepth, int maxQueueDepth,
+                                  int waitingSessionNum, long completedTaskNum, long maxWaitTime, Map<String, Long> waitTimeHistogram) {
+        this.laneName = laneName;
+        this.concurrency = concurrency;
+        this.runningTaskNum = runningTaskNum;
+        this.queueDepth = queueDepth;
+        this.maxQueueDepth = maxQueueDepth;
+        this.waitingSessionNum = waitingSessionNum;
+        this.completedTaskNum = completedTaskNum;
+        this.maxWaitTime = maxWaitTime;
+        this.waitTimeHistogram = waitTimeHistogram;
+    }
+
+    public String getLaneName() {
+        return laneName;
+    }
+
+    public int getConcurrency() {
+        return concurrency;
+    }
+
+    public int getRunningTaskNum() {
+        return runningTaskNum;
+    }
+
+    public int getQueueDepth() {
+        return queueDepth;
+    }
+
+    public int getMaxQueueDepth() {
+        return maxQueueDepth;
+    }
+
+    public int getWaitingSessionNum() {
+        return waitingSessionNum;
+    }
+
+    public long getCompletedTaskNum() {
+        return completedTaskNum;
+    }
+
+    /**
+     * milliseconds a message waited for a worker
+     */
+    public long getMaxWaitTime() {
+        return maxWaitTime;
+    }
+
+    /**
+     * number of messages by milliseconds they waited for a worker
+     */
+    public Map<String, Long> getWaitTimeHistogram() {
+        return waitTimeHistogram;
+    }
+}
@@ -1,5 +1,6 @@
 package org.zstack.query;
 
+import org.apache.commons.codec.binary.Base64;
 import org.apache.commons.lang.StringUtils;
 import org.objenesis.Objenesis;
 import org.objenesis.ObjenesisStd;
@@ -8,6 +9,7 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.transaction.annotation.Transactional;
 import org.zstack.core.componentloader.PluginRegistry;
 import org.zstack.core.db.DatabaseFacade;
+import org.zstack.core.jmx.JmxFacade;
 import org.zstack.core.errorcode.ErrorFacade;
 import org.zstack.header.Component;
 import org.zstack.header.apimediator.ApiMessageInterceptionException;
@@ -29,6 +31,7 @@ import org.zstack.utils.logging.CLogger;
 
 import javax.persistence.*;
 import javax.persistence.metamodel.StaticMetamodel;
+import java.io.UnsupportedEncodingException;
 import java.lang.reflect.Field;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
@@ -40,7 +43,7 @@ import static org.zstack.utils.StringDSL.s;
 
 /**
  */
-public class MysqlQueryBuilderImpl3 implements Component, QueryBuilder, GlobalApiMessageInterceptor, PythonApiBindingWriter {
+public class MysqlQueryBuilderImpl3 implements Component, QueryBuilder, GlobalApiMessageInterceptor, PythonApiBindingWriter, MysqlQueryBuilderMXBean {
     private static final CLogger logger = Utils.getLogger(MysqlQueryBuilderImpl3.class);
 
     @Autowired
@@ -49,10 +52,15 @@ public class MysqlQueryBuilderImpl3 implements Component, QueryBuilder, GlobalAp
     private ErrorFacade errf;
     @Autowired
     private PluginRegistry pluginRgty;
+    @Autowired
+    private JmxFacade jmxf;
 
     private Objenesis objenesis = new ObjenesisStd();
+    private QueryPlanCache<QueryPlan> planCache;
 
     private static final String USER_TAG = "__userTag__";
+    private static final String KEYSET_SORT_VALUE = "keyset_sort_value";
+    private static final String KEYSET_PRIMARY_KEY = "keyset_primary_key";
     private static final String SYSTEM_TAG = "__systemTag__";
 
     @Override
@@ -322,6 +330,59 @@ public class MysqlQueryBuilderImpl3 implements Component, QueryBuilder, GlobalAp
         }
     }
 
+    private static Object stringToEntityValue(String value, Class entityType) throws Exception {
+        if (Timestamp.class.isAssignableFrom(entityType)) {
+            return Timestamp.valueOf(value);
+        } else if (Enum.class.isAssignableFrom(entityType)) {
+            Method valueOf = entityType.getMethod("valueOf", String.class);
+            return valueOf.invoke(entityType, value);
+        } else if (Boolean.class.isAssignableFrom(entityType) || Boolean.TYPE.isAssignableFrom(entityType)) {
+            return Boolean.valueOf(value);
+        } else {
+            return TypeUtils.stringToValue(value, entityType);
+        }
+    }
+
+    private static String entityValueToString(Object value) {
+        if (value == null) {
+            return null;
+        }
+
+        return value instanceof Enum ? ((Enum) value).name() : value.toString();
+    }
+
+    /**
+     * the position of the last row of a keyset page: its sort field value and primary key.
+     * It's handed to clients as an opaque URL safe string.
+     */
+    private static class KeysetToken {
+        String sortBy;
+        String sortDirection;
+        String sortValue;
+        boolean sortValueNull;
+        String primaryKey;
+
+        String encode() {
+            try {
+                return Base64.encodeBase64URLSafeString(JSONObjectUtil.toJsonString(this).getBytes("UTF-8"));
+            } catch (UnsupportedEncodingException e) {
+                throw new CloudRuntimeException(e);
+            }
+        }
+
+        static KeysetToken decode(String token) {
+            try {
+                KeysetToken ret = JSONObjectUtil.toObject(new String(Base64.decodeBase64(token), "UTF-8"), KeysetToken.class);
+                if (ret == null || ret.primaryKey == null) {
+                    throw new IllegalArgumentException("no primary key");
+                }
+                return ret;
+            } catch (Exception e) {
+                throw new IllegalArgumentException(String.format("invalid continuationToken[%s]", token), e);
+            }
+        }
+    }
+
     private class MetaCondition {
         String attr;
         String op;
@@ -329,6 +390,8 @@ public class MysqlQueryBuilderImpl3 implements Component, QueryBuilder, GlobalAp
         Class inventoryClass;
         String attrValueName;
         boolean skipInventoryCheck;
+        // index of the QueryCondition this condition is built from, see QueryContext.sourceConditions
+        int sourceIndex;
 
         private Field entityField;
 
@@ -353,23 +416,13 @@ public class MysqlQueryBuilderImpl3 implements Component, QueryBuilder, GlobalAp
 
         private Object doNormalizeValue(String value) {
             try {
-                Class entityType = getEntityFieldType();
-                if (Timestamp.class.isAssignableFrom(entityType)) {
-                    return Timestamp.valueOf(value);
-                } else if (Enum.class.isAssignableFrom(entityType)) {
-                    Method valueOf = entityType.getMethod("valueOf", String.class);
-                    return valueOf.invoke(entityType, value);
-                } else if (Boolean.class.isAssignableFrom(entityType) || Boolean.TYPE.isAssignableFrom(entityType)) {
-                    return Boolean.valueOf(value);
-                } else {
-                    return TypeUtils.stringToValue(value, entityType);
-                }
+                return stringToEntityValue(value, getEntityFieldType());
             } catch (Exception e) {
                 throw new CloudRuntimeException(String.format("failed to parse value[%s]", value), e);
             }
         }
 
-        Object normalizeValue() {
+        Object normalizeValue(String value) {
             if (QueryOp.IS_NULL.equals(op) || QueryOp.NOT_NULL.equals(op)) {
                 return null;
             }
@@ -483,6 +536,11 @@ public class MysqlQueryBuilderImpl3 implements Component, QueryBuilder, GlobalAp
         List<QueryObject> children = new ArrayList<QueryObject>();
         SubQueryInfo subQueryInfo;
         APIQueryMessage msg;
+        // sub queries made by MysqlQuerySubQueryExtension, root query only
+        List<String> extensionSubQueries;
+        // keyset paging of the root query; seekFrom is null for the first page
+        boolean keysetPaging;
+        KeysetToken seekFrom;
 
         // NOTE: we hard code tag specific logic here because we think current query model is not sustainable,
         // it worth nothing to waste effort on making this as extension point; we will switch the entire
@@ -662,15 +720,13 @@ public class MysqlQueryBuilderImpl3 implements Component, QueryBuilder, GlobalAp
                 throw new CloudRuntimeException("cannot be here");
             } else {
                 // this is root query
-                for (MysqlQuerySubQueryExtension ext : subQueryExtensions) {
-                    String sub = ext.makeSubquery(msg, info.inventoryClass);
-                    if (sub != null) {
-                        where.add(sub);
-                    }
-                }
+                where.addAll(extensionSubQueries);
 
                 String entityName = info.inventoryClass.getSimpleName().toLowerCase();
                 String entity = info.entityClass.getSimpleName();
+                if (!isCount && seekFrom != null) {
+                    where.add(makeSeekCondition(entityName));
+                }
                 String condition = StringUtils.join(where, " and ").trim();
                 if (isCount) {
                     if (where.isEmpty()) {
@@ -686,6 +742,11 @@ public class MysqlQueryBuilderImpl3 implements Component, QueryBuilder, GlobalAp
                         for (String f : msg.getFields()) {
                             ss.add(String.format("%s.%s", entityName, f));
                         }
+                        if (keysetPaging) {
+                            // the position of the last row is read from the two trailing columns
+                            ss.add(String.format("%s.%s", entityName, msg.getSortBy() == null ? info.primaryKey : msg.getSortBy()));
+                            ss.add(String.format("%s.%s", entityName, info.primaryKey));
+                        }
                         selector = StringUtils.join(ss, ",");
                     } else {
                         selector = entityName;
@@ -703,11 +764,53 @@ public class MysqlQueryBuilderImpl3 implements Component, QueryBuilder, GlobalAp
                         }
 
                         ret = String.format("%s order by %s.%s %s", ret, entityName, msg.getSortBy(), msg.getSortDirection().toUpperCase());
+                        if (keysetPaging) {
+                            ret = String.format("%s, %s.%s %s", ret, entityName, info.primaryKey, msg.getSortDirection().toUpperCase());
+                        }
+                    } else if (keysetPaging) {
+                        ret = String.format("%s order by %s.%s %s", ret, entityName, info.primaryKey, "desc".equalsIgnoreCase(msg.getSortDirection()) ? "DESC" : "ASC");
                     }
                     return ret;
                 }
             }
         }
+
+        // MySQL sorts NULL as the smallest value
+        private String makeSeekCondition(String entityName) {
+            boolean desc = "desc".equalsIgnoreCase(msg.getSortDirection());
+            String pk = String.format("%s.%s", entityName, info.primaryKey);
+            String cmp = desc ? "<" : ">";
+            if (msg.getSortBy() == null) {
+                return String.format("%s %s :%s", pk, cmp, KEYSET_PRIMARY_KEY);
+            }
+
+            String sort = String.format("%s.%s", entityName, msg.getSortBy());
+            if (seekFrom.sortValueNull) {
+                if (desc) {
+                    return String.format("(%s is null and %s < :%s)", sort, pk, KEYSET_PRIMARY_KEY);
+                } else {
+                    return String.format("((%s is null and %s > :%s) or %s is not null)", sort, pk, KEYSET_PRIMARY_KEY, sort);
+                }
+            }
+
+            String ret = String.format("(%s %s :%s or (%s = :%s and %s %s :%s)", sort, cmp, KEYSET_SORT_VALUE,
+                    sort, KEYSET_SORT_VALUE, pk, cmp, KEYSET_PRIMARY_KEY);
+            return desc ? ret + String.format(" or %s is null)", sort) : ret + ")";
+        }
+    }
+
+    private class ParameterSlot {
+        MetaCondition condition;
+        int sourceIndex;
+    }
+
+    /**
+     * the JPQL generated for a query shape and the parameters to bind; a plan only refers to
+     * source conditions by index, so it can be reused by any query having the same shape
+     */
+    private class QueryPlan {
+        String jpql;
+        List<ParameterSlot> slots = new ArrayList<ParameterSlot>();
     }
 
     private class QueryContext {
@@ -715,17 +818,23 @@ public class MysqlQueryBuilderImpl3 implements Component, QueryBuilder, GlobalAp
         private Class inventoryClass;
         private QueryObject root;
         private Map<Class, QueryObject> tmpMap = new HashMap<Class, QueryObject>();
+        // conditions of the message that are not escaped, followed by extra conditions from extensions
+        private List<QueryCondition> sourceConditions = new ArrayList<QueryCondition>();
+        private int extraConditionStart;
+        private List<String> extensionSubQueries = new ArrayList<String>();
+        private KeysetToken seekFrom;
 
-        private MetaCondition buildCondition(QueryCondition qcond, EntityInfo info) {
+        private MetaCondition buildCondition(QueryCondition qcond, EntityInfo info, int sourceIndex) {
             MetaCondition mcond = new MetaCondition();
             mcond.attr = qcond.getName();
             mcond.op = qcond.getOp();
             mcond.inventoryClass = info.inventoryClass;
             mcond.value = qcond.getValue();
+            mcond.sourceIndex = sourceIndex;
             return mcond;
         }
 
-        private void buildSubQuery(QueryCondition qcond, QueryObject parent) {
+        private void buildSubQuery(QueryCondition qcond, QueryObject parent, int sourceIndex) {
             String[] slices = qcond.getName().split("\\.");
             String currentFieldName = slices[0];
             Class parentInvClass = parent.info.inventoryClass;
@@ -741,7 +850,7 @@ public class MysqlQueryBuilderImpl3 implements Component, QueryBuilder, GlobalAp
                     ncond.setName(qcond.getName().replaceFirst(alias.alias, alias.expandField));
                     ncond.setOp(qcond.getOp());
                     ncond.setValue(qcond.getValue());
-                    buildSubQuery(ncond, parent);
+                    buildSubQuery(ncond, parent, sourceIndex);
                     return;
                 }
             }
@@ -791,13 +900,13 @@ public class MysqlQueryBuilderImpl3 implements Component, QueryBuilder, GlobalAp
             ncond.setValue(qcond.getValue());
 
             if (!subFieldName.contains(".")) {
-                qobj.conditions.add(buildCondition(ncond, info));
+                qobj.conditions.add(buildCondition(ncond, info, sourceIndex));
             } else {
-                buildSubQuery(ncond, qobj);
+                buildSubQuery(ncond, qobj, sourceIndex);
             }
         }
 
-        private void buildMetaCondition(QueryCondition qcond, EntityInfo info, boolean skipInventoryCheck) {
+        private void buildMetaCondition(QueryCondition qcond, EntityInfo info, boolean skipInventoryCheck, int sourceIndex) {
             QueryObject qobj = tmpMap.get(info.entityClass);
             if (qobj == null) {
                 qobj = new QueryObject();
@@ -805,40 +914,27 @@ public class MysqlQueryBuilderImpl3 implements Component, QueryBuilder, GlobalAp
                 tmpMap.put(info.entityClass, qobj);
             }
 
-            MetaCondition mcond = buildCondition(qcond, info);
+            MetaCondition mcond = buildCondition(qcond, info, sourceIndex);
             mcond.skipInventoryCheck = skipInventoryCheck;
             qobj.conditions.add(mcond);
         }
 
-        private void buildMetaCondition(QueryCondition qcond, EntityInfo info) {
-            buildMetaCondition(qcond, info, false);
-        }
-
-        private String build(boolean isCount) {
-            root = new QueryObject();
-            root.msg = msg;
-            root.info = entityInfos.get(inventoryClass);
-            DebugUtils.Assert(root.info!=null, String.format("class[%s] is not annotated by @Inventory", inventoryClass.getName()));
-            tmpMap.put(root.info.entityClass, root);
-
+        private void collectSourceConditions() {
             for (QueryCondition qcond : msg.getConditions()) {
                 if (escapeConditionNames.contains(qcond.getName())) {
                     continue;
                 }
 
-                if (!qcond.getName().contains(".")) {
-                    buildMetaCondition(qcond, root.info);
-                } else {
-                    buildSubQuery(qcond, root);
-                }
+                sourceConditions.add(qcond);
             }
 
+            extraConditionStart = sourceConditions.size();
             List<AddExtraConditionToQueryExtensionPoint> exts = extraConditionsExts.get(msg.getClass());
             if (exts != null) {
                 for (AddExtraConditionToQueryExtensionPoint ext : exts) {
                     try {
                         for (QueryCondition cond : ext.getExtraQueryConditionForMessage(msg)) {
-                            buildMetaCondition(cond, root.info, true);
+                            sourceConditions.add(cond);
                         }
                     } catch (Throwable t) {
                         logger.warn(String.format("unhandled exception when calling %s", ext.getClass().getName()), t);
@@ -846,67 +942,234 @@ public class MysqlQueryBuilderImpl3 implements Component, QueryBuilder, GlobalAp
                 }
             }
 
+            for (MysqlQuerySubQueryExtension ext : subQueryExtensions) {
+                String sub = ext.makeSubquery(msg, inventoryClass);
+                if (sub != null) {
+                    extensionSubQueries.add(sub);
+                }
+            }
+        }
+
+        private boolean isTagCondition(String name) {
+            return name.equals(USER_TAG) || name.equals(SYSTEM_TAG) || name.endsWith("." + USER_TAG) || name.endsWith("." + SYSTEM_TAG);
+        }
+
+        /**
+         * everything that makes the generated JPQL different. Values of ordinary conditions are bound as
+         * parameters so they are not part of the key; tag conditions and sub queries of extensions are
+         * written into the JPQL literally so they are.
+         */
+        private String makePlanKey(boolean isCount) {
+            StringBuilder sb = new StringBuilder();
+            sb.append(isCount ? "count" : "query").append('|').append(msg.getClass().getName()).append('|').append(inventoryClass.getName());
+            if (!isCount) {
+                if (msg.isFieldQuery()) {
+                    sb.append("|fields:").append(StringUtils.join(msg.getFields(), ","));
+                }
+                if (msg.getSortBy() != null) {
+                    sb.append("|sort:").append(msg.getSortBy()).append(' ').append(msg.getSortDirection());
+                }
+                if (msg.isKeysetPaging()) {
+                    sb.append("|keyset:").append(msg.getSortDirection());
+                    if (seekFrom != null) {
+                        sb.append(seekFrom.sortValueNull ? " seek-null" : " seek");
+                    }
+                }
+            }
+
+            for (int i = 0; i < sourceConditions.size(); i++) {
+                QueryCondition qcond = sourceConditions.get(i);
+                sb.append(i < extraConditionStart ? "|cond:" : "|extra:").append(qcond.getName()).append(' ').append(qcond.getOp());
+                if (isTagCondition(qcond.getName())) {
+                    sb.append(' ').append(qcond.getValue());
+                }
+            }
+
+            for (String sub : extensionSubQueries) {
+                sb.append("|sub:").append(sub);
+            }
+
+            return sb.toString();
+        }
+
+        private String build(boolean isCount) {
+            root = new QueryObject();
+            root.msg = msg;
+            root.info = entityInfos.get(inventoryClass);
+            DebugUtils.Assert(root.info!=null, String.format("class[%s] is not annotated by @Inventory", inventoryClass.getName()));
+            root.extensionSubQueries = extensionSubQueries;
+            if (!isCount) {
+                root.keysetPaging = msg.isKeysetPaging();
+                root.seekFrom = seekFrom;
+            }
+            tmpMap.put(root.info.entityClass, root);
+
+            for (int i = 0; i < sourceConditions.size(); i++) {
+                QueryCondition qcond = sourceConditions.get(i);
+                if (i >= extraConditionStart) {
+                    buildMetaCondition(qcond, root.info, true, i);
+                } else if (!qcond.getName().contains(".")) {
+                    buildMetaCondition(qcond, root.info, false, i);
+                } else {
+                    buildSubQuery(qcond, root, i);
+                }
+            }
+
             return root.toJpql(isCount);
         }
 
-        private void setQueryValue(Query q, QueryObject qobj) {
+        private void collectParameterSlots(QueryObject qobj, List<ParameterSlot> slots) {
             for (MetaCondition mcond : qobj.conditions) {
                 if (USER_TAG.equals(mcond.attr) || SYSTEM_TAG.equals(mcond.attr)) {
                     continue;
                 }
 
-                Object val = mcond.normalizeValue();
+                ParameterSlot slot = new ParameterSlot();
+                slot.condition = mcond;
+                slot.sourceIndex = mcond.sourceIndex;
+                slots.add(slot);
+            }
+            for (QueryObject child : qobj.children) {
+                collectParameterSlots(child, slots);
+            }
+        }
+
+        private QueryPlan getPlan(boolean isCount) {
+            collectSourceConditions();
+            String key = makePlanKey(isCount);
+            QueryPlan plan = planCache.get(key);
+            if (plan != null) {
+                return plan;
+            }
+
+            plan = new QueryPlan();
+            plan.jpql = build(isCount);
+            collectParameterSlots(root, plan.slots);
+            planCache.put(key, plan);
+            return plan;
+        }
+
+        private void setQueryValue(Query q, QueryPlan plan) {
+            for (ParameterSlot slot : plan.slots) {
+                Object val = slot.condition.normalizeValue(sourceConditions.get(slot.sourceIndex).getValue());
                 if (val != null) {
-                    q.setParameter(mcond.attrValueName, val);
+                    q.setParameter(slot.condition.attrValueName, val);
                 }
             }
-            for (QueryObject child : qobj.children) {
-                setQueryValue(q, child);
+        }
+
+        private void setSeekValue(Query q) {
+            EntityInfo info = entityInfos.get(inventoryClass);
+            try {
+                q.setParameter(KEYSET_PRIMARY_KEY, stringToEntityValue(seekFrom.primaryKey, info.entityPrimaryKeyField.getType()));
+                if (msg.getSortBy() != null && !seekFrom.sortValueNull) {
+                    Field sortField = FieldUtils.getField(msg.getSortBy(), info.entityClass);
+                    q.setParameter(KEYSET_SORT_VALUE, stringToEntityValue(seekFrom.sortValue, sortField.getType()));
+                }
+            } catch (Exception e) {
+                throw new OperationFailureException(errf.stringToInvalidArgumentError(
+                        String.format("invalid continuationToken[%s], %s", msg.getContinuationToken(), e.getMessage())
+                ));
+            }
+        }
+
+        private void parseContinuationToken() {
+            if (msg.getStart() != null) {
+                throw new OperationFailureException(errf.stringToInvalidArgumentError("'start' cannot be used with keyset paging"));
+            }
+
+            if (msg.getContinuationToken() == null) {
+                return;
+            }
+
+            try {
+                seekFrom = KeysetToken.decode(msg.getContinuationToken());
+            } catch (IllegalArgumentException e) {
+                throw new OperationFailureException(errf.stringToInvalidArgumentError(e.getMessage()));
+            }
+
+            if (!StringUtils.equals(seekFrom.sortBy, msg.getSortBy()) || !StringUtils.equals(seekFrom.sortDirection, msg.getSortDirection())) {
+                throw new OperationFailureException(errf.stringToInvalidArgumentError(
+                        String.format("the continuationToken was issued for sortBy[%s] sortDirection[%s], but the query has sortBy[%s] sortDirection[%s]",
+                                seekFrom.sortBy, seekFrom.sortDirection, msg.getSortBy(), msg.getSortDirection())
+                ));
             }
         }
 
+        private String makeContinuationToken(Object last) {
+            EntityInfo info = entityInfos.get(inventoryClass);
+            KeysetToken token = new KeysetToken();
+            token.sortBy = msg.getSortBy();
+            token.sortDirection = msg.getSortDirection();
+            Object sortValue;
+            Object primaryKey;
+            if (msg.isFieldQuery()) {
+                Tuple tuple = (Tuple) last;
+                int size = msg.getFields().size();
+                sortValue = tuple.get(size);
+                primaryKey = tuple.get(size + 1);
+            } else {
+                primaryKey = info.getPrimaryKeyValue(last);
+                sortValue = null;
+                if (msg.getSortBy() != null) {
+                    Field sortField = FieldUtils.getField(msg.getSortBy(), info.entityClass);
+                    sortField.setAccessible(true);
+                    try {
+                        sortValue = sortField.get(last);
+                    } catch (IllegalAccessException e) {
+                        throw new CloudRuntimeException(e);
+                    }
+                }
+            }
+
+            if (msg.getSortBy() != null) {
+                token.sortValue = entityValueToString(sortValue);
+                token.sortValueNull = sortValue == null;
+            }
+            token.primaryKey = entityValueToString(primaryKey);
+            return token.encode();
+        }
+
 
         public List convertVOsToInventories(final List vos) {
+            final EntityInfo rootInfo = entityInfos.get(inventoryClass);
             try {
                 if (vos.isEmpty()) {
                     return new ArrayList();
                 }
 
-                if (root.info.children.isEmpty()) {
-                    return (List) root.info.inventoryCollectionValueOf.invoke(inventoryClass, vos);
+                if (rootInfo.children.isEmpty()) {
+                    return (List) rootInfo.inventoryCollectionValueOf.invoke(inventoryClass, vos);
                 }
 
-                final LinkedHashMap flatMap = new LinkedHashMap();
-                final List primaryKeysNeedResolve = new ArrayList();
+                final LinkedHashMap flatMap = new LinkedHashMap(vos.size() * 4 / 3 + 1);
+                // primary keys of child inventories grouped by the concrete child the type field points to
+                final Map<EntityInfo, List> primaryKeysNeedResolve = new LinkedHashMap<EntityInfo, List>();
                 for (Object vo : vos) {
-                    String type = (String) root.info.entityTypeField.get(vo);
-                    Object priKey = root.info.getPrimaryKeyValue(vo);
-                    if (!root.info.flatTypeEntityMap.containsKey(type)) {
-                        flatMap.put(priKey, root.info.inventoryValueOf.invoke(inventoryClass, vo));
+                    String type = (String) rootInfo.entityTypeField.get(vo);
+                    Object priKey = rootInfo.getPrimaryKeyValue(vo);
+                    EntityInfo child = rootInfo.flatTypeEntityMap.get(type);
+                    if (child == null) {
+                        flatMap.put(priKey, rootInfo.inventoryValueOf.invoke(inventoryClass, vo));
                     } else {
                         flatMap.put(priKey, null);
-                        primaryKeysNeedResolve.add(priKey);
+                        List keys = primaryKeysNeedResolve.get(child);
+                        if (keys == null) {
+                            keys = new ArrayList();
+                            primaryKeysNeedResolve.put(child, keys);
+                        }
+                        keys.add(priKey);
                     }
-
                 }
 
                 if (primaryKeysNeedResolve.isEmpty()) {
-                    return (List) root.info.inventoryCollectionValueOf.invoke(inventoryClass, vos);
+                    return (List) rootInfo.inventoryCollectionValueOf.invoke(inventoryClass, vos);
                 }
 
-                // the inventory has child inventory inheriting it, we have to find out all child inventory and
-                // reload them from DB and keep them in order.
+                // the inventory has child inventories inheriting it, reload the child VOs from DB, one query
+                // per child type present in the result, and put them back in order.
                 class SubInventoryResolver {
-
-                    class SQL {
-                        String sql;
-                        EntityInfo entityInfo;
-                    }
-
-                    List<SQL> subInventoryQuerySQL = new ArrayList<SQL>();
-
                     List resolve() throws InvocationTargetException, IllegalAccessException {
-                        buildSubInventoryQuerySQL(root.info.children);
                         querySubInventory();
 
                         List result = new ArrayList(flatMap.values().size());
@@ -916,38 +1179,72 @@ public class MysqlQueryBuilderImpl3 implements Component, QueryBuilder, GlobalAp
 
                     @Transactional(readOnly = true)
                     private void querySubInventory() throws InvocationTargetException, IllegalAccessException {
-                        for (SQL sql : subInventoryQuerySQL) {
-                            if (primaryKeysNeedResolve.isEmpty()) {
-                                break;
-                            }
+                        for (Map.Entry<EntityInfo, List> e : primaryKeysNeedResolve.entrySet()) {
+                            resolve(e.getKey(), e.getValue());
+                        }
+                    }
 
-                            TypedQuery<Tuple> q = dbf.getEntityManager().createQuery(sql.sql, Tuple.class);
-                            q.setParameter("ids", primaryKeysNeedResolve);
-                            List<Tuple> res = q.getResultList();
+                    private List<Tuple> load(EntityInfo info, Collection ids) {
+                        String sql = String.format("select e.%s, e from %s e where e.%s in (:ids)", info.primaryKey, info.entityClass.getSimpleName(), info.primaryKey);
+                        TypedQuery<Tuple> q = dbf.getEntityManager().createQuery(sql, Tuple.class);
+                        q.setParameter("ids", ids);
+                        return q.getResultList();
+                    }
 
-                            for (Tuple t : res) {
-                                Object priKey = t.get(0);
-                                Object vo = t.get(1);
-                                flatMap.put(priKey, sql.entityInfo.inventoryValueOf.invoke(sql.entityInfo.inventoryClass, vo));
-                                primaryKeysNeedResolve.remove(priKey);
+                    private void resolve(EntityInfo info, List ids) throws InvocationTargetException, IllegalAccessException {
+                        if (!info.children.isEmpty() && info.entityTypeField == null) {
+                            // no type field tells which grandchild a row belongs to
+                            resolveByProbing(info, ids);
+                            return;
+                        }
+
+                        Map<EntityInfo, List> grandChildren = new LinkedHashMap<EntityInfo, List>();
+                        for (Tuple t : load(info, ids)) {
+                            Object priKey = t.get(0);
+                            Object vo = t.get(1);
+                            EntityInfo child = info.entityTypeField == null ? null : info.flatTypeEntityMap.get((String) info.entityTypeField.get(vo));
+                            if (child == null) {
+                                flatMap.put(priKey, info.inventoryValueOf.invoke(info.inventoryClass, vo));
+                            } else {
+                                List keys = grandChildren.get(child);
+                                if (keys == null) {
+                                    keys = new ArrayList();
+                                    grandChildren.put(child, keys);
+                                }
+                                keys.add(priKey);
                             }
                         }
+
+                        for (Map.Entry<EntityInfo, List> e : grandChildren.entrySet()) {
+                            resolve(e.getKey(), e.getValue());
+                        }
                     }
 
-                    private void buildSubInventoryQuerySQL(List<EntityInfo> infos) {
-                        // child queries execute first
-                        for (EntityInfo info : infos) {
-                            if (!info.children.isEmpty()) {
-                                buildSubInventoryQuerySQL(info.children);
+                    private void resolveByProbing(EntityInfo info, List ids) throws InvocationTargetException, IllegalAccessException {
+                        // deepest entities first, each query only asks for keys not resolved yet
+                        List<EntityInfo> infos = new ArrayList<EntityInfo>();
+                        collectDescendants(info, infos);
+                        infos.add(info);
+
+                        Set remaining = new HashSet(ids);
+                        for (EntityInfo i : infos) {
+                            if (remaining.isEmpty()) {
+                                break;
+                            }
+
+                            for (Tuple t : load(i, remaining)) {
+                                Object priKey = t.get(0);
+                                flatMap.put(priKey, i.inventoryValueOf.invoke(i.inventoryClass, t.get(1)));
+                                remaining.remove(priKey);
                             }
                         }
+                    }
 
-                        for (EntityInfo info : infos) {
-                            SQL sql = new SQL();
-                            sql.entityInfo = info;
-                            sql.sql = String.format("select e.%s, e from %s e where e.%s in (:ids)", info.primaryKey, info.entityClass.getSimpleName(), info.primaryKey);
-                            subInventoryQuerySQL.add(sql);
+                    private void collectDescendants(EntityInfo info, List<EntityInfo> result) {
+                        for (EntityInfo child : info.children) {
+                            collectDescendants(child, result);
                         }
+                        result.addAll(info.children);
                     }
                 }
 
@@ -1000,19 +1297,25 @@ public class MysqlQueryBuilderImpl3 implements Component, QueryBuilder, GlobalAp
         }
 
         @Transactional(readOnly = true)
-        List query() {
+        QueryPage query() {
             if (msg.isFieldQuery()) {
                 validateFields();
             }
+            if (msg.isKeysetPaging()) {
+                parseContinuationToken();
+            }
 
-            String jpql = build(false);
-            Query q = msg.isFieldQuery() ? dbf.getEntityManager().createQuery(jpql, Tuple.class) : dbf.getEntityManager().createQuery(jpql);
+            QueryPlan plan = getPlan(false);
+            Query q = msg.isFieldQuery() ? dbf.getEntityManager().createQuery(plan.jpql, Tuple.class) : dbf.getEntityManager().createQuery(plan.jpql);
 
             if (logger.isTraceEnabled()) {
                 org.hibernate.Query hq = q.unwrap(org.hibernate.Query.class);
                 logger.trace(hq.getQueryString());
             }
-            setQueryValue(q, root);
+            setQueryValue(q, plan);
+            if (seekFrom != null) {
+                setSeekValue(q);
+            }
             if (msg.getLimit() != null) {
                 q.setMaxResults(msg.getLimit());
             }
@@ -1022,22 +1325,27 @@ public class MysqlQueryBuilderImpl3 implements Component, QueryBuilder, GlobalAp
 
             List vos = q.getResultList();
 
+            String token = null;
+            if (msg.isKeysetPaging() && msg.getLimit() != null && !vos.isEmpty() && vos.size() >= msg.getLimit()) {
+                token = makeContinuationToken(vos.get(vos.size() - 1));
+            }
+
             if (msg.isFieldQuery()) {
-                return convertFieldsTOPartialInventories(vos);
+                return new QueryPage(convertFieldsTOPartialInventories(vos), token);
             } else {
-                return convertVOsToInventories(vos);
+                return new QueryPage(convertVOsToInventories(vos), token);
             }
         }
 
         @Transactional(readOnly = true)
         long count() {
-            String jpql = build(true);
-            Query q = dbf.getEntityManager().createQuery(jpql);
+            QueryPlan plan = getPlan(true);
+            Query q = dbf.getEntityManager().createQuery(plan.jpql);
             if (logger.isTraceEnabled()) {
                 org.hibernate.Query hq = q.unwrap(org.hibernate.Query.class);
                 logger.trace(hq.getQueryString());
             }
-            setQueryValue(q, root);
+            setQueryValue(q, plan);
             return (Long)q.getSingleResult();
         }
     }
@@ -1144,6 +1452,8 @@ public class MysqlQueryBuilderImpl3 implements Component, QueryBuilder, GlobalAp
                 inventoryQueryMessageMap.put(at.inventoryClass(), msgClass);
             }
 
+            planCache = new QueryPlanCache<QueryPlan>(QueryGlobalProperty.PLAN_CACHE_SIZE);
+
             // NOTE: don't change the order
             populateExtensions();
             buildExpandedQueryAliasInfo();
@@ -1155,9 +1465,15 @@ public class MysqlQueryBuilderImpl3 implements Component, QueryBuilder, GlobalAp
             throw new CloudRuntimeException(e);
         }
 
+        jmxf.registerBean("MysqlQueryBuilder", this);
         return true;
     }
 
+    @Override
+    public QueryPlanCacheStatistic getQueryPlanCacheStatistic() {
+        return planCache.getStatistic();
+    }
+
     private void removeSuppressedExpandedQuery() {
         for (EntityInfo info : entityInfos.values()) {
             Map<String, ExpandedQueryStruct> ess = new HashMap<String, ExpandedQueryStruct>();
@@ -1258,6 +1574,11 @@ public class MysqlQueryBuilderImpl3 implements Component, QueryBuilder, GlobalAp
 
     @Override
     public <T> List<T> query(APIQueryMessage msg, Class<T> inventoryClass) {
+        return queryPage(msg, inventoryClass).getInventories();
+    }
+
+    @Override
+    public <T> QueryPage<T> queryPage(APIQueryMessage msg, Class<T> inventoryClass) {
         QueryContext context = new QueryContext();
         context.msg = msg;
         context.inventoryClass = selectInventoryClass(msg, inventoryClass);
@@ -1265,6 +1586,34 @@ public class MysqlQueryBuilderImpl3 implements Component, QueryBuilder, GlobalAp
         return context.query();
     }
 
+    @Override
+    public <T> void stream(APIQueryMessage msg, Class<T> inventoryClass, int batchSize, QueryStreamConsumer<T> consumer) {
+        DebugUtils.Assert(batchSize > 0, "batchSize must be greater than 0");
+
+        Integer limit = msg.getLimit();
+        boolean keysetPaging = msg.isKeysetPaging();
+        String token = msg.getContinuationToken();
+        msg.setLimit(batchSize);
+        msg.setKeysetPaging(true);
+        try {
+            // every page runs in its own transaction, so VOs of consumed pages are released
+            while (true) {
+                QueryPage<T> page = queryPage(msg, inventoryClass);
+                if (!page.getInventories().isEmpty() && !consumer.consume(page.getInventories())) {
+                    return;
+                }
+                if (page.getContinuationToken() == null) {
+                    return;
+                }
+                msg.setContinuationToken(page.getContinuationToken());
+            }
+        } finally {
+            msg.setLimit(limit);
+            msg.setKeysetPaging(keysetPaging);
+            msg.setContinuationToken(token);
+        }
+    }
+
     private Class selectInventoryClass(APIQueryMessage msg, Class inventoryClass) {
         EntityInfo info = entityInfos.get(inventoryClass);
         return info.selectInventoryClass(msg);
@@ -0,0 +1,7 @@
+package org.zstack.query;
+
+/**
+ */
+public interface MysqlQueryBuilderMXBean {
+    QueryPlanCacheStatistic getQueryPlanCacheStatistic();
+}
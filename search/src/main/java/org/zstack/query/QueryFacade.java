@@ -2,11 +2,17 @@ package org.zstack.query;
 
 import org.zstack.header.query.APIQueryMessage;
 import org.zstack.header.query.QueryCondition;
+import org.zstack.header.query.QueryPage;
+import org.zstack.header.query.QueryStreamConsumer;
 
 import java.util.List;
 
 public interface QueryFacade {
     <T> List<T> query(APIQueryMessage msg, Class<T> inventoryClass);
 
+    <T> QueryPage<T> queryPage(APIQueryMessage msg, Class<T> inventoryClass);
+
+    <T> void stream(APIQueryMessage msg, Class<T> inventoryClass, int batchSize, QueryStreamConsumer<T> consumer);
+
     long count(APIQueryMessage msg, Class inventoryClass);
 }
@@ -57,6 +57,24 @@ public class QueryFacadeImpl extends AbstractService implements QueryFacade, Glo
         return builder.query(msg, inventoryClass);
     }
 
+    @Override
+    public <T> QueryPage<T> queryPage(APIQueryMessage msg, Class<T> inventoryClass) {
+        validateConditions(msg.getConditions());
+
+        QueryBuilderFactory factory = getFactory(queryBuilderType);
+        QueryBuilder builder = factory.createQueryBuilder();
+        return builder.queryPage(msg, inventoryClass);
+    }
+
+    @Override
+    public <T> void stream(APIQueryMessage msg, Class<T> inventoryClass, int batchSize, QueryStreamConsumer<T> consumer) {
+        validateConditions(msg.getConditions());
+
+        QueryBuilderFactory factory = getFactory(queryBuilderType);
+        QueryBuilder builder = factory.createQueryBuilder();
+        builder.stream(msg, inventoryClass, batchSize, consumer);
+    }
+
     @Override
     public long count(APIQueryMessage msg, Class inventoryClass) {
         validateConditions(msg.getConditions());
@@ -198,8 +216,9 @@ public class QueryFacadeImpl extends AbstractService implements QueryFacade, Glo
                 reply.setTotal(count);
                 bus.reply(msg, reply);
             } else {
-                List invs = query(msg, inventoryClass);
-                setter.invoke(reply, invs);
+                QueryPage page = queryPage(msg, inventoryClass);
+                setter.invoke(reply, page.getInventories());
+                reply.setContinuationToken(page.getContinuationToken());
                 //TODO: merge this into mysql query builder
                 if (msg.isReplyWithCount()) {
                     long count = count(msg, inventoryClass);
@@ -0,0 +1,13 @@
+package org.zstack.query;
+
+import org.zstack.core.GlobalProperty;
+import org.zstack.core.GlobalPropertyDefinition;
+
+/**
+ */
+@GlobalPropertyDefinition
+public class QueryGlobalProperty {
+    // number of generated JPQL plans kept by the query builder, 0 disables the cache
+    @GlobalProperty(name="Query.planCacheSize", defaultValue = "1000")
+    public static int PLAN_CACHE_SIZE;
+}
@@ -0,0 +1,57 @@
+package org.zstack.query;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A bounded LRU map from the shape of a query to the plan generated for it.
+ * Plans are built far less often than they are looked up, a single lock is good enough.
+ */
+public class QueryPlanCache<V> {
+    private final int maxSize;
+    private final LinkedHashMap<String, V> plans;
+    private long hitCount;
+    private long missCount;
+    private long evictionCount;
+
+    public QueryPlanCache(int maxSize) {
+        this.maxSize = maxSize;
+        plans = new LinkedHashMap<String, V>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, V> eldest) {
+                if (size() > QueryPlanCache.this.maxSize) {
+                    evictionCount ++;
+                    return true;
+                }
+
+                return false;
+            }
+        };
+    }
+
+    public synchronized V get(String key) {
+        V plan = plans.get(key);
+        if (plan == null) {
+            missCount ++;
+        } else {
+            hitCount ++;
+        }
+        return plan;
+    }
+
+    public synchronized void put(String key, V plan) {
+        if (maxSize <= 0) {
+            return;
+        }
+
+        plans.put(key, plan);
+    }
+
+    public synchronized void clear() {
+        plans.clear();
+    }
+
+    public synchronized QueryPlanCacheStatistic getStatistic() {
+        return new QueryPlanCacheStatistic(plans.size(), maxSize, hitCount, missCount, evictionCount);
+    }
+}
@@ -0,0 +1,42 @@
+package org.zstack.query;
+
+import java.beans.ConstructorProperties;
+
+/**
+ */
+public class QueryPlanCacheStatistic {
+    private int size;
+    private int maxSize;
+    private long hitCount;
+    private long missCount;
+    private long evictionCount;
+
+    @ConstructorProperties({"size", "maxSize", "hitCount", "missCount", "evictionCount"})
+    public QueryPlanCacheStatistic(int size, int maxSize, long hitCount, long missCount, long evictionCount) {
+        this.size = size;
+        this.maxSize = maxSize;
+        this.hitCount = hitCount;
+        this.missCount = missCount;
+        this.evictionCount = evictionCount;
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    public long getHitCount() {
+        return hitCount;
+    }
+
+    public long getMissCount() {
+        return missCount;
+    }
+
+    public long getEvictionCount() {
+        return evictionCount;
+    }
+}
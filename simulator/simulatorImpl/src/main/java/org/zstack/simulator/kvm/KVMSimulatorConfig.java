@@ -46,6 +46,7 @@ public class KVMSimulatorConfig {
     public volatile boolean createTemplateFromRootVolumeSuccess = true;
     public volatile Map<String, SecurityGroupRuleTO> securityGroups = new HashMap<String, SecurityGroupRuleTO>();
     public volatile List<RefreshAllRulesOnHostCmd> securityGroupRefreshAllRulesOnHostCmds = new ArrayList<RefreshAllRulesOnHostCmd>();
+    public volatile List<ApplySecurityGroupRuleCmd> securityGroupApplyRuleCmds = new ArrayList<ApplySecurityGroupRuleCmd>();
     public volatile Map<String, KvmVmState> vms = new HashMap<String, KvmVmState>();
     public volatile int consolePort;
     public volatile KVMAgentCommands.StartVmCmd startVmCmd;
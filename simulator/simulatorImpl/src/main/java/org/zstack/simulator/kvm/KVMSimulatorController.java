@@ -223,6 +223,7 @@ public class KVMSimulatorController {
                 config.securityGroups.put(rto.getVmNicInternalName(), rto);
                 logger.debug(String.format("succesfully applied security group rules for vm nic[%s], %s", rto.getVmNicInternalName(), rto));
             }
+            config.securityGroupApplyRuleCmds.add(cmd);
         }
         reply(entity, rsp);
     }
@@ -0,0 +1,88 @@
+package org.zstack.test.compute.host;
+
+import junit.framework.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.zstack.compute.host.HostGlobalConfig;
+import org.zstack.core.cloudbus.CloudBus;
+import org.zstack.core.componentloader.ComponentLoader;
+import org.zstack.core.db.DatabaseFacade;
+import org.zstack.header.cluster.ClusterInventory;
+import org.zstack.header.host.HostConstant;
+import org.zstack.header.host.HostHeartbeatMsg;
+import org.zstack.header.host.HostInventory;
+import org.zstack.header.host.HostStatus;
+import org.zstack.header.zone.ZoneInventory;
+import org.zstack.simulator.SimulatorController;
+import org.zstack.test.*;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 1. ping hosts every second
+ * 2. make the host unreachable by ping but keep sending heartbeats for it
+ *
+ * confirm the host stays connected
+ *
+ * 3. stop sending heartbeats
+ *
+ * confirm the host is found disconnected
+ */
+public class TestHostHeartbeat {
+    Api api;
+    ComponentLoader loader;
+    DatabaseFacade dbf;
+    CloudBus bus;
+    SimulatorController sctrl;
+
+    @Before
+    public void setUp() throws Exception {
+        DBUtil.reDeployDB();
+        BeanConstructor con = new BeanConstructor();
+        loader = con.addXml("PortalForUnitTest.xml").addXml("ClusterManager.xml")
+                .addXml("ZoneManager.xml").addXml("HostManager.xml")
+                .addXml("Simulator.xml").addXml("AccountManager.xml")
+                .addXml("HostAllocatorManager.xml").build();
+        dbf = loader.getComponent(DatabaseFacade.class);
+        bus = loader.getComponent(CloudBus.class);
+        sctrl = loader.getComponent(SimulatorController.class);
+        HostGlobalConfig.PING_HOST_INTERVAL.updateValue(1);
+        HostGlobalConfig.AUTO_RECONNECT_ON_ERROR.updateValue(false);
+        api = new Api();
+        api.startServer();
+    }
+
+    private void heartbeat(String hostUuid) {
+        HostHeartbeatMsg msg = new HostHeartbeatMsg();
+        msg.setHostUuid(hostUuid);
+        bus.makeTargetServiceIdByResourceUuid(msg, HostConstant.SERVICE_ID, hostUuid);
+        bus.send(msg);
+    }
+
+    @Test
+    public void test() throws ApiSenderException, InterruptedException {
+        ZoneInventory zone = api.createZones(1).get(0);
+        ClusterInventory cluster = api.createClusters(1, zone.getUuid()).get(0);
+        HostInventory host = api.createHost(1, cluster.getUuid()).get(0);
+        // let the tracker learn the host is connected
+        TimeUnit.SECONDS.sleep(2);
+
+        heartbeat(host.getUuid());
+        sctrl.setSimulatorHostConnectionState(host.getUuid(), true);
+        for (int i = 0; i < 10; i++) {
+            heartbeat(host.getUuid());
+            TimeUnit.MILLISECONDS.sleep(300);
+        }
+        Assert.assertEquals(HostStatus.Connected.toString(), api.listHosts(null).get(0).getStatus());
+
+        UnitTestUtils.sleepRetry(new Callable() {
+            @Override
+            public Object call() throws Exception {
+                HostInventory host = api.listHosts(null).get(0);
+                Assert.assertEquals(HostStatus.Disconnected.toString(), host.getStatus());
+                return null;
+            }
+        }, 10);
+    }
+}
@@ -0,0 +1,134 @@
+package org.zstack.test.compute.hostallocator;
+
+import junit.framework.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.zstack.compute.vm.VmSystemTags;
+import org.zstack.core.cloudbus.CloudBus;
+import org.zstack.core.componentloader.ComponentLoader;
+import org.zstack.core.db.DatabaseFacade;
+import org.zstack.header.allocator.*;
+import org.zstack.header.configuration.InstanceOfferingInventory;
+import org.zstack.header.host.HostInventory;
+import org.zstack.header.image.ImageInventory;
+import org.zstack.header.network.l3.L3NetworkInventory;
+import org.zstack.header.vm.VmInstanceConstant.VmOperation;
+import org.zstack.header.vm.VmInstanceInventory;
+import org.zstack.header.vm.VmNicInventory;
+import org.zstack.test.Api;
+import org.zstack.test.ApiSenderException;
+import org.zstack.test.DBUtil;
+import org.zstack.test.VmCreator;
+import org.zstack.test.deployer.Deployer;
+import org.zstack.utils.CollectionUtils;
+import org.zstack.utils.function.Function;
+
+import java.util.*;
+
+import static org.zstack.utils.CollectionDSL.e;
+import static org.zstack.utils.CollectionDSL.map;
+
+/**
+ * 1. have 5 hosts
+ * 2. create 5 vms in the same anti-affinity group
+ * 3. allocate hosts for the 5 vms in a batch
+ *
+ * confirm each vm gets a different host and capacity is reserved for each of them
+ *
+ * 4. create the 6th vm in the group
+ * 5. allocate hosts for the 6 vms in a batch
+ *
+ * confirm the batch fails and no capacity is reserved
+ */
+public class TestBatchAllocateHost {
+    Deployer deployer;
+    Api api;
+    ComponentLoader loader;
+    CloudBus bus;
+    DatabaseFacade dbf;
+
+    @Before
+    public void setUp() throws Exception {
+        DBUtil.reDeployDB();
+        deployer = new Deployer("deployerXml/hostAllocator/TestHostAllocator3.xml");
+        deployer.build();
+        api = deployer.getApi();
+        loader = deployer.getComponentLoader();
+        bus = loader.getComponent(CloudBus.class);
+        dbf = loader.getComponent(DatabaseFacade.class);
+    }
+
+    private VmInstanceInventory createVm(String name) throws ApiSenderException {
+        L3NetworkInventory l3 = deployer.l3Networks.get("l3Network1");
+        InstanceOfferingInventory instanceOffering = deployer.instanceOfferings.get("instanceOffering512M512HZ");
+        ImageInventory image = deployer.images.get("image1");
+
+        VmCreator creator = new VmCreator(api);
+        creator.name = name;
+        creator.addL3Network(l3.getUuid());
+        creator.imageUuid = image.getUuid();
+        creator.instanceOfferingUuid = instanceOffering.getUuid();
+        creator.systemTags = new ArrayList<String>();
+        creator.systemTags.add(VmSystemTags.ANTI_AFFINITY_GROUP.instantiateTag(map(e(VmSystemTags.ANTI_AFFINITY_GROUP_TOKEN, "web"))));
+        return creator.create();
+    }
+
+    private BatchAllocateHostMsg makeBatch(List<VmInstanceInventory> vms) {
+        BatchAllocateHostMsg bmsg = new BatchAllocateHostMsg();
+        for (VmInstanceInventory vm : vms) {
+            DesignatedAllocateHostMsg msg = new DesignatedAllocateHostMsg();
+            msg.setCpuCapacity(vm.getCpuNum() * vm.getCpuSpeed());
+            msg.setMemoryCapacity(vm.getMemorySize());
+            msg.setVmInstance(vm);
+            msg.setAllocatorStrategy(HostAllocatorConstant.MIGRATE_VM_ALLOCATOR_TYPE);
+            msg.setVmOperation(VmOperation.Migrate.toString());
+            msg.setL3NetworkUuids(CollectionUtils.transformToList(vm.getVmNics(), new Function<String, VmNicInventory>() {
+                @Override
+                public String call(VmNicInventory arg) {
+                    return arg.getL3NetworkUuid();
+                }
+            }));
+            bmsg.addAllocateHostMsg(msg);
+        }
+        bmsg.setServiceId(bus.makeLocalServiceId(HostAllocatorConstant.SERVICE_ID));
+        return bmsg;
+    }
+
+    private Map<String, Long> getAvailableMemory() {
+        Map<String, Long> ret = new HashMap<String, Long>();
+        for (HostCapacityVO vo : dbf.listAll(HostCapacityVO.class)) {
+            ret.put(vo.getUuid(), vo.getAvailableMemory());
+        }
+        return ret;
+    }
+
+    @Test
+    public void test() throws ApiSenderException {
+        List<VmInstanceInventory> vms = new ArrayList<VmInstanceInventory>();
+        for (int i = 0; i < 5; i++) {
+            vms.add(createVm("vm" + i));
+        }
+
+        Map<String, Long> before = getAvailableMemory();
+        BatchAllocateHostReply reply = (BatchAllocateHostReply) bus.call(makeBatch(vms));
+        Assert.assertTrue(reply.isSuccess());
+        Assert.assertEquals(5, reply.getHosts().size());
+
+        Set<String> huuids = new HashSet<String>();
+        for (HostInventory host : reply.getHosts()) {
+            huuids.add(host.getUuid());
+        }
+        Assert.assertEquals(5, huuids.size());
+
+        Map<String, Long> after = getAvailableMemory();
+        for (String huuid : huuids) {
+            Assert.assertEquals(before.get(huuid) - vms.get(0).getMemorySize(), after.get(huuid).longValue());
+        }
+
+        vms.add(createVm("vm5"));
+        before = getAvailableMemory();
+        reply = (BatchAllocateHostReply) bus.call(makeBatch(vms));
+        Assert.assertFalse(reply.isSuccess());
+        Assert.assertEquals(before, getAvailableMemory());
+    }
+}
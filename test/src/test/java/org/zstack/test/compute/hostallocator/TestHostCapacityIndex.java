@@ -0,0 +1,94 @@
+package org.zstack.test.compute.hostallocator;
+
+import junit.framework.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.zstack.compute.allocator.HostAllocatorGlobalConfig;
+import org.zstack.compute.allocator.HostCapacityIndex;
+import org.zstack.core.cloudbus.CloudBus;
+import org.zstack.core.componentloader.ComponentLoader;
+import org.zstack.core.db.DatabaseFacade;
+import org.zstack.header.allocator.HostCapacityVO;
+import org.zstack.header.cluster.ClusterInventory;
+import org.zstack.header.configuration.InstanceOfferingInventory;
+import org.zstack.header.host.HostInventory;
+import org.zstack.header.image.ImageInventory;
+import org.zstack.header.network.l3.L3NetworkInventory;
+import org.zstack.header.simulator.SimulatorConstant;
+import org.zstack.header.vm.VmInstanceInventory;
+import org.zstack.test.Api;
+import org.zstack.test.ApiSenderException;
+import org.zstack.test.DBUtil;
+import org.zstack.test.VmCreator;
+import org.zstack.test.deployer.Deployer;
+import org.zstack.utils.data.SizeUnit;
+
+import java.util.List;
+
+/**
+ * 1. have 6 hosts, only the last host have enough capacity
+ * 2. enable the capacity index and pagination
+ * 3. create vm
+ *
+ * confirm vm created on the last host
+ * confirm the capacity index follows the capacity change of the last host
+ */
+public class TestHostCapacityIndex {
+    Deployer deployer;
+    Api api;
+    ComponentLoader loader;
+    CloudBus bus;
+    DatabaseFacade dbf;
+    HostCapacityIndex capacityIndex;
+
+    @Before
+    public void setUp() throws Exception {
+        DBUtil.reDeployDB();
+        deployer = new Deployer("deployerXml/hostAllocator/TestHostAllocationPaginationStrategy1.xml");
+        deployer.build();
+        api = deployer.getApi();
+        loader = deployer.getComponentLoader();
+        bus = loader.getComponent(CloudBus.class);
+        dbf = loader.getComponent(DatabaseFacade.class);
+        capacityIndex = loader.getComponent(HostCapacityIndex.class);
+    }
+
+    @Test
+    public void test() throws ApiSenderException {
+        L3NetworkInventory l3  = deployer.l3Networks.get("l3Network1");
+        InstanceOfferingInventory instanceOffering = deployer.instanceOfferings.get("instanceOffering512M512HZ");
+        ImageInventory imageInventory = deployer.images.get("image1");
+        ClusterInventory cluster = deployer.clusters.get("cluster1");
+        HostAllocatorGlobalConfig.USE_CAPACITY_INDEX.updateValue(true);
+        HostAllocatorGlobalConfig.USE_PAGINATION.updateValue(true);
+        HostAllocatorGlobalConfig.PAGINATION_LIMIT.updateValue(1);
+
+        HostInventory host = new HostInventory();
+        host.setName("host5");
+        host.setHypervisorType(SimulatorConstant.SIMULATOR_HYPERVISOR_TYPE);
+        host.setManagementIp("10.0.0.15");
+        host.setClusterUuid(cluster.getUuid());
+        host.setAvailableCpuCapacity(2600L);
+        host.setAvailableMemoryCapacity(SizeUnit.GIGABYTE.toByte(32));
+        host = api.addHostByFullConfig(host);
+
+        List<String> huuids = capacityIndex.findHostsByCapacity(null, instanceOffering.getCpuSpeed(), instanceOffering.getMemorySize());
+        Assert.assertTrue(huuids.contains(host.getUuid()));
+
+        VmCreator creator = new VmCreator(api);
+        creator.addL3Network(l3.getUuid());
+        creator.imageUuid = imageInventory.getUuid();
+        creator.instanceOfferingUuid = instanceOffering.getUuid();
+        VmInstanceInventory vm = creator.create();
+        Assert.assertEquals(host.getUuid(), vm.getHostUuid());
+
+        // the index reflects the capacity reserved for the vm
+        HostCapacityVO cvo = dbf.findByUuid(host.getUuid(), HostCapacityVO.class);
+        huuids = capacityIndex.findHostsByCapacity(null, cvo.getAvailableCpu(), cvo.getAvailableMemory());
+        Assert.assertTrue(huuids.contains(host.getUuid()));
+        huuids = capacityIndex.findHostsByCapacity(null, 0, cvo.getAvailableMemory() + 1);
+        Assert.assertFalse(huuids.contains(host.getUuid()));
+        huuids = capacityIndex.findHostsByCapacity(null, cvo.getAvailableCpu() + 1, 0);
+        Assert.assertFalse(huuids.contains(host.getUuid()));
+    }
+}
@@ -0,0 +1,73 @@
+package org.zstack.test.compute.vm;
+
+import junit.framework.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.zstack.core.Platform;
+import org.zstack.core.cloudbus.CloudBus;
+import org.zstack.core.componentloader.ComponentLoader;
+import org.zstack.core.db.DatabaseFacade;
+import org.zstack.core.db.SimpleQuery;
+import org.zstack.core.db.SimpleQuery.Op;
+import org.zstack.header.vm.*;
+import org.zstack.test.Api;
+import org.zstack.test.DBUtil;
+import org.zstack.test.deployer.Deployer;
+
+/**
+ * 1. change state of a running vm to Unknown, expecting it's Stopped
+ *
+ * confirm the vm is not changed
+ *
+ * 2. change state of the vm to Unknown, expecting it's Running
+ *
+ * confirm the vm is changed to Unknown
+ */
+public class TestBatchChangeVmState {
+    Deployer deployer;
+    Api api;
+    ComponentLoader loader;
+    CloudBus bus;
+    DatabaseFacade dbf;
+
+    @Before
+    public void setUp() throws Exception {
+        DBUtil.reDeployDB();
+        deployer = new Deployer("deployerXml/vm/TestVmStateTracer.xml");
+        loader = deployer.getComponentLoader();
+        bus = loader.getComponent(CloudBus.class);
+        dbf = loader.getComponent(DatabaseFacade.class);
+        deployer.build();
+        api = deployer.getApi();
+    }
+
+    private BatchChangeVmStateReply changeState(VmInstanceVO vm, VmInstanceState expected) {
+        BatchChangeVmStateMsg msg = new BatchChangeVmStateMsg();
+        msg.setHostUuid(vm.getHostUuid());
+        msg.setState(VmInstanceState.Unknown);
+        msg.addVm(vm.getUuid(), expected);
+        bus.makeServiceIdByManagementNodeId(msg, VmInstanceConstant.SERVICE_ID, Platform.getManagementServerId());
+        BatchChangeVmStateReply reply = (BatchChangeVmStateReply) bus.call(msg);
+        Assert.assertTrue(reply.isSuccess());
+        return reply;
+    }
+
+    @Test
+    public void test() {
+        SimpleQuery<VmInstanceVO> q = dbf.createQuery(VmInstanceVO.class);
+        q.add(VmInstanceVO_.name, Op.EQ, "TestVm1");
+        VmInstanceVO vm1 = q.find();
+        Assert.assertEquals(VmInstanceState.Running, vm1.getState());
+
+        BatchChangeVmStateReply reply = changeState(vm1, VmInstanceState.Stopped);
+        Assert.assertTrue(reply.getChangedVmUuids().isEmpty());
+        vm1 = dbf.reload(vm1);
+        Assert.assertEquals(VmInstanceState.Running, vm1.getState());
+
+        reply = changeState(vm1, VmInstanceState.Running);
+        Assert.assertEquals(1, reply.getChangedVmUuids().size());
+        Assert.assertEquals(vm1.getUuid(), reply.getChangedVmUuids().get(0));
+        vm1 = dbf.reload(vm1);
+        Assert.assertEquals(VmInstanceState.Unknown, vm1.getState());
+    }
+}
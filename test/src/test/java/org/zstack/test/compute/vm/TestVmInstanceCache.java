@@ -0,0 +1,132 @@
+package org.zstack.test.compute.vm;
+
+import junit.framework.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.zstack.compute.vm.VmGlobalConfig;
+import org.zstack.core.componentloader.ComponentLoader;
+import org.zstack.core.db.DatabaseFacade;
+import org.zstack.header.configuration.DiskOfferingInventory;
+import org.zstack.header.vm.VmInstanceInventory;
+import org.zstack.header.vm.VmInstanceState;
+import org.zstack.header.vm.VmInstanceVO;
+import org.zstack.header.volume.VolumeInventory;
+import org.zstack.test.Api;
+import org.zstack.test.ApiSenderException;
+import org.zstack.test.DBUtil;
+import org.zstack.test.deployer.Deployer;
+import org.zstack.utils.Utils;
+import org.zstack.utils.logging.CLogger;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * 1. enable vm cache
+ * 2. stop/start a vm repeatedly while getting its migration candidate hosts from other threads
+ *
+ * confirm all stop/start succeed and the vm is Running in database
+ * confirm messages after the vm is stopped see the Stopped state
+ *
+ * 3. cache the vm, attach a new data volume to it
+ *
+ * confirm the next message to the vm sees the new volume
+ */
+public class TestVmInstanceCache {
+    CLogger logger = Utils.getLogger(TestVmInstanceCache.class);
+    Deployer deployer;
+    Api api;
+    ComponentLoader loader;
+    DatabaseFacade dbf;
+    int rounds = 10;
+    int readerNum = 4;
+
+    @Before
+    public void setUp() throws Exception {
+        DBUtil.reDeployDB();
+        deployer = new Deployer("deployerXml/vm/TestMigrateVm.xml");
+        deployer.build();
+        api = deployer.getApi();
+        loader = deployer.getComponentLoader();
+        dbf = loader.getComponent(DatabaseFacade.class);
+        VmGlobalConfig.VM_INSTANCE_CACHE_SIZE.updateValue(100);
+    }
+
+    @Test
+    public void test() throws InterruptedException, ApiSenderException {
+        final VmInstanceInventory vm = deployer.vms.get("TestVm");
+        final AtomicBoolean done = new AtomicBoolean(false);
+        final AtomicBoolean failed = new AtomicBoolean(false);
+        final CountDownLatch latch = new CountDownLatch(readerNum + 1);
+
+        for (int i = 0; i < readerNum; i++) {
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        while (!done.get()) {
+                            try {
+                                api.getMigrationTargetHost(vm.getUuid());
+                            } catch (ApiSenderException e) {
+                                // the vm is stopped, it cannot migrate
+                            }
+                        }
+                    } finally {
+                        latch.countDown();
+                    }
+                }
+            }).start();
+        }
+
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    for (int i = 0; i < rounds; i++) {
+                        VmInstanceInventory inv = api.stopVmInstance(vm.getUuid());
+                        Assert.assertEquals(VmInstanceState.Stopped.toString(), inv.getState());
+                        inv = api.startVmInstance(vm.getUuid());
+                        Assert.assertEquals(VmInstanceState.Running.toString(), inv.getState());
+                    }
+                } catch (Throwable t) {
+                    logger.warn("stop/start vm failed", t);
+                    failed.set(true);
+                } finally {
+                    done.set(true);
+                    latch.countDown();
+                }
+            }
+        }).start();
+
+        Assert.assertTrue(latch.await(5, TimeUnit.MINUTES));
+        Assert.assertFalse(failed.get());
+
+        VmInstanceVO vo = dbf.findByUuid(vm.getUuid(), VmInstanceVO.class);
+        Assert.assertEquals(VmInstanceState.Running, vo.getState());
+
+        // cached by the migration candidate message, then changed by stopping
+        api.getMigrationTargetHost(vm.getUuid());
+        api.stopVmInstance(vm.getUuid());
+        boolean s = false;
+        try {
+            api.getMigrationTargetHost(vm.getUuid());
+        } catch (ApiSenderException e) {
+            s = true;
+        }
+        Assert.assertTrue(s);
+
+        // attaching a volume doesn't evict the cache, the vm must still see the volume
+        DiskOfferingInventory dinv = deployer.diskOfferings.get("TestDataDiskOffering");
+        VolumeInventory vol = api.createDataVolume("data", dinv.getUuid());
+        api.attachVolumeToVm(vm.getUuid(), vol.getUuid());
+        VmInstanceInventory inv = api.startVmInstance(vm.getUuid());
+        boolean found = false;
+        for (VolumeInventory v : inv.getAllVolumes()) {
+            if (v.getUuid().equals(vol.getUuid())) {
+                found = true;
+            }
+        }
+        Assert.assertTrue(found);
+    }
+}
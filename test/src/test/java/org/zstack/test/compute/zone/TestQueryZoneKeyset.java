@@ -0,0 +1,82 @@
+package org.zstack.test.compute.zone;
+
+import junit.framework.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.zstack.core.CoreGlobalProperty;
+import org.zstack.core.Platform;
+import org.zstack.core.componentloader.ComponentLoader;
+import org.zstack.header.query.QueryStreamConsumer;
+import org.zstack.header.zone.APIQueryZoneMsg;
+import org.zstack.header.zone.APIQueryZoneReply;
+import org.zstack.header.zone.ZoneInventory;
+import org.zstack.query.QueryFacade;
+import org.zstack.test.Api;
+import org.zstack.test.ApiSenderException;
+import org.zstack.test.DBUtil;
+import org.zstack.test.deployer.Deployer;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * page zones with continuation tokens and stream them
+ */
+public class TestQueryZoneKeyset {
+    Deployer deployer;
+    Api api;
+    ComponentLoader loader;
+    QueryFacade qf;
+
+    @Before
+    public void setUp() throws Exception {
+        DBUtil.reDeployDB();
+        // initialize properties
+        Platform.getUuid();
+        CoreGlobalProperty.CHECK_BOX_TYPE_IN_INVENTORY = true;
+
+        deployer = new Deployer("deployerXml/zone/TestQueryZone.xml");
+        deployer.build();
+        api = deployer.getApi();
+        loader = deployer.getComponentLoader();
+        qf = loader.getComponent(QueryFacade.class);
+    }
+
+    @Test
+    public void test() throws ApiSenderException {
+        List<String> names = new ArrayList<String>();
+        String token = null;
+        int pages = 0;
+        do {
+            APIQueryZoneMsg msg = new APIQueryZoneMsg();
+            msg.setSortBy("name");
+            msg.setSortDirection("desc");
+            msg.setLimit(2);
+            msg.setKeysetPaging(true);
+            msg.setContinuationToken(token);
+            APIQueryZoneReply reply = api.query(msg, APIQueryZoneReply.class);
+            for (ZoneInventory inv : reply.getInventories()) {
+                names.add(inv.getName());
+            }
+            token = reply.getContinuationToken();
+            pages ++;
+        } while (token != null);
+
+        Assert.assertEquals(3, pages);
+        Assert.assertEquals(5, names.size());
+        Assert.assertEquals("Zone5", names.get(0));
+        Assert.assertEquals("Zone1", names.get(4));
+
+        final List<ZoneInventory> streamed = new ArrayList<ZoneInventory>();
+        APIQueryZoneMsg msg = new APIQueryZoneMsg();
+        qf.stream(msg, ZoneInventory.class, 2, new QueryStreamConsumer<ZoneInventory>() {
+            @Override
+            public boolean consume(List<ZoneInventory> inventories) {
+                Assert.assertTrue(inventories.size() <= 2);
+                streamed.addAll(inventories);
+                return true;
+            }
+        });
+        Assert.assertEquals(5, streamed.size());
+    }
+}
@@ -0,0 +1,69 @@
+package org.zstack.test.compute.zone;
+
+import junit.framework.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.zstack.core.CoreGlobalProperty;
+import org.zstack.core.Platform;
+import org.zstack.core.componentloader.ComponentLoader;
+import org.zstack.header.query.QueryOp;
+import org.zstack.header.zone.APIQueryZoneMsg;
+import org.zstack.header.zone.APIQueryZoneReply;
+import org.zstack.query.MysqlQueryBuilderImpl3;
+import org.zstack.query.QueryPlanCacheStatistic;
+import org.zstack.test.Api;
+import org.zstack.test.ApiSenderException;
+import org.zstack.test.DBUtil;
+import org.zstack.test.deployer.Deployer;
+
+/**
+ * queries having the same shape but different values share one plan
+ */
+public class TestQueryZonePlanCache {
+    Deployer deployer;
+    Api api;
+    ComponentLoader loader;
+    MysqlQueryBuilderImpl3 builder;
+
+    @Before
+    public void setUp() throws Exception {
+        DBUtil.reDeployDB();
+        // initialize properties
+        Platform.getUuid();
+        CoreGlobalProperty.CHECK_BOX_TYPE_IN_INVENTORY = true;
+
+        deployer = new Deployer("deployerXml/zone/TestQueryZone.xml");
+        deployer.build();
+        api = deployer.getApi();
+        loader = deployer.getComponentLoader();
+        builder = loader.getComponent(MysqlQueryBuilderImpl3.class);
+    }
+
+    private APIQueryZoneReply queryByName(String name) throws ApiSenderException {
+        APIQueryZoneMsg msg = new APIQueryZoneMsg();
+        msg.addQueryCondition("name", QueryOp.EQ, name);
+        return api.query(msg, APIQueryZoneReply.class);
+    }
+
+    @Test
+    public void test() throws ApiSenderException {
+        APIQueryZoneReply reply = queryByName("Zone1");
+        Assert.assertEquals(1, reply.getInventories().size());
+        Assert.assertEquals("Zone1", reply.getInventories().get(0).getName());
+        QueryPlanCacheStatistic before = builder.getQueryPlanCacheStatistic();
+
+        reply = queryByName("Zone2");
+        Assert.assertEquals(1, reply.getInventories().size());
+        Assert.assertEquals("Zone2", reply.getInventories().get(0).getName());
+        QueryPlanCacheStatistic after = builder.getQueryPlanCacheStatistic();
+        Assert.assertEquals(before.getHitCount() + 1, after.getHitCount());
+        Assert.assertEquals(before.getMissCount(), after.getMissCount());
+
+        // a different shape misses
+        APIQueryZoneMsg msg = new APIQueryZoneMsg();
+        msg.addQueryCondition("name", QueryOp.IN, "Zone1", "Zone2", "Zone3");
+        reply = api.query(msg, APIQueryZoneReply.class);
+        Assert.assertEquals(3, reply.getInventories().size());
+        Assert.assertEquals(after.getMissCount() + 1, builder.getQueryPlanCacheStatistic().getMissCount());
+    }
+}
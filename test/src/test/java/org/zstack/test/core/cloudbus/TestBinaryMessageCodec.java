@@ -0,0 +1,124 @@
+package org.zstack.test.core.cloudbus;
+
+import junit.framework.Assert;
+import org.junit.Test;
+import org.zstack.core.cloudbus.BinaryMessageCodec;
+import org.zstack.header.errorcode.ErrorCode;
+import org.zstack.header.message.Message;
+import org.zstack.header.message.MessageReply;
+import org.zstack.header.message.NeedReplyMessage;
+
+import java.sql.Timestamp;
+import java.util.*;
+
+/**
+ * encode/decode messages with the binary codec, polymorphic fields must be restored without json schema,
+ * primitive arrays and classes first seen as array components must be restored too
+ */
+public class TestBinaryMessageCodec {
+    public static enum Color {
+        RED,
+        GREEN
+    }
+
+    public static class Base {
+        String name;
+    }
+
+    public static class Child extends Base {
+        long size;
+    }
+
+    public static class BinaryMsg extends NeedReplyMessage {
+        // sorted before "base", so Base is first referenced as an array component
+        Base[] arrayOfBases;
+        int[] ints;
+        long[] longs;
+        char[] chars;
+        boolean[] flags;
+        int num;
+        boolean flag;
+        double ratio;
+        String text;
+        Color color;
+        Timestamp createDate;
+        Base base;
+        List<Base> bases;
+        Map<String, Object> props;
+        byte[] raw;
+    }
+
+    public static class BinaryReply extends MessageReply {
+        List<String> names;
+    }
+
+    @Test
+    public void test() {
+        BinaryMessageCodec codec = new BinaryMessageCodec();
+        codec.registerClasses(Arrays.<Class>asList(BinaryMsg.class, Child.class));
+
+        BinaryMsg msg = new BinaryMsg();
+        msg.num = -100;
+        msg.flag = true;
+        msg.ratio = 0.75;
+        msg.text = "hello 世界";
+        msg.color = Color.GREEN;
+        msg.createDate = new Timestamp(System.currentTimeMillis());
+        Child c = new Child();
+        c.name = "child";
+        c.size = Long.MAX_VALUE;
+        msg.base = c;
+        msg.bases = new ArrayList<Base>();
+        msg.bases.add(c);
+        msg.bases.add(null);
+        msg.props = new LinkedHashMap<String, Object>();
+        msg.props.put("int", 1);
+        msg.props.put("list", Arrays.asList("a", "b"));
+        msg.raw = new byte[] {1, 2, 3};
+        Base b = new Base();
+        b.name = "base";
+        msg.arrayOfBases = new Base[] {b, c};
+        msg.ints = new int[] {1, -2, Integer.MAX_VALUE};
+        msg.longs = new long[] {Long.MIN_VALUE, 0, 3};
+        msg.chars = new char[] {'a', '界'};
+        msg.flags = new boolean[] {true, false};
+        msg.setServiceId("test.service");
+        msg.setTimeout(1000);
+
+        BinaryMsg ret = (BinaryMsg) codec.decode(codec.encode(msg));
+        Assert.assertEquals(msg.getId(), ret.getId());
+        Assert.assertEquals(msg.getServiceId(), ret.getServiceId());
+        Assert.assertEquals(1000, ret.getTimeout());
+        Assert.assertEquals(-100, ret.num);
+        Assert.assertTrue(ret.flag);
+        Assert.assertEquals(0.75, ret.ratio);
+        Assert.assertEquals(msg.text, ret.text);
+        Assert.assertEquals(Color.GREEN, ret.color);
+        Assert.assertEquals(msg.createDate, ret.createDate);
+        Assert.assertTrue(ret.base instanceof Child);
+        Assert.assertEquals(Long.MAX_VALUE, ((Child) ret.base).size);
+        Assert.assertEquals(2, ret.bases.size());
+        Assert.assertTrue(ret.bases.get(0) instanceof Child);
+        Assert.assertNull(ret.bases.get(1));
+        Assert.assertEquals(1, ret.props.get("int"));
+        Assert.assertEquals(Arrays.asList("a", "b"), ret.props.get("list"));
+        Assert.assertTrue(Arrays.equals(msg.raw, ret.raw));
+        Assert.assertTrue(Arrays.equals(msg.ints, ret.ints));
+        Assert.assertTrue(Arrays.equals(msg.longs, ret.longs));
+        Assert.assertTrue(Arrays.equals(msg.chars, ret.chars));
+        Assert.assertTrue(Arrays.equals(msg.flags, ret.flags));
+        Assert.assertEquals(2, ret.arrayOfBases.length);
+        Assert.assertEquals("base", ret.arrayOfBases[0].name);
+        Assert.assertTrue(ret.arrayOfBases[1] instanceof Child);
+        Assert.assertTrue(ret.base instanceof Child);
+
+        BinaryReply reply = new BinaryReply();
+        reply.names = Arrays.asList("x", "y");
+        reply.setError(new ErrorCode("SYS.1000", "test", "details"));
+        Message r = codec.decode(codec.encode(reply));
+        Assert.assertTrue(r instanceof BinaryReply);
+        Assert.assertEquals(reply.names, ((BinaryReply) r).names);
+        Assert.assertFalse(((BinaryReply) r).isSuccess());
+        Assert.assertEquals("SYS.1000", ((BinaryReply) r).getError().getCode());
+    }
+}
@@ -0,0 +1,92 @@
+package org.zstack.test.core.cloudbus;
+
+import junit.framework.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.zstack.core.cloudbus.EventCallback;
+import org.zstack.core.cloudbus.EventFacade;
+import org.zstack.core.cloudbus.EventFacadeImpl;
+import org.zstack.core.cloudbus.EventFacadeMXBean;
+import org.zstack.core.componentloader.ComponentLoader;
+import org.zstack.test.BeanConstructor;
+import org.zstack.utils.Utils;
+import org.zstack.utils.logging.CLogger;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * subscriptions of literal, token and wildcard paths sharing prefixes only receive events
+ * matching their own path; off() takes effect immediately
+ */
+public class TestCanonicalEvent9 {
+    CLogger logger = Utils.getLogger(TestCanonicalEvent9.class);
+    ComponentLoader loader;
+    EventFacade evtf;
+    AtomicInteger literal = new AtomicInteger();
+    AtomicInteger token = new AtomicInteger();
+    AtomicInteger wildcard = new AtomicInteger();
+    AtomicInteger other = new AtomicInteger();
+    String tokenValue;
+
+    @Before
+    public void setUp() throws Exception {
+        BeanConstructor con = new BeanConstructor();
+        loader = con.build();
+        evtf = loader.getComponent(EventFacade.class);
+        ((EventFacadeImpl)evtf).start();
+    }
+
+    @Test
+    public void test() throws InterruptedException {
+        evtf.on("/test9/vm/start", new Runnable() {
+            @Override
+            public void run() {
+                literal.incrementAndGet();
+            }
+        });
+        evtf.on("/test9/vm/{uuid}/state", new EventCallback() {
+            @Override
+            public void run(Map tokens, Object data) {
+                tokenValue = (String) tokens.get("uuid");
+                token.incrementAndGet();
+            }
+        });
+        evtf.on("/test9/*", new Runnable() {
+            @Override
+            public void run() {
+                wildcard.incrementAndGet();
+            }
+        });
+        Runnable r = new Runnable() {
+            @Override
+            public void run() {
+                other.incrementAndGet();
+            }
+        };
+        evtf.on("/test9/host/start", r);
+
+        evtf.fire("/test9/vm/start", null);
+        evtf.fire("/test9/vm/abcd/state", null);
+        evtf.fire("/test9/vm/start/more", null);
+        evtf.fire("/test9/host/start", null);
+        TimeUnit.SECONDS.sleep(1);
+
+        Assert.assertEquals(1, literal.get());
+        Assert.assertEquals(1, token.get());
+        Assert.assertEquals("abcd", tokenValue);
+        Assert.assertEquals(4, wildcard.get());
+        Assert.assertEquals(1, other.get());
+
+        Map<String, Long> stats = ((EventFacadeMXBean) evtf).getDispatchStatistics();
+        Assert.assertEquals(4, stats.get("/test9/*").longValue());
+        Assert.assertEquals(1, stats.get("/test9/vm/start").longValue());
+
+        evtf.off(r);
+        evtf.fire("/test9/host/start", null);
+        TimeUnit.SECONDS.sleep(1);
+        Assert.assertEquals(1, other.get());
+        Assert.assertFalse(((EventFacadeMXBean) evtf).getDispatchStatistics().containsKey("/test9/host/start"));
+    }
+}
@@ -0,0 +1,40 @@
+package org.zstack.test.core.cloudbus;
+
+import com.rabbitmq.client.AMQP;
+import junit.framework.Assert;
+import org.junit.Test;
+import org.zstack.core.cloudbus.MessageBatchEnvelope;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * pack messages into a batch frame and unpack them with their AMQP properties
+ */
+public class TestMessageBatchEnvelope {
+    @Test
+    public void test() {
+        List<MessageBatchEnvelope.Entry> entries = new ArrayList<MessageBatchEnvelope.Entry>();
+        for (int i = 0; i < 10; i++) {
+            Map<String, Object> headers = new HashMap<String, Object>();
+            headers.put("metaData", String.format("{\"msgId\":\"%s\"}", i));
+            AMQP.BasicProperties props = new AMQP.BasicProperties.Builder().deliveryMode(1).headers(headers).expiration(String.valueOf(1000 + i)).build();
+            entries.add(new MessageBatchEnvelope.Entry(String.format("message%s", i).getBytes(), props));
+        }
+
+        AMQP.BasicProperties batchProps = MessageBatchEnvelope.batchProperties(entries);
+        Assert.assertTrue(MessageBatchEnvelope.isBatch(batchProps));
+        Assert.assertEquals("1000", batchProps.getExpiration());
+
+        List<MessageBatchEnvelope.Entry> ret = MessageBatchEnvelope.entries(MessageBatchEnvelope.pack(entries), batchProps);
+        Assert.assertEquals(10, ret.size());
+        for (int i = 0; i < 10; i++) {
+            MessageBatchEnvelope.Entry e = ret.get(i);
+            Assert.assertEquals(String.format("message%s", i), new String(e.getBody()));
+            Assert.assertEquals(String.valueOf(1000 + i), e.getProperties().getExpiration());
+            Assert.assertEquals(String.format("{\"msgId\":\"%s\"}", i), e.getProperties().getHeaders().get("metaData").toString());
+        }
+    }
+}
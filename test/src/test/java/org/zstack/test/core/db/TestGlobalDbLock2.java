@@ -0,0 +1,111 @@
+package org.zstack.test.core.db;
+
+import junit.framework.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.zstack.core.componentloader.ComponentLoader;
+import org.zstack.core.db.DatabaseFacade;
+import org.zstack.core.db.GLock;
+import org.zstack.test.BeanConstructor;
+import org.zstack.utils.Utils;
+import org.zstack.utils.logging.CLogger;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 1. hold a lock, tryLock() it from another thread
+ *
+ * confirm tryLock() returns false, and returns true after the lock is released
+ *
+ * 2. lock and unlock a name from two threads concurrently
+ *
+ * confirm only one thread holds the lock at a time
+ * confirm no in-memory lock is left after the last unlock
+ */
+public class TestGlobalDbLock2 {
+    ComponentLoader loader;
+    DatabaseFacade dbf;
+    CLogger logger = Utils.getLogger(TestGlobalDbLock2.class);
+    String lockName = "TestDBLock2.lock";
+    int num = 500;
+
+    @Before
+    public void setUp() throws Exception {
+        BeanConstructor con = new BeanConstructor();
+        loader = con.build();
+        dbf = loader.getComponent(DatabaseFacade.class);
+    }
+
+    private boolean tryLockInAnotherThread() throws InterruptedException {
+        final AtomicBoolean ret = new AtomicBoolean(false);
+        Thread t = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                GLock lock = new GLock(lockName, 1);
+                if (lock.tryLock()) {
+                    ret.set(true);
+                    lock.unlock();
+                }
+            }
+        });
+        t.start();
+        t.join(TimeUnit.SECONDS.toMillis(30));
+        return ret.get();
+    }
+
+    private void testTryLock() throws InterruptedException {
+        GLock lock = new GLock(lockName, 10);
+        lock.lock();
+        try {
+            Assert.assertFalse(tryLockInAnotherThread());
+        } finally {
+            lock.unlock();
+        }
+        Assert.assertTrue(tryLockInAnotherThread());
+    }
+
+    private void testConcurrentLockers() throws InterruptedException {
+        final AtomicInteger holders = new AtomicInteger(0);
+        final AtomicBoolean overlapped = new AtomicBoolean(false);
+        final AtomicInteger count = new AtomicInteger(0);
+        final CountDownLatch latch = new CountDownLatch(2);
+        for (int i = 0; i < 2; i++) {
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        for (int j = 0; j < num; j++) {
+                            GLock lock = new GLock(lockName, 10);
+                            lock.lock();
+                            try {
+                                if (holders.incrementAndGet() != 1) {
+                                    overlapped.set(true);
+                                }
+                                count.incrementAndGet();
+                                holders.decrementAndGet();
+                            } finally {
+                                lock.unlock();
+                            }
+                        }
+                    } finally {
+                        latch.countDown();
+                    }
+                }
+            }).start();
+        }
+
+        Assert.assertTrue(latch.await(2, TimeUnit.MINUTES));
+        Assert.assertFalse(overlapped.get());
+        Assert.assertEquals(2 * num, count.get());
+    }
+
+    @Test
+    public void test() throws InterruptedException {
+        testTryLock();
+        testConcurrentLockers();
+        Assert.assertEquals(0, GLock.getInMemoryLockNum());
+    }
+}
@@ -0,0 +1,86 @@
+package org.zstack.test.core.db;
+
+import junit.framework.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.zstack.core.componentloader.ComponentLoader;
+import org.zstack.core.db.DatabaseFacade;
+import org.zstack.core.db.DbGlobalProperty;
+import org.zstack.core.db.SequenceBlockVO;
+import org.zstack.header.vm.VmInstanceSequenceNumberVO;
+import org.zstack.test.BeanConstructor;
+import org.zstack.test.DBUtil;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 1. persist a row to the sequence table
+ * 2. generate sequence numbers from many threads
+ *
+ * confirm numbers are unique, start after the existing row and are reserved in blocks
+ *
+ * 3. delete the row of the sequence in SequenceBlockVO, as redeploying the database does
+ * 4. generate sequence numbers beyond the reserved block
+ *
+ * confirm the row is created again
+ */
+public class TestSequenceNumber {
+    ComponentLoader loader;
+    DatabaseFacade dbf;
+    int threadNum = 10;
+    int numPerThread = 150;
+
+    @Before
+    public void setUp() throws Exception {
+        DBUtil.reDeployDB();
+        BeanConstructor con = new BeanConstructor();
+        loader = con.build();
+        dbf = loader.getComponent(DatabaseFacade.class);
+    }
+
+    @Test
+    public void test() throws InterruptedException {
+        VmInstanceSequenceNumberVO vo = dbf.persistAndRefresh(new VmInstanceSequenceNumberVO());
+        final long existing = vo.getId();
+
+        final Set<Long> numbers = Collections.synchronizedSet(new HashSet<Long>());
+        final CountDownLatch latch = new CountDownLatch(threadNum);
+        for (int i = 0; i < threadNum; i++) {
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        for (int j = 0; j < numPerThread; j++) {
+                            long num = dbf.generateSequenceNumber(VmInstanceSequenceNumberVO.class);
+                            Assert.assertTrue(num > existing);
+                            Assert.assertTrue(numbers.add(num));
+                        }
+                    } finally {
+                        latch.countDown();
+                    }
+                }
+            }).start();
+        }
+
+        Assert.assertTrue(latch.await(1, TimeUnit.MINUTES));
+        Assert.assertEquals(threadNum * numPerThread, numbers.size());
+
+        int blockSize = DbGlobalProperty.SEQUENCE_NUMBER_BLOCK_SIZE;
+        int blocks = (threadNum * numPerThread + blockSize - 1) / blockSize;
+        SequenceBlockVO block = dbf.findByUuid(VmInstanceSequenceNumberVO.class.getSimpleName(), SequenceBlockVO.class);
+        Assert.assertEquals(existing + 1 + (long) blocks * blockSize, block.getNextValue());
+        Assert.assertEquals(existing + 1, (long) Collections.min(numbers));
+        Assert.assertEquals(existing + threadNum * numPerThread, (long) Collections.max(numbers));
+
+        dbf.remove(block);
+        for (int i = 0; i < blockSize; i++) {
+            dbf.generateSequenceNumber(VmInstanceSequenceNumberVO.class);
+        }
+        block = dbf.findByUuid(VmInstanceSequenceNumberVO.class.getSimpleName(), SequenceBlockVO.class);
+        Assert.assertNotNull(block);
+    }
+}
@@ -0,0 +1,36 @@
+package org.zstack.test.core.job;
+
+import org.springframework.beans.factory.annotation.Autowire;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Configurable;
+import org.zstack.core.job.Job;
+import org.zstack.core.job.JobContext;
+import org.zstack.header.core.ReturnValueCompletion;
+import org.zstack.utils.Utils;
+import org.zstack.utils.logging.CLogger;
+@Configurable(preConstruction = true, autowire = Autowire.BY_TYPE)
+public class FakeJob3 implements Job {
+    CLogger logger = Utils.getLogger(FakeJob3.class);
+
+    @JobContext
+    private String payload;
+    @Autowired
+    private FakeJobConfig fl;
+
+    private FakeJob3() {
+    }
+
+    public FakeJob3(String payload) {
+        this.payload = payload;
+    }
+
+    @Override
+    public void run(ReturnValueCompletion<Object> complete) {
+        try {
+            logger.debug(String.format("job with a payload of %s chars is executing", payload.length()));
+            fl.payloads.add(payload);
+        } finally {
+            complete.success(null);
+        }
+    }
+}
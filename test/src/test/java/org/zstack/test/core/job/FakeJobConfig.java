@@ -1,6 +1,7 @@
 package org.zstack.test.core.job;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
 public class FakeJobConfig {
@@ -9,4 +10,5 @@ public class FakeJobConfig {
     boolean success;
     volatile int jdbRepeatNum;
     volatile boolean condition = false;
+    List<String> payloads = Collections.synchronizedList(new ArrayList<String>());
 }
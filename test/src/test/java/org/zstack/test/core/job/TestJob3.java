@@ -0,0 +1,95 @@
+package org.zstack.test.core.job;
+
+import junit.framework.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.zstack.core.componentloader.ComponentLoader;
+import org.zstack.core.job.JobGlobalProperty;
+import org.zstack.core.job.JobQueueFacade;
+import org.zstack.test.Api;
+import org.zstack.test.BeanConstructor;
+import org.zstack.test.DBUtil;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 1. run jobs on two queues whose locks are on different stripes
+ *
+ * confirm both jobs run
+ *
+ * 2. run a job whose context is larger than the compression threshold
+ *
+ * confirm the context is restored from database unchanged
+ *
+ * 3. raise the compression threshold so the context is saved uncompressed, as older versions did
+ *
+ * confirm the context is restored from database unchanged
+ */
+public class TestJob3 {
+    ComponentLoader loader;
+    JobQueueFacade jobf;
+    FakeJobConfig fl;
+
+    @Before
+    public void setUp() throws Exception {
+        DBUtil.reDeployDB();
+        BeanConstructor con = new BeanConstructor();
+        loader = con.addXml("JobForUnitTest.xml").addXml("PortalForUnitTest.xml").addXml("AccountManager.xml").build();
+        jobf = loader.getComponent(JobQueueFacade.class);
+        fl = loader.getComponent(FakeJobConfig.class);
+        new Api().startServer();
+    }
+
+    private int getStripe(String queueName) {
+        return (queueName.hashCode() & Integer.MAX_VALUE) % JobGlobalProperty.JOB_QUEUE_LOCK_STRIPE_NUM;
+    }
+
+    private String makePayload(int len) {
+        StringBuilder sb = new StringBuilder(len);
+        for (int i = 0; i < len; i++) {
+            sb.append((char) ('a' + i % 26));
+        }
+        return sb.toString();
+    }
+
+    private void waitForPayloads(int num) throws InterruptedException {
+        for (int i = 0; i < 30 && fl.payloads.size() < num; i++) {
+            TimeUnit.SECONDS.sleep(1);
+        }
+        Assert.assertEquals(num, fl.payloads.size());
+    }
+
+    @Test
+    public void test() throws InterruptedException {
+        String queue1 = "TestJob3-0";
+        String queue2 = null;
+        for (int i = 1; queue2 == null; i++) {
+            String name = "TestJob3-" + i;
+            if (getStripe(name) != getStripe(queue1)) {
+                queue2 = name;
+            }
+        }
+
+        jobf.execute(queue1, "TestJob3", new FakeJob3(queue1));
+        jobf.execute(queue2, "TestJob3", new FakeJob3(queue2));
+        waitForPayloads(2);
+        Assert.assertTrue(fl.payloads.contains(queue1));
+        Assert.assertTrue(fl.payloads.contains(queue2));
+
+        String big = makePayload(JobGlobalProperty.COMPRESS_CONTEXT_THRESHOLD * 10);
+        jobf.execute(queue1, "TestJob3", new FakeJob3(big));
+        waitForPayloads(3);
+        Assert.assertEquals(big, fl.payloads.get(2));
+
+        int threshold = JobGlobalProperty.COMPRESS_CONTEXT_THRESHOLD;
+        JobGlobalProperty.COMPRESS_CONTEXT_THRESHOLD = Integer.MAX_VALUE;
+        try {
+            String plain = makePayload(threshold * 10 + 1);
+            jobf.execute(queue1, "TestJob3", new FakeJob3(plain));
+            waitForPayloads(4);
+            Assert.assertEquals(plain, fl.payloads.get(3));
+        } finally {
+            JobGlobalProperty.COMPRESS_CONTEXT_THRESHOLD = threshold;
+        }
+    }
+}
@@ -29,6 +29,7 @@ public class RESTBeanForTest {
     public static final String CALLBACK_FAIL_PATH = "/callbackfail";
     public static final String CALLBACK_MISSING_TASKUUID_PATH = "/callbackmissingtaskuuid";
     public static final String CALLBACK_JSON_PATH = "/callbackjson";
+    public static final String SLOW_RESPONSE_PATH = "/slowresponse";
     
     @Autowired
     private RESTFacade restf;
@@ -70,6 +71,13 @@ public class RESTBeanForTest {
         return "";
     }
     
+    @RequestMapping(value=RESTBeanForTest.SLOW_RESPONSE_PATH, method=RequestMethod.POST)
+    public @ResponseBody String testSlowResponse(HttpServletRequest  req, HttpServletResponse rsp) throws InterruptedException, IOException {
+        /* answer the post later than the socket timeout of the client */
+        TimeUnit.SECONDS.sleep(10);
+        return "";
+    }
+    
     @RequestMapping(value=RESTBeanForTest.CALLBACK_FAIL_PATH, method=RequestMethod.POST)
     public @ResponseBody String testCallbackFail(HttpServletRequest  req, HttpServletResponse rsp) throws InterruptedException, IOException {
         /* do nothing, emulate a timeout */
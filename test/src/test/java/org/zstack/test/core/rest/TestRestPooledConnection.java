@@ -0,0 +1,122 @@
+package org.zstack.test.core.rest;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.web.client.RestClientException;
+import org.zstack.core.componentloader.ComponentLoader;
+import org.zstack.header.errorcode.ErrorCode;
+import org.zstack.header.errorcode.SysErrors;
+import org.zstack.header.rest.JsonAsyncRESTCallback;
+import org.zstack.header.rest.RESTFacade;
+import org.zstack.test.WebBeanConstructor;
+import org.zstack.utils.Utils;
+import org.zstack.utils.logging.CLogger;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 1. limit the connection pool to 2 connections per host and the socket timeout to 2s
+ * 2. post more commands than pooled connections in parallel
+ *
+ * confirm all commands succeed through the pooled connections
+ *
+ * 3. post a command to an url answering in 10s, with a command timeout of 60s
+ *
+ * confirm the callback fails with a timeout error in the socket timeout
+ * confirm a sync post to the url fails too
+ */
+public class TestRestPooledConnection {
+    CLogger logger = Utils.getLogger(TestRestPooledConnection.class);
+    WebBeanConstructor wbean;
+    ComponentLoader loader;
+    RESTFacade restf;
+    int num = 10;
+
+    @Before
+    public void setUp() throws Exception {
+        System.setProperty("RESTFacade.maxConnectionsPerHost", "2");
+        System.setProperty("RESTFacade.socketTimeout", "2000");
+        wbean = new WebBeanConstructor();
+        wbean.addXml("PortalForUnitTest.xml").addXml("AccountManager.xml");
+        loader = wbean.build();
+        restf = loader.getComponent(RESTFacade.class);
+    }
+
+    @Test
+    public void test() throws InterruptedException {
+        String url = wbean.buildUrl(RESTBeanForTest.ROOT, RESTBeanForTest.CALLBACK_PATH);
+        final String hi = "hello";
+        final AtomicInteger successes = new AtomicInteger(0);
+        final CountDownLatch latch = new CountDownLatch(num);
+        for (int i = 0; i < num; i++) {
+            restf.asyncJsonPost(url, hi, new JsonAsyncRESTCallback<String>() {
+                @Override
+                public void fail(ErrorCode err) {
+                    logger.error(String.format("fail: %s", err));
+                    latch.countDown();
+                }
+
+                @Override
+                public void success(String ret) {
+                    if (hi.equals(ret)) {
+                        successes.incrementAndGet();
+                    }
+                    latch.countDown();
+                }
+
+                @Override
+                public Class<String> getReturnClass() {
+                    return String.class;
+                }
+            }, TimeUnit.SECONDS, 30);
+        }
+        Assert.assertTrue(latch.await(1, TimeUnit.MINUTES));
+        Assert.assertEquals(num, successes.get());
+
+        String slowUrl = wbean.buildUrl(RESTBeanForTest.ROOT, RESTBeanForTest.SLOW_RESPONSE_PATH);
+        final ErrorCode[] error = new ErrorCode[1];
+        final CountDownLatch slowLatch = new CountDownLatch(1);
+        long start = System.currentTimeMillis();
+        restf.asyncJsonPost(slowUrl, hi, new JsonAsyncRESTCallback<String>() {
+            @Override
+            public void fail(ErrorCode err) {
+                error[0] = err;
+                slowLatch.countDown();
+            }
+
+            @Override
+            public void success(String ret) {
+                logger.error(String.format("received %s that should not be received", ret));
+                slowLatch.countDown();
+            }
+
+            @Override
+            public Class<String> getReturnClass() {
+                return String.class;
+            }
+        }, TimeUnit.SECONDS, 60);
+        Assert.assertTrue(slowLatch.await(1, TimeUnit.MINUTES));
+        Assert.assertNotNull(error[0]);
+        Assert.assertEquals(SysErrors.TIMEOUT.toString(), error[0].getCode());
+        Assert.assertTrue(System.currentTimeMillis() - start < TimeUnit.SECONDS.toMillis(10));
+
+        boolean s = false;
+        try {
+            restf.syncJsonPost(slowUrl, hi, String.class);
+        } catch (RestClientException e) {
+            s = true;
+        }
+        Assert.assertTrue(s);
+    }
+
+    @After
+    public void tearDown() {
+        System.clearProperty("RESTFacade.maxConnectionsPerHost");
+        System.clearProperty("RESTFacade.socketTimeout");
+        wbean.stopTomcat();
+    }
+}
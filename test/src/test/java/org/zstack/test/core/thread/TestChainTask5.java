@@ -0,0 +1,94 @@
+package org.zstack.test.core.thread;
+
+import junit.framework.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.zstack.core.componentloader.ComponentLoader;
+import org.zstack.core.thread.ChainTask;
+import org.zstack.core.thread.SyncTaskChain;
+import org.zstack.core.thread.ThreadFacade;
+import org.zstack.core.thread.ThreadFacadeMXBean;
+import org.zstack.test.BeanConstructor;
+import org.zstack.utils.Utils;
+import org.zstack.utils.logging.CLogger;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * submit chain tasks of many signatures from many threads at the same time;
+ * tasks of the same signature must never run concurrently and all queues must be
+ * removed once they are drained
+ */
+public class TestChainTask5 {
+    CLogger logger = Utils.getLogger(TestChainTask5.class);
+    ComponentLoader loader;
+    ThreadFacade thdf;
+    int submitterNum = 8;
+    int taskNumPerSubmitter = 5000;
+    int signatureNum = 32;
+    AtomicInteger[] running = new AtomicInteger[signatureNum];
+    AtomicBoolean overlapped = new AtomicBoolean(false);
+    CountDownLatch latch = new CountDownLatch(submitterNum * taskNumPerSubmitter);
+
+    class Tester extends ChainTask {
+        int index;
+
+        Tester(int index) {
+            this.index = index;
+        }
+
+        @Override
+        public String getName() {
+            return "Test";
+        }
+
+        @Override
+        public String getSyncSignature() {
+            return "Test-" + index;
+        }
+
+        @Override
+        public void run(SyncTaskChain chain) {
+            if (running[index].incrementAndGet() != 1) {
+                overlapped.set(true);
+            }
+            running[index].decrementAndGet();
+            latch.countDown();
+            chain.next();
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        BeanConstructor con = new BeanConstructor();
+        loader = con.build();
+        thdf = loader.getComponent(ThreadFacade.class);
+        for (int i = 0; i < signatureNum; i++) {
+            running[i] = new AtomicInteger(0);
+        }
+    }
+
+    @Test
+    public void test() throws InterruptedException {
+        for (int i = 0; i < submitterNum; i++) {
+            final int base = i;
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < taskNumPerSubmitter; j++) {
+                        thdf.chainSubmit(new Tester((base + j) % signatureNum));
+                    }
+                }
+            }).start();
+        }
+
+        Assert.assertTrue(latch.await(2, TimeUnit.MINUTES));
+        Assert.assertFalse(overlapped.get());
+
+        TimeUnit.SECONDS.sleep(1);
+        Assert.assertTrue(((ThreadFacadeMXBean) thdf).getChainTaskStatistics().isEmpty());
+    }
+}
@@ -0,0 +1,53 @@
+package org.zstack.test.core.thread;
+
+import junit.framework.Assert;
+import org.junit.Test;
+import org.zstack.core.thread.HashedWheelTimer;
+import org.zstack.core.thread.HashedWheelTimer.WheelTimeout;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * schedule many timeouts, cancel half of them; only the rest expire and nothing is left pending
+ */
+public class TestHashedWheelTimer {
+    @Test
+    public void test() throws InterruptedException {
+        final AtomicInteger count = new AtomicInteger();
+        HashedWheelTimer timer = new HashedWheelTimer("test-wheel", 10, TimeUnit.MILLISECONDS, 64, new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                command.run();
+            }
+        });
+
+        int num = 10000;
+        List<WheelTimeout> timeouts = new ArrayList<WheelTimeout>(num);
+        for (int i = 0; i < num; i++) {
+            timeouts.add(timer.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    count.incrementAndGet();
+                }
+            }, TimeUnit.MILLISECONDS, i % 1500));
+        }
+
+        for (int i = 0; i < num; i += 2) {
+            Assert.assertTrue(timeouts.get(i).cancel());
+        }
+
+        TimeUnit.SECONDS.sleep(3);
+        Assert.assertEquals(num / 2, count.get());
+        Assert.assertEquals(0, timer.getPendingCount());
+        for (int i = 0; i < num; i += 2) {
+            Assert.assertTrue(timeouts.get(i).isCancelled());
+            Assert.assertTrue(timeouts.get(i + 1).isExpired());
+            Assert.assertFalse(timeouts.get(i + 1).cancel());
+        }
+        timer.stop();
+    }
+}
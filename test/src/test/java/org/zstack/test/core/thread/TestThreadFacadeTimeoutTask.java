@@ -0,0 +1,56 @@
+package org.zstack.test.core.thread;
+
+import junit.framework.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.zstack.core.componentloader.ComponentLoader;
+import org.zstack.core.thread.ThreadFacade;
+import org.zstack.core.thread.ThreadFacadeImpl.TimeoutTaskReceipt;
+import org.zstack.core.thread.ThreadFacadeMXBean;
+import org.zstack.test.BeanConstructor;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class TestThreadFacadeTimeoutTask {
+    ComponentLoader loader;
+    ThreadFacade thdf;
+    int taskNum = 10000;
+    AtomicInteger count = new AtomicInteger(0);
+
+    @Before
+    public void setUp() throws Exception {
+        BeanConstructor con = new BeanConstructor();
+        loader = con.build();
+        thdf = loader.getComponent(ThreadFacade.class);
+    }
+
+    @Test
+    public void test() throws InterruptedException {
+        ThreadFacadeMXBean mxbean = (ThreadFacadeMXBean) thdf;
+        long pending = mxbean.getTimeoutTaskPendingCount();
+        List<TimeoutTaskReceipt> receipts = new ArrayList<TimeoutTaskReceipt>(taskNum);
+        for (int i = 0; i < taskNum; i++) {
+            receipts.add(thdf.submitTimeoutTask(new Runnable() {
+                @Override
+                public void run() {
+                    count.incrementAndGet();
+                }
+            }, TimeUnit.MILLISECONDS, 500));
+        }
+
+        // cancel every other task
+        for (int i = 0; i < taskNum; i += 2) {
+            Assert.assertTrue(receipts.get(i).cancel());
+        }
+
+        Assert.assertEquals(pending + taskNum / 2, mxbean.getTimeoutTaskPendingCount());
+
+        TimeUnit.SECONDS.sleep(2);
+        Assert.assertEquals(taskNum / 2, count.get());
+        Assert.assertTrue(mxbean.getTimeoutTaskPendingCount() <= pending);
+        Assert.assertFalse(receipts.get(1).cancel());
+    }
+}
@@ -0,0 +1,138 @@
+package org.zstack.test.identity;
+
+import junit.framework.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.AuthenticationException;
+import org.zstack.core.cloudbus.EventFacade;
+import org.zstack.core.componentloader.ComponentLoader;
+import org.zstack.core.db.DatabaseFacade;
+import org.zstack.core.db.SimpleQuery;
+import org.zstack.core.db.SimpleQuery.Op;
+import org.zstack.header.identity.*;
+import org.zstack.header.identity.IdentityCanonicalEvents.SessionInvalidatedData;
+import org.zstack.identity.CredentialCheckerImpl;
+import org.zstack.identity.IdentityGlobalConfig;
+import org.zstack.identity.SessionToken;
+import org.zstack.test.Api;
+import org.zstack.test.ApiSenderException;
+import org.zstack.test.DBUtil;
+import org.zstack.test.deployer.Deployer;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 1. check a session of a user, so the user is cached
+ * 2. attach a policy to the user
+ *
+ * confirm the next check sees the policy
+ *
+ * 3. attach the policy to the group of the user
+ *
+ * confirm the next check sees the policy of the group
+ *
+ * 4. delete the session and fire the session invalidated event, as another management node logging out does
+ *
+ * confirm the next check rejects the session
+ *
+ * 5. check a session timing out in 2 seconds, wait for its expiring
+ *
+ * confirm the next check rejects the session
+ */
+public class TestCredentialCache {
+    Deployer deployer;
+    Api api;
+    ComponentLoader loader;
+    DatabaseFacade dbf;
+    EventFacade evtf;
+    CredentialCheckerImpl checker;
+
+    @Before
+    public void setUp() throws Exception {
+        DBUtil.reDeployDB();
+        deployer = new Deployer("deployerXml/identity/TestCredentialCache.xml");
+        deployer.build();
+        api = deployer.getApi();
+        loader = deployer.getComponentLoader();
+        dbf = loader.getComponent(DatabaseFacade.class);
+        evtf = loader.getComponent(EventFacade.class);
+        checker = loader.getComponent(CredentialCheckerImpl.class);
+    }
+
+    private UserVO check(SessionInventory session) {
+        FakePolicyAllowMsg msg = new FakePolicyAllowMsg();
+        msg.setSession(session);
+        Authentication token = checker.authenticate(new SessionToken(session.getUuid(), msg));
+        return (UserVO) token.getDetails();
+    }
+
+    private boolean isRejected(SessionInventory session) {
+        try {
+            check(session);
+            return false;
+        } catch (AuthenticationException e) {
+            return true;
+        }
+    }
+
+    private boolean hasPolicy(UserVO user, String policyUuid) {
+        for (PolicyVO p : user.getPolicies()) {
+            if (p.getUuid().equals(policyUuid)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean hasGroupPolicy(UserVO user, String policyUuid) {
+        for (UserGroupVO g : user.getGroups()) {
+            for (PolicyVO p : g.getPolicies()) {
+                if (p.getUuid().equals(policyUuid)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    @Test
+    public void test() throws ApiSenderException, InterruptedException {
+        AccountInventory account = deployer.accounts.get("TestAccount");
+        PolicyInventory policy = deployer.polices.get("TestPolicy");
+        UserGroupInventory group = deployer.groups.get("TestGroup1");
+        SimpleQuery<UserVO> q = dbf.createQuery(UserVO.class);
+        q.add(UserVO_.name, Op.EQ, "TestUser");
+        UserVO user = q.find();
+        SessionInventory accountSession = api.loginByAccount(account.getName(), "password");
+        SessionInventory session = api.loginByUser(user.getName(), user.getPassword(), user.getAccountUuid());
+
+        UserVO checked = check(session);
+        Assert.assertFalse(hasPolicy(checked, policy.getUuid()));
+        Assert.assertFalse(hasGroupPolicy(checked, policy.getUuid()));
+
+        api.attachPolicyToUser(account.getUuid(), user.getUuid(), policy.getUuid(), accountSession);
+        // the cache is invalidated by a canonical event
+        TimeUnit.SECONDS.sleep(1);
+        checked = check(session);
+        Assert.assertTrue(hasPolicy(checked, policy.getUuid()));
+
+        api.attachPolicyToGroup(account.getUuid(), group.getUuid(), policy.getUuid(), accountSession);
+        TimeUnit.SECONDS.sleep(1);
+        checked = check(session);
+        Assert.assertTrue(hasGroupPolicy(checked, policy.getUuid()));
+
+        dbf.removeByPrimaryKey(session.getUuid(), SessionVO.class);
+        SessionInvalidatedData data = new SessionInvalidatedData();
+        data.setSessionUuid(session.getUuid());
+        evtf.fire(IdentityCanonicalEvents.SESSION_INVALIDATED_PATH, data);
+        TimeUnit.SECONDS.sleep(1);
+        Assert.assertTrue(isRejected(session));
+
+        IdentityGlobalConfig.SESSION_TIMEOUT.updateValue(2);
+        session = api.loginByUser(user.getName(), user.getPassword(), user.getAccountUuid());
+        Assert.assertFalse(isRejected(session));
+        TimeUnit.SECONDS.sleep(3);
+        Assert.assertTrue(isRejected(session));
+    }
+}
@@ -0,0 +1,121 @@
+package org.zstack.test.portal;
+
+import junit.framework.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.zstack.core.componentloader.ComponentLoader;
+import org.zstack.core.thread.ThreadFacade;
+import org.zstack.portal.apimediator.ApiWorkerLane;
+import org.zstack.portal.apimediator.ApiWorkerLaneStatistic;
+import org.zstack.test.BeanConstructor;
+import org.zstack.utils.Utils;
+import org.zstack.utils.logging.CLogger;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 1. submit more messages than workers to a lane of 2 workers
+ *
+ * confirm no more than 2 messages run at the same time and all messages run
+ *
+ * 2. block the only worker of a lane, queue messages of 3 sessions, release the worker
+ *
+ * confirm the sessions take turns
+ */
+public class TestApiWorkerLane {
+    CLogger logger = Utils.getLogger(TestApiWorkerLane.class);
+    ComponentLoader loader;
+    ThreadFacade thdf;
+    int msgNum = 10;
+
+    @Before
+    public void setUp() throws Exception {
+        BeanConstructor con = new BeanConstructor();
+        loader = con.build();
+        thdf = loader.getComponent(ThreadFacade.class);
+    }
+
+    private void testConcurrency() throws InterruptedException {
+        ApiWorkerLane lane = new ApiWorkerLane("test", 2, thdf);
+        final AtomicInteger running = new AtomicInteger(0);
+        final AtomicInteger maxRunning = new AtomicInteger(0);
+        final CountDownLatch latch = new CountDownLatch(msgNum);
+        for (int i = 0; i < msgNum; i++) {
+            lane.submit("session" + i, new Runnable() {
+                @Override
+                public void run() {
+                    int n = running.incrementAndGet();
+                    synchronized (maxRunning) {
+                        maxRunning.set(Math.max(maxRunning.get(), n));
+                    }
+                    try {
+                        TimeUnit.MILLISECONDS.sleep(100);
+                    } catch (InterruptedException e) {
+                        logger.warn(e.getMessage(), e);
+                    } finally {
+                        running.decrementAndGet();
+                        latch.countDown();
+                    }
+                }
+            });
+        }
+
+        Assert.assertTrue(latch.await(1, TimeUnit.MINUTES));
+        Assert.assertEquals(2, maxRunning.get());
+
+        // the worker releases its slot right after the last message
+        TimeUnit.MILLISECONDS.sleep(500);
+        ApiWorkerLaneStatistic stat = lane.getStatistic();
+        Assert.assertEquals(0, stat.getRunningTaskNum());
+        Assert.assertEquals(0, stat.getQueueDepth());
+        Assert.assertEquals(msgNum, stat.getCompletedTaskNum());
+    }
+
+    private void testRoundRobin() throws InterruptedException {
+        ApiWorkerLane lane = new ApiWorkerLane("test", 1, thdf);
+        final CountDownLatch gate = new CountDownLatch(1);
+        lane.submit("blocker", new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    gate.await(1, TimeUnit.MINUTES);
+                } catch (InterruptedException e) {
+                    logger.warn(e.getMessage(), e);
+                }
+            }
+        });
+
+        final List<String> order = Collections.synchronizedList(new ArrayList<String>());
+        List<String> msgs = Arrays.asList("a1", "a2", "a3", "b1", "b2", "c1");
+        final CountDownLatch latch = new CountDownLatch(msgs.size());
+        for (final String m : msgs) {
+            lane.submit(m.substring(0, 1), new Runnable() {
+                @Override
+                public void run() {
+                    order.add(m);
+                    latch.countDown();
+                }
+            });
+        }
+
+        ApiWorkerLaneStatistic stat = lane.getStatistic();
+        Assert.assertEquals(msgs.size(), stat.getQueueDepth());
+        Assert.assertEquals(3, stat.getWaitingSessionNum());
+
+        gate.countDown();
+        Assert.assertTrue(latch.await(1, TimeUnit.MINUTES));
+        Assert.assertEquals(Arrays.asList("a1", "b1", "c1", "a2", "b2", "a3"), order);
+    }
+
+    @Test
+    public void test() throws InterruptedException {
+        testConcurrency();
+        testRoundRobin();
+    }
+}
@@ -0,0 +1,84 @@
+package org.zstack.test.securitygroup;
+
+import junit.framework.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.zstack.core.componentloader.ComponentLoader;
+import org.zstack.core.db.DatabaseFacade;
+import org.zstack.header.vm.VmInstanceInventory;
+import org.zstack.network.securitygroup.APIAddSecurityGroupRuleMsg.SecurityGroupRuleAO;
+import org.zstack.network.securitygroup.SecurityGroupGlobalConfig;
+import org.zstack.network.securitygroup.SecurityGroupInventory;
+import org.zstack.network.securitygroup.SecurityGroupRuleTO;
+import org.zstack.simulator.kvm.KVMSimulatorConfig;
+import org.zstack.test.Api;
+import org.zstack.test.ApiSenderException;
+import org.zstack.test.DBUtil;
+import org.zstack.test.WebBeanConstructor;
+import org.zstack.test.deployer.Deployer;
+import org.zstack.utils.Utils;
+import org.zstack.utils.logging.CLogger;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @condition
+ * 1. set rule.coalesceWindow to 1s
+ * 2. add nic of vm to security group
+ * 3. add a rule to security group in the window
+ *
+ * @test
+ * confirm rules are applied to the host in one command
+ * confirm the applied rules contain the new rule
+ */
+public class TestSecurityGroupRuleCoalesce {
+    static CLogger logger = Utils.getLogger(TestSecurityGroupRuleCoalesce.class);
+    static Deployer deployer;
+    static Api api;
+    static ComponentLoader loader;
+    static DatabaseFacade dbf;
+    static KVMSimulatorConfig config;
+
+    @BeforeClass
+    public static void setUp() throws Exception {
+        DBUtil.reDeployDB();
+        WebBeanConstructor con = new WebBeanConstructor();
+        deployer = new Deployer("deployerXml/securityGroup/TestApplySeurityGroupRulesToVmOnKvm.xml", con);
+        deployer.addSpringConfig("KVMRelated.xml");
+        deployer.build();
+        api = deployer.getApi();
+        loader = deployer.getComponentLoader();
+        dbf = loader.getComponent(DatabaseFacade.class);
+        config = loader.getComponent(KVMSimulatorConfig.class);
+    }
+
+    @Test
+    public void test() throws ApiSenderException, InterruptedException {
+        SecurityGroupInventory scinv = deployer.securityGroups.get("test");
+        VmInstanceInventory vm = deployer.vms.get("TestVm");
+        String nicName = vm.getVmNics().get(0).getInternalName();
+
+        SecurityGroupGlobalConfig.RULE_COALESCE_WINDOW.updateValue(1000);
+        config.securityGroupApplyRuleCmds.clear();
+
+        List<String> nicUuids = new ArrayList<String>();
+        nicUuids.add(vm.getVmNics().get(0).getUuid());
+        api.addVmNicToSecurityGroup(scinv.getUuid(), nicUuids);
+
+        SecurityGroupRuleAO ao = new SecurityGroupRuleAO();
+        ao.setAllowedCidr("10.0.0.0/8");
+        ao.setStartPort(443);
+        ao.setEndPort(443);
+        ao.setProtocol("TCP");
+        ao.setType("Ingress");
+        scinv = api.addSecurityGroupRuleByFullConfig(scinv.getUuid(), ao);
+
+        TimeUnit.SECONDS.sleep(3);
+        Assert.assertEquals(1, config.securityGroupApplyRuleCmds.size());
+        SecurityGroupRuleTO to = config.securityGroups.get(nicName);
+        Assert.assertEquals(3, to.getRules().size());
+        SecurityGroupTestValidator.validate(to, scinv.getRules());
+    }
+}
@@ -0,0 +1,138 @@
+package org.zstack.test.virtualrouter;
+
+import junit.framework.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.zstack.core.componentloader.ComponentLoader;
+import org.zstack.core.db.DatabaseFacade;
+import org.zstack.header.apimediator.ApiMediatorConstant;
+import org.zstack.header.configuration.InstanceOfferingInventory;
+import org.zstack.header.identity.SessionInventory;
+import org.zstack.header.image.ImageInventory;
+import org.zstack.header.network.l3.L3NetworkInventory;
+import org.zstack.header.vm.APICreateVmInstanceEvent;
+import org.zstack.header.vm.APICreateVmInstanceMsg;
+import org.zstack.header.vm.VmInstanceConstant;
+import org.zstack.header.vm.VmInstanceInventory;
+import org.zstack.network.service.virtualrouter.VirtualRouterCommands.DhcpInfo;
+import org.zstack.network.service.virtualrouter.VirtualRouterGlobalConfig;
+import org.zstack.simulator.virtualrouter.VirtualRouterSimulatorConfig;
+import org.zstack.test.*;
+import org.zstack.test.deployer.Deployer;
+import org.zstack.utils.Utils;
+import org.zstack.utils.logging.CLogger;
+
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 1. create a vm so the virtual router is created
+ * 2. set command.coalesceWindow to 1s
+ * 3. create vms in parallel
+ *
+ * confirm dhcp entries of all vms are set in fewer commands than vms
+ *
+ * 4. make setting dhcp entries fail
+ * 5. create vms in parallel
+ *
+ * confirm creating every vm fails
+ */
+public class TestVirtualRouterCommandCoalesce {
+    CLogger logger = Utils.getLogger(TestVirtualRouterCommandCoalesce.class);
+    Deployer deployer;
+    Api api;
+    ComponentLoader loader;
+    DatabaseFacade dbf;
+    SessionInventory session;
+    VirtualRouterSimulatorConfig vconfig;
+    int vmNum = 5;
+
+    @Before
+    public void setUp() throws Exception {
+        DBUtil.reDeployDB();
+        WebBeanConstructor con = new WebBeanConstructor();
+        deployer = new Deployer("deployerXml/virtualRouter/startVirtualRouter.xml", con);
+        deployer.addSpringConfig("VirtualRouter.xml");
+        deployer.addSpringConfig("VirtualRouterSimulator.xml");
+        deployer.addSpringConfig("KVMRelated.xml");
+        deployer.build();
+        api = deployer.getApi();
+        loader = deployer.getComponentLoader();
+        vconfig = loader.getComponent(VirtualRouterSimulatorConfig.class);
+        dbf = loader.getComponent(DatabaseFacade.class);
+        session = api.loginAsAdmin();
+    }
+
+    private VmInstanceInventory createVm(String name) throws ApiSenderException {
+        ImageInventory iminv = deployer.images.get("TestImage");
+        InstanceOfferingInventory ioinv = deployer.instanceOfferings.get("TestInstanceOffering");
+        L3NetworkInventory l3inv = deployer.l3Networks.get("TestL3Network2");
+        APICreateVmInstanceMsg msg = new APICreateVmInstanceMsg();
+        msg.setImageUuid(iminv.getUuid());
+        msg.setInstanceOfferingUuid(ioinv.getUuid());
+        List<String> l3uuids = new ArrayList<String>();
+        l3uuids.add(l3inv.getUuid());
+        msg.setL3NetworkUuids(l3uuids);
+        msg.setName(name);
+        msg.setSession(session);
+        msg.setServiceId(ApiMediatorConstant.SERVICE_ID);
+        msg.setType(VmInstanceConstant.USER_VM_TYPE);
+        ApiSender sender = api.getApiSender();
+        APICreateVmInstanceEvent evt = sender.send(msg, APICreateVmInstanceEvent.class);
+        return evt.getInventory();
+    }
+
+    private List<VmInstanceInventory> createVmsInParallel(final AtomicInteger failures) throws InterruptedException {
+        final List<VmInstanceInventory> vms = Collections.synchronizedList(new ArrayList<VmInstanceInventory>());
+        final CountDownLatch latch = new CountDownLatch(vmNum);
+        for (int i = 0; i < vmNum; i++) {
+            final String name = "vm-" + i;
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        vms.add(createVm(name));
+                    } catch (ApiSenderException e) {
+                        failures.incrementAndGet();
+                    } finally {
+                        latch.countDown();
+                    }
+                }
+            }).start();
+        }
+
+        Assert.assertTrue(latch.await(2, TimeUnit.MINUTES));
+        return vms;
+    }
+
+    @Test
+    public void test() throws ApiSenderException, InterruptedException {
+        createVm("TestVm");
+
+        VirtualRouterGlobalConfig.COMMAND_COALESCE_WINDOW.updateValue(1000);
+        vconfig.addDhcpEntryCmds.clear();
+        vconfig.dhcpInfos.clear();
+
+        AtomicInteger failures = new AtomicInteger(0);
+        List<VmInstanceInventory> vms = createVmsInParallel(failures);
+        Assert.assertEquals(0, failures.get());
+        Assert.assertEquals(vmNum, vms.size());
+        Assert.assertTrue(vconfig.addDhcpEntryCmds.size() < vmNum);
+
+        Set<String> macs = new HashSet<String>();
+        for (DhcpInfo info : vconfig.dhcpInfos) {
+            macs.add(info.getMac());
+        }
+        for (VmInstanceInventory vm : vms) {
+            Assert.assertTrue(macs.contains(vm.getVmNics().get(0).getMac()));
+        }
+
+        vconfig.setDhcpEntrySuccess = false;
+        failures.set(0);
+        vms = createVmsInParallel(failures);
+        Assert.assertEquals(vmNum, failures.get());
+        Assert.assertTrue(vms.isEmpty());
+    }
+}
@@ -3,15 +3,35 @@ package org.zstack.utils.hash;
 import org.zstack.utils.Utils;
 import org.zstack.utils.logging.CLogger;
 
-import java.util.Collection;
-import java.util.SortedMap;
-import java.util.TreeMap;
+import java.util.*;
 
-public class ConsistentHash<T> {
-    private final CLogger logger = Utils.getLogger(ConsistentHash.class);
+/**
+ * The circle is an immutable snapshot of virtual node hashes sorted in an int[], with the owning
+ * nodes in a parallel array. add() and remove() build a new snapshot and publish it through a
+ * volatile field, so get() is a lock free binary search that allocates nothing besides what the
+ * hash function does.
+ *
+ * Two virtual nodes with the same hash are resolved to the node with the smaller string form,
+ * so the circle does not depend on the order nodes are added in.
+ */
+public class ConsistentHash<T> implements NodeHash<T> {
+    private static final CLogger logger = Utils.getLogger(ConsistentHash.class);
     private final HashFunction hashFunction;
     private final int numberOfReplicas;
-    private final SortedMap<Integer, T> circle = new TreeMap<Integer, T>();
+
+    // guarded by this, only touched when the membership changes
+    private final Map<T, int[]> replicaHashes = new HashMap<T, int[]>();
+    private volatile Circle circle = new Circle(new int[0], new Object[0]);
+
+    private static class Circle {
+        final int[] hashes;
+        final Object[] nodes;
+
+        Circle(int[] hashes, Object[] nodes) {
+            this.hashes = hashes;
+            this.nodes = nodes;
+        }
+    }
 
     public ConsistentHash(HashFunction hashFunction, int numberOfReplicas,
                           Collection<T> nodes) {
@@ -23,42 +43,99 @@ public class ConsistentHash<T> {
         }
     }
 
-    public void add(T node) {
+    @Override
+    public synchronized void add(T node) {
+        if (replicaHashes.containsKey(node)) {
+            return;
+        }
+
+        String name = node.toString();
+        int[] hashes = new int[numberOfReplicas];
+        StringBuilder sb = new StringBuilder(name.length() + 8).append(name);
         for (int i = 0; i < numberOfReplicas; i++) {
-            String nodeName = node.toString() + i;
-            circle.put(hashFunction.hash(nodeName), node);
+            sb.setLength(name.length());
+            hashes[i] = hashFunction.hash(sb.append(i).toString());
         }
-        logger.debug(String.format("after adding, consistent hash circle has %s virtual nodes now", circle.size()));
+        replicaHashes.put(node, hashes);
+        rebuild();
+        logger.debug(String.format("after adding, consistent hash circle has %s virtual nodes now", circle.hashes.length));
     }
 
-    public void remove(T node) {
-        for (int i = 0; i < numberOfReplicas; i++) {
-            String nodeName = node.toString() + i;
-            circle.remove(hashFunction.hash(nodeName));
+    @Override
+    public synchronized void remove(T node) {
+        if (replicaHashes.remove(node) == null) {
+            return;
         }
-        logger.debug(String.format("after removing, consistent hash circle has %s virtual nodes now", circle.size()));
+
+        rebuild();
+        logger.debug(String.format("after removing, consistent hash circle has %s virtual nodes now", circle.hashes.length));
     }
 
-    public boolean hasNode(T node) {
-        for (int i = 0; i < numberOfReplicas; i++) {
-            String nodeName = node.toString() + i;
-            if (circle.containsKey(hashFunction.hash(node))) {
-                return true;
+    private static class VirtualNode implements Comparable<VirtualNode> {
+        final int hash;
+        final Object node;
+        final String name;
+
+        VirtualNode(int hash, Object node, String name) {
+            this.hash = hash;
+            this.node = node;
+            this.name = name;
+        }
+
+        @Override
+        public int compareTo(VirtualNode o) {
+            if (hash != o.hash) {
+                return hash < o.hash ? -1 : 1;
+            }
+            return name.compareTo(o.name);
+        }
+    }
+
+    private void rebuild() {
+        List<VirtualNode> vnodes = new ArrayList<VirtualNode>(replicaHashes.size() * numberOfReplicas);
+        for (Map.Entry<T, int[]> e : replicaHashes.entrySet()) {
+            String name = e.getKey().toString();
+            for (int hash : e.getValue()) {
+                vnodes.add(new VirtualNode(hash, e.getKey(), name));
+            }
+        }
+        Collections.sort(vnodes);
+
+        int[] hashes = new int[vnodes.size()];
+        Object[] nodes = new Object[vnodes.size()];
+        int size = 0;
+        for (VirtualNode vn : vnodes) {
+            if (size > 0 && hashes[size - 1] == vn.hash) {
+                continue;
             }
+            hashes[size] = vn.hash;
+            nodes[size] = vn.node;
+            size ++;
         }
 
-        return false;
+        circle = new Circle(Arrays.copyOf(hashes, size), Arrays.copyOf(nodes, size));
+    }
+
+    @Override
+    public synchronized boolean hasNode(T node) {
+        return replicaHashes.containsKey(node);
     }
 
+    @Override
     public T get(Object key) {
-        if (circle.isEmpty()) {
+        Circle c = circle;
+        if (c.hashes.length == 0) {
             return null;
         }
-        int hash = hashFunction.hash(key);
-        if (!circle.containsKey(hash)) {
-            SortedMap<Integer, T> tailMap = circle.tailMap(hash);
-            hash = tailMap.isEmpty() ? circle.firstKey() : tailMap.firstKey();
+
+        int i = Arrays.binarySearch(c.hashes, hashFunction.hash(key));
+        if (i < 0) {
+            // the first virtual node after the hash, wrapping around the circle
+            i = -i - 1;
+            if (i == c.hashes.length) {
+                i = 0;
+            }
         }
-        return circle.get(hash);
+        return (T) c.nodes[i];
     }
 }
@@ -0,0 +1,17 @@
+package org.zstack.utils.hash;
+
+/**
+ * maps keys to a changing set of nodes
+ */
+public interface NodeHash<T> {
+    void add(T node);
+
+    void remove(T node);
+
+    boolean hasNode(T node);
+
+    /**
+     * @return the node owning the key, or null if there is no node
+     */
+    T get(Object key);
+}
@@ -0,0 +1,118 @@
+package org.zstack.utils.hash;
+
+import java.util.*;
+
+/**
+ * Highest random weight hashing: a key belongs to the node scoring highest for it. Every node
+ * owns an even share of keys without virtual nodes; when a node joins it takes about 1/n of the
+ * keys evenly from all other nodes, and when it leaves only its own keys move.
+ *
+ * get() costs one score per node, so it suits a small number of nodes like management nodes.
+ * Like ConsistentHash, the nodes are an immutable snapshot swapped on membership change and get()
+ * is lock free.
+ */
+public class RendezvousHash<T> implements NodeHash<T> {
+    private final HashFunction hashFunction;
+    private volatile Snapshot snapshot = new Snapshot(new int[0], new Object[0]);
+
+    private static class Snapshot {
+        final int[] seeds;
+        final Object[] nodes;
+
+        Snapshot(int[] seeds, Object[] nodes) {
+            this.seeds = seeds;
+            this.nodes = nodes;
+        }
+    }
+
+    public RendezvousHash(HashFunction hashFunction, Collection<T> nodes) {
+        this.hashFunction = hashFunction;
+        for (T node : nodes) {
+            add(node);
+        }
+    }
+
+    @Override
+    public synchronized void add(T node) {
+        if (hasNode(node)) {
+            return;
+        }
+
+        Snapshot s = snapshot;
+        int len = s.nodes.length;
+        // keep nodes sorted by name so a tie of scores is broken the same way everywhere
+        String name = node.toString();
+        int pos = 0;
+        while (pos < len && s.nodes[pos].toString().compareTo(name) < 0) {
+            pos ++;
+        }
+
+        int[] seeds = new int[len + 1];
+        Object[] nodes = new Object[len + 1];
+        System.arraycopy(s.seeds, 0, seeds, 0, pos);
+        System.arraycopy(s.nodes, 0, nodes, 0, pos);
+        seeds[pos] = hashFunction.hash(name);
+        nodes[pos] = node;
+        System.arraycopy(s.seeds, pos, seeds, pos + 1, len - pos);
+        System.arraycopy(s.nodes, pos, nodes, pos + 1, len - pos);
+        snapshot = new Snapshot(seeds, nodes);
+    }
+
+    @Override
+    public synchronized void remove(T node) {
+        Snapshot s = snapshot;
+        int pos = Arrays.asList(s.nodes).indexOf(node);
+        if (pos == -1) {
+            return;
+        }
+
+        int len = s.nodes.length;
+        int[] seeds = new int[len - 1];
+        Object[] nodes = new Object[len - 1];
+        System.arraycopy(s.seeds, 0, seeds, 0, pos);
+        System.arraycopy(s.nodes, 0, nodes, 0, pos);
+        System.arraycopy(s.seeds, pos + 1, seeds, pos, len - pos - 1);
+        System.arraycopy(s.nodes, pos + 1, nodes, pos, len - pos - 1);
+        snapshot = new Snapshot(seeds, nodes);
+    }
+
+    @Override
+    public boolean hasNode(T node) {
+        for (Object n : snapshot.nodes) {
+            if (n.equals(node)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // the finalizer of MurmurHash3 x64, spreads every bit of the input over the result
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    @Override
+    public T get(Object key) {
+        Snapshot s = snapshot;
+        if (s.nodes.length == 0) {
+            return null;
+        }
+
+        long keyHash = hashFunction.hash(key) & 0xffffffffL;
+        int best = 0;
+        long bestScore = mix(((long) s.seeds[0] << 32) | keyHash);
+        for (int i = 1; i < s.seeds.length; i++) {
+            long score = mix(((long) s.seeds[i] << 32) | keyHash);
+            if (score > bestScore) {
+                best = i;
+                bestScore = score;
+            }
+        }
+        return (T) s.nodes[best];
+    }
+}
@@ -0,0 +1,68 @@
+package com.zstack.utils.test;
+
+import junit.framework.Assert;
+import org.junit.Test;
+import org.zstack.utils.hash.ApacheHash;
+import org.zstack.utils.hash.ConsistentHash;
+import org.zstack.utils.hash.NodeHash;
+import org.zstack.utils.hash.RendezvousHash;
+
+import java.util.*;
+
+/**
+ * a joining node only takes keys from others and a leaving node only gives away its own keys;
+ * the rendezvous hash spreads keys evenly
+ */
+public class TestRendezvousHash {
+    int nodeNum = 5;
+    int keyNum = 100000;
+
+    private String uuid() {
+        return UUID.randomUUID().toString();
+    }
+
+    private Map<String, Integer> check(NodeHash<String> hash) {
+        List<String> nodes = new ArrayList<String>();
+        for (int i = 0; i < nodeNum; i++) {
+            nodes.add(uuid());
+            hash.add(nodes.get(i));
+        }
+
+        Map<String, String> owners = new HashMap<String, String>();
+        Map<String, Integer> counts = new HashMap<String, Integer>();
+        for (int i = 0; i < keyNum; i++) {
+            String key = uuid();
+            String node = hash.get(key);
+            owners.put(key, node);
+            Integer c = counts.get(node);
+            counts.put(node, c == null ? 1 : c + 1);
+        }
+
+        String newNode = uuid();
+        hash.add(newNode);
+        Assert.assertTrue(hash.hasNode(newNode));
+        for (Map.Entry<String, String> e : owners.entrySet()) {
+            String node = hash.get(e.getKey());
+            Assert.assertTrue(node.equals(e.getValue()) || node.equals(newNode));
+        }
+
+        hash.remove(newNode);
+        Assert.assertFalse(hash.hasNode(newNode));
+        for (Map.Entry<String, String> e : owners.entrySet()) {
+            Assert.assertEquals(e.getValue(), hash.get(e.getKey()));
+        }
+
+        return counts;
+    }
+
+    @Test
+    public void test() {
+        check(new ConsistentHash<String>(new ApacheHash(), 500, new ArrayList<String>()));
+
+        Map<String, Integer> counts = check(new RendezvousHash<String>(new ApacheHash(), new ArrayList<String>()));
+        int expected = keyNum / nodeNum;
+        for (int c : counts.values()) {
+            Assert.assertTrue(String.format("%s keys, expected about %s", c, expected), Math.abs(c - expected) < expected / 10);
+        }
+    }
+}